@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+
+/**
+ * peer store and BEP33 scrape filters
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseBenchmark {
+
+	@Param({"50", "2000"})
+	int peersPerTorrent;
+
+	Database db;
+	Key[] torrents = new Key[256];
+	PeerAddressDBItem[] items = new PeerAddressDBItem[4096];
+	InetAddress[] addresses = new InetAddress[4096];
+	List<BloomFilterBEP33> filters = new ArrayList<>();
+	int cursor;
+
+	@Setup
+	public void setup() {
+		db = new Database();
+
+		for(int i=0;i<items.length;i++) {
+			addresses[i] = NodeFactory.generateIp(DHTtype.IPV4_DHT, (byte) 0);
+			items[i] = PeerAddressDBItem.createFromAddress(addresses[i], 1024 + i, i % 3 == 0);
+		}
+
+		for(int i=0;i<torrents.length;i++) {
+			torrents[i] = Key.createRandomKey();
+			for(int j=0;j<peersPerTorrent;j++)
+				db.store(torrents[i], items[(i + j * 31) & (items.length - 1)]);
+		}
+
+		for(int i=0;i<8;i++) {
+			BloomFilterBEP33 f = new BloomFilterBEP33();
+			for(int j=0;j<peersPerTorrent;j++)
+				f.insert(addresses[(i * 512 + j) & (addresses.length - 1)]);
+			filters.add(f);
+		}
+	}
+
+	int next(int mask) {
+		cursor++;
+		return cursor & mask;
+	}
+
+	@Benchmark
+	public void store() {
+		int idx = next(items.length - 1);
+		db.store(torrents[idx & (torrents.length - 1)], items[idx]);
+	}
+
+	@Benchmark
+	public List<DBItem> sample() {
+		// same list size DHT.getPeers uses for IPv4 responses
+		return db.sample(torrents[next(torrents.length - 1)], 50, DHTtype.IPV4_DHT, false);
+	}
+
+	@Benchmark
+	public BloomFilterBEP33 scrapeFilter() {
+		return db.get(torrents[next(torrents.length - 1)]).peers().getFilter();
+	}
+
+	@Benchmark
+	public BloomFilterBEP33 bloomInsert() {
+		BloomFilterBEP33 f = filters.get(0);
+		f.insert(addresses[next(addresses.length - 1)]);
+		return f;
+	}
+
+	@Benchmark
+	public int bloomMerge() {
+		return BloomFilterBEP33.unionSize(filters);
+	}
+
+}
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.messages.MessageBase;
+import lbms.plugins.mldht.kad.messages.StreamingMessageDecoder;
+import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
+import the8472.bench.PacketCorpus;
+import the8472.bench.PacketCorpus.Packet;
+
+/**
+ * Same load on both execution modes: a single reader thread hands out packets, each worker decodes its packet and
+ * issues one follow-up hop, like a response that makes a task send its next request.
+ *
+ * one operation = one packet
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutionBenchmark {
+
+	static final int PACKETS = 4096;
+
+	@Param({"SCHEDULER", "LIGHTWEIGHT_THREADS"})
+	ExecutionMode mode;
+
+	Packet[] packets;
+	ScheduledThreadPoolExecutor scheduler;
+	ExecutorService workers;
+	Executor executor;
+
+	@Setup
+	public void setup() throws IOException {
+		List<Packet> corpus = PacketCorpus.get();
+		packets = corpus.toArray(new Packet[corpus.size()]);
+		// configured like the default scheduler of the DHT
+		int threads = Math.max(Runtime.getRuntime().availableProcessors(), 2);
+		scheduler = new ScheduledThreadPoolExecutor(threads);
+		workers = mode.createExecutor("benchmark worker");
+		executor = workers != null ? workers : scheduler;
+	}
+
+	@TearDown
+	public void tearDown() {
+		scheduler.shutdownNow();
+		if(workers != null)
+			workers.shutdownNow();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PACKETS)
+	public void handlePackets() throws InterruptedException {
+		CountDownLatch done = new CountDownLatch(PACKETS);
+		for(int i=0;i<PACKETS;i++) {
+			Packet p = packets[i % packets.length];
+			executor.execute(() -> {
+				StreamingMessageDecoder decoder = ThreadLocalUtils.streamingDecoders().acquire();
+				MessageBase msg = decoder.decode(p.data.duplicate(), p.mapper, DHTtype.IPV4_DHT);
+				ThreadLocalUtils.streamingDecoders().release(decoder);
+				executor.execute(() -> {
+					if(msg != null)
+						msg.getType();
+					done.countDown();
+				});
+			});
+		}
+		done.await();
+	}
+
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static lbms.plugins.mldht.kad.NodeFactory.fillTable;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lbms.plugins.mldht.kad.Node.RoutingTable;
+import lbms.plugins.mldht.kad.Node.RoutingTableEntry;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingBenchmark {
+
+	Node node;
+	DHT dht;
+	ScheduledExecutorService scheduler;
+	Node.RoutingTable table;
+
+	Key[] targets = new Key[1024];
+	int cursor;
+
+	@Setup
+	public void setup() {
+		dht = NodeFactory.buildDHT();
+		scheduler = Executors.newScheduledThreadPool(0);
+		dht.setScheduler(scheduler);
+		node = dht.getNode();
+		node.initKey(dht.config);
+		node.registerId();
+		fillTable(node);
+		// KNS only accepts pinged entries
+		node.table().stream().forEach(b -> {
+			b.getBucket().entriesStream().forEach(e -> {
+				e.signalResponse(1);
+			});
+		});
+		table = node.table();
+
+		for(int i=0;i<targets.length;i++)
+			targets[i] = Key.createRandomKey();
+	}
+
+	@TearDown
+	public void teardown() {
+		scheduler.shutdownNow();
+	}
+
+	Key nextTarget() {
+		Key k = targets[cursor];
+		cursor = (cursor + 1) & (targets.length - 1);
+		return k;
+	}
+
+	@Benchmark
+	public int indexForId() {
+		return table.indexForId(nextTarget());
+	}
+
+	@Benchmark
+	public List<KBucketEntry> closestNodes() {
+		KClosestNodesSearch search = new KClosestNodesSearch(nextTarget(), DHTConstants.MAX_ENTRIES_PER_BUCKET, dht);
+		search.fill();
+		return search.getEntries();
+	}
+
+	@Benchmark
+	public NodeList closestNodesPacked() {
+		KClosestNodesSearch search = new KClosestNodesSearch(nextTarget(), DHTConstants.MAX_ENTRIES_PER_BUCKET, dht);
+		return search.fillPacked(false);
+	}
+
+	/**
+	 * tables of multihomed nodes with many local IDs, buckets are not populated
+	 */
+	@State(Scope.Thread)
+	public static class LargeTable {
+
+		@Param({"2048"})
+		int buckets;
+
+		RoutingTable table;
+		Key[] targets = new Key[1024];
+		int cursor;
+
+		@Setup
+		public void setup() {
+			table = new RoutingTable();
+			ThreadLocalRandom rnd = ThreadLocalRandom.current();
+			while(table.size() < buckets) {
+				RoutingTableEntry e = table.get(rnd.nextInt(table.size()));
+				table = split(table, e);
+			}
+			for(int i=0;i<targets.length;i++)
+				targets[i] = Key.createRandomKey();
+		}
+
+		Key nextTarget() {
+			Key k = targets[cursor];
+			cursor = (cursor + 1) & (targets.length - 1);
+			return k;
+		}
+	}
+
+	static RoutingTable split(RoutingTable table, RoutingTableEntry e) {
+		RoutingTableEntry low = new RoutingTableEntry(e.prefix.splitPrefixBranch(false), new KBucket(), x -> false);
+		RoutingTableEntry high = new RoutingTableEntry(e.prefix.splitPrefixBranch(true), new KBucket(), x -> false);
+		return table.split(e, low, high);
+	}
+
+	@Benchmark
+	public int largeIndexForId(LargeTable s) {
+		return s.table.indexForId(s.nextTarget());
+	}
+
+	/**
+	 * split of a single bucket, the modified table is discarded
+	 */
+	@Benchmark
+	public RoutingTable largeSplit(LargeTable s) {
+		return split(s.table, s.table.entryForId(s.nextTarget()));
+	}
+
+}
@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.i2p.crypto.eddsa.EdDSAPrivateKey;
+import net.i2p.crypto.eddsa.spec.EdDSAPrivateKeySpec;
+
+import lbms.plugins.mldht.kad.GenericStorage.StorageItem;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBenchmark {
+
+	StorageItem[] items = new StorageItem[64];
+	int cursor;
+
+	@Setup
+	public void setup() throws GeneralSecurityException {
+		for(int i=0;i<items.length;i++) {
+			byte[] seed = new byte[32];
+			ThreadLocalRandom.current().nextBytes(seed);
+			byte[] value = new byte[500];
+			ThreadLocalRandom.current().nextBytes(value);
+			EdDSAPrivateKey key = new EdDSAPrivateKey(new EdDSAPrivateKeySpec(seed, StorageItem.spec));
+			items[i] = GenericStorage.buildMutable(value, key, i % 2 == 0 ? null : new byte[] {'s', 'a', 'l', 't'}, i);
+			SignatureVerifier.verify(items[i]);
+		}
+	}
+
+	StorageItem next() {
+		StorageItem it = items[cursor];
+		cursor = (cursor + 1) & (items.length - 1);
+		return it;
+	}
+
+	@Benchmark
+	public boolean verify() {
+		return SignatureVerifier.verifyUncached(next());
+	}
+
+	/**
+	 * repeated puts and get lookup responses of the same item
+	 */
+	@Benchmark
+	public boolean verifyCached() {
+		return SignatureVerifier.verify(next());
+	}
+
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static lbms.plugins.mldht.kad.NodeFactory.generateIp;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.utils.ByteWrapper;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenBenchmark {
+
+	@Param({"sha1", "siphash"})
+	String generator;
+
+	@Param({"IPV4_DHT", "IPV6_DHT"})
+	DHTtype type;
+
+	Database db;
+
+	Key[] ids = new Key[1024];
+	Key[] targets = new Key[1024];
+	InetAddress[] addrs = new InetAddress[1024];
+	ByteWrapper[] tokens = new ByteWrapper[1024];
+	int cursor;
+
+	@Setup
+	public void setup() {
+		db = new Database();
+		db.setTokenGenerator(generator.equals("sha1") ? TokenGenerator.sha1() : TokenGenerator.sipHash());
+
+		for(int i=0;i<ids.length;i++) {
+			ids[i] = Key.createRandomKey();
+			targets[i] = Key.createRandomKey();
+			addrs[i] = generateIp(type, (byte) 0);
+			tokens[i] = db.genToken(ids[i], addrs[i], 6881, targets[i]);
+		}
+	}
+
+	int next() {
+		int i = cursor;
+		cursor = (cursor + 1) & (ids.length - 1);
+		return i;
+	}
+
+	@Benchmark
+	public ByteWrapper genToken() {
+		int i = next();
+		return db.genToken(ids[i], addrs[i], 6881, targets[i]);
+	}
+
+	/**
+	 * worst case for announces, the token has to be checked against both timestamps
+	 */
+	@Benchmark
+	public boolean checkInvalidToken() {
+		int i = next();
+		return db.checkToken(tokens[i], ids[i], addrs[i], 6882, targets[i]);
+	}
+
+}
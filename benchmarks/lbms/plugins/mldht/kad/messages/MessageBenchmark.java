@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import the8472.bench.PacketCorpus;
+import the8472.bench.PacketCorpus.Packet;
+import the8472.bencode.BDecoder;
+
+/**
+ * one operation = one packet of the corpus
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// encode() runs with assertions disabled, otherwise every direct encoding would be verified against the map encoder
+@Fork(value = 1, jvmArgsAppend = "-da")
+public class MessageBenchmark {
+
+	Packet[] packets;
+	MessageBase[] messages;
+	int cursor;
+
+	BDecoder decoder = new BDecoder();
+	StreamingMessageDecoder streaming = new StreamingMessageDecoder();
+	ByteBuffer sendBuffer = ByteBuffer.allocateDirect(1500);
+
+	@Setup
+	public void setup() throws IOException {
+		List<Packet> corpus = PacketCorpus.get();
+		packets = corpus.toArray(new Packet[corpus.size()]);
+		messages = new MessageBase[packets.length];
+		for(int i=0;i<packets.length;i++) {
+			messages[i] = parseMessage(packets[i]);
+			if(messages[i] == null)
+				throw new IOException("corpus packet " + i + " could not be decoded");
+		}
+	}
+
+	int next() {
+		int idx = cursor;
+		cursor = idx + 1 == packets.length ? 0 : idx + 1;
+		return idx;
+	}
+
+	MessageBase parseMessage(Packet p) throws IOException {
+		ByteBuffer raw = p.data.duplicate();
+		MessageDecoder dec = new MessageDecoder(p.mapper, DHTtype.IPV4_DHT);
+		dec.toDecode(raw, decoder.decode(raw.duplicate()));
+		try {
+			return dec.parseMessage();
+		} catch (MessageException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * BDecoder + MessageDecoder, the fallback path
+	 */
+	@Benchmark
+	public MessageBase parseMessage() throws IOException {
+		return parseMessage(packets[next()]);
+	}
+
+	@Benchmark
+	public MessageBase streamingDecode() {
+		Packet p = packets[next()];
+		return streaming.decode(p.data.duplicate(), p.mapper, DHTtype.IPV4_DHT);
+	}
+
+	@Benchmark
+	public ByteBuffer encode() throws IOException {
+		sendBuffer.clear();
+		messages[next()].encode(sendBuffer);
+		return sendBuffer;
+	}
+
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.tasks;
+
+import static the8472.utils.Functional.unchecked;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.IDMismatchDetector;
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.Prefix;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LookupBenchmark {
+
+	static final int CANDIDATES = 256;
+
+	Key target;
+	KBucketEntry[] entries = new KBucketEntry[CANDIDATES];
+	Key[] ids = new Key[CANDIDATES];
+	IterativeLookupCandidates candidates;
+	IterativeLookupCandidates lateCandidates;
+	KBucketEntry[] converging;
+
+	@Setup
+	public void setup() {
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		target = Key.createRandomKey();
+
+		for(int i=0;i<CANDIDATES;i++) {
+			// late in a lookup most candidates share a long prefix with the target
+			Key id = new Prefix(target, rnd.nextInt(48)).createRandomKeyFromPrefix();
+			byte[] addr = new byte[16];
+			rnd.nextBytes(addr);
+			addr[0] = 0x20;
+			addr[1] = 0x01;
+			InetAddress ip = unchecked(() -> InetAddress.getByAddress(addr));
+			ids[i] = id;
+			entries[i] = new KBucketEntry(new InetSocketAddress(ip, 1 + rnd.nextInt(65535)), id);
+		}
+
+		candidates = new IterativeLookupCandidates(target, new IDMismatchDetector(null));
+		candidates.addCandidates(null, Arrays.asList(entries));
+
+		// the closest half already responded
+		lateCandidates = new IterativeLookupCandidates(target, new IDMismatchDetector(null));
+		lateCandidates.addCandidates(null, Arrays.asList(entries));
+		KBucketEntry[] sorted = entries.clone();
+		Arrays.sort(sorted, new KBucketEntry.DistanceOrder(target));
+		// responses of a converging lookup arrive roughly farthest first
+		converging = sorted.clone();
+		Collections.reverse(Arrays.asList(converging));
+		for(int i=0;i<converging.length - 1;i+=2)
+			if(rnd.nextBoolean())
+				Collections.swap(Arrays.asList(converging), i, i + 1);
+		for(int i=0;i<CANDIDATES/2;i++) {
+			lateCandidates.accepted.add(sorted[i].getAddress().getAddress());
+			lateCandidates.accepted.add(sorted[i].getID());
+		}
+	}
+
+	@Benchmark
+	public Key[] sortByDistance() {
+		Key[] sorted = ids.clone();
+		Arrays.sort(sorted, new Key.DistanceOrder(target));
+		return sorted;
+	}
+
+	@Benchmark
+	public ClosestSet closestSetInsert() {
+		ClosestSet set = new ClosestSet(target, DHTConstants.MAX_ENTRIES_PER_BUCKET);
+		for(KBucketEntry e : entries)
+			set.insert(e);
+		return set;
+	}
+
+	@Benchmark
+	public int closestSetLookup() {
+		// insert each accepted response and consult head/tail for the next request like the lookup tasks do
+		ClosestSet set = new ClosestSet(target, DHTConstants.MAX_ENTRIES_PER_BUCKET);
+		int ahead = 0;
+		for(KBucketEntry e : converging) {
+			set.insert(e);
+			if(target.threeWayDistance(set.head(), e.getID()) >= 0 && target.threeWayDistance(set.tail(), e.getID()) >= 0)
+				ahead++;
+		}
+		return ahead;
+	}
+
+	@Benchmark
+	public Optional<KBucketEntry> candidatesNext() {
+		return candidates.next();
+	}
+
+	@Benchmark
+	public Optional<KBucketEntry> candidatesNextLate() {
+		return lateCandidates.next2(e -> true);
+	}
+
+}
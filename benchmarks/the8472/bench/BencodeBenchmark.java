@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import the8472.bench.PacketCorpus.Packet;
+import the8472.bencode.BDecoder;
+import the8472.bencode.BEncoder;
+
+/**
+ * one operation = one packet of the corpus
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BencodeBenchmark {
+
+	Packet[] packets;
+	Map<String, Object>[] decoded;
+	int cursor;
+
+	BDecoder decoder = new BDecoder();
+	BEncoder encoder = new BEncoder();
+
+	@SuppressWarnings("unchecked")
+	@Setup
+	public void setup() throws IOException {
+		List<Packet> corpus = PacketCorpus.get();
+		packets = corpus.toArray(new Packet[corpus.size()]);
+		decoded = new Map[packets.length];
+		for(int i=0;i<packets.length;i++)
+			decoded[i] = decoder.decode(packets[i].data.duplicate());
+	}
+
+	int next() {
+		int idx = cursor;
+		cursor = idx + 1 == packets.length ? 0 : idx + 1;
+		return idx;
+	}
+
+	@Benchmark
+	public Map<String, Object> decode() {
+		return decoder.decode(packets[next()].data.duplicate());
+	}
+
+	@Benchmark
+	public ByteBuffer encode() {
+		return encoder.encode(decoded[next()], 1500);
+	}
+
+}
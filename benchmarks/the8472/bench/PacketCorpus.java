@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.function.Function;
+
+import lbms.plugins.mldht.kad.DBItem;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.NodeList;
+import lbms.plugins.mldht.kad.NodeList.AddressType;
+import lbms.plugins.mldht.kad.PeerAddressDBItem;
+import lbms.plugins.mldht.kad.messages.AnnounceRequest;
+import lbms.plugins.mldht.kad.messages.AnnounceResponse;
+import lbms.plugins.mldht.kad.messages.FindNodeRequest;
+import lbms.plugins.mldht.kad.messages.FindNodeResponse;
+import lbms.plugins.mldht.kad.messages.GetPeersRequest;
+import lbms.plugins.mldht.kad.messages.GetPeersResponse;
+import lbms.plugins.mldht.kad.messages.MessageBase;
+import lbms.plugins.mldht.kad.messages.MessageBase.Method;
+import lbms.plugins.mldht.kad.messages.PingRequest;
+import lbms.plugins.mldht.kad.messages.PingResponse;
+
+/**
+ * Set of raw KRPC packets the benchmarks are driven by.
+ *
+ * File format, repeated until EOF: 1 byte method ordinal of the request a response belongs to (0xFF for anything else),
+ * 2 bytes big-endian payload length, payload.
+ *
+ * A recorded corpus can be supplied with -Dmldht.bench.corpus=path, otherwise a deterministic synthetic mix
+ * approximating the traffic of a busy IPv4 node is generated.
+ */
+public class PacketCorpus {
+
+	public static final String CORPUS_PROPERTY = "mldht.bench.corpus";
+
+	private static final int NO_METHOD = 0xFF;
+
+	public static class Packet {
+		public final ByteBuffer data;
+		public final Method responseTo;
+		/**
+		 * transaction ID mapper for the message decoders, resolves responses to the recorded request method
+		 */
+		public final Function<byte[], Optional<Method>> mapper;
+
+		Packet(ByteBuffer data, Method responseTo) {
+			this.data = data.asReadOnlyBuffer();
+			this.responseTo = responseTo;
+			Optional<Method> m = Optional.ofNullable(responseTo);
+			this.mapper = (mtid) -> m;
+		}
+	}
+
+	public static List<Packet> get() throws IOException {
+		String path = System.getProperty(CORPUS_PROPERTY);
+		if(path != null)
+			return read(Paths.get(path));
+		return generate(4096, 0x6d6c6468);
+	}
+
+	public static List<Packet> read(Path file) throws IOException {
+		List<Packet> packets = new ArrayList<>();
+		ByteBuffer raw = ByteBuffer.wrap(Files.readAllBytes(file));
+
+		while(raw.remaining() >= 3) {
+			int method = raw.get() & 0xFF;
+			int length = raw.getShort() & 0xFFFF;
+			if(length > raw.remaining())
+				throw new IOException("truncated corpus " + file + " at offset " + raw.position());
+			ByteBuffer data = ByteBuffer.allocate(length);
+			raw.limit(raw.position() + length);
+			data.put(raw);
+			data.flip();
+			raw.limit(raw.capacity());
+			packets.add(new Packet(data, method == NO_METHOD ? null : Method.values()[method]));
+		}
+
+		if(packets.isEmpty())
+			throw new IOException("empty corpus " + file);
+
+		return packets;
+	}
+
+	public static void write(Path file, List<Packet> packets) throws IOException {
+		try(FileChannel chan = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			for(Packet p : packets) {
+				ByteBuffer header = ByteBuffer.allocate(3);
+				header.put((byte) (p.responseTo == null ? NO_METHOD : p.responseTo.ordinal()));
+				header.putShort((short) p.data.remaining());
+				header.flip();
+				chan.write(new ByteBuffer[] {header, p.data.duplicate()});
+			}
+		}
+	}
+
+	static Key key(Random rnd) {
+		byte[] hash = new byte[Key.SHA1_HASH_LENGTH];
+		rnd.nextBytes(hash);
+		return new Key(hash);
+	}
+
+	static byte[] bytes(Random rnd, int length) {
+		byte[] b = new byte[length];
+		rnd.nextBytes(b);
+		return b;
+	}
+
+	static NodeList nodes(Random rnd, int count) {
+		ByteBuffer buf = ByteBuffer.allocate(count * DHTtype.IPV4_DHT.NODES_ENTRY_LENGTH);
+		for(int i=0;i<count;i++) {
+			buf.put(bytes(rnd, Key.SHA1_HASH_LENGTH));
+			buf.put((byte) (1 + rnd.nextInt(223)));
+			buf.put(bytes(rnd, 3));
+			buf.putShort((short) (1024 + rnd.nextInt(64000)));
+		}
+		buf.flip();
+		return NodeList.fromBuffer(buf, AddressType.V4);
+	}
+
+	/**
+	 * mix roughly follows what a long-running node sees: get_peers dominates incoming requests, find_node responses dominate incoming responses
+	 */
+	public static List<Packet> generate(int count, long seed) {
+		Random rnd = new Random(seed);
+		List<Packet> packets = new ArrayList<>(count);
+		ByteBuffer buf = ByteBuffer.allocate(1500);
+
+		for(int i=0;i<count;i++) {
+			byte[] mtid = bytes(rnd, 6);
+			int dice = rnd.nextInt(100);
+			MessageBase msg;
+			Method responseTo = null;
+
+			if(dice < 10) {
+				msg = new PingRequest();
+			} else if(dice < 25) {
+				FindNodeRequest req = new FindNodeRequest(key(rnd));
+				req.setWant4(true);
+				msg = req;
+			} else if(dice < 50) {
+				GetPeersRequest req = new GetPeersRequest(key(rnd));
+				req.setWant4(true);
+				req.setNoSeeds(rnd.nextInt(10) == 0);
+				msg = req;
+			} else if(dice < 55) {
+				AnnounceRequest req = new AnnounceRequest(key(rnd), 1024 + rnd.nextInt(64000), bytes(rnd, 8));
+				req.setSeed(rnd.nextBoolean());
+				msg = req;
+			} else if(dice < 62) {
+				msg = new PingResponse(mtid);
+				responseTo = Method.PING;
+			} else if(dice < 80) {
+				FindNodeResponse rsp = new FindNodeResponse(mtid);
+				rsp.setNodes(nodes(rnd, 8));
+				msg = rsp;
+				responseTo = Method.FIND_NODE;
+			} else if(dice < 97) {
+				GetPeersResponse rsp = new GetPeersResponse(mtid);
+				rsp.setToken(bytes(rnd, 8));
+				if(rnd.nextInt(4) == 0) {
+					List<DBItem> values = new ArrayList<>();
+					int numValues = 1 + rnd.nextInt(40);
+					for(int j=0;j<numValues;j++)
+						values.add(new PeerAddressDBItem(bytes(rnd, DHTtype.IPV4_DHT.ADDRESS_ENTRY_LENGTH), false));
+					rsp.setPeerItems(values);
+				} else {
+					rsp.setNodes(nodes(rnd, 8));
+				}
+				msg = rsp;
+				responseTo = Method.GET_PEERS;
+			} else {
+				msg = new AnnounceResponse(mtid);
+				responseTo = Method.ANNOUNCE_PEER;
+			}
+
+			msg.setMTID(mtid);
+			msg.setID(key(rnd));
+			if(responseTo != null && rnd.nextBoolean())
+				msg.setPublicIP(new InetSocketAddress(InetAddress.getLoopbackAddress(), 1024 + rnd.nextInt(64000)));
+
+			buf.clear();
+			try {
+				msg.encode(buf);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+
+			ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+			copy.put(buf);
+			copy.flip();
+			packets.add(new Packet(copy, responseTo));
+		}
+
+		return packets;
+	}
+
+	/**
+	 * writes the synthetic corpus to the given file, e.g. as a starting point for hand-edited corpora
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length < 1) {
+			System.err.println("usage: PacketCorpus <output file> [packet count]");
+			return;
+		}
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+		write(Paths.get(args[0]), generate(count, 0x6d6c6468));
+	}
+
+}
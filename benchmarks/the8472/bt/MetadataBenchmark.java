@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.bt;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataBenchmark {
+
+	static final int LENGTH = 1024 * 1024 + 1000;
+	static final int CHUNK = 16 * 1024;
+
+	byte[] metadata;
+	byte[] hash;
+	// stands in for the receive buffer of a connection
+	ByteBuffer input = ByteBuffer.allocate(32 * 1024);
+
+	@Setup
+	public void setup() {
+		metadata = new byte[LENGTH];
+		ThreadLocalRandom.current().nextBytes(metadata);
+		MessageDigest sha1 = ThreadLocalUtils.getThreadLocalSHA1();
+		sha1.reset();
+		hash = sha1.digest(metadata);
+	}
+
+	@Benchmark
+	public ByteBuffer assemble() {
+		MetadataPool pool = new MetadataPool(LENGTH);
+		for(int i=0;i * CHUNK < LENGTH;i++) {
+			input.clear();
+			input.put(metadata, i * CHUNK, Math.min(CHUNK, LENGTH - i * CHUNK));
+			input.flip();
+			pool.addChunk(i, input);
+			pool.checkComletion(hash);
+		}
+		return pool.merge();
+	}
+
+}
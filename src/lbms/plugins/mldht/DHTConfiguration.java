@@ -6,6 +6,9 @@
 package lbms.plugins.mldht;
 
 import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.ExecutionMode;
+import lbms.plugins.mldht.kad.GenericStorage;
+import lbms.plugins.mldht.kad.SpamThrottle;
 
 import java.net.InetAddress;
 import java.nio.file.Path;
@@ -52,4 +55,58 @@ public interface DHTConfiguration {
 	public default Predicate<InetAddress> filterBindAddress() {
 		return (unused) -> true;
 	}
+	
+	/**
+	 * Maximum number of datagrams the socket handlers collect before handing them off as a single unit of work.
+	 * Received packets are dispatched to the worker threads in batches of up to this size, outgoing messages are encoded in batches before being flushed to the socket.
+	 * 
+	 * A value of 1 processes every packet individually.
+	 */
+	public default int getIOBatchSize() {
+		return 16;
+	}
+	
+	/**
+	 * Implementation of the per-address rate limits applied to incoming packets. Outgoing requests are always throttled with exact counters.
+	 * 
+	 * The default uses a fixed amount of memory regardless of the number of distinct senders, at the cost of occasionally throttling an address early due to hash collisions.
+	 */
+	public default SpamThrottle.Type getSpamThrottleType() {
+		return SpamThrottle.Type.HASHED;
+	}
+	
+	/**
+	 * If true a routing table restored from the storage path is revalidated on startup by pinging all of its main and replacement entries in wide parallel bursts,
+	 * dead entries are dropped and responsive replacements promoted immediately.
+	 * 
+	 * If false restored entries are verified by the regular, more conservative per-bucket refresh pings.
+	 */
+	public default boolean warmRestart() {
+		return true;
+	}
+	
+	/**
+	 * Bytes of off-heap memory available for BEP44 items. When exhausted the least recently used items are evicted.
+	 */
+	public default int getStorageCapacity() {
+		return GenericStorage.DEFAULT_CAPACITY;
+	}
+	
+	/**
+	 * Number of threads verifying the signatures of incoming mutable BEP44 PUTs. Verified items are cached regardless.
+	 * 
+	 * 0 verifies on the thread handling the request.
+	 */
+	public default int getSignatureVerificationThreads() {
+		return 0;
+	}
+	
+	/**
+	 * Threads that handle received packets and start tasks.
+	 * 
+	 * The default shares the scheduler with timers and maintenance.
+	 */
+	public default ExecutionMode getExecutionMode() {
+		return ExecutionMode.SCHEDULER;
+	}
 }
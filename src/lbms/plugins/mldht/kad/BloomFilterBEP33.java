@@ -19,7 +19,7 @@ import lbms.plugins.mldht.kad.utils.BitVector;
 public class BloomFilterBEP33 implements Comparable<BloomFilterBEP33>, Cloneable {
 
 	public final static int m = 256 * 8;
-	private final static int k = 2;
+	final static int k = 2;
 
 	
 	MessageDigest sha1;
@@ -42,19 +42,28 @@ public class BloomFilterBEP33 implements Comparable<BloomFilterBEP33>, Cloneable
 	}
 	
     public void insert(InetAddress addr) {
+        insert(addr.getAddress());
+    }
+    
+    /**
+     * @param addr raw IPv4 or IPv6 address
+     */
+    public void insert(byte[] addr) {
         
-        byte[] hash = sha1.digest(addr.getAddress());
-        
-        int index1 = (hash[0]&0xFF) | (hash[1]&0xFF) << 8;
-        int index2 = (hash[2]&0xFF) | (hash[3]&0xFF) << 8;
-
-        // truncate index to m (11 bits required)
-        index1 %= m;
-        index2 %= m;
+        byte[] hash = sha1.digest(addr);
 
         // set bits at index1 and index2
-        filter.set(index1);
-        filter.set(index2);
+        filter.set(index(hash, 0));
+        filter.set(index(hash, 1));
+    }
+    
+    /**
+     * @param n 0 or 1, for each of the k hash functions
+     */
+    static int index(byte[] hash, int n) {
+        int index = (hash[n*2]&0xFF) | (hash[n*2+1]&0xFF) << 8;
+        // truncate index to m (11 bits required)
+        return index % m;
     }
 	
 	
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.utils.ExponentialWeightendMovingAverage;
+
+/**
+ * Hashed timing wheel driving the stall and timeout transitions of the in-flight calls of a single {@link RPCServer}.
+ *
+ * Calls are linked directly into the slot lists (see the timer fields in {@link RPCCall}), so scheduling,
+ * re-scheduling and cancellation are O(1) and don't allocate. A single periodic task per server advances the wheel
+ * instead of one scheduled future per call.
+ */
+final class CallTimeoutWheel {
+
+	static final int TICK_MILLIS = 10;
+	// one revolution covers RPC_CALL_TIMEOUT_MAX, longer delays simply stay in their slot for more rounds
+	static final int SLOTS = 1024;
+	private static final int MASK = SLOTS - 1;
+
+	private final RPCCall[] slots = new RPCCall[SLOTS];
+	private final long origin = System.nanoTime();
+	// last tick whose slot has been processed
+	private long currentTick;
+	private int size;
+
+	// only accessed by the ticking thread, ticks of a periodic task never overlap
+	private final List<RPCCall> expired = new ArrayList<>();
+
+	private final ExponentialWeightendMovingAverage lag = new ExponentialWeightendMovingAverage().setWeight(0.01);
+	private volatile long maxLag;
+
+	long now() {
+		return (System.nanoTime() - origin) / 1_000_000;
+	}
+
+	synchronized void schedule(RPCCall c, long delayMillis) {
+		if(c.timerSlot >= 0)
+			unlink(c);
+
+		long deadline = now() + delayMillis;
+		// round up, a call must never fire before its deadline
+		long tick = Math.max((deadline + TICK_MILLIS - 1) / TICK_MILLIS, currentTick + 1);
+		int slot = (int) (tick & MASK);
+
+		c.timerDeadline = deadline;
+		c.timerSlot = slot;
+		c.timerPrev = null;
+		c.timerNext = slots[slot];
+		if(c.timerNext != null)
+			c.timerNext.timerPrev = c;
+		slots[slot] = c;
+		size++;
+	}
+
+	synchronized void cancel(RPCCall c) {
+		if(c.timerSlot >= 0)
+			unlink(c);
+	}
+
+	private void unlink(RPCCall c) {
+		if(c.timerPrev != null)
+			c.timerPrev.timerNext = c.timerNext;
+		else
+			slots[c.timerSlot] = c.timerNext;
+		if(c.timerNext != null)
+			c.timerNext.timerPrev = c.timerPrev;
+		c.timerNext = null;
+		c.timerPrev = null;
+		c.timerSlot = -1;
+		size--;
+	}
+
+	/**
+	 * advances the wheel up to the current time and fires all calls whose deadline has passed
+	 */
+	void tick() {
+		long now = now();
+
+		synchronized (this) {
+			long target = now / TICK_MILLIS;
+			// if we fell behind by more than a revolution every slot only needs to be visited once
+			currentTick = Math.max(currentTick, target - SLOTS);
+
+			while(currentTick < target) {
+				currentTick++;
+				RPCCall c = slots[(int) (currentTick & MASK)];
+				while(c != null) {
+					RPCCall next = c.timerNext;
+					if(c.timerDeadline <= now) {
+						unlink(c);
+						expired.add(c);
+					}
+					c = next;
+				}
+			}
+		}
+
+		for(int i=0;i<expired.size();i++) {
+			RPCCall c = expired.get(i);
+			long late = now - c.timerDeadline;
+			lag.updateAverage(late);
+			if(late > maxLag)
+				maxLag = late;
+
+			// a periodic task would be silently cancelled by an exception, isolate the listeners
+			try {
+				c.checkStallOrTimeout();
+			} catch (Throwable t) {
+				DHT.log(t, LogLevel.Error);
+			}
+		}
+
+		expired.clear();
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return average delay in milliseconds between a call's deadline and the time its transition was applied
+	 */
+	double getAverageLag() {
+		return lag.getAverage(0);
+	}
+
+	long getMaxLag() {
+		return maxLag;
+	}
+
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+/**
+ * AIMD window limiting the number of in-flight calls of a single {@link RPCServer}.
+ *
+ * The DHT has a high background loss rate (unresponsive and NATed nodes) which is not a congestion signal in itself.
+ * Only loss in excess of what healthy nodes observe shrinks the window, as does growth of the low RTT quantile above
+ * its recent minimum, which indicates queues building up on the local link or NAT.
+ *
+ * The window starts at {@link DHTConstants#MAX_ACTIVE_CALLS}, so uncongested nodes behave as before.
+ */
+public class CongestionWindow {
+
+	public enum Limit {
+		// window is at its maximum
+		NONE,
+		// excess loss caused the last decrease
+		LOSS,
+		// RTT inflation caused the last decrease
+		LATENCY
+	}
+
+	public static final int MIN_WINDOW = 32;
+	public static final int MAX_WINDOW = DHTConstants.MAX_ACTIVE_CALLS;
+
+	// average loss rates measured on server-class nodes, see RPCServer
+	static final double EXPECTED_UNVERIFIED_LOSS = 0.5;
+	static final double EXPECTED_VERIFIED_LOSS = 1.0 / 3.0;
+	// margin to avoid reacting to noise of the moving averages
+	static final double LOSS_MARGIN = 0.1;
+
+	static final double LATENCY_INFLATION_FACTOR = 2.0;
+	static final long MIN_RTT_LIFETIME = 5 * 60 * 1000;
+
+	private double window = MAX_WINDOW;
+	private Limit limit = Limit.NONE;
+	private long lastDecrease;
+	private long minRtt = Long.MAX_VALUE;
+	private long minRttTimestamp;
+	private long decreases;
+
+	/**
+	 * @param lowRtt low quantile of the current RTT distribution, negative if not enough samples are available yet
+	 * @param roundTrip time to wait between successive decreases, so that the effect of a decrease can be observed
+	 */
+	synchronized void onResponse(long lowRtt, long roundTrip, long now) {
+		if(lowRtt < 0) {
+			increase();
+			return;
+		}
+
+		if(lowRtt <= minRtt || now - minRttTimestamp > MIN_RTT_LIFETIME) {
+			minRtt = lowRtt;
+			minRttTimestamp = now;
+		}
+
+		if(lowRtt > minRtt * LATENCY_INFLATION_FACTOR && lowRtt - minRtt > DHTConstants.RPC_CALL_TIMEOUT_BASELINE_MIN) {
+			decrease(0.875, Limit.LATENCY, roundTrip, now);
+			return;
+		}
+
+		increase();
+	}
+
+	private void increase() {
+		// +1 per window worth of responses
+		window = Math.min(MAX_WINDOW, window + 1.0 / window);
+		if(window >= MAX_WINDOW)
+			limit = Limit.NONE;
+	}
+
+	synchronized void onTimeout(double unverifiedLoss, double verifiedLoss, long roundTrip, long now) {
+		double excess = Math.max(unverifiedLoss - EXPECTED_UNVERIFIED_LOSS, verifiedLoss - EXPECTED_VERIFIED_LOSS);
+		if(excess > LOSS_MARGIN)
+			decrease(0.5, Limit.LOSS, roundTrip, now);
+	}
+
+	private void decrease(double factor, Limit reason, long roundTrip, long now) {
+		if(now - lastDecrease < roundTrip)
+			return;
+		lastDecrease = now;
+		window = Math.max(MIN_WINDOW, window * factor);
+		limit = reason;
+		decreases++;
+	}
+
+	public synchronized int getWindow() {
+		return (int) window;
+	}
+
+	public synchronized Limit getLimit() {
+		return limit;
+	}
+
+	public synchronized long getDecreaseCount() {
+		return decreases;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("cwnd: %d limit: %s decreases: %d minRTT: %d", (int) window, limit, decreases, minRtt == Long.MAX_VALUE ? -1 : minRtt);
+	}
+
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.net.InetAddress;
+
+/**
+ * BEP33 filter that also tracks how many inserted addresses map to each bit, which allows removals without rebuilding
+ * the filter from scratch. The serialized form is identical to {@link BloomFilterBEP33}.
+ */
+public class CountingBloomFilterBEP33 extends BloomFilterBEP33 {
+
+	private static final int MAX_COUNT = 0xFF;
+
+	private byte[] counters = new byte[m];
+	private boolean saturated;
+
+	@Override
+	public void insert(byte[] addr) {
+		byte[] hash = sha1.digest(addr);
+
+		for(int i=0;i<k;i++) {
+			int idx = index(hash, i);
+			int count = counters[idx] & 0xFF;
+			// a saturated counter can no longer be decremented reliably
+			if(count == MAX_COUNT)
+				saturated = true;
+			else
+				counters[idx] = (byte) (count + 1);
+			filter.set(idx);
+		}
+	}
+
+	/**
+	 * @return false if the removal could not be applied, in which case the filter must be rebuilt
+	 */
+	public boolean remove(InetAddress addr) {
+		return remove(addr.getAddress());
+	}
+
+	/**
+	 * @param addr raw IPv4 or IPv6 address
+	 * @return false if the removal could not be applied, in which case the filter must be rebuilt
+	 */
+	public boolean remove(byte[] addr) {
+		if(saturated)
+			return false;
+
+		byte[] hash = sha1.digest(addr);
+
+		for(int i=0;i<k;i++) {
+			if(counters[index(hash, i)] == 0)
+				return false;
+		}
+
+		for(int i=0;i<k;i++) {
+			int idx = index(hash, i);
+			int count = (counters[idx] & 0xFF) - 1;
+			counters[idx] = (byte) count;
+			if(count == 0)
+				filter.clear(idx);
+		}
+
+		return true;
+	}
+
+	@Override
+	protected CountingBloomFilterBEP33 clone() {
+		CountingBloomFilterBEP33 newFilter = (CountingBloomFilterBEP33) super.clone();
+		newFilter.counters = counters.clone();
+		return newFilter;
+	}
+
+}
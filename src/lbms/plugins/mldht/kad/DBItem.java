@@ -29,6 +29,14 @@ public class DBItem implements Comparable<DBItem> {
 		this();
 		item = ip_port.clone();
 	}
+	
+	/**
+	 * takes ownership of the array, for items that are materialized from compact storage
+	 */
+	DBItem (final byte[] data, final long createdAt) {
+		item = data;
+		time_stamp = createdAt;
+	}
 
 	/// See if the item is expired
 	public boolean expired (final long now) {
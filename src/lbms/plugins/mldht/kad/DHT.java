@@ -36,6 +36,7 @@ import lbms.plugins.mldht.kad.tasks.AnnounceTask;
 import lbms.plugins.mldht.kad.tasks.NodeLookup;
 import lbms.plugins.mldht.kad.tasks.PeerLookupTask;
 import lbms.plugins.mldht.kad.tasks.PingRefreshTask;
+import lbms.plugins.mldht.kad.tasks.TableRevalidationTask;
 import lbms.plugins.mldht.kad.tasks.Task;
 import lbms.plugins.mldht.kad.tasks.TaskListener;
 import lbms.plugins.mldht.kad.tasks.TaskManager;
@@ -64,13 +65,17 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -161,6 +166,15 @@ public class DHT implements DHTBase {
 	IDMismatchDetector						mismatchDetector;
 	NonReachableCache						unreachableCache;
 	private Path							table_file;
+	private Path							tableSnapshot;
+	private Path							peersSnapshot;
+	private Path							storageSnapshot;
+	private volatile ExecutorService		signatureVerifier;
+	private volatile ExecutorService		workers;
+	// serializes checkpoints from the scheduler and stop(), also guards the counters below
+	private final Object					checkpointLock = new Object();
+	private long							checkpointedDbModifications = -1;
+	private long							checkpointedStorageModifications = -1;
 	private boolean							useRouterBootstrapping;
 
 	private List<DHTStatsListener>			statsListeners;
@@ -170,6 +184,7 @@ public class DHT implements DHTBase {
 	private DHTStatus						status;
 	private PopulationEstimator				estimator;
 	private AnnounceNodeCache				cache;
+	private ResponseCache					responseCache;
 	NIOConnectionManager					connectionManager;
 	
 	RPCStats								serverStats;
@@ -199,6 +214,14 @@ public class DHT implements DHTBase {
 	public void setScheduler(ScheduledExecutorService scheduler) {
 		this.scheduler = scheduler;
 	}
+	
+	/**
+	 * @return the executor for packet handling and task starts, see {@link DHTConfiguration#getExecutionMode()}
+	 */
+	public Executor getWorkers() {
+		ExecutorService w = workers;
+		return w != null ? w : scheduler;
+	}
 
 	public void addSiblings(List<DHT> toAdd) {
 		toAdd.forEach(s -> {
@@ -279,17 +302,13 @@ public class DHT implements DHTBase {
 	void populateResponse(Key target, AbstractLookupResponse rsp, int v4, int v6) {
 		if(v4 > 0) {
 			getSiblingByType(DHTtype.IPV4_DHT).filter(DHT::isRunning).ifPresent(sib -> {
-				KClosestNodesSearch kns = new KClosestNodesSearch(target, v4, sib);
-				kns.fill(DHTtype.IPV4_DHT != type);
-				rsp.setNodes(kns.asNodeList());
+				rsp.setNodes(sib.responseCache.getNodes(target, v4, DHTtype.IPV4_DHT != type));
 			});
 		}
 		
 		if(v6 > 0) {
 			getSiblingByType(DHTtype.IPV6_DHT).filter(DHT::isRunning).ifPresent(sib -> {
-				KClosestNodesSearch kns = new KClosestNodesSearch(target, v6, sib);
-				kns.fill(DHTtype.IPV6_DHT != type);
-				rsp.setNodes(kns.asNodeList());
+				rsp.setNodes(sib.responseCache.getNodes(target, v6, DHTtype.IPV6_DHT != type));
 			});
 		}
 	}
@@ -345,7 +364,34 @@ public class DHT implements DHTBase {
 			return;
 		}
 		
-		UpdateResult result = storage.putOrUpdate(k, new StorageItem(req), req.getExpectedSequenceNumber());
+		StorageItem item = new StorageItem(req);
+		ExecutorService verifier = signatureVerifier;
+		
+		if(verifier != null && item.mutable() && !SignatureVerifier.isCached(item)) {
+			// storing checks the signature again, which then hits the cache
+			verifier.execute(() -> {
+				// the queue may still hold requests received before shutdown
+				if(!isRunning())
+					return;
+				try {
+					if(!SignatureVerifier.verify(item)) {
+						// failures are not cached, don't let storing verify the same bad signature again
+						sendError(req, ErrorCode.InvalidSignature.code, "signature validation failed");
+						return;
+					}
+					store(req, k, item);
+				} catch (Exception e) {
+					log(e, LogLevel.Error);
+				}
+			});
+			return;
+		}
+		
+		store(req, k, item);
+	}
+	
+	private void store(PutRequest req, Key k, StorageItem item) {
+		UpdateResult result = storage.putOrUpdate(k, item, req.getExpectedSequenceNumber());
 		
 		switch(result) {
 			case CAS_FAIL:
@@ -360,6 +406,9 @@ public class DHT implements DHTBase {
 			case IMMUTABLE_SUBSTITUTION_FAIL:
 				sendError(req, ErrorCode.ProtocolError.code, "PUT request replacing mutable data with immutable is not supported");
 				return;
+			case QUOTA_FAIL:
+				sendError(req, ErrorCode.GenericError.code, "storage quota for source address exceeded");
+				return;
 			case SUCCESS:
 				
 				PutResponse rsp = new PutResponse(req.getMTID());
@@ -383,27 +432,30 @@ public class DHT implements DHTBase {
 			return;
 		}
 
-		BloomFilterBEP33 peerFilter = r.isScrape() ? db.createScrapeFilter(r.getInfoHash(), false) : null;
-		BloomFilterBEP33 seedFilter = r.isScrape() ? db.createScrapeFilter(r.getInfoHash(), true) : null;
-		
 		boolean v6 = Inet6Address.class.isAssignableFrom(type.PREFERRED_ADDRESS_TYPE);
 		
-		boolean heavyWeight = peerFilter != null;
-		
 		int valuesTargetLength = v6 ? 35 : 50;
-		// scrape filter gobble up a lot of space, restrict list sizes
-		if(heavyWeight)
+		// scrape filter gobble up a lot of space, restrict list sizes. if there are no filters there are no values either
+		if(r.isScrape())
 			valuesTargetLength =  v6 ? 15 : 30;
 		
-		List<DBItem> dbl = db.sample(r.getInfoHash(), valuesTargetLength,type, r.isNoSeeds());
+		ResponseCache.PeersEntry stored = responseCache.getPeers(r.getInfoHash(), valuesTargetLength, r.isNoSeeds(), r.isScrape());
+		
+		byte[] peerFilter = stored != null ? stored.scrapePeers : null;
+		byte[] seedFilter = stored != null ? stored.scrapeSeeds : null;
+		
+		boolean heavyWeight = peerFilter != null;
+		
+		List<DBItem> dbl = stored != null ? stored.values : null;
 
 		for(DHTIndexingListener listener : indexingListeners)
 		{
 			List<PeerAddressDBItem> toAdd = listener.incomingPeersRequest(r.getInfoHash(), r.getOrigin().getAddress(), r.getID());
-			if(dbl == null && !toAdd.isEmpty())
-				dbl = new ArrayList<>();
-			if(dbl != null && !toAdd.isEmpty())
-				dbl.addAll(toAdd);
+			if(toAdd.isEmpty())
+				continue;
+			// cached lists are shared between responses
+			dbl = dbl == null ? new ArrayList<>() : new ArrayList<>(dbl);
+			dbl.addAll(toAdd);
 		}
 		
 		// generate a token
@@ -656,6 +708,7 @@ public class DHT implements DHTBase {
 
 		
 		cache = new AnnounceNodeCache();
+		responseCache = new ResponseCache(this);
 		stats.setRpcStats(serverStats);
 		
 		serverManager = new RPCServerManager(this);
@@ -668,7 +721,7 @@ public class DHT implements DHTBase {
 		stats.setDbStats(db.getStats());
 		tman = new TaskManager(this);
 		running = true;
-		storage = new GenericStorage();
+		storage = new GenericStorage(config != null ? config.getStorageCapacity() : GenericStorage.DEFAULT_CAPACITY);
 	}
 	
 	/*
@@ -685,12 +738,16 @@ public class DHT implements DHTBase {
 		if(this.scheduler == null)
 			this.scheduler = getDefaultScheduler();
 		this.config = config;
+		workers = config.getExecutionMode().createExecutor("mlDHT " + type.shortName + " Worker");
 		useRouterBootstrapping = !config.noRouterBootstrap();
 		
 		if(!Files.isDirectory(config.getStoragePath()))
 			DHT.log("Warning: storage path " + config.getStoragePath() +" is not a directory. DHT will not be able to persist state" , LogLevel.Info);
 		
 		table_file = config.getStoragePath().resolve(type.shortName+"-table.cache");
+		tableSnapshot = config.getStoragePath().resolve(type.shortName+"-table.snapshot");
+		peersSnapshot = config.getStoragePath().resolve(type.shortName+"-peers.snapshot");
+		storageSnapshot = config.getStoragePath().resolve(type.shortName+"-storage.snapshot");
 
 		setStatus(DHTStatus.Stopped, DHTStatus.Initializing);
 		stats.resetStartedTimestamp();
@@ -705,7 +762,14 @@ public class DHT implements DHTBase {
 		populate();
 		
 		node.initKey(config);
-		node.loadTable(table_file);
+		// fall back to the bencoded table written by older versions
+		if(!node.loadSnapshot(tableSnapshot))
+			node.loadTable(table_file);
+		db.loadSnapshot(peersSnapshot, type);
+		storage.loadSnapshot(storageSnapshot);
+		
+		if(config.getSignatureVerificationThreads() > 0)
+			signatureVerifier = createSignatureVerifier(config.getSignatureVerificationThreads());
 		
 
 		// these checks query the available network interfaces, which can be expensive on some platforms
@@ -742,16 +806,54 @@ public class DHT implements DHTBase {
 	
 
 
+	/**
+	 * Writes snapshots of the routing table and, if they changed since the last checkpoint or when forced, the announce database and BEP44 storage
+	 */
+	void checkpoint(boolean force) {
+		synchronized (checkpointLock) {
+			try {
+				node.saveSnapshot(tableSnapshot);
+				
+				long dbModifications = db.modificationCount();
+				if(force || dbModifications != checkpointedDbModifications) {
+					db.saveSnapshot(peersSnapshot, type);
+					checkpointedDbModifications = dbModifications;
+				}
+				
+				long storageModifications = storage.modificationCount();
+				if(force || storageModifications != checkpointedStorageModifications) {
+					storage.saveSnapshot(storageSnapshot);
+					checkpointedStorageModifications = storageModifications;
+				}
+			} catch (IOException e) {
+				log(e, LogLevel.Error);
+			}
+		}
+	}
+
 	public void started () {
 		
-		for(RoutingTableEntry bucket : node.table().list()) {
-			RPCServer srv = serverManager.getRandomServer();
-			if(srv == null)
-				break;
-			Task t = new PingRefreshTask(srv, node, bucket.getBucket(), true);
-			t.setInfo("Startup ping for " + bucket.prefix);
-			if(t.getTodoCount() > 0)
-				tman.addTask(t);
+		RPCServer warmRestartServer = serverManager.getRandomServer();
+		
+		if(config.warmRestart() && warmRestartServer != null && node.getNumEntriesInRoutingTable() > 0) {
+			TableRevalidationTask t = new TableRevalidationTask(warmRestartServer, node);
+			t.setInfo("Warm restart revalidation");
+			int pinged = t.getTodoCount();
+			t.addListener(unused -> {
+				stats.warmRestartFinished(pinged, t.getRecvResponses());
+				logInfo("Warm restart: " + t.getRecvResponses() + " of " + pinged + " cached entries responded, routing table revalidated after " + stats.getTimeToFullTable().get());
+			});
+			tman.addTask(t, true);
+		} else {
+			for(RoutingTableEntry bucket : node.table().list()) {
+				RPCServer srv = serverManager.getRandomServer();
+				if(srv == null)
+					break;
+				Task t = new PingRefreshTask(srv, node, bucket.getBucket(), true);
+				t.setInfo("Startup ping for " + bucket.prefix);
+				if(t.getTodoCount() > 0)
+					tman.addTask(t);
+			}
 		}
 			
 		
@@ -818,15 +920,14 @@ public class DHT implements DHTBase {
 			} catch (RuntimeException e1) {
 				log(e1, LogLevel.Fatal);
 			}
-			
-			try {
-				if(!node.isInSurvivalMode())
-					node.saveTable(table_file);
-			} catch (IOException e2) {
-				e2.printStackTrace();
-			}
 		}, DHTConstants.RANDOM_LOOKUP_INTERVAL, DHTConstants.RANDOM_LOOKUP_INTERVAL, TimeUnit.MILLISECONDS));
 		
+		scheduledActions.add(scheduler.scheduleWithFixedDelay(() -> {
+			if(!node.isInSurvivalMode())
+				checkpoint(false);
+		}, DHTConstants.CHECKPOINT_INTERVAL, DHTConstants.CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS));
+		
+		scheduledActions.add(scheduler.scheduleWithFixedDelay(() -> responseCache.cleanup(System.currentTimeMillis()), DHTConstants.RESPONSE_CACHE_TTL, DHTConstants.RESPONSE_CACHE_TTL, TimeUnit.MILLISECONDS));
 		scheduledActions.add(scheduler.scheduleWithFixedDelay(mismatchDetector::purge, 2, 3, TimeUnit.MINUTES));
 		scheduledActions.add(scheduler.scheduleWithFixedDelay(unreachableCache::cleanStaleEntries, 2, 3, TimeUnit.MINUTES));
 	}
@@ -866,15 +967,19 @@ public class DHT implements DHTBase {
 		logInfo("stopping servers");
 		running = false;
 		serverManager.destroy();
-		try {
-			logInfo("persisting routing table on shutdown");
-			node.saveTable(table_file);
-			logInfo("table persisted");
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		if(signatureVerifier != null)
+			signatureVerifier.shutdown();
+		signatureVerifier = null;
+		logInfo("persisting state on shutdown");
+		checkpoint(true);
+		logInfo("state persisted");
 		
 		stopped();
+		// only now that servers and tasks are gone, stragglers fall back to the scheduler
+		ExecutorService w = workers;
+		workers = null;
+		if(w != null)
+			w.shutdown();
 		tman = null;
 		db = null;
 		node = null;
@@ -897,6 +1002,10 @@ public class DHT implements DHTBase {
 		return mismatchDetector;
 	}
 	
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+	
 	public Database getDatabase() {
 		return db;
 	}
@@ -1212,6 +1321,13 @@ public class DHT implements DHTBase {
 		w.append("Lookup Cache\n");
 		cache.printDiagnostics(w);
 		w.append("-----------------------\n");
+		w.append("Response Cache\n");
+		w.append(responseCache.toString());
+		w.append("-----------------------\n");
+		w.append("Storage\n");
+		w.append(storage.toString());
+		w.append(SignatureVerifier.printStats());
+		w.append("-----------------------\n");
 		w.append("Tasks\n");
 		w.append(tman.toString());
 		w.append("\n\n\n");
@@ -1258,6 +1374,19 @@ public class DHT implements DHTBase {
 		return service;
 	}
 	
+	private ExecutorService createSignatureVerifier(int threads) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 20, TimeUnit.SECONDS, new ArrayBlockingQueue<>(DHTConstants.SIGNATURE_VERIFICATION_QUEUE * threads), r -> {
+			Thread t = new Thread(r, "mlDHT " + type.shortName + " Signature Verifier");
+			t.setUncaughtExceptionHandler((t1, e) -> DHT.log(e, LogLevel.Error));
+			t.setDaemon(true);
+			return t;
+		});
+		pool.allowCoreThreadTimeOut(true);
+		// a full queue pushes the work back onto the thread handling the packets
+		pool.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+		return pool;
+	}
+	
 	private static void initDefaultScheduler() {
 		synchronized (DHT.class) {
 			if(defaultScheduler == null) {
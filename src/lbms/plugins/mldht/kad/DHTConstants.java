@@ -21,8 +21,10 @@ public class DHTConstants {
 	public static final int		MAX_PENDING_ENTRIES_PER_BUCKET			= 5;
 	public static final int		BUCKET_REFRESH_INTERVAL					= 15 * 60 * 1000;
 	public static final int		MAX_CONCURRENT_REQUESTS					= 10;
+	public static final int		WARM_RESTART_CONCURRENCY				= MAX_ACTIVE_CALLS / 2;
 	public static final	int		MAX_CONCURRENT_REQUESTS_LOWPRIO			= 3;
 	public static final int		RECEIVE_BUFFER_SIZE						= 5 * 1024;
+	public static final int		RECEIVE_BUFFER_POOL_SIZE				= 512;
 
 	public static final int		CHECK_FOR_EXPIRED_ENTRIES				= 5 * 60 * 1000;
 	public static final int		MAX_ITEM_AGE							= 60 * 60 * 1000;
@@ -52,9 +54,15 @@ public class DHTConstants {
 
 	public static final int		SELF_LOOKUP_INTERVAL					= 30 * 60 * 1000;
 	public static final int		RANDOM_LOOKUP_INTERVAL					= 10 * 60 * 1000;
+	public static final int		CHECKPOINT_INTERVAL						= 5 * 60 * 1000;
 
 	public static final int		ANNOUNCE_CACHE_MAX_AGE					= 30 * 60 * 1000;
 	public static final int		ANNOUNCE_CACHE_FAST_LOOKUP_AGE			= 8 * 60 * 1000;
+	
+	public static final int		RESPONSE_CACHE_TTL						= 3 * 1000;
+	
+	// pending PUT signature checks per verification thread
+	public static final int		SIGNATURE_VERIFICATION_QUEUE			= 64;
 
 
 	public static final InetSocketAddress[] UNRESOLVED_BOOTSTRAP_NODES = new InetSocketAddress[] {
@@ -7,6 +7,7 @@ package lbms.plugins.mldht.kad;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Optional;
 
 import lbms.plugins.mldht.kad.tasks.Task;
 
@@ -37,6 +38,10 @@ public class DHTStats {
 	
 	private double			avgFirstResultTime = 10000;
 	private double			avgFinishTime = 10000;
+	
+	private Duration		timeToFullTable;
+	private int				warmRestartPinged;
+	private int				warmRestartResponded;
 
 	/**
 	 * @return the num_peers
@@ -94,6 +99,33 @@ public class DHTStats {
 		return startedTimestamp;
 	}
 
+	/**
+	 * @return time from startup until all entries of a restored routing table were revalidated, empty if no warm restart happened (yet)
+	 */
+	public Optional<Duration> getTimeToFullTable() {
+		return Optional.ofNullable(timeToFullTable);
+	}
+	
+	/**
+	 * @return number of restored routing table entries pinged during warm restart
+	 */
+	public int getWarmRestartPinged() {
+		return warmRestartPinged;
+	}
+	
+	/**
+	 * @return number of restored routing table entries that responded during warm restart
+	 */
+	public int getWarmRestartResponded() {
+		return warmRestartResponded;
+	}
+	
+	protected void warmRestartFinished(int pinged, int responded) {
+		warmRestartPinged = pinged;
+		warmRestartResponded = responded;
+		timeToFullTable = Duration.between(startedTimestamp, Instant.now());
+	}
+
 	/**
 	 * @param num_peers the num_peers to set
 	 */
@@ -164,9 +196,12 @@ public class DHTStats {
 		StringBuilder b = new StringBuilder();
 		b.append("DB Keys: ").append(dbStats.getKeyCount()).append('\n');
 		b.append("DB Items: ").append(dbStats.getItemCount()).append('\n');
+		b.append("Scrape filter builds/in-place updates: ").append(dbStats.getScrapeFilterBuilds()).append('/').append(dbStats.getScrapeFilterUpdates()).append('\n');
+		b.append("DB address family mismatches: ").append(dbStats.getAddressFamilyMismatches()).append('\n');
 		b.append("TX sum: ").append(numSentPackets).append(" RX sum: ").append(numReceivedPackets).append('\n');
 		b.append("avg task time/avg 1st result time (ms): ").append((int)avgFinishTime).append('/').append((int)avgFirstResultTime).append('\n');
 		b.append("Uptime: ").append(Duration.between(startedTimestamp, Instant.now())).append("s\n");
+		getTimeToFullTable().ifPresent(d -> b.append("Warm restart: ").append(warmRestartResponded).append('/').append(warmRestartPinged).append(" cached entries responded, table revalidated after ").append(d).append('\n'));
 		b.append("RPC stats\n");
 		b.append(rpcStats.toString());
 		return b.toString();
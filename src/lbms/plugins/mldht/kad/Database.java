@@ -6,7 +6,10 @@
 package lbms.plugins.mldht.kad;
 
 import java.net.InetAddress;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -18,12 +21,13 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
 import lbms.plugins.mldht.kad.utils.ByteWrapper;
-import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
 
 /**
  * @author Damokles
@@ -35,190 +39,482 @@ public class Database {
 	private volatile long timestampPrevious;
 	private volatile byte[] samples = new byte[0];
 	
-	public static final int MAX_SAMPLE_COUNT = 20;
+	final LongAdder scrapeFilterBuilds = new LongAdder();
+	final LongAdder scrapeFilterUpdates = new LongAdder();
+	final LongAdder addressFamilyMismatches = new LongAdder();
+	private final LongAdder modifications = new LongAdder();
 	
-	private static byte[] sessionSecret = new byte[20];
+	public static final int MAX_SAMPLE_COUNT = 20;
 	
-	static {
-		ThreadLocalUtils.getThreadLocalRandom().nextBytes(sessionSecret);
-	}
+	private volatile TokenGenerator tokenGenerator = TokenGenerator.sipHash();
 
 	Database() {
 		items = new ConcurrentHashMap<>(3000);
 	}
 	
 	
+	/**
+	 * Announced peers of a single infohash.
+	 * 
+	 * Entries are packed into an open-addressed (linear probing) long[] table keyed by the peer's IP instead of
+	 * being held as individual {@link PeerAddressDBItem} objects. {@link PeerAddressDBItem}s are only materialized
+	 * when reading.
+	 * 
+	 * Slot layout: 1 (IPv4) or 2 (IPv6) address words followed by a metadata word of
+	 * [occupied:1][seed:1][unused:1][timestamp millis:45][port:16]
+	 */
 	public static class PeersSeeds {
-		ItemSet seeds;
-		ItemSet peers;
 		
-		PeersSeeds(PeerAddressDBItem[] seeds, PeerAddressDBItem[] peers) {
-			this.seeds = new ItemSet(seeds);
-			this.peers = new ItemSet(peers);
+		private static final long OCCUPIED = 1L << 63;
+		private static final long SEED = 1L << 62;
+		private static final int TIME_SHIFT = 16;
+		private static final long TIME_MASK = (1L << 45) - 1;
+		private static final int PORT_MASK = 0xFFFF;
+		
+		private static final int MIN_CAPACITY = 2;
+		
+		// randomizes probe order (and thus sampling order) between instances of the process
+		private static final long SALT = ThreadLocalRandom.current().nextLong();
+		
+		final Database db;
+		final ItemSet seeds = new ItemSet(this, true);
+		final ItemSet peers = new ItemSet(this, false);
+		
+		private int stride;
+		private long[] slots;
+		private int mask;
+		
+		private volatile int seedCount;
+		private volatile int peerCount;
+		// incremented whenever the set of items changes, timestamp refreshes don't count
+		private volatile int version;
+		
+		PeersSeeds(Database db) {
+			this.db = db;
 		}
 		
+		/**
+		 * @return true when the item was inserted or moved between the seed and peer sets, false when an existing entry was refreshed
+		 */
+		synchronized boolean add(PeerAddressDBItem it) {
+			byte[] raw = it.item;
+			int itemStride = raw.length == DHTtype.IPV6_DHT.ADDRESS_ENTRY_LENGTH ? 3 : 2;
+			
+			if(slots == null) {
+				stride = itemStride;
+				allocate(MIN_CAPACITY);
+			}
+			
+			// each DHT instance has its own database, so all announces for a key share one address family
+			if(itemStride != stride) {
+				db.addressFamilyMismatches.increment();
+				if(DHT.isLogLevelEnabled(LogLevel.Debug))
+					DHT.logDebug("rejected peer " + it + " with mismatched address family");
+				return false;
+			}
+			
+			ByteBuffer buf = ByteBuffer.wrap(raw);
+			long a0 = stride == 3 ? buf.getLong() : buf.getInt() & 0xFFFFFFFFL;
+			long a1 = stride == 3 ? buf.getLong() : 0;
+			long meta = OCCUPIED | (it.seed ? SEED : 0) | (it.getCreatedAt() & TIME_MASK) << TIME_SHIFT | (buf.getShort() & PORT_MASK);
+			
+			int idx = find(a0, a1);
+			
+			if(idx >= 0) {
+				int metaOffset = idx * stride + stride - 1;
+				boolean wasSeed = (slots[metaOffset] & SEED) != 0;
+				slots[metaOffset] = meta;
+				
+				if(wasSeed == it.seed)
+					return false;
+				
+				adjustCount(wasSeed, -1);
+				adjustCount(it.seed, 1);
+				byte[] addr = Arrays.copyOf(raw, raw.length - 2);
+				setFor(wasSeed).removed(addr);
+				setFor(it.seed).inserted(addr);
+				version++;
+				return true;
+			}
+			
+			if(size() + 1 > threshold(mask + 1)) {
+				rehash(slots, (mask + 1) * 2);
+				idx = find(a0, a1);
+			}
+			
+			put(~idx, a0, a1, meta);
+			adjustCount(it.seed, 1);
+			setFor(it.seed).inserted(Arrays.copyOf(raw, raw.length - 2));
+			version++;
+			
+			return true;
+		}
 		
-		boolean add(PeerAddressDBItem it) {
-			ItemSet removeTarget = it.seed ? peers : seeds;
-			ItemSet insertTarget = it.seed ? seeds : peers;
+		/**
+		 * bulk expiry. survivors are compacted into a right-sized table in a single pass
+		 */
+		synchronized void expire() {
+			if(slots == null)
+				return;
+			
+			long now = System.currentTimeMillis();
+			
+			// don't remove all at once -> smears out new registrations on popular keys over time
+			int seedsToRemove = DHTConstants.MAX_DB_ENTRIES_PER_KEY / 5;
+			int peersToRemove = seedsToRemove;
+			
+			long[] old = slots;
+			
+			for(int i=stride-1;i<old.length;i+=stride) {
+				long meta = old[i];
+				if(meta == 0 || now - timestamp(meta) < DHTConstants.MAX_ITEM_AGE)
+					continue;
+				if((meta & SEED) != 0 ? seedsToRemove-- > 0 : peersToRemove-- > 0)
+					old[i] = ~OCCUPIED & meta;
+			}
 			
-			removeTarget.remove(it);
-			return insertTarget.add(it);
+			int removedSeeds = DHTConstants.MAX_DB_ENTRIES_PER_KEY / 5 - Math.max(seedsToRemove, 0);
+			int removedPeers = DHTConstants.MAX_DB_ENTRIES_PER_KEY / 5 - Math.max(peersToRemove, 0);
+			
+			if(removedSeeds + removedPeers == 0)
+				return;
+			
+			seedCount -= removedSeeds;
+			peerCount -= removedPeers;
+			version++;
+			
+			int capacity = MIN_CAPACITY;
+			while(threshold(capacity) < size())
+				capacity *= 2;
+			
+			rehash(old, capacity);
+			
+			if(removedSeeds > 0)
+				removeFromFilter(old, true, removedSeeds);
+			if(removedPeers > 0)
+				removeFromFilter(old, false, removedPeers);
 		}
 		
-		void expire() {
-			seeds.expire();
-			peers.expire();
+		/**
+		 * applies expiry to a scrape filter incrementally, unless re-inserting the survivors is cheaper
+		 */
+		private void removeFromFilter(long[] expiredTable, boolean fromSeeds, int removed) {
+			ItemSet set = setFor(fromSeeds);
+			
+			if(!set.hasFilter())
+				return;
+			
+			if(removed > set.size()) {
+				set.invalidateFilters();
+				return;
+			}
+			
+			byte[] addr = addressBuffer();
+			
+			for(int i=0;i<expiredTable.length && set.hasFilter();i+=stride) {
+				long meta = expiredTable[i + stride - 1];
+				// cleared slots retain their metadata apart from the occupied flag
+				if(meta == 0 || (meta & OCCUPIED) != 0 || ((meta & SEED) != 0) != fromSeeds)
+					continue;
+				address(expiredTable, i / stride, addr);
+				set.removed(addr);
+			}
 		}
 		
-		public ItemSet peers() {
-			return peers;
+		/**
+		 * only called by {@link ItemSet#getFilter()} while holding the lock, so that no update can slip in between building and publishing the filter
+		 */
+		private CountingBloomFilterBEP33 buildFilter(boolean fromSeeds) {
+			// also return empty filters. strict interpretation of the spec doesn't allow omission of empty sets
+			// can happen if we have seeds but no peeds for example
+			CountingBloomFilterBEP33 filter = new CountingBloomFilterBEP33();
+			db.scrapeFilterBuilds.increment();
+			
+			if(slots == null)
+				return filter;
+			
+			byte[] addr = addressBuffer();
+			
+			for(int idx=0;idx<=mask;idx++) {
+				long meta = slots[idx * stride + stride - 1];
+				if((meta & OCCUPIED) == 0 || ((meta & SEED) != 0) != fromSeeds)
+					continue;
+				address(slots, idx, addr);
+				filter.insert(addr);
+			}
+			
+			return filter;
 		}
 		
-		public ItemSet seeds() {
-			return seeds;
+		/**
+		 * proportional sampling across seeds and peers, picks a uniformly random subset of each
+		 */
+		synchronized List<DBItem> sample(int max, boolean preferPeers) {
+			int seedSnapshot = seedCount;
+			int peerSnapshot = peerCount;
+			int lengthSum = seedSnapshot + peerSnapshot;
+			
+			if(lengthSum == 0)
+				return null;
+			
+			List<DBItem> target = new ArrayList<>(Math.min(max, lengthSum));
+			
+			preferPeers &= lengthSum > max;
+			
+			boolean fromSeeds;
+			
+			if(preferPeers)
+				fromSeeds = false;
+			else
+				fromSeeds = ThreadLocalRandom.current().nextInt(lengthSum) >= peerSnapshot;
+			
+			fill(target, fromSeeds, max);
+			fill(target, !fromSeeds, max);
+			
+			return target;
 		}
 		
-		public int size() {
-			return peers.size() + seeds.size();
+		private void fill(List<DBItem> target, boolean fromSeeds, int max) {
+			int count = fromSeeds ? seedCount : peerCount;
+			int wanted = Math.min(max - target.size(), count);
+			if(wanted <= 0)
+				return;
+			
+			int[] candidates = new int[count];
+			int found = 0;
+			
+			for(int idx=0;idx<=mask;idx++) {
+				long meta = slots[idx * stride + stride - 1];
+				if((meta & OCCUPIED) != 0 && ((meta & SEED) != 0) == fromSeeds)
+					candidates[found++] = idx;
+			}
+			
+			ThreadLocalRandom rnd = ThreadLocalRandom.current();
+			
+			// partial fisher-yates shuffle, only the first wanted positions get drawn
+			for(int i=0;i<wanted;i++) {
+				int j = i + rnd.nextInt(found - i);
+				int idx = candidates[j];
+				candidates[j] = candidates[i];
+				target.add(materialize(slots, idx));
+			}
+		}
+		
+		synchronized PeerAddressDBItem[] snapshot(boolean fromSeeds) {
+			int count = fromSeeds ? seedCount : peerCount;
+			if(count == 0)
+				return ItemSet.NO_ITEMS;
+			
+			PeerAddressDBItem[] result = new PeerAddressDBItem[count];
+			int insertPoint = 0;
+			
+			for(int idx=0;idx<=mask;idx++) {
+				long meta = slots[idx * stride + stride - 1];
+				if((meta & OCCUPIED) != 0 && ((meta & SEED) != 0) == fromSeeds)
+					result[insertPoint++] = materialize(slots, idx);
+			}
+			
+			return result;
+		}
+		
+		private byte[] addressBuffer() {
+			return new byte[stride == 3 ? 16 : 4];
 		}
-	}
-
-	
-	public static class ItemSet {
-		static final PeerAddressDBItem[] NO_ITEMS = new PeerAddressDBItem[0];
 		
+		/**
+		 * writes the raw IP of a slot into the given buffer from {@link #addressBuffer()}
+		 */
+		private void address(long[] table, int idx, byte[] dst) {
+			int base = idx * stride;
+			ByteBuffer buf = ByteBuffer.wrap(dst);
+			if(stride == 3) {
+				buf.putLong(table[base]);
+				buf.putLong(table[base + 1]);
+			} else {
+				buf.putInt((int) table[base]);
+			}
+		}
 		
+		private PeerAddressDBItem materialize(long[] table, int idx) {
+			int base = idx * stride;
+			long meta = table[base + stride - 1];
+			byte[] raw = new byte[stride == 3 ? DHTtype.IPV6_DHT.ADDRESS_ENTRY_LENGTH : DHTtype.IPV4_DHT.ADDRESS_ENTRY_LENGTH];
+			ByteBuffer buf = ByteBuffer.wrap(raw);
+			if(stride == 3) {
+				buf.putLong(table[base]);
+				buf.putLong(table[base + 1]);
+			} else {
+				buf.putInt((int) table[base]);
+			}
+			buf.putShort((short) (meta & PORT_MASK));
+			
+			return new PeerAddressDBItem(raw, (meta & SEED) != 0, timestamp(meta));
+		}
 		
-		private volatile PeerAddressDBItem[] items = NO_ITEMS;
-		private volatile BloomFilterBEP33 filter = null;
+		private static long timestamp(long meta) {
+			return (meta >>> TIME_SHIFT) & TIME_MASK;
+		}
 		
-		ItemSet(PeerAddressDBItem[] initial) {
-			this.items = initial;
+		private static int threshold(int capacity) {
+			return capacity * 3 / 4;
 		}
 		
-		private void remove(PeerAddressDBItem it) {
-			synchronized (this) {
-				PeerAddressDBItem[] current = items;
-				
-				if(current.length == 0)
-					return;
-				
-				
-				
-				int idx = Arrays.asList(current).indexOf(it);
-				if(idx < 0) {
-					return;
-				}
-				
-				PeerAddressDBItem[] newItems = Arrays.copyOf(current, current.length - 1);
-				
-				System.arraycopy(current, idx+1, newItems, idx, newItems.length - idx);
-				
-				items = newItems;
-				invalidateFilters();
+		private void allocate(int capacity) {
+			slots = new long[capacity * stride];
+			mask = capacity - 1;
+		}
+		
+		/**
+		 * moves all occupied slots of the old table into a newly allocated one
+		 */
+		private void rehash(long[] old, int capacity) {
+			allocate(capacity);
+			
+			for(int i=0;i<old.length;i+=stride) {
+				long meta = old[i + stride - 1];
+				if((meta & OCCUPIED) == 0)
+					continue;
+				long a0 = old[i];
+				long a1 = stride == 3 ? old[i+1] : 0;
+				put(~find(a0, a1), a0, a1, meta);
 			}
 		}
 		
+		private int hash(long a0, long a1) {
+			long h = (a0 * 0x9E3779B97F4A7C15L + a1) ^ SALT;
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			return (int) h;
+		}
+		
 		/**
-		 * @return true when inserting, false when replacing
+		 * @return the slot index if present, otherwise the bitwise complement of the insertion point
 		 */
-		private boolean add(PeerAddressDBItem toAdd) {
-			synchronized (this) {
-				PeerAddressDBItem[] current = items;
-				int idx = Arrays.asList(current).indexOf(toAdd);
-				if(idx >= 0) {
-					current[idx] = toAdd;
-					return false;
-				}
-				
-				PeerAddressDBItem[] newItems = Arrays.copyOf(current, current.length + 1);
-				newItems[newItems.length-1] = toAdd;
-				Collections.shuffle(Arrays.asList(newItems));
-
-				items = newItems;
-				
-				// bloom filter supports adding, only deletions need a rebuild.
-				BloomFilterBEP33 currentFilter = filter;
-				if(currentFilter != null)
-					synchronized (currentFilter) {
-						currentFilter.insert(toAdd.getInetAddress());
-					}
-				
-				
-				return true;
+		private int find(long a0, long a1) {
+			int idx = hash(a0, a1) & mask;
+			
+			while(true) {
+				int base = idx * stride;
+				if((slots[base + stride - 1] & OCCUPIED) == 0)
+					return ~idx;
+				if(slots[base] == a0 && (stride == 2 || slots[base + 1] == a1))
+					return idx;
+				idx = (idx + 1) & mask;
 			}
 		}
 		
+		private void put(int idx, long a0, long a1, long meta) {
+			int base = idx * stride;
+			slots[base] = a0;
+			if(stride == 3)
+				slots[base + 1] = a1;
+			slots[base + stride - 1] = meta;
+		}
+		
+		private void adjustCount(boolean seed, int delta) {
+			if(seed)
+				seedCount += delta;
+			else
+				peerCount += delta;
+		}
+		
+		private ItemSet setFor(boolean seed) {
+			return seed ? seeds : peers;
+		}
+		
+		int version() {
+			return version;
+		}
+		
+		public ItemSet peers() {
+			return peers;
+		}
+		
+		public ItemSet seeds() {
+			return seeds;
+		}
+		
+		public int size() {
+			return peerCount + seedCount;
+		}
+	}
+
+	/**
+	 * View of either the seeds or the peers of a {@link PeersSeeds} entry, also holds the BEP33 scrape filter for them
+	 */
+	public static class ItemSet {
+		static final PeerAddressDBItem[] NO_ITEMS = new PeerAddressDBItem[0];
+		
+		private final PeersSeeds owner;
+		private final boolean seeds;
+		private volatile CountingBloomFilterBEP33 filter = null;
+		
+		ItemSet(PeersSeeds owner, boolean seeds) {
+			this.owner = owner;
+			this.seeds = seeds;
+		}
+		
 		PeerAddressDBItem[] snapshot() {
-			return items;
+			return owner.snapshot(seeds);
 		}
 		
 		boolean isEmpty() {
-			return items.length == 0;
+			return size() == 0;
 		}
 		
 		public int size() {
-			return items.length;
+			return seeds ? owner.seedCount : owner.peerCount;
 		}
 		
 		public Stream<PeerAddressDBItem> stream() {
-			return Arrays.stream(items);
+			return Arrays.stream(snapshot());
 		}
 		
-		private void invalidateFilters() {
-			filter = null;
+		// the update methods are only called while holding the lock of the owner
+		
+		private void inserted(byte[] addr) {
+			// counting filters are updated in place, only unrepresentable removals force a rebuild
+			CountingBloomFilterBEP33 currentFilter = filter;
+			if(currentFilter != null)
+				synchronized (currentFilter) {
+					currentFilter.insert(addr);
+					owner.db.scrapeFilterUpdates.increment();
+				}
 		}
 		
-		BloomFilterBEP33 getFilter() {
-			BloomFilterBEP33 f = filter;
-			if(f == null) {
-				f = filter = buildFilter();
+		private void removed(byte[] addr) {
+			CountingBloomFilterBEP33 currentFilter = filter;
+			if(currentFilter == null)
+				return;
+			synchronized (currentFilter) {
+				if(currentFilter.remove(addr))
+					owner.db.scrapeFilterUpdates.increment();
+				else
+					invalidateFilters();
 			}
-			
-			return f;
 		}
 		
-		private BloomFilterBEP33 buildFilter() {
-			// also return empty filters. strict interpretation of the spec doesn't allow omission of empty sets
-			// can happen if we have seeds but no peeds for example
-			
-			BloomFilterBEP33 filter = new BloomFilterBEP33();
-
-			for (PeerAddressDBItem item : items) {
-				filter.insert(item.getInetAddress());
-			}
-			
-			return filter;
+		private boolean hasFilter() {
+			return filter != null;
 		}
 		
-		void expire() {
-			synchronized (this) {
-				long now = System.currentTimeMillis();
-				
-				PeerAddressDBItem[] items = this.items;
-				PeerAddressDBItem[] newItems = new PeerAddressDBItem[items.length];
-				
-				// don't remove all at once -> smears out new registrations on popular keys over time
-				int toRemove = DHTConstants.MAX_DB_ENTRIES_PER_KEY / 5;
-				
-				int insertPoint = 0;
-				
-				for(int i=0;i<items.length;i++) {
-					PeerAddressDBItem e = items[i];
-					if(toRemove == 0 || !e.expired(now))
-						newItems[insertPoint++] = e;
-					else
-						toRemove--;
-				}
-				
-				if(insertPoint != newItems.length) {
-					this.items = Arrays.copyOf(newItems, insertPoint);
-					invalidateFilters();
-				}
-				
+		private void invalidateFilters() {
+			filter = null;
+		}
+		
+		BloomFilterBEP33 getFilter() {
+			CountingBloomFilterBEP33 f = filter;
+			if(f != null)
+				return f;
+			
+			synchronized (owner) {
+				f = filter;
+				if(f == null)
+					f = filter = owner.buildFilter(seeds);
 			}
 			
+			return f;
 		}
 	}
 
@@ -233,15 +529,74 @@ public class Database {
 	public void store(Key key, PeerAddressDBItem dbi) {
 		
 		
-		PeersSeeds keyEntries = null;
-		
 		items.compute(key, (k, v) -> {
-			if(v != null) {
-				v.add(dbi);
-				return v;
+			if(v == null)
+				v = new PeersSeeds(this);
+			v.add(dbi);
+			return v;
+		});
+		modifications.increment();
+	}
+	
+	/**
+	 * @return a counter that changes whenever new items have been stored
+	 */
+	long modificationCount() {
+		return modifications.sum();
+	}
+	
+	static int snapshotRecordLength(DHTtype type) {
+		// infohash, ip + port, timestamp, seed flag
+		return Key.SHA1_HASH_LENGTH + type.ADDRESS_ENTRY_LENGTH + 8 + 1;
+	}
+	
+	/**
+	 * Writes all items of the given address family to a {@link SnapshotFile}
+	 */
+	void saveSnapshot(Path saveTo, DHTtype type) throws IOException {
+		if(!Files.isDirectory(saveTo.getParent()))
+			return;
+		
+		try(SnapshotFile.Writer writer = new SnapshotFile.Writer(saveTo, SnapshotFile.Section.PEERS, type.ADDRESS_ENTRY_LENGTH - 2, snapshotRecordLength(type))) {
+			for(Map.Entry<Key, PeersSeeds> e : items.entrySet()) {
+				for(PeerAddressDBItem item : Stream.concat(e.getValue().seeds().stream(), e.getValue().peers().stream()).toArray(PeerAddressDBItem[]::new)) {
+					if(item.getData().length != type.ADDRESS_ENTRY_LENGTH)
+						continue;
+					ByteBuffer buf = writer.next();
+					e.getKey().toBuffer(buf);
+					buf.put(item.getData());
+					buf.putLong(item.getCreatedAt());
+					buf.put((byte) (item.isSeed() ? 1 : 0));
+				}
+			}
+			
+			writer.commit();
+		}
+	}
+	
+	/**
+	 * restores unexpired items from a {@link SnapshotFile}
+	 */
+	void loadSnapshot(Path snapshotPath, DHTtype type) {
+		SnapshotFile.read(snapshotPath, SnapshotFile.Section.PEERS, type.ADDRESS_ENTRY_LENGTH - 2, snapshotRecordLength(type)).ifPresent(contents -> {
+			long now = System.currentTimeMillis();
+			int restored = 0;
+			
+			for(int i=0;i<contents.count;i++) {
+				ByteBuffer record = contents.record(i);
+				byte[] rawKey = new byte[Key.SHA1_HASH_LENGTH];
+				byte[] raw = new byte[type.ADDRESS_ENTRY_LENGTH];
+				record.get(rawKey);
+				record.get(raw);
+				long createdAt = record.getLong();
+				PeerAddressDBItem item = new PeerAddressDBItem(raw, record.get() != 0, createdAt);
+				if(item.expired(now))
+					continue;
+				store(new Key(rawKey), item);
+				restored++;
 			}
 			
-			return new PeersSeeds(dbi.seed ? new PeerAddressDBItem[] {dbi} : ItemSet.NO_ITEMS , dbi.seed ? ItemSet.NO_ITEMS : new PeerAddressDBItem[] {dbi});
+			DHT.logInfo("Restored " + restored + " announced peers from " + snapshotPath);
 		});
 	}
 
@@ -259,79 +614,17 @@ public class Database {
 	 *            The maximum number entries
 	 */
 	List<DBItem> sample(Key key, int max_entries, DHTtype forType, boolean preferPeers) {
-		PeersSeeds keyEntry = null;
-		PeerAddressDBItem[] seedSnapshot = null;
-		PeerAddressDBItem[] peerSnapshot = null;
-
-
-		keyEntry = items.get(key);
+		PeersSeeds keyEntry = items.get(key);
 		if(keyEntry == null)
 			return null;
 		
-		seedSnapshot = keyEntry.seeds.snapshot();
-		peerSnapshot = keyEntry.peers.snapshot();
-		
-		int lengthSum = peerSnapshot.length + seedSnapshot.length;
-		
-		if(lengthSum == 0)
-			return null;
-		
-		List<DBItem> peerlist = new ArrayList<>(Math.min(max_entries, lengthSum));
-		
-		preferPeers &= lengthSum > max_entries;
-		
-		PeerAddressDBItem[] source;
-		
-		if(preferPeers)
-			source = peerSnapshot;
-		else {
-			// proportional sampling
-			source = ThreadLocalRandom.current().nextInt(lengthSum) < peerSnapshot.length ? peerSnapshot : seedSnapshot;
-		}
-		
-		fill(peerlist, source, max_entries);
-		
-		source = source == peerSnapshot ? seedSnapshot : peerSnapshot;
-		
-		fill(peerlist, source, max_entries);
-		
-		return peerlist;
+		return keyEntry.sample(max_entries, preferPeers);
 	}
 	
-	
-	static void fill(List<DBItem> target, PeerAddressDBItem[] source, int max) {
-		if(source.length == 0)
-			return;
-		
-		if(source.length < max - target.size()) {
-			// copy whole
-			for(int i=0;i<source.length;i++) {
-				target.add(source[i]);
-			}
-		} else {
-			// sample random sublist
-			int offset = ThreadLocalRandom.current().nextInt(source.length);
-			
-			for(int i=0;i<source.length && target.size() < max;i++) {
-				PeerAddressDBItem toInsert = source[(i+offset)%source.length];
-				target.add(toInsert);
-			}
-			
-		}
-		
-		
+	PeersSeeds get(Key key) {
+		return items.get(key);
 	}
 	
-	BloomFilterBEP33 createScrapeFilter(Key key, boolean seedFilter)
-	{
-		PeersSeeds dbl = items.get(key);
-		
-		if (dbl == null)
-			return null;
-		
-		return seedFilter ? dbl.seeds.getFilter() : dbl.peers.getFilter();
-	}
-
 	/**
 	 * Expire all items older than 30 minutes
 	 * 
@@ -414,23 +707,18 @@ public class Database {
 	ByteWrapper genToken(Key nodeId, InetAddress ip, int port, Key lookupKey) {
 		updateTokenTimestamps();
 		
-		byte[] tdata = new byte[Key.SHA1_HASH_LENGTH + ip.getAddress().length + 2 + 8 + Key.SHA1_HASH_LENGTH + sessionSecret.length];
-		// generate a hash of the ip port and the current time
-		// should prevent anybody from crapping things up
-		ByteBuffer bb = ByteBuffer.wrap(tdata);
-		nodeId.toBuffer(bb);
-		bb.put(ip.getAddress());
-		bb.putShort((short) port);
-		bb.putLong(timestampCurrent.get());
-		lookupKey.toBuffer(bb);
-		bb.put(sessionSecret);
-		
-		// shorten 4bytes to not waste packet size
+		// 4bytes to not waste packet size
 		// the chance of guessing correctly would be 1 : 4 million and only be valid for a single infohash
-		byte[] token = Arrays.copyOf(ThreadLocalUtils.getThreadLocalSHA1().digest(tdata), 4);
+		int token = tokenGenerator.token(nodeId, ip, port, lookupKey, timestampCurrent.get());
 		
-		
-		return new ByteWrapper(token);
+		return new ByteWrapper(new byte[] {(byte) (token >>> 24), (byte) (token >>> 16), (byte) (token >>> 8), (byte) token});
+	}
+	
+	/**
+	 * Replaces the token generator. Tokens issued by the previous generator become invalid.
+	 */
+	public void setTokenGenerator(TokenGenerator generator) {
+		tokenGenerator = generator;
 	}
 	
 	private void updateTokenTimestamps() {
@@ -460,27 +748,18 @@ public class Database {
 	 */
 	boolean checkToken(ByteWrapper token, Key nodeId, InetAddress ip, int port, Key lookupKey) {
 		updateTokenTimestamps();
-		boolean valid = checkToken(token, nodeId, ip, port, lookupKey, timestampCurrent.get()) || checkToken(token, nodeId, ip, port, lookupKey, timestampPrevious);
-		if(!valid)
+		boolean valid = token.arr.length == 4 && (checkToken(token, nodeId, ip, port, lookupKey, timestampCurrent.get()) || checkToken(token, nodeId, ip, port, lookupKey, timestampPrevious));
+		if(!valid && DHT.isLogLevelEnabled(LogLevel.Debug))
 			DHT.logDebug("Received Invalid token from " + ip.getHostAddress());
 		return valid;
 	}
 
 
 	private boolean checkToken(ByteWrapper toCheck, Key nodeId, InetAddress ip, int port, Key lookupKey, long timeStamp) {
-
-		byte[] tdata = new byte[Key.SHA1_HASH_LENGTH + ip.getAddress().length + 2 + 8 + Key.SHA1_HASH_LENGTH + sessionSecret.length];
-		ByteBuffer bb = ByteBuffer.wrap(tdata);
-		nodeId.toBuffer(bb);
-		bb.put(ip.getAddress());
-		bb.putShort((short) port);
-		bb.putLong(timeStamp);
-		bb.put(lookupKey.getHash());
-		bb.put(sessionSecret);
-		
-		byte[] rawToken = Arrays.copyOf(ThreadLocalUtils.getThreadLocalSHA1().digest(tdata), 4);
-		
-		return toCheck.equals(new ByteWrapper(rawToken));
+		byte[] raw = toCheck.arr;
+		int received = Byte.toUnsignedInt(raw[0]) << 24 | Byte.toUnsignedInt(raw[1]) << 16 | Byte.toUnsignedInt(raw[2]) << 8 | Byte.toUnsignedInt(raw[3]);
+		
+		return received == tokenGenerator.token(nodeId, ip, port, lookupKey, timeStamp);
 	}
 	
 	public Map<Key, PeersSeeds> getData() {
@@ -506,6 +785,21 @@ public class Database {
 			public int getItemCount() {
 				return items.values().stream().mapToInt(PeersSeeds::size).sum();
 			}
+			
+			@Override
+			public long getScrapeFilterBuilds() {
+				return scrapeFilterBuilds.sum();
+			}
+			
+			@Override
+			public long getScrapeFilterUpdates() {
+				return scrapeFilterUpdates.sum();
+			}
+			
+			@Override
+			public long getAddressFamilyMismatches() {
+				return addressFamilyMismatches.sum();
+			}
 		};
 	}
 }
@@ -20,4 +20,19 @@ public interface DatabaseStats {
 	 * @return the keyCount
 	 */
 	public int getKeyCount();
+	
+	/**
+	 * @return number of BEP33 scrape filters built from scratch, either on first use or after a removal could not be applied in place
+	 */
+	public long getScrapeFilterBuilds();
+	
+	/**
+	 * @return number of inserts and removals applied to existing scrape filters in place
+	 */
+	public long getScrapeFilterUpdates();
+	
+	/**
+	 * @return number of announced peers dropped because their address family differs from the entries already stored under the key
+	 */
+	public long getAddressFamilyMismatches();
 }
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+
+/**
+ * Where received packets are handled and tasks are started. Timers and maintenance always run on
+ * {@link DHT#getScheduler()}.
+ */
+public enum ExecutionMode {
+	/**
+	 * all work shares the queue of the scheduler
+	 */
+	SCHEDULER,
+	/**
+	 * one lightweight thread per unit of work. Virtual threads if the runtime provides them, otherwise a work-stealing
+	 * pool with a queue per worker
+	 */
+	LIGHTWEIGHT_THREADS;
+
+	/**
+	 * @return null if the work should go to the scheduler
+	 */
+	public ExecutorService createExecutor(String name) {
+		if(this == SCHEDULER)
+			return null;
+		ExecutorService virtual = virtualThreadExecutor(name);
+		if(virtual != null)
+			return virtual;
+		return workStealingPool(name);
+	}
+
+	static final Thread.UncaughtExceptionHandler LOG_UNCAUGHT = (t, e) -> DHT.log(e, LogLevel.Error);
+
+	/**
+	 * compiled against java 8, look up the java 21 API reflectively
+	 *
+	 * @return null if virtual threads are not available
+	 */
+	static ExecutorService virtualThreadExecutor(String name) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+			builder = builderClass.getMethod("uncaughtExceptionHandler", Thread.UncaughtExceptionHandler.class).invoke(builder, LOG_UNCAUGHT);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) perTask.invoke(null, factory);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// older runtime, or preview features disabled
+			return null;
+		}
+	}
+
+	static ExecutorService workStealingPool(String name) {
+		int threads = Math.max(Runtime.getRuntime().availableProcessors(), 2);
+		AtomicInteger index = new AtomicInteger();
+		ForkJoinPool.ForkJoinWorkerThreadFactory factory = pool -> {
+			ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			t.setName(name + " #" + index.getAndIncrement());
+			return t;
+		};
+		// async mode: FIFO scheduling suits event-style tasks that are never joined
+		return new ForkJoinPool(threads, factory, LOG_UNCAUGHT, true);
+	}
+
+}
@@ -10,23 +10,30 @@ import static the8472.bencode.Utils.buf2ary;
 import the8472.bencode.BDecoder;
 import the8472.bencode.BEncoder;
 import the8472.bencode.Utils;
+import the8472.utils.SlabArena;
 
 import lbms.plugins.mldht.kad.messages.GetResponse;
 import lbms.plugins.mldht.kad.messages.PutRequest;
 import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
 
+import java.io.IOException;
+import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.util.Collections;
 import java.util.Formatter;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 import net.i2p.crypto.eddsa.EdDSAEngine;
 import net.i2p.crypto.eddsa.EdDSAPrivateKey;
@@ -35,6 +42,12 @@ import net.i2p.crypto.eddsa.spec.EdDSANamedCurveTable;
 import net.i2p.crypto.eddsa.spec.EdDSAParameterSpec;
 import net.i2p.crypto.eddsa.spec.EdDSAPublicKeySpec;
 
+/**
+ * BEP44 item store. Items are kept off-heap in a {@link SlabArena} of fixed capacity. When it is full, items are
+ * evicted in least recently used order within their size class, while whole pages move between classes when another
+ * class holds older items or the requesting class has less than its share. Each source address may only occupy a
+ * fraction of the capacity.
+ */
 public class GenericStorage {
 	
 	public static final long EXPIRATION_INTERVAL_SECONDS = 2*60*60;
@@ -101,6 +114,7 @@ public class GenericStorage {
 		public StorageItem(PutRequest req) {
 			expirationDate = System.currentTimeMillis() + EXPIRATION_INTERVAL_SECONDS*1000;
 			value = buf2ary(req.getValue());
+			source = req.getOrigin() != null ? req.getOrigin().getAddress() : null;
 			
 			if(req.getPubkey() != null) {
 				sequenceNumber = req.getSequenceNumber();
@@ -131,6 +145,8 @@ public class GenericStorage {
 		
 		long expirationDate;
 		long sequenceNumber = -1;
+		// address the item was received from, charged against its storage quota
+		InetAddress source;
 		byte[] signature;
 		final byte[] pubkey;
 		final byte[] salt;
@@ -143,33 +159,11 @@ public class GenericStorage {
 		
 		public static final EdDSAParameterSpec spec = EdDSANamedCurveTable.getByName("Ed25519");
 		
+		/**
+		 * @see SignatureVerifier
+		 */
 		public boolean validateSig()  {
-			try {
-				Signature sig = new EdDSAEngine();
-				sig.initVerify(new EdDSAPublicKey(new EdDSAPublicKeySpec(pubkey, spec)));
-				
-				// ("4:salt" length-of-salt ":" salt) "3:seqi" seq "e1:v" len ":" and the encoded value
-				
-				Map<String, Object> p = new TreeMap<>();
-				
-				if(salt != null)
-					p.put("salt", salt);
-				p.put("seq", sequenceNumber);
-				p.put("v", new BEncoder.RawData(ByteBuffer.wrap(value)));
-				
-				ByteBuffer buf = new BEncoder().encode(p, 1500);
-				
-				// trim d ... e
-				buf.position(buf.position() + 1);
-				buf.limit(buf.limit() - 1);
-				
-				sig.update(buf);
-				
-				return sig.verify(signature);
-			} catch (InvalidKeyException | SignatureException e) {
-				return false;
-			}
-
+			return SignatureVerifier.verify(this);
 		}
 		
 		public long seq() {
@@ -219,7 +213,62 @@ public class GenericStorage {
 		
 	}
 	
-	ConcurrentHashMap<Key, StorageItem> items = new ConcurrentHashMap<>();
+	/**
+	 * bookkeeping of a stored item, the item itself lives in the arena
+	 */
+	static final class Entry {
+		final Key key;
+		final boolean mutable;
+		final long sequenceNumber;
+		final long expirationDate;
+		final long source;
+		int handle;
+		int sizeClass;
+		long lastAccess;
+		Entry prev;
+		Entry next;
+
+		Entry(Key key, StorageItem item, long source) {
+			this.key = key;
+			this.mutable = item.mutable();
+			this.sequenceNumber = item.sequenceNumber;
+			this.expirationDate = item.expirationDate;
+			this.source = source;
+		}
+	}
+
+	public static final int DEFAULT_CAPACITY = 16 * 1024 * 1024;
+	// share of the capacity a single IPv4 address or IPv6 /64 may occupy
+	static final int SOURCE_QUOTA_DIVISOR = 64;
+	static final long NO_SOURCE = Long.MIN_VALUE;
+
+	// header: pubkey, signature and salt length (1 byte each), value length (2 bytes)
+	private static final int RECORD_HEADER_LENGTH = 5;
+
+	private final SlabArena<Entry> arena;
+	private final int sourceQuota;
+	private final Map<Key, Entry> items = new HashMap<>();
+	private final Map<Long, Integer> sourceUsage = new HashMap<>();
+	// one LRU list per size class, head is the most recently used entry
+	private final Entry[] lruHeads = new Entry[SlabArena.SIZE_CLASSES];
+	private final Entry[] lruTails = new Entry[SlabArena.SIZE_CLASSES];
+	private long accessClock;
+
+	private final LongAdder modifications = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder quotaRejections = new LongAdder();
+	
+	public GenericStorage() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * @param capacity bytes of off-heap memory available for items, rounded down to a multiple of {@link SlabArena#PAGE_SIZE}
+	 */
+	public GenericStorage(int capacity) {
+		arena = new SlabArena<>(capacity);
+		sourceQuota = (int) Math.max(SlabArena.MAX_RECORD_LENGTH, arena.capacity() / SOURCE_QUOTA_DIVISOR);
+	}
 	
 	
 	enum UpdateResult {
@@ -227,7 +276,8 @@ public class GenericStorage {
 		IMMUTABLE_SUBSTITUTION_FAIL,
 		SIG_FAIL,
 		CAS_FAIL,
-		SEQ_FAIL;
+		SEQ_FAIL,
+		QUOTA_FAIL;
 	}
 	
 	public static Key fingerprint(byte[] pubkey, byte[] salt, ByteBuffer buf) {
@@ -246,49 +296,348 @@ public class GenericStorage {
 		
 	}
 	
+	static long sourceId(InetAddress addr) {
+		if(addr == null)
+			return NO_SOURCE;
+		byte[] raw = addr.getAddress();
+		// IPv6 hosts usually control at least a /64
+		long id = 0;
+		for(int i=0;i<Math.min(raw.length, 8);i++)
+			id = id << 8 | (raw[i] & 0xFF);
+		return id;
+	}
+	
+	static int recordLength(StorageItem item) {
+		int length = RECORD_HEADER_LENGTH + item.value.length;
+		if(item.mutable())
+			length += item.pubkey.length + item.signature.length;
+		if(item.salt != null)
+			length += item.salt.length;
+		return length;
+	}
 	
 	public UpdateResult putOrUpdate(Key k, StorageItem newItem, long expected) {
 		
 		if(newItem.mutable() && !newItem.validateSig())
 			return UpdateResult.SIG_FAIL;
 		
-		while(true) {
-			StorageItem oldItem = items.putIfAbsent(k, newItem);
-			
-			if(oldItem == null)
-				return UpdateResult.SUCCESS;
+		long source = sourceId(newItem.source);
+		int slotSize = SlabArena.slotSize(SlabArena.sizeClass(recordLength(newItem)));
+		
+		synchronized (this) {
+			Entry old = items.get(k);
 			
-			if(oldItem.mutable()) {
+			if(old != null && old.mutable) {
 				if(!newItem.mutable())
 					return UpdateResult.IMMUTABLE_SUBSTITUTION_FAIL;
-				if(newItem.sequenceNumber < oldItem.sequenceNumber)
+				if(newItem.sequenceNumber < old.sequenceNumber)
 					return UpdateResult.SEQ_FAIL;
-				if(expected >= 0 && oldItem.sequenceNumber >= 0 && oldItem.sequenceNumber != expected)
+				if(expected >= 0 && old.sequenceNumber >= 0 && old.sequenceNumber != expected)
 					return UpdateResult.CAS_FAIL;
 			}
 			
-			if(items.replace(k, oldItem, newItem))
-				break;
+			if(source != NO_SOURCE) {
+				int used = sourceUsage.getOrDefault(source, 0);
+				if(old != null && old.source == source)
+					used -= SlabArena.slotSize(old.sizeClass);
+				if(used + slotSize > sourceQuota) {
+					quotaRejections.increment();
+					return UpdateResult.QUOTA_FAIL;
+				}
+			}
+			
+			if(old != null)
+				remove(old);
+			store(k, newItem, source);
 		}
 		
+		modifications.increment();
 		return UpdateResult.SUCCESS;
 	}
 	
-	public Optional<StorageItem> get(Key k) {
-		return Optional.ofNullable(items.get(k));
+	/**
+	 * inserts an item without validation, quota or update checks unless the key is already present
+	 */
+	synchronized void restore(Key k, StorageItem item) {
+		if(!items.containsKey(k))
+			store(k, item, NO_SOURCE);
+	}
+	
+	private void store(Key k, StorageItem item, long source) {
+		Entry e = new Entry(k, item, source);
+		int length = recordLength(item);
+		int handle;
+		// the arena is only empty when it is smaller than a record, which the constructor rules out
+		while((handle = arena.allocate(length, e)) < 0)
+			evictFor(SlabArena.sizeClass(length));
+		e.handle = handle;
+		e.sizeClass = arena.sizeClassOf(handle);
+		writeRecord(arena.slotBuffer(handle), item);
+		items.put(k, e);
+		if(source != NO_SOURCE)
+			sourceUsage.merge(source, SlabArena.slotSize(e.sizeClass), Integer::sum);
+		linkHead(e);
+	}
+	
+	/**
+	 * frees space for a record of the given size class.
+	 * 
+	 * A page of another class is reclaimed if that class holds older entries than the requesting one or if the requesting
+	 * class has less than its share of the capacity, i.e. the capacity divided by the number of classes in use. The
+	 * least used page of the class with the oldest LRU tail is emptied, or of the largest class when the requesting one
+	 * is below its share. The reclaimed page then serves the following allocations of the requesting class, so pages
+	 * follow shifts in the workload without emptying one on every miss.
+	 * 
+	 * Otherwise the least recently used entry of the requesting class is evicted, a single slot is enough.
+	 */
+	private void evictFor(int sizeClass) {
+		Entry own = lruTails[sizeClass];
+		
+		int oldestClass = -1;
+		int largestClass = -1;
+		int classesInUse = 1;
+		for(int cls = 0;cls < SlabArena.SIZE_CLASSES;cls++) {
+			if(cls == sizeClass || lruTails[cls] == null)
+				continue;
+			classesInUse++;
+			if(oldestClass < 0 || lruTails[cls].lastAccess < lruTails[oldestClass].lastAccess)
+				oldestClass = cls;
+			if(largestClass < 0 || arena.allocatedBytes(cls) > arena.allocatedBytes(largestClass))
+				largestClass = cls;
+		}
+		
+		int victimClass = -1;
+		if(own == null || arena.allocatedBytes(sizeClass) < arena.capacity() / classesInUse)
+			victimClass = largestClass;
+		else if(oldestClass >= 0 && lruTails[oldestClass].lastAccess < own.lastAccess)
+			victimClass = oldestClass;
+		
+		if(victimClass < 0) {
+			remove(own);
+			evictions.increment();
+			return;
+		}
+		
+		for(Entry e : arena.ownersOfPage(arena.leastUsedPage(victimClass))) {
+			remove(e);
+			evictions.increment();
+		}
+	}
+	
+	private void remove(Entry e) {
+		items.remove(e.key);
+		unlink(e);
+		arena.free(e.handle);
+		if(e.source != NO_SOURCE)
+			sourceUsage.computeIfPresent(e.source, (src, used) -> used == SlabArena.slotSize(e.sizeClass) ? null : used - SlabArena.slotSize(e.sizeClass));
+	}
+	
+	private void linkHead(Entry e) {
+		e.lastAccess = ++accessClock;
+		e.prev = null;
+		e.next = lruHeads[e.sizeClass];
+		if(e.next != null)
+			e.next.prev = e;
+		else
+			lruTails[e.sizeClass] = e;
+		lruHeads[e.sizeClass] = e;
+	}
+	
+	private void unlink(Entry e) {
+		if(e.prev != null)
+			e.prev.next = e.next;
+		else
+			lruHeads[e.sizeClass] = e.next;
+		if(e.next != null)
+			e.next.prev = e.prev;
+		else
+			lruTails[e.sizeClass] = e.prev;
+		e.prev = e.next = null;
+	}
+	
+	private static void writeRecord(ByteBuffer buf, StorageItem item) {
+		buf.put((byte) (item.mutable() ? item.pubkey.length : 0));
+		buf.put((byte) (item.mutable() ? item.signature.length : 0));
+		buf.put((byte) (item.salt != null ? item.salt.length : 0));
+		buf.putShort((short) item.value.length);
+		if(item.mutable()) {
+			buf.put(item.pubkey);
+			buf.put(item.signature);
+		}
+		if(item.salt != null)
+			buf.put(item.salt);
+		buf.put(item.value);
+	}
+	
+	private StorageItem readRecord(Entry e) {
+		ByteBuffer buf = arena.slotBuffer(e.handle);
+		byte[] pubkey = new byte[buf.get() & 0xFF];
+		byte[] signature = new byte[buf.get() & 0xFF];
+		byte[] salt = new byte[buf.get() & 0xFF];
+		byte[] value = new byte[buf.getShort() & 0xFFFF];
+		buf.get(pubkey);
+		buf.get(signature);
+		buf.get(salt);
+		buf.get(value);
+		
+		StorageItem item = e.mutable ? new StorageItem(value, pubkey, signature, salt.length > 0 ? salt : null, e.sequenceNumber) : new StorageItem(value);
+		item.expirationDate = e.expirationDate;
+		return item;
 	}
 	
+	/**
+	 * @return a heap copy of the item, the arena slot may be reused as soon as the lock is released
+	 */
+	public synchronized Optional<StorageItem> get(Key k) {
+		Entry e = items.get(k);
+		if(e == null)
+			return Optional.empty();
+		unlink(e);
+		linkHead(e);
+		return Optional.of(readRecord(e));
+	}
 	
-	public void cleanup() {
+	
+	public synchronized void cleanup() {
 		long now = System.currentTimeMillis();
 		
-		items.entrySet().removeIf(entry -> {
-			return entry.getValue().expirationDate < now;
-		});
+		items.values().stream().filter(e -> e.expirationDate < now).collect(Collectors.toList()).forEach(this::remove);
+	}
+	
+	/**
+	 * @return a snapshot of all items, does not affect eviction order
+	 */
+	public synchronized Map<Key, StorageItem> getItems() {
+		Map<Key, StorageItem> result = new HashMap<>(items.size() * 2);
+		items.forEach((k, e) -> result.put(k, readRecord(e)));
+		return Collections.unmodifiableMap(result);
+	}
+	
+	public long getCapacity() {
+		return arena.capacity();
+	}
+	
+	/**
+	 * @return bytes of arena pages assigned to a size class
+	 */
+	public synchronized long getAllocatedBytes() {
+		return arena.allocatedBytes();
+	}
+	
+	/**
+	 * @return bytes of arena slots holding items
+	 */
+	public synchronized long getUsedBytes() {
+		return arena.usedBytes();
+	}
+	
+	public synchronized int getItemCount() {
+		return items.size();
+	}
+	
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+	
+	public long getQuotaRejectionCount() {
+		return quotaRejections.sum();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("items: %d used: %d KiB allocated: %d KiB capacity: %d KiB evictions: %d quota rejections: %d%n",
+				getItemCount(), getUsedBytes() / 1024, getAllocatedBytes() / 1024, getCapacity() / 1024, getEvictionCount(), getQuotaRejectionCount());
+	}
+	
+	/**
+	 * @return a counter that changes whenever items have been stored
+	 */
+	long modificationCount() {
+		return modifications.sum();
+	}
+	
+	private static final int MAX_VALUE_LENGTH = 1000;
+	private static final int MAX_SALT_LENGTH = 64;
+	private static final int PUBKEY_LENGTH = 32;
+	private static final int SIGNATURE_LENGTH = 64;
+	// key, expiration, seq, mutable flag, salt length, value length, pubkey, signature, salt, value
+	static final int SNAPSHOT_RECORD_LENGTH = Key.SHA1_HASH_LENGTH + 8 + 8 + 1 + 1 + 2 + PUBKEY_LENGTH + SIGNATURE_LENGTH + MAX_SALT_LENGTH + MAX_VALUE_LENGTH;
+	
+	/**
+	 * Writes all items to a {@link SnapshotFile}. Records are padded to the BEP44 size limits
+	 */
+	void saveSnapshot(Path saveTo) throws IOException {
+		if(!Files.isDirectory(saveTo.getParent()))
+			return;
+		
+		try(SnapshotFile.Writer writer = new SnapshotFile.Writer(saveTo, SnapshotFile.Section.STORAGE, 0, SNAPSHOT_RECORD_LENGTH)) {
+			for(Map.Entry<Key, StorageItem> e : getItems().entrySet()) {
+				StorageItem item = e.getValue();
+				byte[] salt = item.salt != null ? item.salt : new byte[0];
+				
+				if(item.value.length > MAX_VALUE_LENGTH || salt.length > MAX_SALT_LENGTH)
+					continue;
+				if(item.mutable() && (item.pubkey.length != PUBKEY_LENGTH || item.signature.length != SIGNATURE_LENGTH))
+					continue;
+				
+				ByteBuffer buf = writer.next();
+				int start = buf.position();
+				e.getKey().toBuffer(buf);
+				buf.putLong(item.expirationDate);
+				buf.putLong(item.sequenceNumber);
+				buf.put((byte) (item.mutable() ? 1 : 0));
+				buf.put((byte) salt.length);
+				buf.putShort((short) item.value.length);
+				if(item.mutable()) {
+					buf.put(item.pubkey);
+					buf.put(item.signature);
+				} else {
+					buf.position(buf.position() + PUBKEY_LENGTH + SIGNATURE_LENGTH);
+				}
+				buf.put(salt);
+				buf.position(buf.position() + MAX_SALT_LENGTH - salt.length);
+				buf.put(item.value);
+				// zero the padding, the chunk buffer is reused
+				while(buf.position() < start + SNAPSHOT_RECORD_LENGTH)
+					buf.put((byte) 0);
+			}
+			
+			writer.commit();
+		}
 	}
 	
-	public Map<Key, StorageItem> getItems() {
-		return Collections.unmodifiableMap(items);
+	/**
+	 * restores unexpired items from a {@link SnapshotFile}
+	 */
+	void loadSnapshot(Path snapshotPath) {
+		SnapshotFile.read(snapshotPath, SnapshotFile.Section.STORAGE, 0, SNAPSHOT_RECORD_LENGTH).ifPresent(contents -> {
+			long now = System.currentTimeMillis();
+			
+			for(int i=0;i<contents.count;i++) {
+				ByteBuffer record = contents.record(i);
+				byte[] rawKey = new byte[Key.SHA1_HASH_LENGTH];
+				record.get(rawKey);
+				long expiration = record.getLong();
+				long seq = record.getLong();
+				boolean mutable = record.get() != 0;
+				byte[] salt = new byte[record.get() & 0xFF];
+				byte[] value = new byte[record.getShort() & 0xFFFF];
+				byte[] pubkey = new byte[PUBKEY_LENGTH];
+				byte[] signature = new byte[SIGNATURE_LENGTH];
+				record.get(pubkey);
+				record.get(signature);
+				record.get(salt);
+				record.position(record.position() + MAX_SALT_LENGTH - salt.length);
+				record.get(value);
+				
+				if(expiration < now)
+					continue;
+				
+				StorageItem item = mutable ? new StorageItem(value, pubkey, signature, salt.length > 0 ? salt : null, seq) : new StorageItem(value);
+				item.expirationDate = expiration;
+				restore(new Key(rawKey), item);
+			}
+		});
 	}
 
 }
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count-min sketch over the raw address bits with a fixed memory footprint, meant to hold up against floods from spoofed sources.
+ * 
+ * - each cell packs the counter (lower 32 bits) and the second of its last update (upper 32 bits), decay is applied lazily on access
+ * - all updates are CAS loops on the cells, no locking and no per-address objects
+ * - increments use conservative update, i.e. cells are only raised to the new estimate, which limits overcounting from collisions
+ * - decrements only lower the cells that hold the estimate, a cell above it also carries the counts of colliding addresses
+ * - collisions usually cause an address to be throttled early. An address can only be throttled late if it shares a cell
+ *   holding the estimate of another address that gets decremented or removed
+ */
+public class HashedSpamThrottle implements SpamThrottle {
+	
+	public static final int DEFAULT_WIDTH = 1 << 16;
+	private static final int DEPTH = 2;
+	
+	private final AtomicLongArray[] rows = new AtomicLongArray[DEPTH];
+	private final long[] seeds = new long[DEPTH];
+	private final int mask;
+	private final long epoch = System.currentTimeMillis();
+	
+	public HashedSpamThrottle() {
+		this(DEFAULT_WIDTH);
+	}
+	
+	/**
+	 * @param width cells per row, rounded up to a power of two
+	 */
+	public HashedSpamThrottle(int width) {
+		int w = Integer.highestOneBit(Math.max(width - 1, 1)) << 1;
+		mask = w - 1;
+		for(int i=0;i<DEPTH;i++) {
+			rows[i] = new AtomicLongArray(w);
+			// per-instance seeds so that colliding addresses can't be precomputed
+			seeds[i] = ThreadLocalRandom.current().nextLong();
+		}
+	}
+	
+	int now() {
+		return (int) ((System.currentTimeMillis() - epoch) / 1000);
+	}
+	
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+	
+	long key(InetAddress addr) {
+		// Inet4Address.hashCode is the packed address, avoid the array copy
+		if(addr instanceof Inet4Address)
+			return addr.hashCode() & 0xFFFFFFFFL;
+		
+		byte[] raw = addr.getAddress();
+		long hi = 0;
+		long lo = 0;
+		for(int i=0;i<8;i++) {
+			hi = hi << 8 | (raw[i] & 0xFF);
+			lo = lo << 8 | (raw[i+8] & 0xFF);
+		}
+		
+		return fmix(hi ^ seeds[0]) ^ lo;
+	}
+	
+	int index(long key, int row) {
+		return (int) fmix(key ^ seeds[row]) & mask;
+	}
+	
+	private static int count(long cell, int now) {
+		int updated = (int) (cell >>> 32);
+		int value = (int) cell;
+		// guard against the wall clock going backwards
+		long elapsed = Math.max(now - updated, 0);
+		long decayed = value - elapsed * PER_SECOND;
+		return (int) Math.max(decayed, 0);
+	}
+	
+	private static long pack(int count, int now) {
+		return (long) now << 32 | (count & 0xFFFFFFFFL);
+	}
+	
+	private int estimate(long key, int now) {
+		int min = Integer.MAX_VALUE;
+		for(int i=0;i<DEPTH;i++)
+			min = Math.min(min, count(rows[i].get(index(key, i)), now));
+		return min;
+	}
+	
+	/**
+	 * conservative update, raises every cell that is below the target
+	 */
+	private void raise(long key, int target, int now) {
+		for(int i=0;i<DEPTH;i++) {
+			AtomicLongArray row = rows[i];
+			int idx = index(key, i);
+			while(true) {
+				long cell = row.get(idx);
+				int current = count(cell, now);
+				if(current >= target)
+					break;
+				if(row.compareAndSet(idx, cell, pack(target, now)))
+					break;
+			}
+		}
+	}
+	
+	/**
+	 * conservative decrement, lowers only the cells that hold the current estimate
+	 */
+	private void subtract(long key, int amount, int now) {
+		int est = estimate(key, now);
+		if(est == 0)
+			return;
+		for(int i=0;i<DEPTH;i++) {
+			AtomicLongArray row = rows[i];
+			int idx = index(key, i);
+			while(true) {
+				long cell = row.get(idx);
+				int current = count(cell, now);
+				if(current == 0 || current > est)
+					break;
+				if(row.compareAndSet(idx, cell, pack(Math.max(current - amount, 0), now)))
+					break;
+			}
+		}
+	}
+	
+	@Override
+	public boolean addAndTest(InetAddress addr) {
+		return saturatingAdd(addr) >= BURST;
+	}
+	
+	@Override
+	public void remove(InetAddress addr) {
+		// clears the cells that hold the estimate, cells above it keep the counts of colliding addresses
+		subtract(key(addr), Integer.MAX_VALUE, now());
+	}
+	
+	@Override
+	public boolean test(InetAddress addr) {
+		return estimate(key(addr), now()) >= BURST;
+	}
+	
+	@Override
+	public int calculateDelayAndAdd(InetAddress addr) {
+		long key = key(addr);
+		int now = now();
+		int counter = estimate(key, now) + 1;
+		raise(key, counter, now);
+		int diff = counter - BURST;
+		return Math.max(diff, 0)*1000/PER_SECOND;
+	}
+	
+	@Override
+	public void saturatingDec(InetAddress addr) {
+		subtract(key(addr), 1, now());
+	}
+	
+	@Override
+	public int saturatingAdd(InetAddress addr) {
+		long key = key(addr);
+		int now = now();
+		int updated = Math.min(estimate(key, now) + 1, BURST);
+		raise(key, updated, now);
+		return updated;
+	}
+	
+	@Override
+	public void decay() {
+		// decay is applied lazily when cells are accessed
+	}
+	
+	/**
+	 * @return memory used by the counters in bytes
+	 */
+	public long footprint() {
+		return (long) DEPTH * (mask + 1) * 8;
+	}
+	
+}
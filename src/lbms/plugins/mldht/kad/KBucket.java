@@ -198,6 +198,13 @@ public class KBucket {
 		return entries.stream();
 	}
 	
+	/**
+	 * @return the current copy-on-write list, must not be modified
+	 */
+	List<KBucketEntry> entriesRef() {
+		return entries;
+	}
+	
 	Stream<KBucketEntry> replacementsStream() {
 		return IntStream.range(0, replacementBucket.length()).mapToObj(replacementBucket::get).filter(Objects::nonNull);
 	}
@@ -128,6 +128,67 @@ public class KBucketEntry {
 		
 		return map;
 	}
+	
+	private static final int SNAPSHOT_VERIFIED = 1;
+	private static final int SNAPSHOT_HAS_VERSION = 2;
+	private static final int SNAPSHOT_REPLACEMENT = 4;
+	private static final int SNAPSHOT_VERSION_LENGTH = 4;
+	
+	/**
+	 * @return length of the fixed-width {@link SnapshotFile} records for the given IP address length
+	 */
+	static int snapshotRecordLength(int addressLength) {
+		// id, ip, port, created, lastSeen, lastSend, failed, flags, version
+		return Key.SHA1_HASH_LENGTH + addressLength + 2 + 8 + 8 + 8 + 4 + 1 + SNAPSHOT_VERSION_LENGTH;
+	}
+	
+	void toSnapshot(ByteBuffer buf, boolean replacement) {
+		byte[] version = this.version;
+		boolean storeVersion = version != null && version.length == SNAPSHOT_VERSION_LENGTH;
+		
+		nodeID.toBuffer(buf);
+		buf.put(addr.getAddress().getAddress());
+		buf.putShort((short) addr.getPort());
+		buf.putLong(timeCreated);
+		buf.putLong(lastSeen);
+		buf.putLong(lastSendTime);
+		buf.putInt(failedQueries);
+		buf.put((byte) ((verified ? SNAPSHOT_VERIFIED : 0) | (storeVersion ? SNAPSHOT_HAS_VERSION : 0) | (replacement ? SNAPSHOT_REPLACEMENT : 0)));
+		buf.put(storeVersion ? version : new byte[SNAPSHOT_VERSION_LENGTH]);
+	}
+	
+	static boolean isSnapshotReplacement(ByteBuffer record) {
+		return (record.get(record.limit() - SNAPSHOT_VERSION_LENGTH - 1) & SNAPSHOT_REPLACEMENT) != 0;
+	}
+	
+	static KBucketEntry fromSnapshot(ByteBuffer record) {
+		byte[] id = new byte[Key.SHA1_HASH_LENGTH];
+		byte[] ip = new byte[record.remaining() - snapshotRecordLength(0)];
+		record.get(id);
+		record.get(ip);
+		byte[] rawAddr = new byte[ip.length + 2];
+		System.arraycopy(ip, 0, rawAddr, 0, ip.length);
+		record.get(rawAddr, ip.length, 2);
+		
+		InetSocketAddress addr = AddressUtils.unpackAddress(rawAddr);
+		if(addr == null)
+			throw new IllegalArgumentException("invalid address");
+		
+		KBucketEntry built = new KBucketEntry(addr, new Key(id));
+		built.timeCreated = record.getLong();
+		built.lastSeen = record.getLong();
+		built.lastSendTime = record.getLong();
+		built.failedQueries = record.getInt();
+		int flags = record.get();
+		built.setVerified((flags & SNAPSHOT_VERIFIED) != 0);
+		if((flags & SNAPSHOT_HAS_VERSION) != 0) {
+			byte[] version = new byte[SNAPSHOT_VERSION_LENGTH];
+			record.get(version);
+			built.setVersion(version);
+		}
+		
+		return built;
+	}
 
 
 	/**
@@ -6,27 +6,41 @@
 package lbms.plugins.mldht.kad;
 
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
 
+import the8472.utils.concurrent.ThreadCache;
+
 import lbms.plugins.mldht.kad.DHT.DHTtype;
 import lbms.plugins.mldht.kad.Node.RoutingTable;
+import lbms.plugins.mldht.kad.NodeList.AddressType;
 import lbms.plugins.mldht.kad.utils.PackUtil;
 
 /**
+ * Selects the closest entries with a bounded max-heap over the bucket walk. The heap and the walk cursor are
+ * per-thread scratch state, so a search only allocates its result.
+ *
  * @author Damokles
  *
  */
 public class KClosestNodesSearch {
+	
+	private static final class Scratch {
+		KBucketEntry[] heap = new KBucketEntry[DHTConstants.MAX_ENTRIES_PER_BUCKET * 4];
+		final Key cursor = new Key();
+	}
+	
+	private static final ThreadCache<Scratch> scratch = new ThreadCache<>(Scratch::new);
+	
 	private Key							targetKey;
 	private List<KBucketEntry>			entries;
 	private int							max_entries;
 	private DHT							owner;
-	private Comparator<KBucketEntry> comp;
 	public Predicate<KBucketEntry> filter = KBucketEntry::eligibleForNodesList;
 
 	/**
@@ -39,8 +53,7 @@ public class KClosestNodesSearch {
 		this.targetKey = key;
 		this.owner = owner;
 		this.max_entries = max_entries;
-		this.comp = new KBucketEntry.DistanceOrder(key);
-		entries = new ArrayList<>(max_entries + DHTConstants.MAX_ENTRIES_PER_BUCKET);
+		entries = Collections.emptyList();
 	}
 
 	/**
@@ -91,22 +104,101 @@ This requires a non-contiguous search
 
 	
 	
-	private void insertBucket(KBucket bucket) {
-		bucket.entriesStream().filter(filter).forEach(entries::add);
+	/**
+	 * @return true if e is further away from the target than other
+	 */
+	private boolean further(KBucketEntry e, KBucketEntry other) {
+		return targetKey.threeWayDistance(e.getID(), other.getID()) > 0;
 	}
 	
-	private void shave() {
-		int overshoot = entries.size() - max_entries;
+	/**
+	 * offers the eligible entries of a bucket to the max-heap, the furthest entry is at the root
+	 * 
+	 * @return the new heap size
+	 */
+	private int offerBucket(KBucket bucket, KBucketEntry[] heap, int size) {
+		List<KBucketEntry> bucketEntries = bucket.entriesRef();
+		for(int i=0, n=bucketEntries.size();i<n;i++) {
+			KBucketEntry e = bucketEntries.get(i);
+			if(!filter.test(e))
+				continue;
+			
+			if(size < max_entries) {
+				// sift up
+				int idx = size++;
+				while(idx > 0) {
+					int parent = (idx - 1) >>> 1;
+					if(!further(e, heap[parent]))
+						break;
+					heap[idx] = heap[parent];
+					idx = parent;
+				}
+				heap[idx] = e;
+			} else if(further(heap[0], e)) {
+				// replace root, sift down
+				int idx = 0;
+				while(true) {
+					int child = idx * 2 + 1;
+					if(child >= size)
+						break;
+					if(child + 1 < size && further(heap[child + 1], heap[child]))
+						child++;
+					if(!further(heap[child], e))
+						break;
+					heap[idx] = heap[child];
+					idx = child;
+				}
+				heap[idx] = e;
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * Computes <code>targetKey.distance(new Prefix(targetKey.distance(prefix), depth).add(Key.setBit(depth)))</code>
+	 * into the cursor without allocating, i.e. the first key of the next bucket in xor order.
+	 * 
+	 * @return false if the prefix covers the whole keyspace
+	 */
+	static boolean nextBucketTarget(Key target, Prefix prefix, Key cursor) {
+		int depth = prefix.depth;
+		if(depth < 0)
+			return false;
 		
-		if(overshoot <= 0)
-			return;
-
-		List<KBucketEntry> tail = entries.subList(Math.max(0, entries.size() - DHTConstants.MAX_ENTRIES_PER_BUCKET), entries.size());
-		tail.sort(comp);
-		entries.subList(entries.size() - overshoot, entries.size()).clear();
+		// translate into xor distance, trim trailing bits
+		int bits = depth + 1;
+		long d0 = (target.w0 ^ prefix.w0) & Key.leadingMask(bits);
+		long d1 = (target.w1 ^ prefix.w1) & Key.leadingMask(bits - 64);
+		int d2 = (target.w2 ^ prefix.w2) & (int) (Key.leadingMask(bits - 128) >>> 32);
+		
+		// increment distance by least significant *prefix* bit, overflow past the 160th bit is discarded
+		if(depth < 64) {
+			d0 += Long.MIN_VALUE >>> depth;
+		} else if(depth < 128) {
+			long sum = d1 + (Long.MIN_VALUE >>> (depth - 64));
+			if(Long.compareUnsigned(sum, d1) < 0)
+				d0++;
+			d1 = sum;
+		} else {
+			int sum = d2 + (Integer.MIN_VALUE >>> (depth - 128));
+			if(Integer.compareUnsigned(sum, d2) < 0 && ++d1 == 0)
+				d0++;
+			d2 = sum;
+		}
+		
+		// translate back to natural distance
+		cursor.w0 = target.w0 ^ d0;
+		cursor.w1 = target.w1 ^ d1;
+		cursor.w2 = target.w2 ^ d2;
+		return true;
 	}
 	
-	public void fill(boolean includeOurself) {
+	/**
+	 * walks the buckets in xor order, starting at the one covering the target
+	 * 
+	 * @return the number of entries in the heap
+	 */
+	private int select(KBucketEntry[] heap, Key cursor) {
 		RoutingTable table = owner.getNode().table();
 		
 		
@@ -115,28 +207,21 @@ This requires a non-contiguous search
 		
 		Node.RoutingTableEntry current = table.get(initialIdx);
 		
+		int size = 0;
 		
 		while(true){
 			
-			// System.out.println(current.prefix);
-			
-			insertBucket(current.getBucket());
+			size = offerBucket(current.getBucket(), heap, size);
 			
-			if(entries.size() >= max_entries)
+			// all remaining buckets are further away
+			if(size >= max_entries)
 				break;
 			
-			Prefix bucketPrefix = current.prefix;
-			Prefix targetToBucketDistance = new Prefix(targetKey.distance(bucketPrefix), bucketPrefix.depth); // translate into xor distance, trim trailing bits
-			Key incrementedDistance = targetToBucketDistance.add(Key.setBit(targetToBucketDistance.depth)); // increment distance by least significant *prefix* bit
-			Key nextBucketTarget = targetKey.distance(incrementedDistance); // translate back to natural distance
-			
-			
-			//System.out.println("dist    " + targetToBucketDistance.toBinString());
-			//System.out.println("newDist " +  incrementedDistance.toBinString());
-			//System.out.println("target  " +  nextBucketTarget.toBinString());
+			if(!nextBucketTarget(targetKey, current.prefix, cursor))
+				break;
 			
 			// guess neighbor bucket that might be next in target order
-			int dir = Integer.signum(nextBucketTarget.compareTo(current.prefix));
+			int dir = Integer.signum(cursor.compareTo(current.prefix));
 			int idx;
 			
 			current = null;
@@ -146,8 +231,8 @@ This requires a non-contiguous search
 				current = table.get(idx);
 			
 			// do binary search if guess turned out incorrect
-			if(current == null || !current.prefix.isPrefixOf(nextBucketTarget)) {
-				idx = table.indexForId(nextBucketTarget);
+			if(current == null || !current.prefix.isPrefixOf(cursor)) {
+				idx = table.indexForId(cursor);
 				current = table.get(idx);
 			}
 			
@@ -158,15 +243,85 @@ This requires a non-contiguous search
 				break;
 		}
 		
-		shave();
-		
+		return size;
+	}
+	
+	private Scratch acquireScratch() {
+		Scratch s = scratch.acquire();
+		if(s.heap.length < max_entries)
+			s.heap = new KBucketEntry[max_entries];
+		return s;
+	}
+	
+	private RPCServer ownServer(boolean includeOurself, int found) {
+		if(!includeOurself || found >= max_entries)
+			return null;
 		RPCServer srv = owner.getServerManager().getRandomActiveServer(true);
+		if(srv == null || srv.getPublicAddress() == null)
+			return null;
+		return srv;
+	}
+	
+	/**
+	 * The last entry of the result is the one furthest from the target, unless our own node is included.
+	 */
+	public void fill(boolean includeOurself) {
+		Scratch s = acquireScratch();
+		KBucketEntry[] heap = s.heap;
+		int size = select(heap, s.cursor);
+		
+		RPCServer srv = ownServer(includeOurself, size);
 		
-		if(includeOurself && srv != null && srv.getPublicAddress() != null && entries.size() < max_entries)
+		List<KBucketEntry> result = new ArrayList<>(size + (srv != null ? 1 : 0));
+		
+		// the root of the heap is the furthest entry
+		for(int i=1;i<size;i++)
+			result.add(heap[i]);
+		if(size > 0)
+			result.add(heap[0]);
+		Arrays.fill(heap, 0, size, null);
+		scratch.release(s);
+		
+		if(srv != null)
 		{
 			InetSocketAddress sockAddr = new InetSocketAddress(srv.getPublicAddress(), srv.getPort());
-			entries.add(new KBucketEntry(sockAddr, srv.getDerivedID()));
+			result.add(new KBucketEntry(sockAddr, srv.getDerivedID()));
+		}
+		
+		entries = result;
+	}
+	
+	/**
+	 * Selects the same entries as {@link #fill(boolean)} but writes them straight into the compact node info format
+	 * for responses. The entries of this search object stay empty.
+	 */
+	public NodeList fillPacked(boolean includeOurself) {
+		Scratch s = acquireScratch();
+		KBucketEntry[] heap = s.heap;
+		int size = select(heap, s.cursor);
+		
+		RPCServer srv = ownServer(includeOurself, size);
+		
+		DHTtype type = owner.getType();
+		ByteBuffer buf = ByteBuffer.allocate((size + (srv != null ? 1 : 0)) * type.NODES_ENTRY_LENGTH);
+		
+		for(int i=0;i<size;i++) {
+			KBucketEntry e = heap[i];
+			e.getID().toBuffer(buf);
+			buf.put(e.getAddress().getAddress().getAddress());
+			buf.putShort((short) e.getAddress().getPort());
 		}
+		Arrays.fill(heap, 0, size, null);
+		scratch.release(s);
+		
+		if(srv != null) {
+			srv.getDerivedID().toBuffer(buf);
+			buf.put(srv.getPublicAddress().getAddress());
+			buf.putShort((short) srv.getPort());
+		}
+		
+		buf.flip();
+		return NodeList.fromBuffer(buf, type == DHTtype.IPV4_DHT ? AddressType.V4 : AddressType.V6);
 	}
 	
 
@@ -5,21 +5,22 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad;
 
-import static the8472.utils.Arrays.compareUnsigned;
-import static the8472.utils.Arrays.mismatch;
-
 import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
 import lbms.plugins.mldht.utils.Radixable;
 
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.nio.ByteOrder;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Random;
 import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
+ * The 160 bits are stored big-endian in two longs and an int, so that ordering, equality and XOR distance
+ * comparisons operate on machine words instead of individual bytes.
+ *
  * @author Damokles
  *
  */
@@ -48,13 +49,19 @@ public class Key implements Radixable<Key> {
 	static {
 		MIN_KEY = new Key();
 		MAX_KEY = new Key();
-		Arrays.fill(MAX_KEY.hash, (byte)0xFF);
+		MAX_KEY.w0 = -1L;
+		MAX_KEY.w1 = -1L;
+		MAX_KEY.w2 = -1;
 	}
 
 	public static final int		SHA1_HASH_LENGTH	= 20;
 	public static final int		KEY_BITS			= SHA1_HASH_LENGTH * 8;
 	public static final Pattern STRING_PATTERN		= Pattern.compile("[a-fA-F0-9]{40}");
-	final protected byte[]			hash				= new byte[SHA1_HASH_LENGTH];
+	
+	// bytes 0-7, 8-15 and 16-19
+	protected long w0;
+	protected long w1;
+	protected int w2;
 
 	/**
 	 * A Key in the DHT.
@@ -73,7 +80,9 @@ public class Key implements Radixable<Key> {
 	 * @param k Key to clone
 	 */
 	public Key (Key k) {
-		System.arraycopy(k.hash, 0, hash, 0, SHA1_HASH_LENGTH);
+		w0 = k.w0;
+		w1 = k.w1;
+		w2 = k.w2;
 	}
 	
 	public Key (String hex)
@@ -81,13 +90,20 @@ public class Key implements Radixable<Key> {
 	    if(hex.length() != 40)
 	    	throw new IllegalArgumentException("Hex String must have 40 bytes");
 	    
+	    byte[] hash = new byte[SHA1_HASH_LENGTH];
 	    for (int i = 0; i < hex.length(); i += 2)
 	        hash[i / 2] = (byte) ((Character.digit(hex.charAt(i), 16) << 4) + Character.digit(hex.charAt(i+1), 16));
-
+	    
+	    readFrom(hash);
 	}
 	
 	public Key(ByteBuffer buf) {
-		buf.get(hash);
+		ByteOrder order = buf.order();
+		buf.order(ByteOrder.BIG_ENDIAN);
+		w0 = buf.getLong();
+		w1 = buf.getLong();
+		w2 = buf.getInt();
+		buf.order(order);
 	}
 
 	/**
@@ -100,43 +116,115 @@ public class Key implements Radixable<Key> {
 			throw new IllegalArgumentException(
 					"Invalid Hash must be 20bytes, was: " + hash.length);
 		}
-		System.arraycopy(hash, 0, this.hash, 0, SHA1_HASH_LENGTH);
+		readFrom(hash);
+	}
+	
+	private void readFrom(byte[] hash) {
+		long a = 0, b = 0;
+		int c = 0;
+		for(int i=0;i<8;i++) {
+			a = a << 8 | Byte.toUnsignedLong(hash[i]);
+			b = b << 8 | Byte.toUnsignedLong(hash[i + 8]);
+		}
+		for(int i=16;i<20;i++)
+			c = c << 8 | Byte.toUnsignedInt(hash[i]);
+		w0 = a;
+		w1 = b;
+		w2 = c;
 	}
 	
 	public static Key setBit(int idx) {
 		Key k = new Key();
-		k.hash[idx / 8] = (byte)(0x80 >>> (idx % 8));
+		k.assignBit(idx, true);
 		return k;
 	}
+	
+	boolean isBitSet(int idx) {
+		if(idx < 64)
+			return (w0 << idx) < 0;
+		if(idx < 128)
+			return (w1 << (idx - 64)) < 0;
+		return (w2 << (idx - 128)) < 0;
+	}
+	
+	void assignBit(int idx, boolean value) {
+		if(idx < 64) {
+			long mask = Long.MIN_VALUE >>> idx;
+			w0 = value ? w0 | mask : w0 & ~mask;
+		} else if(idx < 128) {
+			long mask = Long.MIN_VALUE >>> (idx - 64);
+			w1 = value ? w1 | mask : w1 & ~mask;
+		} else {
+			int mask = Integer.MIN_VALUE >>> (idx - 128);
+			w2 = value ? w2 | mask : w2 & ~mask;
+		}
+	}
+	
+	/**
+	 * copies bits 0 to lastBit (inclusive) from the source key
+	 */
+	void copyLeadingBits(Key source, int lastBit) {
+		int n = lastBit + 1;
+		long m0 = leadingMask(n);
+		long m1 = leadingMask(n - 64);
+		int m2 = (int) (leadingMask(n - 128) >>> 32);
+		w0 = (w0 & ~m0) | (source.w0 & m0);
+		w1 = (w1 & ~m1) | (source.w1 & m1);
+		w2 = (w2 & ~m2) | (source.w2 & m2);
+	}
+	
+	static long leadingMask(int bits) {
+		if(bits <= 0)
+			return 0;
+		if(bits >= 64)
+			return -1L;
+		return -1L << (64 - bits);
+	}
 
 	/*
 	 * compares Keys according to their natural distance
 	 */
 	public int compareTo (Key o) {
-		return compareUnsigned(hash, o.hash);
+		if(w0 != o.w0)
+			return Long.compareUnsigned(w0, o.w0);
+		if(w1 != o.w1)
+			return Long.compareUnsigned(w1, o.w1);
+		return Integer.compareUnsigned(w2, o.w2);
 	}
 	
 	/**
-	 * Compares the distance of two keys relative to this one using the XOR metric
+	 * Compares the distance of two keys relative to this one using the XOR metric. Does not allocate.
 	 * 
 	 * @return -1 if k1 is closer to this key, 0 if k1 and k2 are equidistant, 1 if k2 is closer
 	 */
 	public int threeWayDistance(Key k1, Key k2)
 	{
-		byte[] h0 = hash;
-		byte[] h1 = k1.hash;
-		byte[] h2 = k2.hash;
-		
-		int mmi = mismatch(h1, h2);
-		
-		if(mmi == -1)
-			return 0;
-		
-		int h = Byte.toUnsignedInt(h0[mmi]);
-		int a = Byte.toUnsignedInt(h1[mmi]);
-		int b = Byte.toUnsignedInt(h2[mmi]);
-		
-		return Integer.compareUnsigned(a ^ h, b ^ h);
+		// the most significant differing bit of k1 and k2 decides, the shared bits cancel out
+		long a = k1.w0, b = k2.w0;
+		if(a != b)
+			return Long.compareUnsigned(a ^ w0, b ^ w0);
+		a = k1.w1;
+		b = k2.w1;
+		if(a != b)
+			return Long.compareUnsigned(a ^ w1, b ^ w1);
+		return Integer.compareUnsigned(k1.w2 ^ w2, k2.w2 ^ w2);
+	}
+	
+	/**
+	 * @return index of the first bit that differs between the keys, -1 if they are equal. Equivalent to
+	 * <code>distance(other).leadingOneBit()</code> without allocating
+	 */
+	public int mismatchBit(Key other) {
+		long x = w0 ^ other.w0;
+		if(x != 0)
+			return Long.numberOfLeadingZeros(x);
+		x = w1 ^ other.w1;
+		if(x != 0)
+			return 64 + Long.numberOfLeadingZeros(x);
+		int y = w2 ^ other.w2;
+		if(y != 0)
+			return 128 + Integer.numberOfLeadingZeros(y);
+		return -1;
 	}
 
 
@@ -146,7 +234,7 @@ public class Key implements Radixable<Key> {
 		{
 			// potential alternative would be a descending comparison since prefix bytes might be shared in sorted data structures
 			Key otherKey = (Key) o;
-			return Arrays.equals(hash, otherKey.hash);
+			return w0 == otherKey.w0 && w1 == otherKey.w1 && w2 == otherKey.w2;
 		}
 		return false;
 	}
@@ -155,34 +243,43 @@ public class Key implements Radixable<Key> {
 	 * @return the hash
 	 */
 	public byte[] getHash () {
-		return hash.clone();
+		byte[] hash = new byte[SHA1_HASH_LENGTH];
+		for(int i=0;i<8;i++) {
+			hash[i] = (byte) (w0 >>> (56 - i * 8));
+			hash[i + 8] = (byte) (w1 >>> (56 - i * 8));
+		}
+		for(int i=0;i<4;i++)
+			hash[i + 16] = (byte) (w2 >>> (24 - i * 8));
+		return hash;
 	}
 	
 	public ByteBuffer asBuffer()  {
-		return ByteBuffer.wrap(hash).asReadOnlyBuffer();
+		return ByteBuffer.wrap(getHash()).asReadOnlyBuffer();
 	}
 	
 	public void toBuffer(ByteBuffer dst) {
-		dst.put(hash);
+		ByteOrder order = dst.order();
+		dst.order(ByteOrder.BIG_ENDIAN);
+		dst.putLong(w0);
+		dst.putLong(w1);
+		dst.putInt(w2);
+		dst.order(order);
 	}
 	
 	public int getByte(int offset) {
-		return hash[offset];
+		return (byte) getRadix(offset);
 	}
 	
 	public int getInt(int offset) {
-		byte[] hash = this.hash;
-		return Byte.toUnsignedInt(hash[offset]) << 24 | Byte.toUnsignedInt(hash[offset+1]) << 16 | Byte.toUnsignedInt(hash[offset+2]) << 8 | Byte.toUnsignedInt(hash[offset+3]);
+		if(offset == 0)
+			return (int) (w0 >>> 32);
+		return getRadix(offset) << 24 | getRadix(offset+1) << 16 | getRadix(offset+2) << 8 | getRadix(offset+3);
 	}
 	
 	public Key getDerivedKey(int idx) {
 		Key k = new Key(this);
 		idx = Integer.reverse(idx);
-		byte[] data = k.hash;
-		data[0] ^= (idx >>> 24) & 0xFF;
-		data[1] ^= (idx >>> 16) & 0xFF;
-		data[2] ^= (idx >>> 8) & 0xFF;
-		data[3] ^= idx & 0xFF;
+		k.w0 ^= Integer.toUnsignedLong(idx) << 32;
 		return k;
 	}
 
@@ -193,11 +290,9 @@ public class Key implements Radixable<Key> {
 	 */
 	@Override
 	public int hashCode () {
-		byte[] hash = this.hash;
-		return (((hash[0] ^ hash[1] ^ hash[2] ^ hash[3] ^ hash[4]) & 0xff) << 24)
-				| (((hash[5] ^ hash[6] ^ hash[7] ^ hash[8] ^ hash[9]) & 0xff) << 16)
-				| (((hash[10] ^ hash[11] ^ hash[12] ^ hash[13] ^ hash[14]) & 0xff) << 8)
-				| ((hash[15] ^ hash[16] ^ hash[17] ^ hash[18] ^ hash[19]) & 0xff);
+		// fold all bits, keys sharing a prefix are common in routing table buckets
+		long x = w0 ^ w1;
+		return (int) (x ^ (x >>> 32)) ^ w2;
 	}
 
 	/* (non-Javadoc)
@@ -211,13 +306,14 @@ public class Key implements Radixable<Key> {
 	public String toString(boolean nicePrint)
 	{
 		StringBuilder b = new StringBuilder(nicePrint ? 44 : 40);
-		for (int i = 0; i < hash.length; i++) {
+		for (int i = 0; i < SHA1_HASH_LENGTH; i++) {
 			if (nicePrint && i % 4 == 0 && i > 0) {
 				b.append(' ');
 			}
-			int nibble = (hash[i] & 0xF0) >> 4;
+			int radix = getRadix(i);
+			int nibble = (radix & 0xF0) >> 4;
 			b.append((char)(nibble < 0x0A ? '0'+nibble : 'A'+nibble-10 ));
-			nibble = hash[i] & 0x0F;
+			nibble = radix & 0x0F;
 			b.append((char)(nibble < 0x0A ? '0'+nibble : 'A'+nibble-10 ));
 		}
 		return b.toString();
@@ -226,7 +322,7 @@ public class Key implements Radixable<Key> {
 	public String toBinString() {
 		StringBuilder builder = new StringBuilder(160);
 		for(int i=0;i<160;i++)
-			builder.append((hash[i/8] & (0x80 >> (i % 8))) != 0 ? '1' : '0');
+			builder.append(isBitSet(i) ? '1' : '0');
 		return builder.toString();
 	}
 
@@ -239,26 +335,11 @@ public class Key implements Radixable<Key> {
 	 * @return integer marking the different bits of the keys
 	 */
 	public int findApproxKeyDistance (Key id) {
-
-		// XOR our id and the sender's ID
-		Key d = Key.distance(id, this);
-		
-		return d.leadingOneBit();
+		return mismatchBit(id);
 	}
 	
 	public int leadingOneBit() {
-		byte[] data_hash = hash;
-		for (int i = 0; i < 20; i++) {
-			// get the byte
-			int b = data_hash[i] & 0xFF;
-			// no bit on in this byte so continue
-			if (b == 0) {
-				continue;
-			}
-			
-			return i * 8 + Integer.numberOfLeadingZeros(b) - 24;
-		}
-		return -1;
+		return mismatchBit(MIN_KEY);
 	}
 
 	/**
@@ -275,13 +356,19 @@ public class Key implements Radixable<Key> {
 	}
 	
 	public Key add(Key x) {
-		int carry = 0;
-		Key out = new Key(this);
-		for(int i=19;i>=0;i--) {
-			carry = Byte.toUnsignedInt(out.hash[i]) + Byte.toUnsignedInt(x.hash[i]) + carry;
-			out.hash[i] = (byte)(carry & 0xff);
-			carry >>>= 8;
-		}
+		Key out = new Key();
+		long low = Integer.toUnsignedLong(w2) + Integer.toUnsignedLong(x.w2);
+		out.w2 = (int) low;
+		long carry = low >>> 32;
+		
+		long mid = w1 + x.w1;
+		long midCarry = Long.compareUnsigned(mid, w1) < 0 ? 1 : 0;
+		if(carry != 0 && mid == -1L)
+			midCarry = 1;
+		out.w1 = mid + carry;
+		
+		// overflow past the 160th bit is discarded
+		out.w0 = w0 + x.w0 + midCarry;
 		
 		return out;
 	}
@@ -291,7 +378,7 @@ public class Key implements Radixable<Key> {
 	 * To get the natural distance for ascending key order this should be the successive element of otherKey
 	 */
 	public double naturalDistance(Key otherKey) {
-		return Math.log(new BigInteger(1,hash).subtract(new BigInteger(1, otherKey.hash)).mod(new BigInteger(1,MAX_KEY.hash).add(new BigInteger("1"))).doubleValue())/Math.log(2);
+		return Math.log(new BigInteger(1,getHash()).subtract(new BigInteger(1, otherKey.getHash())).mod(new BigInteger(1,MAX_KEY.getHash()).add(new BigInteger("1"))).doubleValue())/Math.log(2);
 	}
 
 
@@ -306,9 +393,9 @@ public class Key implements Radixable<Key> {
 	 */
 	public static Key distance (Key a, Key b) {
 		Key x = new Key();
-		for (int i = 0; i < a.hash.length; i++) {
-			x.hash[i] = (byte) (a.hash[i] ^ b.hash[i]);
-		}
+		x.w0 = a.w0 ^ b.w0;
+		x.w1 = a.w1 ^ b.w1;
+		x.w2 = a.w2 ^ b.w2;
 		return x;
 	}
 	
@@ -319,7 +406,10 @@ public class Key implements Radixable<Key> {
 	 */
 	public static Key createRandomKey () {
 		Key x = new Key();
-		ThreadLocalUtils.getThreadLocalRandom().nextBytes(x.hash);
+		Random rnd = ThreadLocalUtils.getThreadLocalRandom();
+		x.w0 = rnd.nextLong();
+		x.w1 = rnd.nextLong();
+		x.w2 = rnd.nextInt();
 		return x;
 	}
 	
@@ -327,7 +417,11 @@ public class Key implements Radixable<Key> {
 
 	
 	public int getRadix(int byteIndex) {
-		return hash[byteIndex] & 0xFF;
+		if(byteIndex < 8)
+			return (int) (w0 >>> (56 - byteIndex * 8)) & 0xFF;
+		if(byteIndex < 16)
+			return (int) (w1 >>> (120 - byteIndex * 8)) & 0xFF;
+		return (w2 >>> (152 - byteIndex * 8)) & 0xFF;
 	}
 	
 	public static void main(String[] args) {
@@ -5,8 +5,6 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad;
 
-import static java.lang.Math.max;
-import static java.lang.Math.min;
 import static lbms.plugins.mldht.kad.Node.InsertOptions.ALWAYS_SPLIT_IF_FULL;
 import static lbms.plugins.mldht.kad.Node.InsertOptions.FORCE_INTO_MAIN_BUCKET;
 import static lbms.plugins.mldht.kad.Node.InsertOptions.NEVER_SPLIT;
@@ -14,8 +12,6 @@ import static lbms.plugins.mldht.kad.Node.InsertOptions.RELAXED_SPLIT;
 import static lbms.plugins.mldht.kad.Node.InsertOptions.REMOVE_IF_FULL;
 import static the8472.utils.Functional.typedGet;
 
-import the8472.bencode.BEncoder;
-import the8472.utils.AnonAllocator;
 import the8472.utils.CowSet;
 import the8472.utils.Pair;
 import the8472.utils.concurrent.SerializedTaskExecutor;
@@ -36,7 +32,6 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -54,13 +49,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
@@ -117,126 +110,184 @@ public class Node {
 		}
 	}
 	
+	/**
+	 * Immutable routing table, structured as a binary trie over the key bits whose leaves are the buckets in keyspace
+	 * order. Modifications copy the path from the root to the modified node and share everything else, so they cost
+	 * O(depth) instead of O(buckets). Leaf indices are derived from the subtree sizes stored in the inner nodes.
+	 */
 	public static final class RoutingTable {
 		
-		final RoutingTableEntry[] entries;
-		final int[] indexCache;
-		
-		RoutingTable(RoutingTableEntry... entries) {
-			this.entries = entries;
-			if(entries.length > 64) {
-				indexCache = buildCache();
-			} else {
-				indexCache = new int[] {0, entries.length};
-			}
+		static final class Branch {
+			// RoutingTableEntry or Branch
+			final Object low;
+			final Object high;
+			final int size;
 			
+			Branch(Object low, Object high) {
+				this.low = low;
+				this.high = high;
+				this.size = count(low) + count(high);
+			}
 		}
 		
-		public RoutingTable() {
-			this(new RoutingTableEntry[] {new RoutingTableEntry(new Prefix(), new KBucket(), (x) -> true)});
+		static int count(Object node) {
+			return node instanceof Branch ? ((Branch) node).size : 1;
 		}
 		
-		int[] buildCache() {
-			int[] cache = new int[256];
-			
-			assert(Integer.bitCount(cache.length) == 1);
-			
-			int lsb = Integer.bitCount((cache.length/2)-1)-1;
-			
-			Key increment = Key.setBit(lsb);
-			Key trailingBits = new Prefix(Key.MAX_KEY, lsb).distance(Key.MAX_KEY);
-			Key currentLower = new Key(new Prefix(Key.MIN_KEY, lsb));
-			Key currentUpper = new Prefix(Key.MIN_KEY, lsb).distance(trailingBits);
-			
-			int innerOffset = 0;
-			
-			for(int i=0;i<cache.length;i+=2) {
-				cache[i+1] = entries.length;
-				
-				for(int j=innerOffset;j<entries.length;j++) {
-					Prefix p = entries[j].prefix;
-					
-					if(p.compareTo(currentLower) <= 0) {
-						innerOffset = cache[i] = max(cache[i],j);
-					}
-						
-					if(p.compareTo(currentUpper) >= 0) {
-						cache[i+1] = min(cache[i+1],j);
-						break;
-					}
-						
-				}
-				
-				currentLower = new Key(new Prefix(currentLower.add(increment), lsb));
-				currentUpper = currentLower.distance(trailingBits);
-			}
-			
-			// System.out.println(IntStream.of(cache).mapToObj(Integer::toString).collect(Collectors.joining(", ")));
-			
-			return cache;
+		final Object root;
+		// lazily flattened leaves for bulk access. volatile so that readers on other threads see the filled array, not
+		// just the reference. concurrent initialization may flatten twice, both results are equal
+		private volatile RoutingTableEntry[] entries;
+		
+		private RoutingTable(Object root) {
+			this.root = root;
+		}
+		
+		public RoutingTable() {
+			this(new RoutingTableEntry(new Prefix(), new KBucket(), (x) -> true));
 		}
 		
 		public int indexForId(Key id) {
-			int mask = indexCache.length/2 - 1;
-			int bits = Integer.bitCount(mask);
-			
-			int cacheIdx = id.getInt(0);
+			Object node = root;
+			int idx = 0;
+			for(int bit = 0;node instanceof Branch;bit++) {
+				Branch b = (Branch) node;
+				if(id.isBitSet(bit)) {
+					idx += count(b.low);
+					node = b.high;
+				} else {
+					node = b.low;
+				}
+			}
 			
-			cacheIdx = Integer.rotateLeft(cacheIdx, bits);
-			cacheIdx = cacheIdx & mask;
-			cacheIdx <<= 1;
+			assert(((RoutingTableEntry) node).prefix.isPrefixOf(id));
 			
-	        int lowerBound = indexCache[cacheIdx];
-	        int upperBound = indexCache[cacheIdx+1];
-	        
-	        Prefix pivot = null;
-
-	        while(true) {
-	            int pivotIdx = (lowerBound + upperBound) >>> 1;
-	            pivot = entries[pivotIdx].prefix;
-	            
-	            if(pivotIdx == lowerBound)
-	            	break;
-
-	            if (pivot.compareTo(id) <= 0)
-	           		lowerBound = pivotIdx;
-	           	else
-	           		upperBound = pivotIdx;
-	        }
-	        
-	        assert(pivot != null && pivot.isPrefixOf(id));
-	        
-           	return lowerBound;
+			return idx;
 		}
 
 		
 		public RoutingTableEntry entryForId(Key id) {
-			return entries[indexForId(id)];
+			Object node = root;
+			for(int bit = 0;node instanceof Branch;bit++)
+				node = id.isBitSet(bit) ? ((Branch) node).high : ((Branch) node).low;
+			return (RoutingTableEntry) node;
 		}
 		
 		public int size() {
-			return entries.length;
+			return count(root);
 		}
 		
 		public RoutingTableEntry get(int idx) {
-			return entries[idx];
+			RoutingTableEntry[] flat = entries;
+			if(flat != null)
+				return flat[idx];
+			if(idx < 0 || idx >= size())
+				throw new IndexOutOfBoundsException("index: " + idx + " size: " + size());
+			Object node = root;
+			while(node instanceof Branch) {
+				Branch b = (Branch) node;
+				int lowCount = count(b.low);
+				if(idx < lowCount) {
+					node = b.low;
+				} else {
+					idx -= lowCount;
+					node = b.high;
+				}
+			}
+			return (RoutingTableEntry) node;
+		}
+		
+		private RoutingTableEntry[] entries() {
+			RoutingTableEntry[] flat = entries;
+			if(flat == null) {
+				flat = new RoutingTableEntry[size()];
+				flatten(root, flat, 0);
+				entries = flat;
+			}
+			return flat;
+		}
+		
+		private static int flatten(Object node, RoutingTableEntry[] target, int offset) {
+			if(node instanceof Branch) {
+				offset = flatten(((Branch) node).low, target, offset);
+				return flatten(((Branch) node).high, target, offset);
+			}
+			target[offset] = (RoutingTableEntry) node;
+			return offset + 1;
 		}
 		
 		public List<RoutingTableEntry> list() {
-			return Collections.unmodifiableList(Arrays.asList(entries));
+			return Collections.unmodifiableList(Arrays.asList(entries()));
 		}
 		
 		public Stream<RoutingTableEntry> stream() {
-			return Arrays.stream(entries);
+			return Arrays.stream(entries());
 		}
 		
+		/**
+		 * replaces the leaf or subtree covering exactly the given prefix
+		 */
+		private RoutingTable replace(Prefix prefix, Object replacement) {
+			return new RoutingTable(replace(root, prefix, 0, replacement));
+		}
+		
+		private static Object replace(Object node, Prefix prefix, int bit, Object replacement) {
+			if(bit > prefix.getDepth())
+				return replacement;
+			if(!(node instanceof Branch))
+				throw new IllegalArgumentException("no node for prefix " + prefix + " in routing table");
+			Branch b = (Branch) node;
+			if(prefix.isBitSet(bit))
+				return new Branch(b.low, replace(b.high, prefix, bit + 1, replacement));
+			return new Branch(replace(b.low, prefix, bit + 1, replacement), b.high);
+		}
+		
+		/**
+		 * @param low entry covering the lower half of the split entry's prefix
+		 * @param high entry covering the upper half
+		 */
+		public RoutingTable split(RoutingTableEntry entry, RoutingTableEntry low, RoutingTableEntry high) {
+			return replace(entry.prefix, new Branch(low, high));
+		}
+		
+		/**
+		 * replaces two sibling entries with an entry for their parent prefix
+		 */
+		public RoutingTable merge(RoutingTableEntry parent) {
+			return replace(parent.prefix, parent);
+		}
+		
+		/**
+		 * replaces the entry with the same prefix
+		 */
+		public RoutingTable replace(RoutingTableEntry updated) {
+			return replace(updated.prefix, updated);
+		}
+		
+		/**
+		 * Rebuilds the whole trie. Prefer {@link #split}, {@link #merge} and {@link #replace} for single changes.
+		 * 
+		 * @throws IllegalArgumentException if the resulting entries do not cover the keyspace without overlaps
+		 */
 		public RoutingTable modify(Collection<RoutingTableEntry> toRemove, Collection<RoutingTableEntry> toAdd) {
-			List<RoutingTableEntry> temp = new ArrayList<>(Arrays.asList(entries));
+			List<RoutingTableEntry> temp = new ArrayList<>(Arrays.asList(entries()));
 			if(toRemove != null)
 				temp.removeAll(toRemove);
 			if(toAdd != null)
 				temp.addAll(toAdd);
-			return new RoutingTable(temp.stream().sorted().toArray(RoutingTableEntry[]::new));
+			RoutingTableEntry[] sorted = temp.stream().sorted().toArray(RoutingTableEntry[]::new);
+			return new RoutingTable(build(sorted, 0, sorted.length, 0));
+		}
+		
+		private static Object build(RoutingTableEntry[] sorted, int from, int to, int bit) {
+			if(to - from == 1 && sorted[from].prefix.getDepth() == bit - 1)
+				return sorted[from];
+			if(to - from < 2 || bit >= Key.KEY_BITS)
+				throw new IllegalArgumentException("routing table entries don't partition the keyspace");
+			int mid = from;
+			while(mid < to && !sorted[mid].prefix.isBitSet(bit))
+				mid++;
+			return new Branch(build(sorted, from, mid, bit + 1), build(sorted, mid, to, bit + 1));
 		}
 		
 	}
@@ -523,7 +574,7 @@ public class Node {
 			RoutingTableEntry a = new RoutingTableEntry(entry.prefix.splitPrefixBranch(false), new KBucket(), this::isLocalBucket);
 			RoutingTableEntry b = new RoutingTableEntry(entry.prefix.splitPrefixBranch(true), new KBucket(), this::isLocalBucket);
 			
-			RoutingTable newTable = current.modify(Arrays.asList(entry), Arrays.asList(a, b));
+			RoutingTable newTable = current.split(entry, a, b);
 			
 			routingTableCOW = newTable;
 			
@@ -668,7 +719,7 @@ public class Node {
 		
 		int newEntryCount = 0;
 		
-		for (RoutingTableEntry e : routingTableCOW.entries) {
+		for (RoutingTableEntry e : routingTableCOW.list()) {
 			KBucket b = e.bucket;
 			boolean isHome = e.homeBucket;
 
@@ -779,7 +830,7 @@ public class Node {
 						KBucket toLift = effectiveSize1 == 0 ? e2.getBucket() : e1.getBucket();
 
 						RoutingTable table = routingTableCOW;
-						routingTableCOW = table.modify(Arrays.asList(e1, e2), Arrays.asList(new RoutingTableEntry(e2.prefix.getParentPrefix(), toLift, this::isLocalBucket)));
+						routingTableCOW = table.merge(new RoutingTableEntry(e2.prefix.getParentPrefix(), toLift, this::isLocalBucket));
 						i -= 2;
 						continue;
 					}
@@ -789,7 +840,7 @@ public class Node {
 					if (effectiveSize1 + effectiveSize2 <= DHTConstants.MAX_ENTRIES_PER_BUCKET) {
 
 						RoutingTable table = routingTableCOW;
-						routingTableCOW = table.modify(Arrays.asList(e1, e2), Arrays.asList(new RoutingTableEntry(e1.prefix.getParentPrefix(), new KBucket(), this::isLocalBucket)));
+						routingTableCOW = table.merge(new RoutingTableEntry(e1.prefix.getParentPrefix(), new KBucket(), this::isLocalBucket));
 						
 						// no splitting to avoid fibrillation between merge and split operations
 
@@ -833,7 +884,9 @@ public class Node {
 					continue;
 				if(changed.isEmpty())
 					break;
-				routingTableCOW = t.modify(changed, changed.stream().map(e -> new RoutingTableEntry(e.prefix, e.bucket, this::isLocalBucket)).collect(Collectors.toList()));
+				for(RoutingTableEntry e : changed)
+					t = t.replace(new RoutingTableEntry(e.prefix, e.bucket, this::isLocalBucket));
+				routingTableCOW = t;
 				break;
 			}
 		}
@@ -880,12 +933,12 @@ public class Node {
 	}
 
 	/**
-	 * Saves the routing table to a file
+	 * Writes the routing table and replacement buckets to a {@link SnapshotFile}
 	 *
-	 * @param file to save to
+	 * @param saveTo file to save to
 	 * @throws IOException
 	 */
-	void saveTable(Path saveTo) throws IOException {
+	void saveSnapshot(Path saveTo) throws IOException {
 		// don't persist in test mode
 		if(!Files.isDirectory(saveTo.getParent()))
 			return;
@@ -896,36 +949,25 @@ public class Node {
 		if(currentRootID == null)
 			return;
 		
-		ByteBuffer tableBuffer = AnonAllocator.allocate(50*1024*1024);
-		
-		
-		Map<String,Object> tableMap = new TreeMap<>();
-
 		RoutingTable table = routingTableCOW;
-		
-		Stream<Map<String, Object>> main = table.stream().map(RoutingTableEntry::getBucket).flatMap(b -> b.entriesStream().map(KBucketEntry::toBencoded));
-		Stream<Map<String, Object>> replacements = table.stream().map(RoutingTableEntry::getBucket).flatMap(b -> b.replacementsStream().map(KBucketEntry::toBencoded));
-		
-		tableMap.put("mainEntries", main);
-		tableMap.put("replacements", replacements);
-		
-		ByteBuffer doubleBuf = ByteBuffer.wrap(new byte[8]);
-		doubleBuf.putDouble(0, dht.getEstimator().getRawDistanceEstimate());
-		tableMap.put("log2estimate", doubleBuf);
-		
-		tableMap.put("timestamp", System.currentTimeMillis());
-		tableMap.put("oldKey", currentRootID.getHash());
-		
-		new BEncoder().encodeInto(tableMap, tableBuffer);
-		
-		Path tempFile = Files.createTempFile(saveTo.getParent(), "saveTable", "tmp");
-		
-		try(SeekableByteChannel chan = Files.newByteChannel(tempFile, StandardOpenOption.WRITE)) {
-			chan.write(tableBuffer);
-			chan.close();
-			Files.move(tempFile, saveTo, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
-		};
-
+		int addressLength = dht.getType().ADDRESS_ENTRY_LENGTH - 2;
+		
+		try(SnapshotFile.Writer writer = new SnapshotFile.Writer(saveTo, SnapshotFile.Section.ROUTING_TABLE, addressLength, KBucketEntry.snapshotRecordLength(addressLength))) {
+			ByteBuffer extra = ByteBuffer.allocate(SnapshotFile.EXTRA_HEADER_LENGTH);
+			currentRootID.toBuffer(extra);
+			extra.putDouble(dht.getEstimator().getRawDistanceEstimate());
+			extra.flip();
+			writer.extraHeader(extra);
+			
+			for(RoutingTableEntry e : table.list()) {
+				for(KBucketEntry be : e.getBucket().getEntries())
+					be.toSnapshot(writer.next(), false);
+				for(KBucketEntry be : e.getBucket().getReplacementEntries())
+					be.toSnapshot(writer.next(), true);
+			}
+			
+			writer.commit();
+		}
 	}
 	
 	void initKey(DHTConfiguration config)
@@ -978,7 +1020,43 @@ public class Node {
 	}
 
 	/**
-	 * Loads the routing table from a file
+	 * Loads the routing table from a {@link SnapshotFile}
+	 *
+	 * @return false if there was no usable snapshot
+	 */
+	boolean loadSnapshot(Path snapshotPath) {
+		int addressLength = dht.getType().ADDRESS_ENTRY_LENGTH - 2;
+		
+		Optional<SnapshotFile.Contents> snapshot = SnapshotFile.read(snapshotPath, SnapshotFile.Section.ROUTING_TABLE, addressLength, KBucketEntry.snapshotRecordLength(addressLength));
+		
+		if(!snapshot.isPresent())
+			return false;
+		
+		SnapshotFile.Contents contents = snapshot.get();
+		
+		List<KBucketEntry> main = new ArrayList<>();
+		List<KBucketEntry> replacements = new ArrayList<>();
+		
+		for(int i=0;i<contents.count;i++) {
+			ByteBuffer record = contents.record(i);
+			try {
+				(KBucketEntry.isSnapshotReplacement(record) ? replacements : main).add(KBucketEntry.fromSnapshot(record));
+			} catch (IllegalArgumentException e) {
+				DHT.log(e, LogLevel.Debug);
+			}
+		}
+		
+		byte[] rawKey = new byte[Key.SHA1_HASH_LENGTH];
+		contents.extraHeader.get(rawKey);
+		
+		restoreEntries(new Key(rawKey), main.stream(), replacements.stream(), contents.timestamp);
+		dht.getEstimator().setInitialRawDistanceEstimate(contents.extraHeader.getDouble());
+		
+		return true;
+	}
+
+	/**
+	 * Loads the routing table from a file in the legacy bencoded format
 	 *
 	 * @param file
 	 * @param runWhenLoaded is executed when all load operations are finished
@@ -999,52 +1077,49 @@ public class Node {
 			buf.flip();
 			
 			Map<String, Object> table = ThreadLocalUtils.getDecoder().decode(buf);
-			
-			AtomicInteger counter = new AtomicInteger();
 
 			Key oldKey = typedGet(table, "oldKey", byte[].class).filter(b -> b.length == Key.SHA1_HASH_LENGTH).map(Key::new).orElse(null);
 			
-			boolean reuseKey = getRootID().equals(oldKey);
-			Comparator<KBucketEntry> comp = new KBucketEntry.DistanceOrder(getRootID());
-			
-			typedGet(table, "mainEntries", List.class).ifPresent(l -> {
-				Stream<KBucketEntry> st = l.stream().filter(Map.class::isInstance).map(m -> KBucketEntry.fromBencoded((Map<String, Object>) m));
-				if(!reuseKey) // sort so we insert in new home bucket first to minimize reshuffling
-					st = st.sorted(comp);
-				st.forEachOrdered(be -> {
-					insertEntry(be, reuseKey ? EnumSet.of(ALWAYS_SPLIT_IF_FULL, FORCE_INTO_MAIN_BUCKET) : EnumSet.noneOf(InsertOptions.class));
-					counter.incrementAndGet();
-				});
-			});
-			
-			typedGet(table, "replacements", List.class).ifPresent(l -> {
-				Stream<KBucketEntry> st = l.stream().filter(Map.class::isInstance).map(m -> KBucketEntry.fromBencoded((Map<String, Object>) m));
-				st.filter(e -> dht.getType().canUseSocketAddress(e.getAddress())).forEach(be -> {
-					routingTableCOW.entryForId(be.getID()).bucket.insertInReplacementBucket(be);
-					counter.incrementAndGet();
-				});
-			});
+			Stream<KBucketEntry> main = typedGet(table, "mainEntries", List.class).map(l -> ((List<Object>) l).stream().filter(Map.class::isInstance).map(m -> KBucketEntry.fromBencoded((Map<String, Object>) m))).orElse(Stream.empty());
+			Stream<KBucketEntry> replacements = typedGet(table, "replacements", List.class).map(l -> ((List<Object>) l).stream().filter(Map.class::isInstance).map(m -> KBucketEntry.fromBencoded((Map<String, Object>) m))).orElse(Stream.empty());
 			
 			typedGet(table, "log2estimate", byte[].class).filter(b -> b.length == 8).ifPresent(b -> {
 				ByteBuffer doubleBuf = ByteBuffer.wrap(b);
 				dht.getEstimator().setInitialRawDistanceEstimate(doubleBuf.getDouble());
 			});
-			
-
-			long timeStamp = typedGet(table, "timestamp", Long.class).orElse(-1L);
 
-			
-			DHT.logInfo("Loaded " + counter.get() + " entries from cache. Cache was "
-					+ ((System.currentTimeMillis() - timeStamp) / (60 * 1000))
-					+ "min old. Reusing old id = " + reuseKey);
-
-			
-			rebuildAddressCache();
+			restoreEntries(oldKey, main, replacements, typedGet(table, "timestamp", Long.class).orElse(-1L));
 		} catch (IOException e) {
 			DHT.log(e, LogLevel.Error);
 		};
 		
 	}
+	
+	private void restoreEntries(Key oldKey, Stream<KBucketEntry> main, Stream<KBucketEntry> replacements, long timeStamp) {
+		AtomicInteger counter = new AtomicInteger();
+		
+		boolean reuseKey = getRootID().equals(oldKey);
+		Comparator<KBucketEntry> comp = new KBucketEntry.DistanceOrder(getRootID());
+		
+		if(!reuseKey) // sort so we insert in new home bucket first to minimize reshuffling
+			main = main.sorted(comp);
+		main.forEachOrdered(be -> {
+			insertEntry(be, reuseKey ? EnumSet.of(ALWAYS_SPLIT_IF_FULL, FORCE_INTO_MAIN_BUCKET) : EnumSet.noneOf(InsertOptions.class));
+			counter.incrementAndGet();
+		});
+		
+		replacements.filter(e -> dht.getType().canUseSocketAddress(e.getAddress())).forEach(be -> {
+			routingTableCOW.entryForId(be.getID()).bucket.insertInReplacementBucket(be);
+			counter.incrementAndGet();
+		});
+		
+		DHT.logInfo("Loaded " + counter.get() + " entries from cache. Cache was "
+				+ ((System.currentTimeMillis() - timeStamp) / (60 * 1000))
+				+ "min old. Reusing old id = " + reuseKey);
+
+		
+		rebuildAddressCache();
+	}
 
 	/**
 	 * Get the number of entries in the routing table
@@ -1095,7 +1170,7 @@ public class Node {
 		b.append(" / entries: ");
 		b.append(String.valueOf(num_entries));
 		b.append('\n');
-		for(RoutingTableEntry e : table.entries) {
+		for(RoutingTableEntry e : table.list()) {
 			b.append(e.prefix.toString());
 			b.append("   num:");
 			b.append(String.valueOf(e.bucket.getNumEntries()));
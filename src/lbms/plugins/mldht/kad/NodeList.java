@@ -40,7 +40,7 @@ public interface NodeList {
 					
 					InetSocketAddress sockAddr = e.getAddress();
 					InetAddress addr = sockAddr.getAddress();
-					buf.put(e.getID().hash);
+					e.getID().toBuffer(buf);
 					buf.put(addr.getAddress());
 					buf.putShort((short) sockAddr.getPort());
 				});
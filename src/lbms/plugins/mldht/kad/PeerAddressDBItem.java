@@ -30,9 +30,19 @@ public class PeerAddressDBItem extends DBItem {
 	
 	public PeerAddressDBItem(byte[] data, boolean isSeed) {
 		super(data);
+		checkLength(data);
+		seed = isSeed;
+	}
+	
+	PeerAddressDBItem(byte[] data, boolean isSeed, long createdAt) {
+		super(data, createdAt);
+		checkLength(data);
+		seed = isSeed;
+	}
+	
+	private static void checkLength(byte[] data) {
 		if(data.length != DHTtype.IPV4_DHT.ADDRESS_ENTRY_LENGTH && data.length != DHTtype.IPV6_DHT.ADDRESS_ENTRY_LENGTH)
 			throw new IllegalArgumentException("byte array length does not match ipv4 or ipv6 raw InetAddress+Port length");
-		seed = isSeed;
 	}
 	
 	public void setVersion(byte[] ary) {
@@ -5,8 +5,6 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad;
 
-import static the8472.utils.Arrays.mismatch;
-
 import java.util.Collection;
 import java.util.Collections;
 
@@ -54,10 +52,7 @@ public class Prefix extends Key {
 	public Prefix splitPrefixBranch(boolean highBranch) {
 		Prefix branch = new Prefix(this);
 		int branchDepth = ++branch.depth;
-		if(highBranch)
-			branch.hash[branchDepth / 8] |=  0x80 >> (branchDepth % 8);
-		else
-			branch.hash[branchDepth / 8] &= ~(0x80 >> (branchDepth % 8));
+		branch.assignBit(branchDepth, highBranch);
 		
 				
 		return branch;
@@ -78,7 +73,7 @@ public class Prefix extends Key {
 		Prefix parent = new Prefix(this);
 		int oldDepth = parent.depth--;
 		// set last bit to zero
-		parent.hash[oldDepth / 8] &= ~(0x80 >> (oldDepth % 8));
+		parent.assignBit(oldDepth, false);
 		return parent;
 	}
 	
@@ -103,18 +98,8 @@ public class Prefix extends Key {
 		if(n < 0)
 			return true;
 		
-		byte[] h1 = k1.hash;
-		byte[] h2 = k2.hash;
-		
-		int lastToCheck = n >>> 3;
-		
-		int mmi = mismatch(h1, h2);
-		
-		int diff = (h1[lastToCheck] ^ h2[lastToCheck]) & 0xff;
-		
-		boolean lastByteDiff = (diff & (0xff80 >>> (n & 0x07))) == 0;
-		
-		return mmi == lastToCheck ? lastByteDiff : Integer.compareUnsigned(mmi, lastToCheck) > 0;
+		// unsigned, -1 = no mismatch
+		return Integer.compareUnsigned(k1.mismatchBit(k2), n) > 0;
 	}
 	
 	private static void copyBits(Key source, Key destination, int depth)
@@ -122,19 +107,7 @@ public class Prefix extends Key {
 		if(depth < 0)
 			return;
 		
-		byte[] data = destination.hash;
-		
-		// copy over all complete bytes
-		for (int i = 0; i < depth / 8; i++)
-			data[i] = source.hash[i];
-		
-		int idx = depth / 8;
-		int mask = 0xFF80 >> depth % 8;
-		
-		// mask out the part we have to copy over from the last prefix byte
-		data[idx] &= ~mask;
-		// copy the bits from the last byte
-		data[idx] |= source.hash[idx] & mask;
+		destination.copyLeadingBits(source, depth);
 	}
 	
 	public int getDepth() {
@@ -147,7 +120,7 @@ public class Prefix extends Key {
 			return "all";
 		StringBuilder builder = new StringBuilder(depth+3);
 		for(int i=0;i<=depth;i++)
-			builder.append((hash[i/8] & (0x80 >> (i % 8))) != 0 ? '1' : '0');
+			builder.append(isBitSet(i) ? '1' : '0');
 		builder.append("...");
 		return builder.toString();
 			
@@ -189,42 +162,15 @@ public class Prefix extends Key {
 		Key first = Collections.min(keys);
 		Key last = Collections.max(keys);
 
-		Prefix prefix = new Prefix();
-		byte[] newHash = prefix.hash;
-
-		outer: for(int i=0;i<SHA1_HASH_LENGTH;i++)
-		{
-			if(first.hash[i] == last.hash[i])
-			{
-				newHash[i] = first.hash[i];
-				prefix.depth += 8;
-				continue;
-			}
-			// first differing byte
-			newHash[i] = (byte)(first.hash[i] & last.hash[i]);
-			for(int j=0;j<8;j++)
-			{
-				int mask = 0x80 >> j;
-				// find leftmost differing bit and then zero out all following bits
-				if(((first.hash[i] ^ last.hash[i]) & mask) != 0)
-				{
-					newHash[i] = (byte)(newHash[i] & ~(0xFF >> j));
-					break outer;
-				}
-				
-				prefix.depth++;
-			}
-		}
-		return prefix;
+		// all bits before the first mismatch are shared by every key between first and last
+		int mismatch = first.mismatchBit(last);
+		return new Prefix(first, mismatch == -1 ? KEY_BITS - 1 : mismatch - 1);
 	}
 	
 	public static void main(String[] args) {
-		Prefix p = new Prefix();
-		p.hash[0] = (byte) 0x30;
-		p.depth = 3;
+		Prefix p = new Prefix(new Key("3000000000000000000000000000000000000000"), 3);
 		
-		Key k = new Key();
-		k.hash[0] = (byte) 0x37;
+		Key k = new Key("3700000000000000000000000000000000000000");
 		
 		System.out.println(p);
 		System.out.println(p.isPrefixOf(k));
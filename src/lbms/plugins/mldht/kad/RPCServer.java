@@ -8,9 +8,11 @@ package lbms.plugins.mldht.kad;
 import static the8472.bencode.Utils.prettyPrint;
 import static the8472.utils.Functional.typedGet;
 
+import the8472.bencode.BDecoder;
 import the8472.bencode.Tokenizer.BDecodingException;
 import the8472.bencode.Utils;
 import the8472.utils.concurrent.SerializedTaskExecutor;
+import the8472.utils.io.ByteBufferPool;
 
 import lbms.plugins.mldht.kad.DHT.DHTtype;
 import lbms.plugins.mldht.kad.DHT.LogLevel;
@@ -24,6 +26,7 @@ import lbms.plugins.mldht.kad.messages.MessageDecoder;
 import lbms.plugins.mldht.kad.messages.MessageException;
 import lbms.plugins.mldht.kad.messages.PingRequest;
 import lbms.plugins.mldht.kad.messages.PingResponse;
+import lbms.plugins.mldht.kad.messages.StreamingMessageDecoder;
 import lbms.plugins.mldht.kad.utils.AddressUtils;
 import lbms.plugins.mldht.kad.utils.ByteWrapper;
 import lbms.plugins.mldht.kad.utils.ResponseTimeoutFilter;
@@ -44,6 +47,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Formatter;
 import java.util.LinkedHashMap;
@@ -55,10 +59,13 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -91,9 +98,12 @@ public class RPCServer {
 	private RPCStats								stats;
 	// keeps track of RTT histogram for nodes not in our routing table
 	private ResponseTimeoutFilter					timeoutFilter;
+	private final CallTimeoutWheel					timeoutWheel = new CallTimeoutWheel();
+	private final CongestionWindow					congestion = new CongestionWindow();
+	private ScheduledFuture<?>						wheelTicker;
 	private Key										derivedId;
 	private InetSocketAddress						consensusExternalAddress;
-	private SpamThrottle 							throttle = new SpamThrottle();
+	private SpamThrottle 							throttle;
 	private SpamThrottle 							requestThrottle;
 	private ExponentialWeightendMovingAverage		unverifiedLossrate = new ExponentialWeightendMovingAverage().setWeight(0.01).setValue(0.5);
 	private ExponentialWeightendMovingAverage		verifiedEntryLossrate = new ExponentialWeightendMovingAverage().setWeight(0.01).setValue(0.5);
@@ -125,6 +135,7 @@ public class RPCServer {
 		this.stats = stats;
 		this.addr = addr;
 		this.manager = manager;
+		throttle = SpamThrottle.create(dh_table.getConfig());
 		// reserve an ID
 		derivedId = dh_table.getNode().registerId();
 		sel = new SocketHandler();
@@ -183,6 +194,7 @@ public class RPCServer {
 		startTime = Instant.now();
 		state = State.RUNNING;
 		DHT.logInfo("Starting RPC Server " + addr + " " + derivedId.toString(false));
+		wheelTicker = dh_table.getScheduler().scheduleAtFixedRate(timeoutWheel::tick, CallTimeoutWheel.TICK_MILLIS, CallTimeoutWheel.TICK_MILLIS, TimeUnit.MILLISECONDS);
 		sel.start();
 		
 	}
@@ -209,6 +221,8 @@ public class RPCServer {
 			r.cancel();
 		});
 		pipeline.clear();
+		if(wheelTicker != null)
+			wheelTicker.cancel(false);
 		DHT.logInfo("Stopped RPC Server " + addr + " " + derivedId.toString(false));
 	}
 	
@@ -236,7 +250,7 @@ public class RPCServer {
 	
 	private void drainQueue() {
 		
-		int capacity = DHTConstants.MAX_ACTIVE_CALLS  - calls.size();
+		int capacity = congestion.getWindow() - calls.size();
 		
 		requestThrottle.decay();
 		
@@ -294,6 +308,7 @@ public class RPCServer {
 				verifiedEntryLossrate.updateAverage(1.0);
 			else
 				unverifiedLossrate.updateAverage(1.0);
+			congestion.onTimeout(unverifiedLossrate.getAverage(), verifiedEntryLossrate.getAverage(), timeoutFilter.getStallTimeout(), System.currentTimeMillis());
 			calls.remove(w, c);
 			dh_table.timeout(c);
 			drainTrigger.run();
@@ -301,10 +316,14 @@ public class RPCServer {
 		
 		public void onStall(RPCCall c) {}
 		public void onResponse(RPCCall c, MessageBase rsp) {
+			stats.addRTT(c.getMessageMethod(), c.getRTT());
 			if(c.knownReachableAtCreationTime())
 				verifiedEntryLossrate.updateAverage(0.0);
 			else
 				unverifiedLossrate.updateAverage(0.0);
+			// the low quantile is only meaningful once the filter has seen a full set of samples
+			long lowRtt = timeoutFilter.getSampleCount() >= ResponseTimeoutFilter.NUM_SAMPLES ? timeoutFilter.getBaseline() : -1;
+			congestion.onResponse(lowRtt, timeoutFilter.getStallTimeout(), System.currentTimeMillis());
 		}
 	};
 	
@@ -372,22 +391,18 @@ public class RPCServer {
 		return isReachable;
 	}
 	
-	private void handlePacket (ByteBuffer p, SocketAddress soa) {
-		InetSocketAddress source = (InetSocketAddress) soa;
-		int rawLength = p.remaining();
-		
-		// ignore port 0, can't respond to them anyway and responses to requests from port 0 will be useless too
-		if(source.getPort() == 0)
-			return;
-
-
-
-		
+	/**
+	 * full decode through the generic bencode map, also handles the error replies for malformed messages
+	 * 
+	 * @return the decoded message or null if it was rejected
+	 */
+	private MessageBase decodeViaMap(ByteBuffer p, InetSocketAddress source, int rawLength, Function<byte[], Optional<Method>> transactionIdMapper) {
 		Map<String, Object> bedata = null;
-		MessageBase msg = null;
+		
+		BDecoder decoder = ThreadLocalUtils.decoders().acquire();
 		
 		try {
-			bedata = ThreadLocalUtils.getDecoder().decode(p);
+			bedata = decoder.decode(p);
 			
 			try {
 				if (DHT.isLogLevelEnabled(LogLevel.Verbose)) {
@@ -402,22 +417,22 @@ public class RPCServer {
 			MessageBase err = new ErrorMessage(new byte[] {0,0,0,0}, ErrorCode.ProtocolError.code,"invalid bencoding: "+e.getMessage());
 			err.setDestination(source);
 			sendMessage(err);
-			return;
+			return null;
 		} catch(Exception e) {
 			DHT.log(e, LogLevel.Error);
 			p.rewind();
 			DHT.logError("unexpected error while bdecoding message  " + Utils.stripToAscii(p) + " (length:"+p.remaining()+") from: " + source + " reason:" + e.getMessage());
-			return;
+			return null;
+		} finally {
+			ThreadLocalUtils.decoders().release(decoder);
 		}
 		
 		try {
-			MessageDecoder dec = new MessageDecoder((byte[] mtid) -> {
-				return Optional.ofNullable(findCall(mtid)).map(RPCCall::getMessageMethod);
-			}, dh_table.getType());
+			MessageDecoder dec = new MessageDecoder(transactionIdMapper, dh_table.getType());
 			
 			p.rewind();
 			dec.toDecode(p, bedata);
-			msg = dec.parseMessage();
+			return dec.parseMessage();
 		} catch(MessageException e)
 		{
 			byte[] mtid = typedGet(bedata, MessageBase.TRANSACTION_KEY, byte[].class).orElse(new byte[MTID_LENGTH]);
@@ -427,14 +442,58 @@ public class RPCServer {
 			err.setDestination(source);
 			err.setMethod(m);
 			sendMessage(err);
-			return;
+			return null;
 		} catch(IOException e) {
 			DHT.log(e, LogLevel.Error);
 		}
 		
-		if(msg == null)
+		return null;
+	}
+	
+	private void handlePacket (ByteBuffer p, SocketAddress soa) {
+		InetSocketAddress source = (InetSocketAddress) soa;
+		int rawLength = p.remaining();
+		
+		// ignore port 0, can't respond to them anyway and responses to requests from port 0 will be useless too
+		if(source.getPort() == 0)
 			return;
 		
+		MessageBase msg = null;
+		
+		// the fast path may already have looked up the transaction before bailing out, hand that result to the map decoder instead of a second lookup
+		Function<byte[], Optional<Method>> transactionIdMapper = new Function<byte[], Optional<Method>>() {
+			byte[] mtid;
+			Optional<Method> method;
+			
+			@Override
+			public Optional<Method> apply(byte[] mtid) {
+				if(method == null || !Arrays.equals(this.mtid, mtid)) {
+					this.mtid = mtid;
+					method = Optional.ofNullable(findCall(mtid)).map(RPCCall::getMessageMethod);
+				}
+				return method;
+			}
+		};
+		
+		// fast path for the common message types, verbose logging needs the decoded map
+		if(!DHT.isLogLevelEnabled(LogLevel.Verbose)) {
+			StreamingMessageDecoder decoder = ThreadLocalUtils.streamingDecoders().acquire();
+			try {
+				msg = decoder.decode(p, transactionIdMapper, dh_table.getType());
+			} finally {
+				ThreadLocalUtils.streamingDecoders().release(decoder);
+			}
+			p.rewind();
+			if(msg != null)
+				stats.addStreamingDecode();
+		}
+		
+		if(msg == null) {
+			msg = decodeViaMap(p, source, rawLength, transactionIdMapper);
+			if(msg == null)
+				return;
+		}
+		
 		if(DHT.isLogLevelEnabled(LogLevel.Debug))
 			DHT.logDebug("RPC received message from "+source.getAddress().getHostAddress() + ":" + source.getPort() +" | "+msg.toString()+ " length: "+rawLength );
 		stats.addReceivedMessageToCount(msg);
@@ -597,6 +656,46 @@ public class RPCServer {
 	public ResponseTimeoutFilter getTimeoutFilter() {
 		return timeoutFilter;
 	}
+	
+	/**
+	 * @return current limit of in-flight calls, between {@link CongestionWindow#MIN_WINDOW} and {@link DHTConstants#MAX_ACTIVE_CALLS}
+	 */
+	public int getCallWindow() {
+		return congestion.getWindow();
+	}
+	
+	public CongestionWindow.Limit getCallWindowLimit() {
+		return congestion.getLimit();
+	}
+	
+	/**
+	 * @return number of messages waiting to be encoded and written to the socket
+	 */
+	public int getPipelineDepth() {
+		return pipeline.size();
+	}
+	
+	/**
+	 * @return number of calls waiting for a free slot before they can be dispatched
+	 */
+	public int getCallQueueDepth() {
+		return call_queue.size();
+	}
+	
+	CallTimeoutWheel getTimeoutWheel() {
+		return timeoutWheel;
+	}
+	
+	/**
+	 * @return average delay in milliseconds between the stall/timeout deadline of a call and the time it was processed
+	 */
+	public double getAverageTimerLag() {
+		return timeoutWheel.getAverageLag();
+	}
+	
+	public long getMaxTimerLag() {
+		return timeoutWheel.getMaxLag();
+	}
 
 	/*
 	private void send (InetSocketAddress addr, byte[] msg) throws IOException {
@@ -629,6 +728,10 @@ public class RPCServer {
 		f.format("rx: %d tx: %d active: %d baseRTT: %d loss: %f  loss (verified): %f uptime: %s%n",
 				numReceived, numSent, getNumActiveRPCCalls(), timeoutFilter.getStallTimeout(), unverifiedLossrate.getAverage(), verifiedEntryLossrate.getAverage() , age());
 		f.format("RTT stats (%dsamples) %s", timeoutFilter.getSampleCount(), timeoutFilter.getCurrentStats());
+		f.format("%s%n", congestion);
+		f.format("timers: %d lag avg: %.1fms max: %dms%n", timeoutWheel.size(), timeoutWheel.getAverageLag(), timeoutWheel.getMaxLag());
+		f.format("receive pool: %s%n", receivePool);
+		f.format("I/O batch size: %d%n", sel.sendBatch != null ? sel.sendBatch.length : 0);
 
 		return f.toString();
 	}
@@ -640,8 +743,9 @@ public class RPCServer {
 		return Duration.between(start, Instant.now());
 	}
 	
-	static final ThreadLocal<ByteBuffer> writeBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(1500));
 	static final ThreadLocal<ByteBuffer> readBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(DHTConstants.RECEIVE_BUFFER_SIZE));
+	// shared between all servers, buffers are only held for the duration of handlePacket
+	static final ByteBufferPool receivePool = new ByteBufferPool(DHTConstants.RECEIVE_BUFFER_SIZE, DHTConstants.RECEIVE_BUFFER_POOL_SIZE);
 	
 	class SocketHandler implements Selectable {
 		DatagramChannel channel;
@@ -656,6 +760,15 @@ public class RPCServer {
 		private final AtomicInteger writeState = new AtomicInteger(NOT_INITIALIZED);
 		NIOConnectionManager connectionManager;
 		
+		// only accessed by the selector thread
+		ByteBuffer[] receiveBatchBuffers;
+		InetSocketAddress[] receiveBatchSources;
+		int receiveBatched;
+		
+		// only accessed by the thread currently holding the write claim
+		ByteBuffer[] sendRing;
+		EnqueuedSend[] sendBatch;
+		
 		public SocketHandler() {
 
 		}
@@ -665,6 +778,15 @@ public class RPCServer {
 				return;
 			}
 			
+			int batchSize = Math.max(1, dh_table.getConfig().getIOBatchSize());
+			
+			receiveBatchBuffers = new ByteBuffer[batchSize];
+			receiveBatchSources = new InetSocketAddress[batchSize];
+			sendRing = new ByteBuffer[batchSize];
+			sendBatch = new EnqueuedSend[batchSize];
+			for(int i=0;i<batchSize;i++)
+				sendRing[i] = ByteBuffer.allocateDirect(1500);
+			
 			try
 			{
 				timeoutFilter.reset();
@@ -708,35 +830,123 @@ public class RPCServer {
 			
 			throttle.decay();
 			
-			ByteBuffer readBuffer = RPCServer.readBuffer.get();
-			
 			DHTtype type = dh_table.getType();
 			
-			while(true)
-			{
-				readBuffer.clear();
-				InetSocketAddress soa =  (InetSocketAddress) channel.receive(readBuffer);
-				if(soa == null)
-					break;
-				
-				// * no conceivable DHT message is smaller than 10 bytes
-				// * all DHT messages start with a 'd' for dictionary
-				// * port 0 is reserved
-				// * address family may mismatch due to autoconversion from v4-mapped v6 addresses to Inet4Address
-				// -> immediately discard junk on the read loop, don't even allocate a buffer for it
-				if(readBuffer.position() < 10 || readBuffer.get(0) != 'd' || soa.getPort() == 0 || !type.canUseSocketAddress(soa))
-					continue;
-				if(throttle.addAndTest(soa.getAddress()))
-					continue;
-				
-				// copy from the read buffer since we hand off to another thread
-				readBuffer.flip();
-				ByteBuffer buf = ByteBuffer.allocate(readBuffer.limit()).put(readBuffer);
-				buf.flip();
+			// pooled buffer that has been received into but not handed off yet, gets reused for the next receive if the packet is discarded
+			ByteBuffer pending = null;
+			
+			try {
+				while(true)
+				{
+					ByteBuffer readBuffer = pending;
+					if(readBuffer == null)
+						readBuffer = pending = receivePool.acquire();
+					boolean pooled = readBuffer != null;
+					if(!pooled) {
+						// pool exhausted, workers are lagging behind. fall back to copying
+						readBuffer = RPCServer.readBuffer.get();
+					}
+					
+					readBuffer.clear();
+					InetSocketAddress soa =  (InetSocketAddress) channel.receive(readBuffer);
+					if(soa == null)
+						break;
+					
+					// * no conceivable DHT message is smaller than 10 bytes
+					// * all DHT messages start with a 'd' for dictionary
+					// * port 0 is reserved
+					// * address family may mismatch due to autoconversion from v4-mapped v6 addresses to Inet4Address
+					// -> immediately discard junk on the read loop, don't even allocate a buffer for it
+					if(readBuffer.position() < 10 || readBuffer.get(0) != 'd' || soa.getPort() == 0 || !type.canUseSocketAddress(soa))
+						continue;
+					if(throttle.addAndTest(soa.getAddress()))
+						continue;
+					
+					readBuffer.flip();
+					
+					ByteBuffer buf;
+					
+					if(pooled) {
+						// hand off the pooled buffer itself, it is returned to the pool once the packet has been processed
+						buf = readBuffer;
+						pending = null;
+					} else {
+						// copy from the read buffer since we hand off to another thread
+						buf = ByteBuffer.allocate(readBuffer.limit()).put(readBuffer);
+						buf.flip();
+						stats.addReceiveBufferPoolMiss();
+					}
+					
+					receiveBatchBuffers[receiveBatched] = buf;
+					receiveBatchSources[receiveBatched] = soa;
+					receiveBatched++;
+					
+					numReceived++;
+					stats.addReceivedBytes(buf.limit() + dh_table.getType().HEADER_LENGTH);
+					
+					if(receiveBatched == receiveBatchBuffers.length)
+						dispatchReceiveBatch();
+				}
+			} finally {
+				if(pending != null)
+					receivePool.release(pending);
+				if(receiveBatched > 0)
+					dispatchReceiveBatch();
+			}
+		}
+		
+		/**
+		 * hands the received packets to a worker thread in a single scheduler hop
+		 */
+		private void dispatchReceiveBatch() {
+			int count = receiveBatched;
+			
+			stats.addReceiveBatch(count);
+			
+			if(count == 1) {
+				ByteBuffer buf = receiveBatchBuffers[0];
+				InetSocketAddress soa = receiveBatchSources[0];
+				receiveBatchBuffers[0] = null;
+				receiveBatchSources[0] = null;
+				receiveBatched = 0;
 				
-				dh_table.getScheduler().execute(() -> {handlePacket(buf, soa);});
-				numReceived++;
-				stats.addReceivedBytes(buf.limit() + dh_table.getType().HEADER_LENGTH);
+				try {
+					dh_table.getWorkers().execute(() -> {
+						try {
+							handlePacket(buf, soa);
+						} finally {
+							receivePool.release(buf);
+						}
+					});
+				} catch(RejectedExecutionException e) {
+					// shutting down, the packet is dropped
+					receivePool.release(buf);
+				}
+				return;
+			}
+			
+			ByteBuffer[] bufs = Arrays.copyOf(receiveBatchBuffers, count);
+			InetSocketAddress[] sources = Arrays.copyOf(receiveBatchSources, count);
+			Arrays.fill(receiveBatchBuffers, 0, count, null);
+			Arrays.fill(receiveBatchSources, 0, count, null);
+			receiveBatched = 0;
+			
+			try {
+				dh_table.getWorkers().execute(() -> {
+					for(int i=0;i<bufs.length;i++) {
+						try {
+							handlePacket(bufs[i], sources[i]);
+						} catch(RuntimeException e) {
+							// don't let one bad packet take down the rest of the batch
+							DHT.log(e, LogLevel.Error);
+						} finally {
+							receivePool.release(bufs[i]);
+						}
+					}
+				});
+			} catch(RejectedExecutionException e) {
+				for(ByteBuffer buf : bufs)
+					receivePool.release(buf);
 			}
 		}
 		
@@ -750,71 +960,100 @@ public class RPCServer {
 			{
 				// we are now the exclusive writer for this socket
 				
-				while(true)
+				outer: while(true)
 				{
-					EnqueuedSend es = pipeline.poll();
-					if(es == null)
+					// encode a batch up-front, then flush it to the socket in one go
+					int batched = 0;
+					
+					while(batched < sendBatch.length) {
+						EnqueuedSend es = pipeline.poll();
+						if(es == null)
+							break;
+						try {
+							es.encodeTo(sendRing[batched]);
+						} catch (IOException e) {
+							DHT.log(new IOException(addr+" -> "+es.toSend.getDestination()+" while attempting to send "+es.toSend, e), LogLevel.Error);
+							if(es.associatedCall != null)
+							{ // need to notify listeners
+								es.associatedCall.sendFailed();
+							}
+							continue;
+						}
+						sendBatch[batched++] = es;
+					}
+					
+					if(batched == 0)
 						break;
-					try
+					
+					stats.addSendBatch(batched);
+					
+					for(int i=0;i<batched;i++)
 					{
-						
-						
-						ByteBuffer buf = writeBuffer.get();
-								
-						es.encodeTo(buf);
-						
-						int bytesSent = channel.send(buf, es.toSend.getDestination());
-						
-						if(bytesSent == 0)
+						EnqueuedSend es = sendBatch[i];
+						try
 						{
-							pipeline.add(es);
+							int bytesSent = channel.send(sendRing[i], es.toSend.getDestination());
+							
+							if(bytesSent == 0)
+							{
+								requeue(i, batched);
 
-							writeState.set(WRITE_STATE_AWAITING_NIO_NOTIFICATION);
-							// wakeup -> updates selections -> will wait for write OP
-							connectionManager.interestOpsChanged(this);
+								writeState.set(WRITE_STATE_AWAITING_NIO_NOTIFICATION);
+								// wakeup -> updates selections -> will wait for write OP
+								connectionManager.interestOpsChanged(this);
+								
+								return;
+							}
 							
-							return;
-						}
-						
-						if(DHT.isLogLevelEnabled(LogLevel.Verbose)) {
-							DHT.logVerbose("sent: " + prettyPrint(es.toSend.getBase())+ " to " + es.toSend.getDestination());
-						}
-						
-						if(es.associatedCall != null) {
-							es.associatedCall.sent(RPCServer.this);
-							// when we send requests to a node we don't want their replies to get stuck in the filter
-							throttle.remove(es.toSend.getDestination().getAddress());
-						}
+							if(DHT.isLogLevelEnabled(LogLevel.Verbose)) {
+								DHT.logVerbose("sent: " + prettyPrint(es.toSend.getBase())+ " to " + es.toSend.getDestination());
+							}
 							
-						
-						stats.addSentMessageToCount(es.toSend);
-						stats.addSentBytes(bytesSent + dh_table.getType().HEADER_LENGTH);
-						if(DHT.isLogLevelEnabled(LogLevel.Debug))
-							DHT.logDebug("RPC send message to " + es.toSend.getDestination() + " | "+ es.toSend.toString() + " | length: " +bytesSent);
-					} catch (IOException e)
-					{
-						// async close
-						if(!channel.isOpen())
-							return;
-						
-						// BSD variants may throw an exception (ENOBUFS) instead of just signaling 0 bytes sent when network queues are full -> back off just like we would in the 0 bytes case.
-						if(e.getMessage().equals("No buffer space available")) {
-							pipeline.add(es);
-							writeState.set(WRITE_STATE_AWAITING_NIO_NOTIFICATION);
-							connectionManager.interestOpsChanged(this);
+							if(es.associatedCall != null) {
+								es.associatedCall.sent(RPCServer.this);
+								// when we send requests to a node we don't want their replies to get stuck in the filter
+								throttle.remove(es.toSend.getDestination().getAddress());
+							}
+								
+							
+							stats.addSentMessageToCount(es.toSend);
+							stats.addSentBytes(bytesSent + dh_table.getType().HEADER_LENGTH);
+							if(DHT.isLogLevelEnabled(LogLevel.Debug))
+								DHT.logDebug("RPC send message to " + es.toSend.getDestination() + " | "+ es.toSend.toString() + " | length: " +bytesSent);
+						} catch (IOException e)
+						{
+							// async close
+							if(!channel.isOpen()) {
+								for(int j=i;j<batched;j++) {
+									if(sendBatch[j].associatedCall != null)
+										sendBatch[j].associatedCall.sendFailed();
+									sendBatch[j] = null;
+								}
+								return;
+							}
+							
+							// BSD variants may throw an exception (ENOBUFS) instead of just signaling 0 bytes sent when network queues are full -> back off just like we would in the 0 bytes case.
+							if(e.getMessage().equals("No buffer space available")) {
+								requeue(i, batched);
+								writeState.set(WRITE_STATE_AWAITING_NIO_NOTIFICATION);
+								connectionManager.interestOpsChanged(this);
 
-							return;
-						}
+								return;
+							}
 
-						DHT.log(new IOException(addr+" -> "+es.toSend.getDestination()+" while attempting to send "+es.toSend, e), LogLevel.Error);
-						if(es.associatedCall != null)
-						{ // need to notify listeners
-							es.associatedCall.sendFailed();
+							DHT.log(new IOException(addr+" -> "+es.toSend.getDestination()+" while attempting to send "+es.toSend, e), LogLevel.Error);
+							sendBatch[i] = null;
+							if(es.associatedCall != null)
+							{ // need to notify listeners
+								es.associatedCall.sendFailed();
+							}
+							requeue(i + 1, batched);
+							break outer;
 						}
-						break;
+						
+						sendBatch[i] = null;
+						numSent++;
 					}
-					
-					numSent++;
 				}
 				
 				// release claim on the socket
@@ -831,6 +1070,16 @@ public class RPCServer {
 	
 		}
 		
+		/**
+		 * puts the unsent remainder of the current batch back into the pipeline, they will be re-encoded on the next attempt
+		 */
+		private void requeue(int from, int to) {
+			for(int i=from;i<to;i++) {
+				pipeline.add(sendBatch[i]);
+				sendBatch[i] = null;
+			}
+		}
+		
 		@Override
 		public void registrationEvent(NIOConnectionManager manager, SelectionKey key) throws IOException {
 		}
@@ -40,7 +40,8 @@ public class RPCServerManager {
 	private ConcurrentHashMap<InetAddress,RPCServer> interfacesInUse = new ConcurrentHashMap<>();
 	private volatile List<InetAddress> validBindAddresses = Collections.emptyList();
 	private volatile RPCServer[] activeServers = new RPCServer[0];
-	private SpamThrottle outgoingThrottle = new SpamThrottle();
+	// only covers the nodes we contact ourselves, stays exact so that collisions never delay our own requests
+	private SpamThrottle outgoingThrottle = new MapSpamThrottle();
 	
 	public void updateReachableEndpoints(long now) {
 		if(destroyed)
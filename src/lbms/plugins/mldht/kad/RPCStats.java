@@ -6,35 +6,58 @@
 package lbms.plugins.mldht.kad;
 
 import java.util.Formatter;
+import java.util.concurrent.atomic.LongAdder;
 
 import lbms.plugins.mldht.kad.messages.MessageBase;
 import lbms.plugins.mldht.kad.messages.MessageBase.Method;
 import lbms.plugins.mldht.kad.messages.MessageBase.Type;
+import lbms.plugins.mldht.kad.utils.LatencyHistogram;
 
 /**
+ * Counters are updated from the selector thread and any number of worker threads, they are striped
+ * {@link LongAdder}s so increments are neither lost nor contended.
+ *
  * @author Damokles
  *
  */
 public class RPCStats {
 
-	private long	receivedBytes;
-	private long	sentBytes;
+	private final LongAdder	receivedBytes = new LongAdder();
+	private final LongAdder	sentBytes = new LongAdder();
 
-	private long	tmpReceivedBytes;
-	private long	tmpSentBytes;
-	private long	receivedBytesPerSec;
-	private long	sentBytesPerSec;
-	private long	tmpReceivedTimestamp;
-	private long	tmpSentTimestamp;
+	private final LongAdder	tmpReceivedBytes = new LongAdder();
+	private final LongAdder	tmpSentBytes = new LongAdder();
+	private volatile long	receivedBytesPerSec;
+	private volatile long	sentBytesPerSec;
+	private volatile long	tmpReceivedTimestamp;
+	private volatile long	tmpSentTimestamp;
 
-	private long[][]	sentMessages;
-	private long[][]	receivedMessages;
-	private long[]	timeoutMessages;
+	private final LongAdder[][]	sentMessages;
+	private final LongAdder[][]	receivedMessages;
+	private final LongAdder[]	timeoutMessages;
+	private final LatencyHistogram[] rtt;
+	
+	private final LongAdder	receiveBufferPoolMisses = new LongAdder();
+	private final LongAdder	streamingDecodes = new LongAdder();
+	
+	private final LongAdder	receiveBatches = new LongAdder();
+	private final LongAdder	receiveBatchedPackets = new LongAdder();
+	private final LongAdder	sendBatches = new LongAdder();
+	private final LongAdder	sendBatchedPackets = new LongAdder();
 
 	protected RPCStats () {
-		sentMessages = new long[Method.values().length][Type.values().length];
-		receivedMessages = new long[Method.values().length][Type.values().length];
-		timeoutMessages = new long[Method.values().length];
+		sentMessages = new LongAdder[Method.values().length][Type.values().length];
+		receivedMessages = new LongAdder[Method.values().length][Type.values().length];
+		timeoutMessages = new LongAdder[Method.values().length];
+		rtt = new LatencyHistogram[Method.values().length];
+		for(int i=0;i<Method.values().length;i++) {
+			for(int j=0;j<Type.values().length;j++) {
+				sentMessages[i][j] = new LongAdder();
+				receivedMessages[i][j] = new LongAdder();
+			}
+			timeoutMessages[i] = new LongAdder();
+			rtt[i] = new LatencyHistogram();
+		}
 	}
 	
 	@Override
@@ -48,19 +71,29 @@ public class RPCStats {
 		f.format("%18s %19s | %19s %19s %19s %n%n", "Method", "REQ", "RSP", "Error", "Timeout");
 		for(Method m : Method.values())
 		{
-			long sent = sentMessages[m.ordinal()][Type.REQ_MSG.ordinal()];
-			long received = receivedMessages[m.ordinal()][Type.RSP_MSG.ordinal()];
-			long error = receivedMessages[m.ordinal()][Type.ERR_MSG.ordinal()];
-			long timeouts = timeoutMessages[m.ordinal()];
+			long sent = getSentMessageCount(m, Type.REQ_MSG);
+			long received = getReceivedMessageCount(m, Type.RSP_MSG);
+			long error = getReceivedMessageCount(m, Type.ERR_MSG);
+			long timeouts = getTimeoutMessageCount(m);
 			f.format("%18s %19d | %19d %19d %19d %n", m, sent, received, error, timeouts);
 		}
+		f.format("%n%18s %s%n", "Method", "RTT (ms)");
+		for(Method m : Method.values())
+		{
+			LatencyHistogram h = rtt[m.ordinal()];
+			if(h.getCount() > 0)
+				f.format("%18s %s%n", m, h);
+		}
+		f.format("%nreceive buffer pool misses: %d%n", getReceiveBufferPoolMisses());
+		f.format("streaming decodes: %d%n", getStreamingDecodeCount());
+		f.format("I/O batches rx: %d (avg. %.1f packets) tx: %d (avg. %.1f packets)%n", getReceiveBatchCount(), getAverageReceiveBatchSize(), getSendBatchCount(), getAverageSendBatchSize());
 		f.format("%n### remote RPCs%n");
 		f.format("%18s %19s | %19s %19s %n%n", "Method","REQ", "RSP", "Errors");
 		for(Method m : Method.values())
 		{
-			long received = receivedMessages[m.ordinal()][Type.REQ_MSG.ordinal()];
-			long sent = sentMessages[m.ordinal()][Type.RSP_MSG.ordinal()];
-			long errors = sentMessages[m.ordinal()][Type.ERR_MSG.ordinal()];
+			long received = getReceivedMessageCount(m, Type.REQ_MSG);
+			long sent = getSentMessageCount(m, Type.RSP_MSG);
+			long errors = getSentMessageCount(m, Type.ERR_MSG);
 			f.format("%18s %19d | %19d %19d %n", m, received, sent, errors);
 		}
 		
@@ -71,14 +104,14 @@ public class RPCStats {
 	 * @return the receivedBytes
 	 */
 	public long getReceivedBytes () {
-		return receivedBytes;
+		return receivedBytes.sum();
 	}
 
 	/**
 	 * @return the sentBytes
 	 */
 	public long getSentBytes () {
-		return sentBytes;
+		return sentBytes.sum();
 	}
 
 	/**
@@ -88,8 +121,7 @@ public class RPCStats {
 		long now = System.currentTimeMillis();
 		long d = now - tmpReceivedTimestamp;
 		if (d > 950) {
-			receivedBytesPerSec = (int) (tmpReceivedBytes * 1000 / d);
-			tmpReceivedBytes = 0;
+			receivedBytesPerSec = tmpReceivedBytes.sumThenReset() * 1000 / d;
 			tmpReceivedTimestamp = now;
 		}
 		return receivedBytesPerSec;
@@ -102,8 +134,7 @@ public class RPCStats {
 		long now = System.currentTimeMillis();
 		long d = now - tmpSentTimestamp;
 		if (d > 950) {
-			sentBytesPerSec = (int) (tmpSentBytes * 1000 / d);
-			tmpSentBytes = 0;
+			sentBytesPerSec = tmpSentBytes.sumThenReset() * 1000 / d;
 			tmpSentTimestamp = now;
 		}
 		return sentBytesPerSec;
@@ -117,7 +148,7 @@ public class RPCStats {
 	 * @return count
 	 */
 	public long getSentMessageCount (Method m, Type t) {
-		return sentMessages[m.ordinal()][t.ordinal()];
+		return sentMessages[m.ordinal()][t.ordinal()].sum();
 	}
 
 	/**
@@ -128,7 +159,7 @@ public class RPCStats {
 	 * @return count
 	 */
 	public long getReceivedMessageCount (Method m, Type t) {
-		return receivedMessages[m.ordinal()][t.ordinal()];
+		return receivedMessages[m.ordinal()][t.ordinal()].sum();
 	}
 
 	/**
@@ -138,42 +169,109 @@ public class RPCStats {
 	 * @return count
 	 */
 	public long getTimeoutMessageCount (Method m) {
-		return timeoutMessages[m.ordinal()];
+		return timeoutMessages[m.ordinal()].sum();
+	}
+
+	/**
+	 * @return round trip times of responses to our requests of the specified method
+	 */
+	public LatencyHistogram getRTTHistogram (Method m) {
+		return rtt[m.ordinal()];
+	}
+
+	/**
+	 * @return number of received packets that had to be copied into a freshly allocated buffer because the receive pool was exhausted
+	 */
+	public long getReceiveBufferPoolMisses () {
+		return receiveBufferPoolMisses.sum();
+	}
+
+	/**
+	 * @return number of received messages that were decoded without building the intermediate bencode map
+	 */
+	public long getStreamingDecodeCount () {
+		return streamingDecodes.sum();
+	}
+
+	public long getReceiveBatchCount () {
+		return receiveBatches.sum();
+	}
+
+	public long getSendBatchCount () {
+		return sendBatches.sum();
+	}
+
+	/**
+	 * @return average number of packets handed to a worker thread per dispatch
+	 */
+	public double getAverageReceiveBatchSize () {
+		long batches = receiveBatches.sum();
+		return batches == 0 ? 0 : receiveBatchedPackets.sum() * 1.0 / batches;
+	}
+
+	/**
+	 * @return average number of messages encoded and flushed per write pass
+	 */
+	public double getAverageSendBatchSize () {
+		long batches = sendBatches.sum();
+		return batches == 0 ? 0 : sendBatchedPackets.sum() * 1.0 / batches;
 	}
 
 	/**
 	 * @param receivedBytes the receivedBytes to add
 	 */
 	protected void addReceivedBytes (long receivedBytes) {
-		tmpReceivedBytes += receivedBytes;
-		this.receivedBytes += receivedBytes;
+		tmpReceivedBytes.add(receivedBytes);
+		this.receivedBytes.add(receivedBytes);
 	}
 
 	/**
 	 * @param sentBytes the sentBytes to add
 	 */
 	protected void addSentBytes (long sentBytes) {
-		tmpSentBytes += sentBytes;
-		this.sentBytes += sentBytes;
+		tmpSentBytes.add(sentBytes);
+		this.sentBytes.add(sentBytes);
+	}
+
+	protected void addReceiveBufferPoolMiss () {
+		receiveBufferPoolMisses.increment();
+	}
+
+	protected void addStreamingDecode () {
+		streamingDecodes.increment();
+	}
+
+	protected void addReceiveBatch (int packets) {
+		receiveBatches.increment();
+		receiveBatchedPackets.add(packets);
+	}
+
+	protected void addSendBatch (int packets) {
+		sendBatches.increment();
+		sendBatchedPackets.add(packets);
 	}
 
 	protected void addSentMessageToCount (MessageBase msg) {
-		sentMessages[msg.getMethod().ordinal()][msg.getType().ordinal()]++;
+		sentMessages[msg.getMethod().ordinal()][msg.getType().ordinal()].increment();
 	}
 
 	protected void addSentMessageToCount (Method m, Type t) {
-		sentMessages[m.ordinal()][t.ordinal()]++;
+		sentMessages[m.ordinal()][t.ordinal()].increment();
 	}
 
 	protected void addReceivedMessageToCount (MessageBase msg) {
-		receivedMessages[msg.getMethod().ordinal()][msg.getType().ordinal()]++;
+		receivedMessages[msg.getMethod().ordinal()][msg.getType().ordinal()].increment();
 	}
 
 	protected void addReceivedMessageToCount (Method m, Type t) {
-		receivedMessages[m.ordinal()][t.ordinal()]++;
+		receivedMessages[m.ordinal()][t.ordinal()].increment();
 	}
 
 	protected void addTimeoutMessageToCount (MessageBase msg) {
-		timeoutMessages[msg.getMethod().ordinal()]++;
+		timeoutMessages[msg.getMethod().ordinal()].increment();
+	}
+
+	protected void addRTT (Method m, long rttMillis) {
+		rtt[m.ordinal()].record(rttMillis);
 	}
 }
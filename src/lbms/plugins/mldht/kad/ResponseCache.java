@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import lbms.plugins.mldht.kad.Database.PeersSeeds;
+import lbms.plugins.mldht.kad.Node.RoutingTable;
+
+/**
+ * Short-lived cache of the expensive, requester-independent parts of lookup responses of a single DHT instance.
+ *
+ * <ul>
+ * <li>compact node lists, valid as long as the routing table has not been rebuilt and the bucket covering the target
+ * has not been modified</li>
+ * <li>sampled values and scrape filters of get_peers responses, valid as long as the stored items of the infohash are
+ * unchanged</li>
+ * </ul>
+ *
+ * Tokens depend on the requester and are never cached. Entries expire after {@link DHTConstants#RESPONSE_CACHE_TTL}
+ * regardless, since node eligibility and the sampling order can change without modifying the tracked state.
+ */
+public class ResponseCache {
+
+	static final int MAX_ENTRIES = 4096;
+
+	static final class CacheKey {
+		final Key target;
+		final int flags;
+
+		CacheKey(Key target, int flags) {
+			this.target = target;
+			this.flags = flags;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof CacheKey))
+				return false;
+			CacheKey other = (CacheKey) obj;
+			return flags == other.flags && target.equals(other.target);
+		}
+
+		@Override
+		public int hashCode() {
+			return target.hashCode() * 31 + flags;
+		}
+	}
+
+	static final class NodesEntry {
+		final NodeList nodes;
+		final RoutingTable table;
+		final List<KBucketEntry> bucket;
+		final long created;
+
+		NodesEntry(NodeList nodes, RoutingTable table, List<KBucketEntry> bucket, long created) {
+			this.nodes = nodes;
+			this.table = table;
+			this.bucket = bucket;
+			this.created = created;
+		}
+	}
+
+	/**
+	 * values and scrape filters for one infohash, each may be null
+	 */
+	public static final class PeersEntry {
+		public final List<DBItem> values;
+		public final byte[] scrapePeers;
+		public final byte[] scrapeSeeds;
+		final PeersSeeds source;
+		final int version;
+		final long created;
+
+		PeersEntry(List<DBItem> values, byte[] scrapePeers, byte[] scrapeSeeds, PeersSeeds source, int version, long created) {
+			this.values = values;
+			this.scrapePeers = scrapePeers;
+			this.scrapeSeeds = scrapeSeeds;
+			this.source = source;
+			this.version = version;
+			this.created = created;
+		}
+	}
+
+	private final DHT dht;
+	private final Map<CacheKey, NodesEntry> nodes = new ConcurrentHashMap<>();
+	private final Map<CacheKey, PeersEntry> peers = new ConcurrentHashMap<>();
+
+	private final LongAdder nodeHits = new LongAdder();
+	private final LongAdder nodeMisses = new LongAdder();
+	private final LongAdder peerHits = new LongAdder();
+	private final LongAdder peerMisses = new LongAdder();
+
+	ResponseCache(DHT dht) {
+		this.dht = dht;
+	}
+
+	private static boolean expired(long created, long now) {
+		return now - created > DHTConstants.RESPONSE_CACHE_TTL;
+	}
+
+	/**
+	 * @return the closest nodes to the target in compact format, see {@link KClosestNodesSearch#fillPacked(boolean)}
+	 */
+	NodeList getNodes(Key target, int count, boolean includeOurself) {
+		CacheKey key = new CacheKey(target, count << 1 | (includeOurself ? 1 : 0));
+		RoutingTable table = dht.getNode().table();
+		List<KBucketEntry> bucket = table.entryForId(target).getBucket().entriesRef();
+		long now = System.currentTimeMillis();
+
+		NodesEntry e = nodes.get(key);
+		if(e != null && e.table == table && e.bucket == bucket && !expired(e.created, now)) {
+			nodeHits.increment();
+			return e.nodes;
+		}
+
+		nodeMisses.increment();
+		NodeList result = new KClosestNodesSearch(target, count, dht).fillPacked(includeOurself);
+		// an empty list depends on our own public address becoming known, not worth caching
+		if(result.packedSize() > 0) {
+			trim(nodes);
+			nodes.put(key, new NodesEntry(result, table, bucket, now));
+		}
+		return result;
+	}
+
+	/**
+	 * @return values and, if requested, scrape filters for the infohash. null if there are no items
+	 */
+	PeersEntry getPeers(Key infoHash, int maxValues, boolean preferPeers, boolean scrape) {
+		PeersSeeds source = dht.getDatabase().get(infoHash);
+		if(source == null)
+			return null;
+
+		CacheKey key = new CacheKey(infoHash, maxValues << 2 | (preferPeers ? 2 : 0) | (scrape ? 1 : 0));
+		long now = System.currentTimeMillis();
+
+		PeersEntry e = peers.get(key);
+		if(e != null && e.source == source && e.version == source.version() && !expired(e.created, now)) {
+			peerHits.increment();
+			return e;
+		}
+
+		peerMisses.increment();
+		// read the version first, a concurrent modification then causes a miss on the next lookup
+		int version = source.version();
+		List<DBItem> values = source.sample(maxValues, preferPeers);
+		byte[] scrapePeers = scrape ? snapshot(source.peers.getFilter()) : null;
+		byte[] scrapeSeeds = scrape ? snapshot(source.seeds.getFilter()) : null;
+
+		e = new PeersEntry(values != null ? Collections.unmodifiableList(values) : null, scrapePeers, scrapeSeeds, source, version, now);
+		trim(peers);
+		peers.put(key, e);
+		return e;
+	}
+
+	private static byte[] snapshot(BloomFilterBEP33 filter) {
+		// counting filters are updated in place under their own lock
+		synchronized (filter) {
+			ByteBuffer buf = filter.toBuffer();
+			byte[] copy = new byte[buf.remaining()];
+			buf.get(copy);
+			return copy;
+		}
+	}
+
+	private static void trim(Map<CacheKey, ?> map) {
+		// bounded by the TTL and request rate, a full clear is cheaper than tracking recency
+		if(map.size() >= MAX_ENTRIES)
+			map.clear();
+	}
+
+	void cleanup(long now) {
+		nodes.values().removeIf(e -> expired(e.created, now));
+		peers.values().removeIf(e -> expired(e.created, now));
+	}
+
+	public long getNodeHits() {
+		return nodeHits.sum();
+	}
+
+	public long getNodeMisses() {
+		return nodeMisses.sum();
+	}
+
+	public long getPeerHits() {
+		return peerHits.sum();
+	}
+
+	public long getPeerMisses() {
+		return peerMisses.sum();
+	}
+
+	private static double hitRate(long hits, long misses) {
+		return hits + misses == 0 ? 0 : hits * 100.0 / (hits + misses);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("nodes: %d entries, %.1f%% hit rate (%d/%d)%npeers: %d entries, %.1f%% hit rate (%d/%d)%n",
+				nodes.size(), hitRate(getNodeHits(), getNodeMisses()), getNodeHits(), getNodeHits() + getNodeMisses(),
+				peers.size(), hitRate(getPeerHits(), getPeerMisses()), getPeerHits(), getPeerHits() + getPeerMisses());
+	}
+
+}
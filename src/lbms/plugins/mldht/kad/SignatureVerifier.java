@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.i2p.crypto.eddsa.EdDSAEngine;
+import net.i2p.crypto.eddsa.EdDSAPublicKey;
+import net.i2p.crypto.eddsa.spec.EdDSAPublicKeySpec;
+
+import lbms.plugins.mldht.kad.GenericStorage.StorageItem;
+import lbms.plugins.mldht.kad.utils.SipHash24;
+
+/**
+ * Verifies the signatures of mutable BEP44 items and remembers which items passed, so that the same (pubkey, salt,
+ * seq, value, signature) tuple seen again by puts and get lookups skips the Ed25519 verification.
+ *
+ * The cache is a direct-mapped table of keyed 63bit hashes over the whole tuple. The key is a per-process secret, so
+ * remote nodes can neither predict nor deliberately collide with cached entries. Shared by all DHT instances.
+ */
+public final class SignatureVerifier {
+
+	static final int CACHE_BITS = 12;
+	static final int CACHE_SIZE = 1 << CACHE_BITS;
+
+	private static final long K0;
+	private static final long K1;
+
+	static {
+		SecureRandom rnd = new SecureRandom();
+		K0 = rnd.nextLong();
+		K1 = rnd.nextLong();
+	}
+
+	private static final AtomicLongArray verified = new AtomicLongArray(CACHE_SIZE);
+
+	private static final LongAdder cacheHits = new LongAdder();
+	private static final LongAdder verifications = new LongAdder();
+	private static final LongAdder failures = new LongAdder();
+
+	private SignatureVerifier() {}
+
+	private static SipHash24 addBytes(SipHash24 h, byte[] data) {
+		// length prefix keeps the concatenation of fields unambiguous
+		h.add(data.length);
+		int i = 0;
+		for(;i + 8 <= data.length;i += 8) {
+			long w = 0;
+			for(int j=7;j>=0;j--)
+				w = w << 8 | (data[i + j] & 0xFF);
+			h.add(w);
+		}
+		if(i < data.length) {
+			long w = 0;
+			for(int j=data.length-1;j>=i;j--)
+				w = w << 8 | (data[j] & 0xFF);
+			h.add(w);
+		}
+		return h;
+	}
+
+	static long fingerprint(StorageItem item) {
+		SipHash24 h = new SipHash24(K0, K1);
+		addBytes(h, item.pubkey);
+		addBytes(h, item.salt != null ? item.salt : new byte[0]);
+		h.add(item.sequenceNumber);
+		addBytes(h, item.signature);
+		addBytes(h, item.value);
+		// lowest bit marks occupied slots
+		return h.finish() | 1;
+	}
+
+	private static int slot(long fingerprint) {
+		return (int) (fingerprint >>> (64 - CACHE_BITS));
+	}
+
+	/**
+	 * @return true if the item passed verification recently, does not count as a cache hit
+	 */
+	public static boolean isCached(StorageItem item) {
+		long fp = fingerprint(item);
+		return verified.get(slot(fp)) == fp;
+	}
+
+	public static boolean verify(StorageItem item) {
+		long fp = fingerprint(item);
+		if(verified.get(slot(fp)) == fp) {
+			cacheHits.increment();
+			return true;
+		}
+
+		verifications.increment();
+		boolean valid = verifyUncached(item);
+		if(valid)
+			verified.set(slot(fp), fp);
+		else
+			failures.increment();
+		return valid;
+	}
+
+	static boolean verifyUncached(StorageItem item) {
+		try {
+			Signature sig = new EdDSAEngine();
+			sig.initVerify(new EdDSAPublicKey(new EdDSAPublicKeySpec(item.pubkey, StorageItem.spec)));
+
+			// ("4:salt" length-of-salt ":" salt) "3:seqi" seq "e1:v" len ":" and the encoded value
+			// written directly instead of encoding a dictionary and trimming it
+			if(item.salt != null) {
+				sig.update(("4:salt" + item.salt.length + ":").getBytes(ISO_8859_1));
+				sig.update(item.salt);
+			}
+			sig.update(("3:seqi" + item.sequenceNumber + "e1:v").getBytes(ISO_8859_1));
+			sig.update(item.value);
+
+			return sig.verify(item.signature);
+		} catch (InvalidKeyException | SignatureException | IllegalArgumentException e) {
+			// IAE: malformed public key
+			return false;
+		}
+	}
+
+	public static long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	public static long getVerifications() {
+		return verifications.sum();
+	}
+
+	public static long getFailures() {
+		return failures.sum();
+	}
+
+	public static String printStats() {
+		return String.format("cache hits: %d verified: %d failed: %d%n", getCacheHits(), getVerifications(), getFailures());
+	}
+
+}
@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static the8472.bencode.Utils.str2ary;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.zip.CRC32;
+
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+
+/**
+ * Versioned binary snapshot of one piece of node state (routing table, announce database or BEP44 storage).
+ *
+ * Layout, all numbers big-endian:
+ *
+ * <pre>
+ * offset  0: 8 bytes magic "mlDHTsnp"
+ *         8: u16 format version
+ *        10: u8 section type
+ *        11: u8 IP address length of the records, 0 if not applicable
+ *        12: u32 record length
+ *        16: u64 record count
+ *        24: u64 creation timestamp (unix millis)
+ *        32: u32 CRC32 of the record area
+ *        36: 28 bytes section-specific header data
+ *        64: record count * record length bytes of fixed-width records
+ * </pre>
+ *
+ * Fixed-width records make the file directly indexable (e.g. when mmaped) and loading does not involve any decoding
+ * beyond reading primitives. Files are written to a temporary file and atomically moved into place.
+ */
+public class SnapshotFile {
+
+	public static final int FORMAT_VERSION = 1;
+	public static final int HEADER_LENGTH = 64;
+	public static final int EXTRA_HEADER_LENGTH = 28;
+
+	private static final byte[] MAGIC = str2ary("mlDHTsnp");
+	private static final int EXTRA_HEADER_OFFSET = 36;
+	private static final int WRITE_CHUNK_SIZE = 64 * 1024;
+
+	public enum Section {
+		ROUTING_TABLE,
+		PEERS,
+		STORAGE;
+	}
+
+	/**
+	 * streams fixed-width records to disk in chunks, the header is filled in when the writer is closed
+	 */
+	public static class Writer implements AutoCloseable {
+
+		final Path target;
+		final Path tempFile;
+		final FileChannel chan;
+		final ByteBuffer chunk;
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		final CRC32 crc = new CRC32();
+		final int recordLength;
+		long count;
+		boolean complete;
+
+		public Writer(Path target, Section section, int addressLength, int recordLength) throws IOException {
+			this.target = target;
+			this.recordLength = recordLength;
+			this.tempFile = Files.createTempFile(target.getParent(), "snapshot", ".tmp");
+			this.chan = FileChannel.open(tempFile, StandardOpenOption.WRITE);
+			this.chunk = ByteBuffer.allocateDirect(Math.max(WRITE_CHUNK_SIZE / recordLength, 1) * recordLength);
+
+			header.put(MAGIC);
+			header.putShort((short) FORMAT_VERSION);
+			header.put((byte) section.ordinal());
+			header.put((byte) addressLength);
+			header.putInt(recordLength);
+
+			chan.position(HEADER_LENGTH);
+		}
+
+		/**
+		 * @param data up to {@link SnapshotFile#EXTRA_HEADER_LENGTH} bytes of section-specific data
+		 */
+		public void extraHeader(ByteBuffer data) {
+			header.position(EXTRA_HEADER_OFFSET);
+			header.put(data);
+		}
+
+		/**
+		 * @return buffer into which the caller must put exactly one record
+		 */
+		public ByteBuffer next() throws IOException {
+			if(chunk.remaining() < recordLength)
+				flush();
+			count++;
+			return chunk;
+		}
+
+		private void flush() throws IOException {
+			if(chunk.position() % recordLength != 0)
+				throw new IllegalStateException("records must be exactly " + recordLength + " bytes long");
+			chunk.flip();
+			crc.update(chunk.duplicate());
+			while(chunk.hasRemaining())
+				chan.write(chunk);
+			chunk.clear();
+		}
+
+		/**
+		 * marks the snapshot as complete, only complete snapshots replace the target file on {@link #close()}
+		 */
+		public void commit() {
+			complete = true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if(!complete)
+					return;
+				flush();
+
+				header.putLong(16, count);
+				header.putLong(24, System.currentTimeMillis());
+				header.putInt(32, (int) crc.getValue());
+				header.clear();
+
+				while(header.hasRemaining())
+					chan.write(header, header.position());
+				// the rename must not become durable before the contents it points to
+				chan.force(true);
+				chan.close();
+				Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				chan.close();
+				Files.deleteIfExists(tempFile);
+			}
+		}
+	}
+
+	public static class Contents {
+		public final long timestamp;
+		public final long count;
+		public final ByteBuffer extraHeader;
+		public final ByteBuffer records;
+		final int recordLength;
+
+		Contents(ByteBuffer header, ByteBuffer records) {
+			recordLength = header.getInt(12);
+			count = header.getLong(16);
+			timestamp = header.getLong(24);
+			header.position(EXTRA_HEADER_OFFSET);
+			extraHeader = header.slice();
+			this.records = records;
+		}
+
+		/**
+		 * @return view of the n-th record
+		 */
+		public ByteBuffer record(int n) {
+			ByteBuffer dup = records.duplicate();
+			dup.position(n * recordLength);
+			dup.limit(dup.position() + recordLength);
+			return dup.slice();
+		}
+	}
+
+	/**
+	 * @return empty if the file does not exist or does not match the expected section, address family or record layout
+	 */
+	public static Optional<Contents> read(Path source, Section section, int addressLength, int recordLength) {
+		if(!Files.isRegularFile(source))
+			return Optional.empty();
+
+		try(FileChannel chan = FileChannel.open(source, StandardOpenOption.READ)) {
+			long size = chan.size();
+			if(size < HEADER_LENGTH || size > Integer.MAX_VALUE)
+				return reject(source, "unexpected file size " + size);
+
+			// don't use mmap, that would keep the file undeletable on windows, which would interfere with write-atomicmove persistence
+			// the flat layout still means loading is a single read without decoding
+			ByteBuffer buf = ByteBuffer.allocateDirect((int) size);
+			while(buf.hasRemaining() && chan.read(buf) >= 0)
+				;
+			buf.flip();
+
+			byte[] magic = new byte[MAGIC.length];
+			buf.get(magic);
+			if(!Arrays.equals(magic, MAGIC))
+				return reject(source, "not a snapshot file");
+			if(buf.getShort(8) != FORMAT_VERSION)
+				return reject(source, "unsupported format version " + buf.getShort(8));
+			if(buf.get(10) != section.ordinal() || buf.get(11) != addressLength || buf.getInt(12) != recordLength)
+				return reject(source, "section, address family or record layout mismatch");
+
+			long count = buf.getLong(16);
+			if(count < 0 || count * recordLength != size - HEADER_LENGTH)
+				return reject(source, "record count " + count + " does not match file size " + size);
+
+			buf.position(HEADER_LENGTH);
+			ByteBuffer records = buf.slice();
+			CRC32 crc = new CRC32();
+			crc.update(records.duplicate());
+			if((int) crc.getValue() != buf.getInt(32))
+				return reject(source, "checksum mismatch");
+
+			buf.position(0);
+			buf.limit(HEADER_LENGTH);
+
+			return Optional.of(new Contents(buf.slice(), records));
+		} catch (IOException e) {
+			DHT.log(e, LogLevel.Error);
+			return Optional.empty();
+		}
+	}
+
+	private static Optional<Contents> reject(Path source, String reason) {
+		DHT.log("ignoring snapshot " + source + ": " + reason, LogLevel.Info);
+		return Optional.empty();
+	}
+
+}
@@ -5,66 +5,64 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad;
 
+import lbms.plugins.mldht.DHTConfiguration;
+
 import java.net.InetAddress;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 
-public class SpamThrottle {
-	
-	private Map<InetAddress, Integer> hitcounter = new ConcurrentHashMap<>();
-	
-	private AtomicLong lastDecayTime = new AtomicLong(System.currentTimeMillis());
+/**
+ * Per-address token bucket style counters. Counters decay by {@link #PER_SECOND} every second.
+ */
+public interface SpamThrottle {
 	
-	private static final int BURST = 10;
-	private static final int PER_SECOND = 2;
+	public static final int BURST = 10;
+	public static final int PER_SECOND = 2;
 	
-	public boolean addAndTest(InetAddress addr) {
-		int updated = saturatingAdd(addr);
-		
-		if(updated >= BURST)
-			return true;
-		
-		return false;
+	public static enum Type {
+		/**
+		 * exact counters in a hash map, see {@link MapSpamThrottle}
+		 */
+		MAP,
+		/**
+		 * fixed-size approximate counters, see {@link HashedSpamThrottle}
+		 */
+		HASHED
 	}
 	
-	public void remove(InetAddress addr) {
-		hitcounter.remove(addr);
+	public static SpamThrottle create(DHTConfiguration config) {
+		Type t = config != null ? config.getSpamThrottleType() : Type.HASHED;
+		switch(t) {
+			case MAP:
+				return new MapSpamThrottle();
+			default:
+				return new HashedSpamThrottle();
+		}
 	}
 	
-	public boolean test(InetAddress addr) {
-		return hitcounter.getOrDefault(addr, 0) >= BURST;
-	}
+	/**
+	 * increments the counter up to {@link #BURST}
+	 * 
+	 * @return true if the address is over the limit
+	 */
+	boolean addAndTest(InetAddress addr);
 	
-	public int calculateDelayAndAdd(InetAddress addr) {
-		int counter = hitcounter.compute(addr, (key, old) -> old == null ? 1 : old + 1);
-		int diff = counter - BURST;
-		return Math.max(diff, 0)*1000/PER_SECOND;
-	}
+	void remove(InetAddress addr);
 	
-	public void saturatingDec(InetAddress addr) {
-		hitcounter.compute(addr, (key, old) -> old == null || old == 1 ? null : old - 1);
-	}
+	boolean test(InetAddress addr);
 	
-	public int saturatingAdd(InetAddress addr) {
-		return hitcounter.compute(addr, (key, old) -> old == null ? 1 : Math.min(old + 1, BURST));
-	}
+	/**
+	 * increments the counter without saturating
+	 * 
+	 * @return the delay in milliseconds until the address falls below the limit again
+	 */
+	int calculateDelayAndAdd(InetAddress addr);
+	
+	void saturatingDec(InetAddress addr);
+	
+	int saturatingAdd(InetAddress addr);
+	
+	/**
+	 * applies the time-based decay, implementations that decay lazily may ignore this
+	 */
+	void decay();
 	
-	public void decay() {
-		long now = System.currentTimeMillis();
-		long last = lastDecayTime.get();
-		long deltaT = TimeUnit.MILLISECONDS.toSeconds(now - last);
-		if(deltaT < 1)
-			return;
-		if(!lastDecayTime.compareAndSet(last, last + deltaT * 1000))
-			return;
-		
-		int deltaC = (int) (deltaT * PER_SECOND);
-		
-		// minor optimization: delete first, then replace only what's left
-		hitcounter.entrySet().removeIf(entry -> entry.getValue() <= deltaC);
-		hitcounter.replaceAll((k, v) -> v - deltaC);
-		
-	}
 }
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import lbms.plugins.mldht.kad.utils.SipHash24;
+import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
+
+/**
+ * Derives write tokens from a secret. Tokens are only compared by the instance that issued them, so implementations
+ * don't need to be stable across restarts.
+ *
+ * {@link Database} handles the token rotation and passes the timestamp of the current or previous rotation.
+ */
+public interface TokenGenerator {
+
+	/**
+	 * @return the 4 byte token
+	 */
+	int token(Key nodeId, InetAddress ip, int port, Key lookupKey, long timestamp);
+
+	/**
+	 * SipHash-2-4 over the packed arguments. Only allocates to copy IPv6 addresses.
+	 */
+	static TokenGenerator sipHash() {
+		Random rnd = ThreadLocalUtils.getThreadLocalRandom();
+		long k0 = rnd.nextLong();
+		long k1 = rnd.nextLong();
+
+		return (nodeId, ip, port, lookupKey, timestamp) -> {
+			long a0, a1;
+			if(ip instanceof Inet4Address) {
+				// the hash code of an IPv4 address is the address itself
+				a0 = Integer.toUnsignedLong(ip.hashCode());
+				a1 = 4;
+			} else {
+				byte[] addr = ip.getAddress();
+				a0 = 0;
+				a1 = 0;
+				for(int i=0;i<8;i++) {
+					a0 = a0 << 8 | Byte.toUnsignedLong(addr[i]);
+					a1 = a1 << 8 | Byte.toUnsignedLong(addr[i + 8]);
+				}
+			}
+
+			long h = new SipHash24(k0, k1)
+					.add(nodeId.w0)
+					.add(nodeId.w1)
+					.add((long) nodeId.w2 << 32 | port & 0xFFFF)
+					.add(a0)
+					.add(a1)
+					.add(timestamp)
+					.add(lookupKey.w0)
+					.add(lookupKey.w1)
+					.add(Integer.toUnsignedLong(lookupKey.w2))
+					.finish();
+
+			return (int) (h ^ h >>> 32);
+		};
+	}
+
+	/**
+	 * the original token scheme, truncated SHA-1 over the serialized arguments and a secret
+	 */
+	static TokenGenerator sha1() {
+		byte[] secret = new byte[20];
+		ThreadLocalUtils.getThreadLocalRandom().nextBytes(secret);
+
+		return (nodeId, ip, port, lookupKey, timestamp) -> {
+			byte[] tdata = new byte[Key.SHA1_HASH_LENGTH + ip.getAddress().length + 2 + 8 + Key.SHA1_HASH_LENGTH + secret.length];
+			// generate a hash of the ip port and the current time
+			// should prevent anybody from crapping things up
+			ByteBuffer bb = ByteBuffer.wrap(tdata);
+			nodeId.toBuffer(bb);
+			bb.put(ip.getAddress());
+			bb.putShort((short) port);
+			bb.putLong(timestamp);
+			lookupKey.toBuffer(bb);
+			bb.put(secret);
+
+			return ByteBuffer.wrap(ThreadLocalUtils.getThreadLocalSHA1().digest(tdata)).getInt();
+		};
+	}
+
+}
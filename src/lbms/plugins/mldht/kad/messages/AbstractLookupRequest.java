@@ -5,6 +5,8 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import the8472.bencode.BEncodeWriter;
+
 import lbms.plugins.mldht.kad.Key;
 
 import java.nio.charset.StandardCharsets;
@@ -49,6 +51,19 @@ public abstract class AbstractLookupRequest extends MessageBase {
 	}
 
 	protected abstract String targetBencodingName();
+	
+	private static final byte[] WANT_KEY = BEncodeWriter.prefixed("want");
+	private static final byte[] WANT_4 = BEncodeWriter.prefixed("n4");
+	private static final byte[] WANT_6 = BEncodeWriter.prefixed("n6");
+	
+	protected void writeWant(BEncodeWriter w) {
+		w.putPrefixed(WANT_KEY).beginList();
+		if(want4)
+			w.putPrefixed(WANT_4);
+		if(want6)
+			w.putPrefixed(WANT_6);
+		w.end();
+	}
 
 	/**
 	 * @return the info_hash
@@ -5,6 +5,8 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import the8472.bencode.BEncodeWriter;
+
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -68,6 +70,24 @@ public class AbstractLookupResponse extends MessageBase {
 		return inner;
 	}
 	
+	private static final byte[] NODES_KEY = BEncodeWriter.prefixed("nodes");
+	private static final byte[] NODES6_KEY = BEncodeWriter.prefixed("nodes6");
+	private static final byte[] TOKEN_KEY = BEncodeWriter.prefixed("token");
+	
+	/**
+	 * writes the id, nodes, nodes6 and token entries, in that order
+	 */
+	protected void writeCommonEntries(BEncodeWriter w) {
+		w.putPrefixed(ID_KEY);
+		writeKey(w, id);
+		if(nodes != null)
+			w.putPrefixed(NODES_KEY).string(nodes.writer());
+		if(nodes6 != null)
+			w.putPrefixed(NODES6_KEY).string(nodes6.writer());
+		if(token != null)
+			w.putPrefixed(TOKEN_KEY).string(token);
+	}
+	
 	public NodeList getNodes(DHTtype type)
 	{
 		if(type == DHTtype.IPV4_DHT)
@@ -5,6 +5,8 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import the8472.bencode.BEncodeWriter;
+
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
@@ -66,6 +68,26 @@ public class AnnounceRequest extends AbstractLookupRequest {
 		return inner;
 	}
 	
+	private static final byte[] INFO_HASH_KEY = BEncodeWriter.prefixed("info_hash");
+	private static final byte[] NAME_KEY = BEncodeWriter.prefixed("name");
+	private static final byte[] PORT_KEY = BEncodeWriter.prefixed("port");
+	private static final byte[] SEED_KEY = BEncodeWriter.prefixed("seed");
+	private static final byte[] TOKEN_KEY = BEncodeWriter.prefixed("token");
+	
+	@Override
+	protected boolean writeInner(BEncodeWriter w) {
+		w.putPrefixed(ID_KEY);
+		writeKey(w, id);
+		w.putPrefixed(INFO_HASH_KEY);
+		writeKey(w, target);
+		if(name != null)
+			w.putPrefixed(NAME_KEY).string(name);
+		w.putPrefixed(PORT_KEY).number(port);
+		w.putPrefixed(SEED_KEY).number(isSeed ? 1 : 0);
+		w.putPrefixed(TOKEN_KEY).string(token);
+		return true;
+	}
+	
 	public void setName(ByteBuffer name) {
 		this.name = name;
 	}
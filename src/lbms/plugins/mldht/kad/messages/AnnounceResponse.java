@@ -5,6 +5,8 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import the8472.bencode.BEncodeWriter;
+
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -39,5 +41,12 @@ public class AnnounceResponse extends MessageBase {
 
 		return inner;
 	}
+	
+	@Override
+	protected boolean writeInner(BEncodeWriter w) {
+		w.putPrefixed(ID_KEY);
+		writeKey(w, id);
+		return true;
+	}
 
 }
@@ -5,6 +5,8 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import the8472.bencode.BEncodeWriter;
+
 import lbms.plugins.mldht.kad.DHT;
 import lbms.plugins.mldht.kad.Key;
 
@@ -32,4 +34,16 @@ public class FindNodeRequest extends AbstractLookupRequest {
 
 	@Override
 	protected String targetBencodingName() { return "target"; }
+	
+	private static final byte[] TARGET_KEY = BEncodeWriter.prefixed("target");
+	
+	@Override
+	protected boolean writeInner(BEncodeWriter w) {
+		w.putPrefixed(ID_KEY);
+		writeKey(w, id);
+		w.putPrefixed(TARGET_KEY);
+		writeKey(w, target);
+		writeWant(w);
+		return true;
+	}
 }
@@ -5,6 +5,8 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import the8472.bencode.BEncodeWriter;
+
 import lbms.plugins.mldht.kad.DHT;
 
 /**
@@ -30,5 +32,11 @@ public class FindNodeResponse extends AbstractLookupResponse {
 	public void apply (DHT dh_table) {
 		dh_table.response(this);
 	}
+	
+	@Override
+	protected boolean writeInner(BEncodeWriter w) {
+		writeCommonEntries(w);
+		return true;
+	}
 
 }
@@ -5,6 +5,8 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import the8472.bencode.BEncodeWriter;
+
 import java.util.Map;
 
 import lbms.plugins.mldht.kad.DHT;
@@ -48,6 +50,24 @@ public class GetPeersRequest extends AbstractLookupRequest {
 		return innerMap;
 	}
 	
+	private static final byte[] INFO_HASH_KEY = BEncodeWriter.prefixed("info_hash");
+	private static final byte[] NOSEED_KEY = BEncodeWriter.prefixed("noseed");
+	private static final byte[] SCRAPE_KEY = BEncodeWriter.prefixed("scrape");
+	
+	@Override
+	protected boolean writeInner(BEncodeWriter w) {
+		w.putPrefixed(ID_KEY);
+		writeKey(w, id);
+		w.putPrefixed(INFO_HASH_KEY);
+		writeKey(w, target);
+		if(noSeeds)
+			w.putPrefixed(NOSEED_KEY).number(1);
+		if(scrape)
+			w.putPrefixed(SCRAPE_KEY).number(1);
+		writeWant(w);
+		return true;
+	}
+	
 	public boolean isNoSeeds() {
 		return noSeeds;
 	}
@@ -5,6 +5,8 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import the8472.bencode.BEncodeWriter;
+
 import static the8472.bencode.Utils.buf2ary;
 
 import java.nio.ByteBuffer;
@@ -70,6 +72,29 @@ public class GetPeersResponse extends AbstractLookupResponse {
 		return innerMap;
 	}
 	
+	private static final byte[] SCRAPE_PEERS_KEY = BEncodeWriter.prefixed("BFpe");
+	private static final byte[] SCRAPE_SEEDS_KEY = BEncodeWriter.prefixed("BFse");
+	private static final byte[] VALUES_KEY = BEncodeWriter.prefixed("values");
+	
+	@Override
+	protected boolean writeInner(BEncodeWriter w) {
+		if(scrapePeers != null && scrapeSeeds != null) {
+			w.putPrefixed(SCRAPE_PEERS_KEY).string(scrapePeers);
+			w.putPrefixed(SCRAPE_SEEDS_KEY).string(scrapeSeeds);
+		}
+		
+		writeCommonEntries(w);
+		
+		if(items != null && !items.isEmpty()) {
+			w.putPrefixed(VALUES_KEY).beginList();
+			for(DBItem item : items)
+				w.string(item.getData());
+			w.end();
+		}
+		
+		return true;
+	}
+	
 	public void setPeerItems(List<DBItem> items) {
 		this.items = items;
 	}
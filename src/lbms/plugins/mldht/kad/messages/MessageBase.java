@@ -5,6 +5,8 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import static the8472.bencode.BEncodeWriter.prefixed;
+import static the8472.bencode.Utils.buf2ary;
 import static the8472.bencode.Utils.prettyPrint;
 
 import java.io.IOException;
@@ -23,6 +25,7 @@ import lbms.plugins.mldht.kad.Key;
 import lbms.plugins.mldht.kad.RPCCall;
 import lbms.plugins.mldht.kad.RPCServer;
 import lbms.plugins.mldht.kad.utils.AddressUtils;
+import the8472.bencode.BEncodeWriter;
 import the8472.bencode.BEncoder;
 
 /**
@@ -35,6 +38,18 @@ public abstract class MessageBase {
 	public static final String	VERSION_KEY = "v";
 	public static final String	TRANSACTION_KEY = "t";
 	public static final String  EXTERNAL_IP_KEY = "ip";
+	
+	protected static final byte[] ID_KEY = prefixed("id");
+	
+	private static final byte[] TRANSACTION_KEY_PREFIXED = prefixed(TRANSACTION_KEY);
+	private static final byte[] VERSION_KEY_PREFIXED = prefixed(VERSION_KEY);
+	private static final byte[] EXTERNAL_IP_KEY_PREFIXED = prefixed(EXTERNAL_IP_KEY);
+	private static final byte[] TYPE_KEY_PREFIXED = prefixed(Type.TYPE_KEY);
+	private static final byte[] REQUEST_INNER_KEY = prefixed(Type.REQ_MSG.innerKey());
+	private static final byte[] REQUEST_TYPE = prefixed(Type.REQ_MSG.getRPCTypeName());
+	private static final byte[] RESPONSE_INNER_KEY = prefixed(Type.RSP_MSG.innerKey());
+	private static final byte[] RESPONSE_TYPE = prefixed(Type.RSP_MSG.getRPCTypeName());
+	private static final byte[][] METHOD_NAMES = Arrays.stream(Method.values()).map(m -> prefixed(m.getRPCName())).toArray(byte[][]::new);
 
 	protected byte[]			mtid;
 	protected Method			method;
@@ -72,9 +87,78 @@ public abstract class MessageBase {
 	 */
 	public void encode(ByteBuffer target) throws IOException
 	{
+		int start = target.position();
+		
+		if(encodeDirect(new BEncodeWriter(target))) {
+			target.flip();
+			// test mode: with assertions enabled every direct encoding is checked against the map-based one
+			assert(matchesMapEncoding(target));
+			return;
+		}
+		
+		target.position(start);
 		new BEncoder().encodeInto(getBase(),target);
 	}
 	
+	/**
+	 * Writes the outer dictionary in canonical key order. Produces the same output as {@link #getBase()}
+	 * 
+	 * @return false if this message type does not support direct encoding, the writer's buffer contents are undefined in that case
+	 */
+	private boolean encodeDirect(BEncodeWriter w) {
+		Type t = getType();
+		
+		if(t == Type.REQ_MSG) {
+			w.beginDict();
+			w.putPrefixed(REQUEST_INNER_KEY).beginDict();
+			if(!writeInner(w))
+				return false;
+			w.end();
+			w.putPrefixed(REQUEST_TYPE).putPrefixed(METHOD_NAMES[getMethod().ordinal()]);
+		} else if(t == Type.RSP_MSG) {
+			w.beginDict();
+			if(publicIP != null)
+				w.putPrefixed(EXTERNAL_IP_KEY_PREFIXED).string(AddressUtils.packAddress(publicIP));
+			w.putPrefixed(RESPONSE_INNER_KEY).beginDict();
+			if(!writeInner(w))
+				return false;
+			w.end();
+		} else {
+			return false;
+		}
+		
+		assert(mtid != null);
+		w.putPrefixed(TRANSACTION_KEY_PREFIXED).string(mtid);
+		w.putPrefixed(VERSION_KEY_PREFIXED).string(DHTConstants.getVersion());
+		w.putPrefixed(TYPE_KEY_PREFIXED).putPrefixed(t == Type.REQ_MSG ? REQUEST_TYPE : RESPONSE_TYPE);
+		w.end();
+		
+		return true;
+	}
+	
+	/**
+	 * Direct encoding of the entries of the inner dictionary, keys must be written in raw byte order.
+	 * Implementations must produce the same output as encoding {@link #getInnerMap()}
+	 * 
+	 * @return false if not supported by this message type
+	 */
+	protected boolean writeInner(BEncodeWriter w) {
+		return false;
+	}
+	
+	protected static void writeKey(BEncodeWriter w, Key k) {
+		w.stringPrefix(Key.SHA1_HASH_LENGTH);
+		k.toBuffer(w.buffer());
+	}
+	
+	private boolean matchesMapEncoding(ByteBuffer direct) {
+		ByteBuffer viaMap = ByteBuffer.allocate(direct.capacity());
+		new BEncoder().encodeInto(getBase(), viaMap);
+		if(!viaMap.equals(direct))
+			throw new AssertionError("direct encoding of " + getClass().getSimpleName() + " differs from map encoding. direct: " + prettyPrint(buf2ary(direct.duplicate())) + " map: " + prettyPrint(buf2ary(viaMap)));
+		return true;
+	}
+	
 	public Map<String, Object> getBase()
 	{
 		Map<String, Object> base = new TreeMap<>();
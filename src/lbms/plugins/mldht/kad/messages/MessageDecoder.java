@@ -5,6 +5,7 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import static the8472.bencode.Utils.buf2ary;
 import static the8472.bencode.Utils.prettyPrint;
 import static the8472.utils.Functional.castOrThrow;
 import static the8472.utils.Functional.tap;
@@ -233,6 +234,10 @@ public class MessageDecoder {
 			m.tokenizer(t);
 			ByteBuffer rawVal = m.match(raw);
 			
+			// the raw packet buffer is recycled after processing, don't let the message hold onto a slice of it
+			if(rawVal != null)
+				rawVal = ByteBuffer.wrap(buf2ary(rawVal));
+			
 			get.setRawValue(rawVal);
 			
 			typedGet(args, "token", byte[].class).ifPresent(get::setToken);;
@@ -5,6 +5,8 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import the8472.bencode.BEncodeWriter;
+
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -39,4 +41,11 @@ public class PingRequest extends MessageBase {
 
 		return inner;
 	}
+	
+	@Override
+	protected boolean writeInner(BEncodeWriter w) {
+		w.putPrefixed(ID_KEY);
+		writeKey(w, id);
+		return true;
+	}
 }
@@ -5,6 +5,8 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import the8472.bencode.BEncodeWriter;
+
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -41,4 +43,11 @@ public class PingResponse extends MessageBase {
 		return inner;
 	}
 	
+	@Override
+	protected boolean writeInner(BEncodeWriter w) {
+		w.putPrefixed(ID_KEY);
+		writeKey(w, id);
+		return true;
+	}
+	
 }
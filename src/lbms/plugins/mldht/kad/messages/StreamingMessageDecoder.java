@@ -0,0 +1,552 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.messages;
+
+import static the8472.bencode.Utils.str2ary;
+
+import the8472.bencode.Tokenizer;
+import the8472.bencode.Tokenizer.BDecodingException;
+import the8472.bencode.Tokenizer.Token;
+import the8472.bencode.Tokenizer.TokenConsumer;
+import the8472.bencode.Tokenizer.TokenType;
+
+import lbms.plugins.mldht.kad.BloomFilterBEP33;
+import lbms.plugins.mldht.kad.DBItem;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.NodeList;
+import lbms.plugins.mldht.kad.NodeList.AddressType;
+import lbms.plugins.mldht.kad.PeerAddressDBItem;
+import lbms.plugins.mldht.kad.messages.MessageBase.Method;
+import lbms.plugins.mldht.kad.utils.AddressUtils;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Decodes the bulk traffic types (ping, find_node, get_peers, announce_peer requests and their responses) directly from tokenizer events,
+ * recording token offsets into the receive buffer instead of building the intermediate map tree of {@link the8472.bencode.BDecoder}.
+ *
+ * Only canonical, well-formed messages are handled. Everything else - errors, other methods, extension messages, unsorted or duplicate dictionary keys,
+ * unexpected value types, failed validation - yields null and must be passed to the map-based {@link MessageDecoder},
+ * which remains responsible for the corresponding error replies.
+ *
+ * Not thread-safe, instances are meant to be reused per thread.
+ */
+public class StreamingMessageDecoder {
+
+	// root keys
+	private static final int R_NONE = -1;
+	private static final int R_T = 0;
+	private static final int R_Y = 1;
+	private static final int R_Q = 2;
+	private static final int R_V = 3;
+	private static final int R_IP = 4;
+	private static final int R_A = 5;
+	private static final int R_R = 6;
+
+	private static final byte[][] ROOT_KEYS = {str2ary("t"), str2ary("y"), str2ary("q"), str2ary("v"), str2ary("ip"), str2ary("a"), str2ary("r")};
+
+	// argument keys, ordered so that the string-valued ones come first
+	private static final int A_NONE = -1;
+	private static final int A_ID = 0;
+	private static final int A_TARGET = 1;
+	private static final int A_INFO_HASH = 2;
+	private static final int A_TOKEN = 3;
+	private static final int A_NODES = 4;
+	private static final int A_NODES6 = 5;
+	private static final int A_BFPE = 6;
+	private static final int A_BFSE = 7;
+	private static final int A_NAME = 8;
+	private static final int A_PORT = 9;
+	private static final int A_NOSEED = 10;
+	private static final int A_SCRAPE = 11;
+	private static final int A_SEED = 12;
+	private static final int A_WANT = 13;
+	private static final int A_VALUES = 14;
+
+	private static final int LAST_STRING_ARG = A_NAME;
+	private static final int LAST_LONG_ARG = A_SEED;
+
+	private static final byte[][] ARG_KEYS = {str2ary("id"), str2ary("target"), str2ary("info_hash"), str2ary("token"), str2ary("nodes"), str2ary("nodes6"),
+			str2ary("BFpe"), str2ary("BFse"), str2ary("name"), str2ary("port"), str2ary("noseed"), str2ary("scrape"), str2ary("seed"), str2ary("want"), str2ary("values")};
+
+	private static final byte[] PING = str2ary(Method.PING.getRPCName());
+	private static final byte[] FIND_NODE = str2ary(Method.FIND_NODE.getRPCName());
+	private static final byte[] GET_PEERS = str2ary(Method.GET_PEERS.getRPCName());
+	private static final byte[] ANNOUNCE_PEER = str2ary(Method.ANNOUNCE_PEER.getRPCName());
+	private static final byte[] WANT_4 = str2ary("n4");
+	private static final byte[] WANT_6 = str2ary("n6");
+
+	// container roles
+	private static final byte ROLE_OTHER = 0;
+	private static final byte ROLE_ROOT = 1;
+	private static final byte ROLE_BODY = 2;
+	private static final byte ROLE_CAPTURE_LIST = 3;
+
+	/**
+	 * thrown to abort tokenization once it's clear that the message needs the fallback path. preallocated, no stack trace
+	 */
+	@SuppressWarnings("serial")
+	private static final class Bail extends RuntimeException {
+		Bail() {
+			super("not eligible for streaming decode", null, false, false);
+		}
+	}
+
+	private static final Bail BAIL = new Bail();
+
+	private final Tokenizer tokenizer = new Tokenizer();
+	private final Consumer consumer = new Consumer();
+
+	ByteBuffer buf;
+
+	final int[] rootStart = new int[ROOT_KEYS.length];
+	final int[] rootEnd = new int[ROOT_KEYS.length];
+	final boolean[] rootPresent = new boolean[ROOT_KEYS.length];
+
+	final int[] argStart = new int[ARG_KEYS.length];
+	final int[] argEnd = new int[ARG_KEYS.length];
+	final long[] argNum = new long[ARG_KEYS.length];
+	final boolean[] argPresent = new boolean[ARG_KEYS.length];
+
+	// elements of the captured lists, argStart/argEnd of the list keys index into these
+	int[] elemStart = new int[64];
+	int[] elemEnd = new int[64];
+	int elemCount;
+
+	int bodyKey = R_NONE;
+
+	public StreamingMessageDecoder() {
+		tokenizer.consumer(consumer);
+	}
+
+	private class Consumer implements TokenConsumer {
+
+		static final int MAX_DEPTH = 257;
+
+		final boolean[] isDict = new boolean[MAX_DEPTH];
+		final boolean[] expectKey = new boolean[MAX_DEPTH];
+		final byte[] role = new byte[MAX_DEPTH];
+		final int[] prevKeyStart = new int[MAX_DEPTH];
+		final int[] prevKeyEnd = new int[MAX_DEPTH];
+
+		// number of currently open containers
+		int depth;
+
+		int rootKey;
+		int argKey;
+
+		void reset() {
+			depth = 0;
+			rootKey = R_NONE;
+			argKey = A_NONE;
+		}
+
+		@Override
+		public void push(Token st) {
+			TokenType type = st.type();
+			if(type != TokenType.DICT && type != TokenType.LIST)
+				return;
+
+			byte newRole = ROLE_OTHER;
+
+			if(depth == 0) {
+				if(type != TokenType.DICT)
+					throw BAIL;
+				newRole = ROLE_ROOT;
+			} else if(role[depth] == ROLE_ROOT) {
+				if(rootKey == R_A || rootKey == R_R) {
+					if(type != TokenType.DICT || bodyKey != R_NONE)
+						throw BAIL;
+					bodyKey = rootKey;
+					newRole = ROLE_BODY;
+				} else if(rootKey != R_NONE) {
+					throw BAIL;
+				}
+			} else if(role[depth] == ROLE_BODY) {
+				if(argKey == A_WANT || argKey == A_VALUES) {
+					if(type != TokenType.LIST)
+						throw BAIL;
+					argStart[argKey] = elemCount;
+					newRole = ROLE_CAPTURE_LIST;
+				} else if(argKey != A_NONE) {
+					throw BAIL;
+				}
+			} else if(role[depth] == ROLE_CAPTURE_LIST) {
+				throw BAIL;
+			}
+
+			depth++;
+			isDict[depth] = type == TokenType.DICT;
+			expectKey[depth] = isDict[depth];
+			role[depth] = newRole;
+			prevKeyStart[depth] = -1;
+		}
+
+		@Override
+		public void pop(Token st) {
+			switch(st.type()) {
+				case DICT:
+				case LIST:
+					if(role[depth] == ROLE_CAPTURE_LIST) {
+						argEnd[argKey] = elemCount;
+						argPresent[argKey] = true;
+					}
+					depth--;
+					valueDone();
+					return;
+				case STRING:
+					if(isDict[depth] && expectKey[depth]) {
+						key(st.start(), st.end());
+						return;
+					}
+					stringValue(st.start(), st.end());
+					valueDone();
+					return;
+				case LONG:
+					longValue(tokenizer.lastDecodedNum());
+					valueDone();
+					return;
+				default:
+					return;
+			}
+		}
+
+		void valueDone() {
+			if(depth > 0 && isDict[depth])
+				expectKey[depth] = true;
+		}
+
+		void key(int start, int end) {
+			// canonical bencoding requires strictly ascending keys, this also rules out duplicates
+			if(prevKeyStart[depth] >= 0 && compare(prevKeyStart[depth], prevKeyEnd[depth], start, end) >= 0)
+				throw BAIL;
+			prevKeyStart[depth] = start;
+			prevKeyEnd[depth] = end;
+			expectKey[depth] = false;
+
+			if(role[depth] == ROLE_ROOT)
+				rootKey = lookup(ROOT_KEYS, start, end);
+			else if(role[depth] == ROLE_BODY)
+				argKey = lookup(ARG_KEYS, start, end);
+		}
+
+		void stringValue(int start, int end) {
+			switch(role[depth]) {
+				case ROLE_ROOT:
+					if(rootKey == R_A || rootKey == R_R)
+						throw BAIL;
+					if(rootKey != R_NONE) {
+						rootStart[rootKey] = start;
+						rootEnd[rootKey] = end;
+						rootPresent[rootKey] = true;
+					}
+					return;
+				case ROLE_BODY:
+					if(argKey == A_NONE)
+						return;
+					if(argKey > LAST_STRING_ARG)
+						throw BAIL;
+					argStart[argKey] = start;
+					argEnd[argKey] = end;
+					argPresent[argKey] = true;
+					return;
+				case ROLE_CAPTURE_LIST:
+					if(elemCount == elemStart.length) {
+						elemStart = Arrays.copyOf(elemStart, elemCount * 2);
+						elemEnd = Arrays.copyOf(elemEnd, elemCount * 2);
+					}
+					elemStart[elemCount] = start;
+					elemEnd[elemCount] = end;
+					elemCount++;
+					return;
+				default:
+					return;
+			}
+		}
+
+		void longValue(long value) {
+			switch(role[depth]) {
+				case ROLE_ROOT:
+					if(rootKey != R_NONE)
+						throw BAIL;
+					return;
+				case ROLE_BODY:
+					if(argKey == A_NONE)
+						return;
+					if(argKey <= LAST_STRING_ARG || argKey > LAST_LONG_ARG)
+						throw BAIL;
+					argNum[argKey] = value;
+					argPresent[argKey] = true;
+					return;
+				case ROLE_CAPTURE_LIST:
+					throw BAIL;
+				default:
+					return;
+			}
+		}
+	}
+
+	int compare(int aStart, int aEnd, int bStart, int bEnd) {
+		int aLen = aEnd - aStart;
+		int bLen = bEnd - bStart;
+		int len = Math.min(aLen, bLen);
+		for(int i=0;i<len;i++) {
+			int a = buf.get(aStart + i) & 0xff;
+			int b = buf.get(bStart + i) & 0xff;
+			if(a != b)
+				return a - b;
+		}
+		return aLen - bLen;
+	}
+
+	boolean equals(int start, int end, byte[] expected) {
+		if(end - start != expected.length)
+			return false;
+		for(int i=0;i<expected.length;i++)
+			if(buf.get(start + i) != expected[i])
+				return false;
+		return true;
+	}
+
+	int lookup(byte[][] keys, int start, int end) {
+		for(int i=0;i<keys.length;i++)
+			if(equals(start, end, keys[i]))
+				return i;
+		return -1;
+	}
+
+	byte[] copy(int start, int end) {
+		byte[] out = new byte[end - start];
+		for(int i=0;i<out.length;i++)
+			out[i] = buf.get(start + i);
+		return out;
+	}
+
+	private void reset() {
+		tokenizer.reset();
+		consumer.reset();
+		buf = null;
+		Arrays.fill(rootPresent, false);
+		Arrays.fill(argPresent, false);
+		elemCount = 0;
+		bodyKey = R_NONE;
+	}
+
+	/**
+	 * the buffer position is left undefined, callers must rewind it before passing it to another decoder
+	 *
+	 * @return the decoded message or null if the message needs to go through the map-based decoder
+	 */
+	public MessageBase decode(ByteBuffer raw, Function<byte[], Optional<Method>> transactionIdMapper, DHTtype type) {
+		try {
+			buf = raw;
+			tokenizer.inputBuffer(raw);
+			tokenizer.tokenize();
+
+			return build(transactionIdMapper, type);
+		} catch (Bail | BDecodingException e) {
+			return null;
+		} finally {
+			reset();
+		}
+	}
+
+	private MessageBase build(Function<byte[], Optional<Method>> transactionIdMapper, DHTtype type) {
+		if(!rootPresent[R_Y] || !rootPresent[R_T] || rootEnd[R_Y] - rootStart[R_Y] != 1)
+			return null;
+
+		MessageBase msg;
+
+		switch(buf.get(rootStart[R_Y])) {
+			case 'q':
+				msg = buildRequest(type);
+				break;
+			case 'r':
+				msg = buildResponse(transactionIdMapper);
+				break;
+			default:
+				return null;
+		}
+
+		if(msg != null && rootPresent[R_V])
+			msg.setVersion(copy(rootStart[R_V], rootEnd[R_V]));
+
+		return msg;
+	}
+
+	private boolean hasArg(int key, int length) {
+		return argPresent[key] && argEnd[key] - argStart[key] == length;
+	}
+
+	private byte[] arg(int key) {
+		return copy(argStart[key], argEnd[key]);
+	}
+
+	private MessageBase buildRequest(DHTtype type) {
+		if(bodyKey != R_A || !rootPresent[R_Q] || rootEnd[R_T] - rootStart[R_T] < 1 || !hasArg(A_ID, Key.SHA1_HASH_LENGTH))
+			return null;
+
+		int qStart = rootStart[R_Q];
+		int qEnd = rootEnd[R_Q];
+
+		MessageBase msg;
+
+		if(equals(qStart, qEnd, PING)) {
+			msg = new PingRequest();
+		} else if(equals(qStart, qEnd, FIND_NODE) || equals(qStart, qEnd, GET_PEERS)) {
+			int targetKey = argPresent[A_TARGET] ? A_TARGET : A_INFO_HASH;
+			if(!hasArg(targetKey, Key.SHA1_HASH_LENGTH))
+				return null;
+
+			Key target = new Key(arg(targetKey));
+
+			AbstractLookupRequest req;
+
+			if(equals(qStart, qEnd, FIND_NODE)) {
+				req = new FindNodeRequest(target);
+			} else {
+				GetPeersRequest peerReq = new GetPeersRequest(target);
+				peerReq.setNoSeeds(argPresent[A_NOSEED] && argNum[A_NOSEED] == 1);
+				peerReq.setScrape(argPresent[A_SCRAPE] && argNum[A_SCRAPE] == 1);
+				req = peerReq;
+			}
+
+			if(argPresent[A_WANT]) {
+				for(int i=argStart[A_WANT];i<argEnd[A_WANT];i++) {
+					if(equals(elemStart[i], elemEnd[i], WANT_4))
+						req.setWant4(true);
+					if(equals(elemStart[i], elemEnd[i], WANT_6))
+						req.setWant6(true);
+				}
+			} else {
+				req.setWant4(type == DHTtype.IPV4_DHT);
+				req.setWant6(type == DHTtype.IPV6_DHT);
+			}
+
+			msg = req;
+		} else if(equals(qStart, qEnd, ANNOUNCE_PEER)) {
+			if(!hasArg(A_INFO_HASH, Key.SHA1_HASH_LENGTH) || !argPresent[A_PORT] || !argPresent[A_TOKEN])
+				return null;
+			long port = argNum[A_PORT];
+			if(port <= 0 || port > 65535 || argEnd[A_TOKEN] - argStart[A_TOKEN] == 0)
+				return null;
+
+			AnnounceRequest ar = new AnnounceRequest(new Key(arg(A_INFO_HASH)), (int) port, arg(A_TOKEN));
+			ar.setSeed(argPresent[A_SEED] && argNum[A_SEED] == 1);
+			if(argPresent[A_NAME])
+				ar.setName(ByteBuffer.wrap(arg(A_NAME)));
+
+			msg = ar;
+		} else {
+			return null;
+		}
+
+		msg.setMTID(copy(rootStart[R_T], rootEnd[R_T]));
+		msg.setID(new Key(arg(A_ID)));
+
+		return msg;
+	}
+
+	private NodeList nodes(int key, DHTtype nodesType) {
+		return NodeList.fromBuffer(ByteBuffer.wrap(arg(key)), nodesType == DHTtype.IPV4_DHT ? AddressType.V4 : AddressType.V6);
+	}
+
+	private boolean validNodes(int key, DHTtype nodesType) {
+		return !argPresent[key] || (argEnd[key] - argStart[key]) % nodesType.NODES_ENTRY_LENGTH == 0;
+	}
+
+	private MessageBase buildResponse(Function<byte[], Optional<Method>> transactionIdMapper) {
+		if(bodyKey != R_R || rootEnd[R_T] - rootStart[R_T] < 1 || !hasArg(A_ID, Key.SHA1_HASH_LENGTH))
+			return null;
+		if(!validNodes(A_NODES, DHTtype.IPV4_DHT) || !validNodes(A_NODES6, DHTtype.IPV6_DHT))
+			return null;
+
+		InetSocketAddress publicIP = null;
+
+		if(rootPresent[R_IP]) {
+			publicIP = AddressUtils.unpackAddress(copy(rootStart[R_IP], rootEnd[R_IP]));
+			// let the fallback path log it
+			if(publicIP == null)
+				return null;
+		}
+
+		byte[] mtid = copy(rootStart[R_T], rootEnd[R_T]);
+
+		Method m = transactionIdMapper.apply(mtid).orElse(Method.UNKNOWN);
+
+		AbstractLookupResponse lookupRsp = null;
+		MessageBase msg;
+
+		switch(m) {
+			case PING:
+				msg = new PingResponse(mtid);
+				break;
+			case ANNOUNCE_PEER:
+				msg = new AnnounceResponse(mtid);
+				break;
+			case FIND_NODE:
+				if(!argPresent[A_NODES] && !argPresent[A_NODES6])
+					return null;
+				msg = lookupRsp = new FindNodeResponse(mtid);
+				break;
+			case GET_PEERS:
+				int filterLength = BloomFilterBEP33.m/8;
+				if((argPresent[A_BFPE] && !hasArg(A_BFPE, filterLength)) || (argPresent[A_BFSE] && !hasArg(A_BFSE, filterLength)))
+					return null;
+
+				List<DBItem> dbl = null;
+
+				if(argPresent[A_VALUES] && argEnd[A_VALUES] > argStart[A_VALUES]) {
+					dbl = new ArrayList<>(argEnd[A_VALUES] - argStart[A_VALUES]);
+					for(int i=argStart[A_VALUES];i<argEnd[A_VALUES];i++) {
+						int len = elemEnd[i] - elemStart[i];
+						// only accept ipv4 or ipv6 for now
+						if(len != DHTtype.IPV4_DHT.ADDRESS_ENTRY_LENGTH && len != DHTtype.IPV6_DHT.ADDRESS_ENTRY_LENGTH)
+							continue;
+						dbl.add(new PeerAddressDBItem(copy(elemStart[i], elemEnd[i]), false));
+					}
+				}
+
+				if(dbl == null && !argPresent[A_NODES] && !argPresent[A_NODES6])
+					return null;
+
+				GetPeersResponse resp = new GetPeersResponse(mtid);
+				resp.setPeerItems(dbl);
+				if(argPresent[A_TOKEN])
+					resp.setToken(arg(A_TOKEN));
+				if(argPresent[A_BFPE])
+					resp.setScrapePeers(arg(A_BFPE));
+				if(argPresent[A_BFSE])
+					resp.setScrapeSeeds(arg(A_BFSE));
+				msg = lookupRsp = resp;
+				break;
+			default:
+				return null;
+		}
+
+		if(lookupRsp != null) {
+			if(argPresent[A_NODES])
+				lookupRsp.setNodes(nodes(A_NODES, DHTtype.IPV4_DHT));
+			if(argPresent[A_NODES6])
+				lookupRsp.setNodes(nodes(A_NODES6, DHTtype.IPV6_DHT));
+		}
+
+		if(publicIP != null)
+			msg.setPublicIP(publicIP);
+
+		msg.setID(new Key(arg(A_ID)));
+
+		return msg;
+	}
+
+}
@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.tasks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import the8472.utils.concurrent.SerializedTaskExecutor;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.PeerAddressDBItem;
+import lbms.plugins.mldht.kad.RPCServer;
+
+/**
+ * Resolves large numbers of infohashes with fast-terminating peer lookups.
+ *
+ * <ul>
+ * <li>pending targets are processed in a sweep through the keyspace, so consecutive lookups hit the same region</li>
+ * <li>the closest set of each finished lookup seeds the lookups of neighbouring targets</li>
+ * <li>the request rate is limited by a {@link PacketBudget} instead of the task manager's per-server task limit</li>
+ * </ul>
+ *
+ * Lookups started by the batch are not registered with the {@link TaskManager} so they don't compete with regular
+ * tasks for task slots.
+ */
+public class BatchLookup {
+
+	// closest sets of recently finished lookups kept around for seeding
+	static final int MAX_SHARED_RESULTS = 256;
+
+	final DHT dht;
+	final PacketBudget budget;
+	int maxActiveLookups;
+
+	final NavigableSet<Key> pending = new ConcurrentSkipListSet<>();
+	final Set<PeerLookupTask> active = ConcurrentHashMap.newKeySet();
+	final ConcurrentSkipListMap<Key, List<KBucketEntry>> recentResults = new ConcurrentSkipListMap<>();
+	// current sweep position, only modified in startLookups
+	volatile Key cursor = Key.MIN_KEY;
+
+	BiConsumer<Key, PeerAddressDBItem> resultHandler = (k, item) -> {};
+	Consumer<PeerLookupTask> lookupListener = t -> {};
+
+	final LongAdder completed = new LongAdder();
+	final LongAdder requests = new LongAdder();
+	long startTime;
+	volatile boolean running;
+
+	private final Runnable serializedStart = SerializedTaskExecutor.onceMore(this::startLookups);
+
+	/**
+	 * @param budget may be shared between multiple batches, e.g. for the IPv4 and IPv6 DHTs
+	 */
+	public BatchLookup(DHT dht, PacketBudget budget) {
+		this.dht = dht;
+		this.budget = budget;
+		// a lookup sends its initial volley at once, allow enough of them to saturate the budget
+		this.maxActiveLookups = Math.max(1, budget.getPacketsPerSecond() / DHTConstants.MAX_CONCURRENT_REQUESTS);
+	}
+
+	public void setResultHandler(BiConsumer<Key, PeerAddressDBItem> handler) {
+		resultHandler = handler;
+	}
+
+	/**
+	 * invoked for each lookup after it finished
+	 */
+	public void setLookupListener(Consumer<PeerLookupTask> listener) {
+		lookupListener = listener;
+	}
+
+	public void setMaxActiveLookups(int max) {
+		maxActiveLookups = max;
+	}
+
+	public void submit(Stream<Key> targets) {
+		targets.forEach(pending::add);
+		serializedStart.run();
+	}
+
+	public void start() {
+		running = true;
+		startTime = System.currentTimeMillis();
+		budget.start(dht.getScheduler());
+		serializedStart.run();
+	}
+
+	/**
+	 * stops starting new lookups and kills the running ones. The budget is not stopped since it may be shared.
+	 */
+	public void stop() {
+		running = false;
+		active.forEach(Task::kill);
+	}
+
+	Key nextTarget() {
+		Key k = pending.ceiling(cursor);
+		if(k == null)
+			k = pending.isEmpty() ? null : pending.first();
+		if(k == null || !pending.remove(k))
+			return null;
+		cursor = k;
+		return k;
+	}
+
+	private void startLookups() {
+		while(running && active.size() < maxActiveLookups && !pending.isEmpty()) {
+			if(budget.available() <= 0) {
+				budget.onRefill(serializedStart);
+				return;
+			}
+
+			RPCServer srv = dht.getServerManager().getRandomActiveServer(false);
+			if(srv == null) {
+				// retry later
+				budget.onRefill(serializedStart);
+				return;
+			}
+
+			Key target = nextTarget();
+			if(target == null)
+				return;
+
+			PeerLookupTask task = new PeerLookupTask(srv, dht.getNode(), target);
+			task.setFastTerminate(true);
+			task.setPacketBudget(budget);
+			task.setResultHandler((source, item) -> resultHandler.accept(target, item));
+			task.setInfo("batch lookup");
+
+			List<KBucketEntry> seeds = neighbourResults(target);
+			if(!seeds.isEmpty())
+				task.todo.addCandidates(null, seeds);
+
+			active.add(task);
+			task.addListener(this::lookupFinished);
+			try {
+				dht.getWorkers().execute(task::start);
+			} catch (RejectedExecutionException e) {
+				// shutting down
+				task.kill();
+			}
+		}
+	}
+
+	List<KBucketEntry> neighbourResults(Key target) {
+		List<KBucketEntry> seeds = new ArrayList<>();
+		Map.Entry<Key, List<KBucketEntry>> lower = recentResults.lowerEntry(target);
+		Map.Entry<Key, List<KBucketEntry>> higher = recentResults.higherEntry(target);
+		if(lower != null)
+			seeds.addAll(lower.getValue());
+		if(higher != null)
+			seeds.addAll(higher.getValue());
+		return seeds;
+	}
+
+	private void lookupFinished(Task t) {
+		PeerLookupTask task = (PeerLookupTask) t;
+		active.remove(task);
+		completed.increment();
+		requests.add(task.getSentReqs());
+
+		shareResults(task.getTargetKey(), task.closest.entries().collect(Collectors.toList()));
+
+		lookupListener.accept(task);
+		serializedStart.run();
+	}
+
+	void shareResults(Key target, List<KBucketEntry> closest) {
+		if(closest.isEmpty())
+			return;
+		recentResults.put(target, closest);
+		// evict the result furthest behind the sweep. finished targets lie below the cursor, anything above it is left
+		// over from the previous pass, so that is the first key after the cursor, wrapping around
+		while(recentResults.size() > MAX_SHARED_RESULTS) {
+			Key behind = recentResults.higherKey(cursor);
+			recentResults.remove(behind != null ? behind : recentResults.firstKey());
+		}
+	}
+
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	public int getActiveCount() {
+		return active.size();
+	}
+
+	public long getCompletedCount() {
+		return completed.sum();
+	}
+
+	public double getLookupsPerSecond() {
+		long elapsed = System.currentTimeMillis() - startTime;
+		return startTime == 0 || elapsed <= 0 ? 0 : completed.sum() * 1000.0 / elapsed;
+	}
+
+	public double getRequestsPerLookup() {
+		long done = completed.sum();
+		return done == 0 ? 0 : requests.sum() * 1.0 / done;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("batch lookup pending:%d active:%d completed:%d lookups/s:%.1f requests/lookup:%.1f budget:%dpps",
+				getPendingCount(), getActiveCount(), getCompletedCount(), getLookupsPerSecond(), getRequestsPerLookup(), budget.getPacketsPerSecond());
+	}
+
+}
@@ -5,9 +5,7 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.tasks;
 
-import java.util.Comparator;
-import java.util.NavigableSet;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.Arrays;
 import java.util.stream.Stream;
 
 import lbms.plugins.mldht.kad.KBucketEntry;
@@ -16,13 +14,17 @@ import lbms.plugins.mldht.kad.Key;
 /*
  * We need to detect when the closest set is stable
  *  - in principle we're done as soon as there is no request candidates
+ *
+ * Sorted array with one slot of slack for the entry that gets pushed out by an insert. Distances to the target are
+ * computed once per insert and kept alongside, so the binary search compares them directly.
  */
 public class ClosestSet {
 	
-	final NavigableSet<KBucketEntry> closest;
+	private final KBucketEntry[] closest;
+	private final Key[] distances;
+	private int size;
 	final int targetSize;
 	final Key target;
-	final Comparator<Key> targetComp;
 	
 	int insertAttemptsSinceTailModification = 0;
 	int insertAttemptsSinceHeadModification = 0;
@@ -30,29 +32,44 @@ public class ClosestSet {
 	
 	public ClosestSet(Key target, int targetSize) {
 		this.target = target;
-		targetComp = new Key.DistanceOrder(target);
-		closest = new ConcurrentSkipListSet<>(new KBucketEntry.DistanceOrder(target));
 		this.targetSize = targetSize;
+		closest = new KBucketEntry[targetSize + 1];
+		distances = new Key[targetSize + 1];
 	}
 	
-	boolean reachedTargetCapacity() {
-		return closest.size() >= targetSize;
+	synchronized boolean reachedTargetCapacity() {
+		return size >= targetSize;
 	}
 	
 	void insert(KBucketEntry reply) {
+		Key distance = target.distance(reply.getID());
 		synchronized (this) {
-			closest.add(reply);
-			if (closest.size() > targetSize)
+			int idx = Arrays.binarySearch(distances, 0, size, distance);
+			if(idx >= 0) {
+				// already have that ID
+				insertAttemptsSinceHeadModification++;
+				return;
+			}
+			
+			idx = -idx - 1;
+			System.arraycopy(closest, idx, closest, idx + 1, size - idx);
+			System.arraycopy(distances, idx, distances, idx + 1, size - idx);
+			closest[idx] = reply;
+			distances[idx] = distance;
+			size++;
+			
+			if (size > targetSize)
 			{
-				KBucketEntry last = closest.last();
-				closest.remove(last);
-				if(last == reply)
+				size--;
+				closest[size] = null;
+				distances[size] = null;
+				if(idx == size)
 					insertAttemptsSinceTailModification++;
 				else
 					insertAttemptsSinceTailModification = 0;
 			}
 			
-			if(closest.first() == reply) {
+			if(idx == 0) {
 				insertAttemptsSinceHeadModification = 0;
 			} else {
 				insertAttemptsSinceHeadModification++;
@@ -62,29 +79,33 @@ public class ClosestSet {
 
 	
 	Stream<Key> ids() {
-		return closest.stream().map(KBucketEntry::getID);
+		return entries().map(KBucketEntry::getID);
 	}
 	
 	Stream<KBucketEntry> entries() {
-		return closest.stream();
+		KBucketEntry[] snapshot;
+		synchronized (this) {
+			snapshot = Arrays.copyOf(closest, size);
+		}
+		return Arrays.stream(snapshot);
 	}
 	
-	public Key tail() {
-		if(closest.isEmpty())
+	public synchronized Key tail() {
+		if(size == 0)
 			return target.distance(Key.MAX_KEY);
 			
-		return closest.last().getID();
+		return closest[size - 1].getID();
 	}
 	
-	public Key head() {
-		if(closest.isEmpty())
+	public synchronized Key head() {
+		if(size == 0)
 			return target.distance(Key.MAX_KEY);
-		return closest.first().getID();
+		return closest[0].getID();
 	}
 	
 	@Override
 	public String toString() {
-		String str = "closestset: " + closest.size() + " tailMod:" + insertAttemptsSinceTailModification +
+		String str = "closestset: " + size + " tailMod:" + insertAttemptsSinceTailModification +
 				" headMod:" + insertAttemptsSinceHeadModification;
 		str += " head:" + head().findApproxKeyDistance(target) + " tail:" + tail().findApproxKeyDistance(target);
 		
@@ -10,5 +10,7 @@ enum CountedStat {
 	RECEIVED,
 	STALLED,
 	FAILED,
-	SENT_SINCE_RECEIVE
+	SENT_SINCE_RECEIVE,
+	// candidates examined while selecting the next request target
+	EVALUATED
 }
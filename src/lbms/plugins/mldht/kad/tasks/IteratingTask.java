@@ -27,6 +27,7 @@ public abstract class IteratingTask extends TargetedTask {
 		todo = new IterativeLookupCandidates(target, node.getDHT().getMismatchDetector());
 		todo.setNonReachableCache(node.getDHT().getUnreachableCache());
 		todo.setSpamThrottle(node.getDHT().getServerManager().getOutgoingRequestThrottle());
+		todo.setEvaluationListener(n -> counts.updateAndGet(cnt -> cnt.add(CountedStat.EVALUATED, n)));
 		closest = new ClosestSet(target, DHTConstants.MAX_ENTRIES_PER_BUCKET);
 	}
 	
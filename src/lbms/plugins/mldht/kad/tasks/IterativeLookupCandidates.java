@@ -18,18 +18,23 @@ import lbms.plugins.mldht.kad.RPCState;
 import lbms.plugins.mldht.kad.SpamThrottle;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntConsumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -56,7 +61,6 @@ import java.util.stream.Stream;
  * 
  * TODO:
  *  - global mutual exclusion for in-flight targets. bad peers polluting everyone's routing table are the #1 slowdown for bulk lookups now
- *  - min-heaps (active + penalty box)? assign score once. recalculate as needed
  * 
  */
 public class IterativeLookupCandidates {
@@ -71,6 +75,14 @@ public class IterativeLookupCandidates {
 	IDMismatchDetector detector;
 	NonReachableCache nonReachableCache;
 	SpamThrottle throttle;
+	IntConsumer evaluationListener;
+	
+	// selection indices in comp() order, guarded by this. tainted, unreachable and throttled nodes are never indexed,
+	// nodes that can never pass the lookup filter again are dropped when the selection encounters them
+	final NavigableSet<LookupGraphNode> unqueried;
+	final NavigableSet<LookupGraphNode> queried;
+	// candidates examined by the current selection
+	private int evaluated;
 	
 	
 	class LookupGraphNode {
@@ -148,6 +160,24 @@ public class IterativeLookupCandidates {
 		candidates = new ConcurrentHashMap<>();
 		accepted = new HashSet<>();
 		this.detector = detector;
+		Comparator<LookupGraphNode> order = comp().thenComparing(IterativeLookupCandidates::compareAddresses);
+		unqueried = new TreeSet<>(order);
+		queried = new TreeSet<>(order);
+	}
+	
+	static int compareAddresses(LookupGraphNode a, LookupGraphNode b) {
+		InetSocketAddress sa = a.e.getAddress();
+		InetSocketAddress sb = b.e.getAddress();
+		byte[] ba = sa.getAddress().getAddress();
+		byte[] bb = sb.getAddress().getAddress();
+		if(ba.length != bb.length)
+			return ba.length - bb.length;
+		for(int i=0;i<ba.length;i++) {
+			int d = Byte.toUnsignedInt(ba[i]) - Byte.toUnsignedInt(bb[i]);
+			if(d != 0)
+				return d;
+		}
+		return sa.getPort() - sb.getPort();
 	}
 	
 	public void setNonReachableCache(NonReachableCache nonReachableCache) {
@@ -162,6 +192,13 @@ public class IterativeLookupCandidates {
 		allowRetransmits = toggle;
 	}
 	
+	/**
+	 * @param listener receives the number of candidates examined by each call to {@link #next()} or {@link #next2(Predicate)}
+	 */
+	void setEvaluationListener(IntConsumer listener) {
+		evaluationListener = listener;
+	}
+	
 	void addCall(RPCCall c, KBucketEntry kbe) {
 		calls.put(c, kbe);
 		Set<RPCCall> byIp = callsByIp.computeIfAbsent(c.getRequest().getDestination().getAddress(), k -> new HashSet<>());
@@ -171,7 +208,13 @@ public class IterativeLookupCandidates {
 		}
 		
 		
-		candidates.get(kbe).addCall(c);
+		LookupGraphNode node = candidates.get(kbe);
+		synchronized (this) {
+			boolean indexed = unqueried.remove(node) || queried.remove(node);
+			node.addCall(c);
+			if(indexed)
+				queried.add(node);
+		}
 	}
 	
 	KBucketEntry acceptResponse(RPCCall c) {
@@ -203,18 +246,18 @@ public class IterativeLookupCandidates {
 		
 		List<LookupGraphNode> children = new ArrayList<>();
 		
-		for(KBucketEntry e : entries) {
-			if(!dedup.add(e.getID()) || !dedup.add(e.getAddress().getAddress()))
-				continue;
-			
-
-			LookupGraphNode newNode = candidates.compute(e, (kbe, node) -> {
+		synchronized (this) {
+			for(KBucketEntry e : entries) {
+				if(!dedup.add(e.getID()) || !dedup.add(e.getAddress().getAddress()))
+					continue;
+				
+				LookupGraphNode node = candidates.get(e);
 				if(node == null) {
-					node = new LookupGraphNode(kbe);
+					node = new LookupGraphNode(e);
 					node.root = source == null;
-					node.tainted = detector.isIdInconsistencyExpected(kbe.getAddress(), kbe.getID());
+					node.tainted = detector.isIdInconsistencyExpected(e.getAddress(), e.getID());
 					if(nonReachableCache != null) {
-						int failures = nonReachableCache.getFailures(kbe.getAddress());
+						int failures = nonReachableCache.getFailures(e.getAddress());
 						node.previouslyFailedCount = failures;
 						// 0-20
 						int rnd = ThreadLocalRandom.current().nextInt(21);
@@ -222,16 +265,24 @@ public class IterativeLookupCandidates {
 						node.unreachable = Math.min(failures - 2, 19) > rnd;
 					}
 					if(throttle != null) {
-						node.throttled = throttle.test(kbe.getAddress().getAddress());
+						node.throttled = throttle.test(e.getAddress().getAddress());
 					}
-				}
-				if(sourceNode != null)
+					if(sourceNode != null)
+						node.addSource(sourceNode);
+					candidates.put(e, node);
+					if(!node.tainted && !node.unreachable && !node.throttled)
+						unqueried.add(node);
+				} else if(sourceNode != null && !node.sources.contains(sourceNode)) {
+					// the source count is part of the ordering, reinsert
+					NavigableSet<LookupGraphNode> index = node.calls.isEmpty() ? unqueried : queried;
+					boolean indexed = index.remove(node);
 					node.addSource(sourceNode);
-				return node;
-			});
-			
-			children.add(newNode);
-			
+					if(indexed)
+						index.add(node);
+				}
+				
+				children.add(node);
+			}
 		}
 		
 		if(sourceNode != null)
@@ -252,32 +303,65 @@ public class IterativeLookupCandidates {
 	
 	Optional<KBucketEntry> next() {
 		synchronized (this) {
-			return allCand().sorted(comp()).filter(lookupFilter).findFirst().map(LookupGraphNode::toKbe);
+			evaluated = 0;
+			LookupGraphNode fresh = first(unqueried);
+			LookupGraphNode node = allowRetransmits ? closer(fresh, first(queried)) : fresh;
+			reportEvaluated();
+			return Optional.ofNullable(node).map(LookupGraphNode::toKbe);
 		}
 	}
 	
 	Optional<KBucketEntry> next2(Predicate<KBucketEntry> postFilter) {
 		synchronized (this) {
-			
-			// sort + filter + findAny should be faster than filter + min in this case since findAny reduces the invocations of the filter, and that is more expensive than the sorting
-			Optional<KBucketEntry> kbe = allCand().sorted(comp()).filter(retransmitFilter(false)).filter(lookupFilter).findFirst().map(node -> node.e).filter(postFilter);
+			evaluated = 0;
+			LookupGraphNode fresh = first(unqueried);
+			Optional<KBucketEntry> kbe = Optional.ofNullable(fresh).map(LookupGraphNode::toKbe).filter(postFilter);
 			
 			if(!kbe.isPresent() && allowRetransmits)
-				kbe = allCand().sorted(comp()).filter(lookupFilter).filter(retransmitFilter(true)).findFirst().map(node -> node.e).filter(postFilter);
+				kbe = Optional.ofNullable(closer(fresh, first(queried))).map(LookupGraphNode::toKbe).filter(postFilter);
 			
+			reportEvaluated();
 			return kbe;
 		}
 	}
 	
-	static Predicate<LookupGraphNode> retransmitFilter(boolean retransmits) {
-		
-		return (node) -> {
-
-			if (node.calls.size() > 0 && !retransmits)
-				return false;
+	private void reportEvaluated() {
+		IntConsumer l = evaluationListener;
+		if(l != null)
+			l.accept(evaluated);
+	}
+	
+	private LookupGraphNode closer(LookupGraphNode a, LookupGraphNode b) {
+		if(a == null || b == null)
+			return a != null ? a : b;
+		return unqueried.comparator().compare(a, b) <= 0 ? a : b;
+	}
+	
+	/**
+	 * @return the closest indexed node that passes the lookup filter
+	 */
+	private LookupGraphNode first(NavigableSet<LookupGraphNode> index) {
+		for(Iterator<LookupGraphNode> it = index.iterator(); it.hasNext();) {
+			LookupGraphNode node = it.next();
+			evaluated++;
+			if(exhausted(node)) {
+				it.remove();
+				continue;
+			}
+			if(lookupFilter.test(node))
+				return node;
+		}
+		return null;
+	}
+	
+	/**
+	 * @return true if the node can never pass the lookup filter again
+	 */
+	private boolean exhausted(LookupGraphNode node) {
+		KBucketEntry kbe = node.e;
+		if(accepted.contains(kbe.getAddress().getAddress()) || accepted.contains(kbe.getID()))
 			return true;
-		};
-		
+		return !node.calls.isEmpty() && node.calls.stream().anyMatch(RPCCall::hasSocketMismatch);
 	}
 	
 	Predicate<LookupGraphNode> lookupFilter = node -> {
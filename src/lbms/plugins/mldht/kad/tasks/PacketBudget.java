@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.tasks;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+
+/**
+ * Token bucket limiting the number of requests per second that the tasks attached to it may send.
+ *
+ * Tasks that are denied a token register themselves and are woken up on the next refill, the same way they wait for
+ * {@link lbms.plugins.mldht.kad.RPCServer#onDeclog(Runnable)}.
+ */
+public class PacketBudget {
+
+	static final int REFILL_INTERVAL = 50; // ms
+
+	private final int packetsPerSecond;
+	private final int burst;
+	private final AtomicInteger tokens = new AtomicInteger();
+	private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+	// only touched by the refill timer
+	private long credit;
+	private long lastRefill;
+	private ScheduledFuture<?> timer;
+
+	public PacketBudget(int packetsPerSecond) {
+		if(packetsPerSecond < 1)
+			throw new IllegalArgumentException("budget must be positive");
+		this.packetsPerSecond = packetsPerSecond;
+		// allow two refill intervals worth of packets, so that timer jitter does not waste budget
+		this.burst = Math.max(1, packetsPerSecond * REFILL_INTERVAL * 2 / 1000);
+		tokens.set(burst);
+	}
+
+	public synchronized void start(ScheduledExecutorService scheduler) {
+		if(timer != null)
+			return;
+		lastRefill = System.currentTimeMillis();
+		timer = scheduler.scheduleAtFixedRate(() -> {
+			long now = System.currentTimeMillis();
+			try {
+				refill(now - lastRefill);
+			} catch (Throwable t) {
+				DHT.log(t, LogLevel.Error);
+			}
+			lastRefill = now;
+		}, REFILL_INTERVAL, REFILL_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if(timer != null)
+			timer.cancel(false);
+		timer = null;
+	}
+
+	void refill(long elapsedMillis) {
+		credit += packetsPerSecond * Math.max(0, elapsedMillis);
+		int add = (int) Math.min(credit / 1000, burst);
+		credit %= 1000;
+
+		if(add > 0)
+			tokens.getAndUpdate(t -> Math.min(t + add, burst));
+
+		// waiters re-register if they still can't send
+		Runnable r;
+		int toWake = waiting.size();
+		while(toWake-- > 0 && tokens.get() > 0 && (r = waiting.poll()) != null)
+			r.run();
+	}
+
+	public boolean tryAcquire() {
+		int current;
+		do {
+			current = tokens.get();
+			if(current <= 0)
+				return false;
+		} while(!tokens.compareAndSet(current, current - 1));
+		return true;
+	}
+
+	public int available() {
+		return tokens.get();
+	}
+
+	public int getPacketsPerSecond() {
+		return packetsPerSecond;
+	}
+
+	/**
+	 * the callback is run once after the next refill
+	 */
+	public void onRefill(Runnable r) {
+		waiting.add(r);
+	}
+
+}
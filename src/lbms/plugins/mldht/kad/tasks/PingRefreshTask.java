@@ -32,7 +32,7 @@ public class PingRefreshTask extends Task {
 	boolean 								probeReplacement = false;
 	Deque<KBucketEntry>				todo;
 	Set<KBucketEntry> visited;
-	private Map<MessageBase, KBucketEntry>	lookupMap;
+	Map<MessageBase, KBucketEntry>			lookupMap;
 	KBucket									bucket;
 
 	/**
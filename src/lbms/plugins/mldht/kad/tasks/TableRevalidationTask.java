@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.tasks;
+
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.KBucket;
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Node;
+import lbms.plugins.mldht.kad.Node.RoutingTableEntry;
+import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.messages.PingRequest;
+
+/**
+ * Warm restart fast path. Pings every main and replacement entry of a routing table that was restored from disk
+ * with a much wider request window than regular tasks, so the table can be trusted within a few RPC timeouts.
+ *
+ * Main entries that don't respond are dropped in favor of verified replacements, replacements that respond are
+ * promoted by the regular response handling of the routing table as soon as their bucket has room.
+ */
+public class TableRevalidationTask extends PingRefreshTask {
+
+	// leave room for TaskManager to start other tasks on the same server
+	static final int RPC_HEADROOM = 32;
+
+	public TableRevalidationTask(RPCServer rpc, Node node) {
+		super(rpc, node, null, true);
+
+		for(RoutingTableEntry e : node.table().list()) {
+			KBucket bucket = e.getBucket();
+			todo.addAll(bucket.getEntries());
+			todo.addAll(bucket.getReplacementEntries());
+		}
+	}
+
+	@Override
+	public int requestConcurrency() {
+		return DHTConstants.WARM_RESTART_CONCURRENCY;
+	}
+
+	@Override
+	boolean canDoRequest() {
+		// only hold back while our own calls are in flight, their completion wakes the task up again
+		if(getNumOutstandingRequests() > 0 && rpc.getNumActiveRPCCalls() + RPC_HEADROOM >= DHTConstants.MAX_ACTIVE_CALLS)
+			return false;
+		return super.canDoRequest();
+	}
+
+	@Override
+	void update() {
+		while(!todo.isEmpty()) {
+			KBucketEntry e = todo.peekFirst();
+
+			PingRequest pr = new PingRequest();
+			pr.setDestination(e.getAddress());
+
+			if(!rpcCall(pr, e.getID(), c -> {
+				c.builtFromEntry(e);
+				synchronized (lookupMap) {
+					lookupMap.put(pr, e);
+				}
+				todo.removeFirst();
+			})) {
+				break;
+			}
+		}
+	}
+
+}
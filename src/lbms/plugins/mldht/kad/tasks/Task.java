@@ -32,6 +32,7 @@ import java.util.EnumSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
@@ -74,6 +75,7 @@ public abstract class Task implements Comparable<Task> {
 	private int							taskID;
 	private List<TaskListener>			listeners;
 	private boolean						lowPriority;
+	PacketBudget						budget;
 	protected final AtomicReference<TaskStats>				counts = new AtomicReference<>(new TaskStats());
 	
 	/**
@@ -254,6 +256,11 @@ public abstract class Task implements Comparable<Task> {
 			return false;
 		}
 		
+		if (budget != null && !budget.tryAcquire()) {
+			budget.onRefill(serializedUpdate);
+			return false;
+		}
+		
 		RPCCall call = new RPCCall(req).setExpectedID(expectedID);
 		
 		// bump counters early to ensure task stays alive
@@ -269,12 +276,26 @@ public abstract class Task implements Comparable<Task> {
 		inFlight.add(call);
 		
 		// asyncify since we're under a lock here
-		rpc.getDHT().getScheduler().execute(() -> rpc.doCall(call)) ;
+		try {
+			rpc.getDHT().getWorkers().execute(() -> rpc.doCall(call)) ;
+		} catch (RejectedExecutionException e) {
+			// the DHT is shutting down. the call will never be sent, account for it as failed so the task doesn't wait for it
+			inFlight.remove(call);
+			counts.updateAndGet(cnt -> cnt.update(EnumSet.of(FAILED), EnumSet.noneOf(CountedStat.class), EnumSet.noneOf(CountedStat.class)));
+			return false;
+		}
 
 		return true;
 	}
 	
 	
+	/**
+	 * limits the request rate of this task in addition to its concurrency, the budget may be shared with other tasks
+	 */
+	public void setPacketBudget(PacketBudget budget) {
+		this.budget = budget;
+	}
+	
 	public void setLowPriority(boolean lowPriority) {
 		this.lowPriority = lowPriority;
 	}
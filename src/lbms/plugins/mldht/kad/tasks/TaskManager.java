@@ -13,6 +13,7 @@ import java.util.Deque;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import lbms.plugins.mldht.kad.DHT;
@@ -74,7 +75,12 @@ public class TaskManager {
 				synchronized(active) {
 					active.add(t);
 				}
-				dht.getScheduler().execute(t::start);
+				try {
+					dht.getWorkers().execute(t::start);
+				} catch (RejectedExecutionException e) {
+					// shutting down, the completion listeners take it off the active list
+					t.kill();
+				}
 			}
 		}
 		
@@ -83,7 +89,8 @@ public class TaskManager {
 			// there are at least 16 RPC slots available
 
 			int activeCalls = srv.getNumActiveRPCCalls();
-			if(activeCalls + 16 >= DHTConstants.MAX_ACTIVE_CALLS)
+			int window = srv.getCallWindow();
+			if(activeCalls + 16 >= window)
 				return false;
 			
 			int perServer = active.size();
@@ -91,7 +98,7 @@ public class TaskManager {
 			if(perServer < DHTConstants.MAX_ACTIVE_TASKS)
 				return true;
 			
-			if(activeCalls >= (DHTConstants.MAX_ACTIVE_CALLS * 2) / 3)
+			if(activeCalls >= (window * 2) / 3)
 				return false;
 			// if all their tasks have sent at least their initial volley and we still have enough head room we can allow more tasks.
 			synchronized(active) {
@@ -42,6 +42,13 @@ final class TaskStats implements Cloneable {
 		return p;
 	}
 	
+	public TaskStats add(CountedStat counter, int amount) {
+		TaskStats p = this.clone();
+		p.counters[counter.ordinal()] += amount;
+		p.invariants();
+		return p;
+	}
+	
 	public int get(CountedStat c) {
 		return counters[c.ordinal()];
 	}
@@ -39,6 +39,10 @@ public final class BitVector {
 		vector[n/8] |= 0x01 << n % 8;
 	}
 	
+	public void clear(int n) {
+		vector[n/8] &= ~(0x01 << n % 8);
+	}
+	
 	public boolean get(int n) {
 		return (vector[n/8] & 0x01 << n % 8) != 0;
 	}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import lbms.plugins.mldht.kad.DHTConstants;
+
+/**
+ * Concurrent log-linear histogram of millisecond latencies, in the spirit of HDR histograms.
+ *
+ * Values below {@link #SUB_BUCKETS} are recorded exactly, above that every power of two is split into
+ * {@link #SUB_BUCKETS} linear sub-buckets, which bounds the relative error to ~6%. Counters are striped, so recording
+ * from many threads does not contend.
+ */
+public class LatencyHistogram {
+
+	static final int SUB_BUCKET_BITS = 4;
+	public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	public static final long MAX_VALUE = DHTConstants.RPC_CALL_TIMEOUT_MAX;
+
+	private final LongAdder[] buckets = new LongAdder[index(MAX_VALUE) + 1];
+	private final LongAdder sum = new LongAdder();
+
+	public LatencyHistogram() {
+		for(int i=0;i<buckets.length;i++)
+			buckets[i] = new LongAdder();
+	}
+
+	static int index(long value) {
+		if(value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return smallest value that maps to the bucket
+	 */
+	static long lowerBound(int index) {
+		if(index < SUB_BUCKETS)
+			return index;
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	/**
+	 * @param millis negative values are ignored, values above {@link #MAX_VALUE} are clamped
+	 */
+	public void record(long millis) {
+		if(millis < 0)
+			return;
+		millis = Math.min(millis, MAX_VALUE);
+		buckets[index(millis)].increment();
+		sum.add(millis);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for(LongAdder b : buckets)
+			count += b.sum();
+		return count;
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * @param quantile between 0.0 and 1.0
+	 * @return lower bound of the bucket containing the quantile, 0 if nothing has been recorded
+	 */
+	public long getQuantile(double quantile) {
+		long[] counts = new long[buckets.length];
+		long total = 0;
+		for(int i=0;i<counts.length;i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+
+		if(total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for(int i=0;i<counts.length;i++) {
+			seen += counts[i];
+			if(seen >= rank)
+				return lowerBound(i);
+		}
+
+		return MAX_VALUE;
+	}
+
+	public void reset() {
+		for(LongAdder b : buckets)
+			b.reset();
+		sum.reset();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n:%d p50:%d p90:%d p99:%d", getCount(), getQuantile(0.5), getQuantile(0.9), getQuantile(0.99));
+	}
+
+}
@@ -200,6 +200,13 @@ public class ResponseTimeoutFilter {
 	}
 	
 	
+	/**
+	 * @return 10th percentile of the RTT distribution
+	 */
+	public long getBaseline() {
+		return timeoutBaseline;
+	}
+	
 	public long getStallTimeout() {
 		// either the 90th percentile or the 10th percentile + 100ms baseline, whichever is HIGHER (to prevent descent to zero and missing more than 10% of the packets in the worst case).
 		// but At most RPC_CALL_TIMEOUT_MAX
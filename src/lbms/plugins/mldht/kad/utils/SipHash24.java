@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.utils;
+
+/**
+ * SipHash-2-4 over messages made of whole 64bit words, each word corresponds to 8 little-endian message bytes.
+ *
+ * Instances are meant to be short-lived and confined to a single call, so that escape analysis can keep the state in
+ * registers:
+ *
+ * <pre>
+ * long h = new SipHash24(k0, k1).add(a).add(b).finish();
+ * </pre>
+ */
+public final class SipHash24 {
+
+	private long v0;
+	private long v1;
+	private long v2;
+	private long v3;
+	private int words;
+
+	public SipHash24(long k0, long k1) {
+		v0 = k0 ^ 0x736f6d6570736575L;
+		v1 = k1 ^ 0x646f72616e646f6dL;
+		v2 = k0 ^ 0x6c7967656e657261L;
+		v3 = k1 ^ 0x7465646279746573L;
+	}
+
+	private void round() {
+		v0 += v1;
+		v1 = Long.rotateLeft(v1, 13);
+		v1 ^= v0;
+		v0 = Long.rotateLeft(v0, 32);
+		v2 += v3;
+		v3 = Long.rotateLeft(v3, 16);
+		v3 ^= v2;
+		v0 += v3;
+		v3 = Long.rotateLeft(v3, 21);
+		v3 ^= v0;
+		v2 += v1;
+		v1 = Long.rotateLeft(v1, 17);
+		v1 ^= v2;
+		v2 = Long.rotateLeft(v2, 32);
+	}
+
+	private void compress(long m) {
+		v3 ^= m;
+		round();
+		round();
+		v0 ^= m;
+	}
+
+	public SipHash24 add(long m) {
+		compress(m);
+		words++;
+		return this;
+	}
+
+	public long finish() {
+		// final block only carries the message length in bytes
+		compress(((long) words * 8) << 56);
+		v2 ^= 0xff;
+		round();
+		round();
+		round();
+		round();
+		return v0 ^ v1 ^ v2 ^ v3;
+	}
+
+}
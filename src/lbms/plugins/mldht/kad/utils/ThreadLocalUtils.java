@@ -11,6 +11,9 @@ import java.security.SecureRandom;
 import java.util.Random;
 
 import the8472.bencode.BDecoder;
+import the8472.utils.concurrent.ThreadCache;
+
+import lbms.plugins.mldht.kad.messages.StreamingMessageDecoder;
 
 public class ThreadLocalUtils {
 
@@ -31,7 +34,10 @@ public class ThreadLocalUtils {
 		}
 	});
 	
-	private static ThreadLocal<BDecoder> decoder = ThreadLocal.withInitial(() -> new BDecoder());
+	// packet handling may run on virtual threads, see ExecutionMode
+	private static final ThreadCache<BDecoder> decoder = new ThreadCache<>(BDecoder::new);
+	
+	private static final ThreadCache<StreamingMessageDecoder> streamingDecoder = new ThreadCache<>(StreamingMessageDecoder::new);
 	
 
 	public static Random getThreadLocalRandom() {
@@ -42,6 +48,21 @@ public class ThreadLocalUtils {
 		return decoder.get();
 	}
 	
+	public static StreamingMessageDecoder getStreamingDecoder() {
+		return streamingDecoder.get();
+	}
+	
+	/**
+	 * like {@link #getDecoder()}, but also reuses decoders on virtual threads. must be paired with {@link ThreadCache#release(Object)}
+	 */
+	public static ThreadCache<BDecoder> decoders() {
+		return decoder;
+	}
+	
+	public static ThreadCache<StreamingMessageDecoder> streamingDecoders() {
+		return streamingDecoder;
+	}
+	
 	public static MessageDigest getThreadLocalSHA1() {
 		return sha1TL.get();
 	}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.bencode;
+
+import static the8472.bencode.Utils.str2ary;
+
+import java.nio.ByteBuffer;
+
+import the8472.bencode.BEncoder.StringWriter;
+
+/**
+ * Streams bencoded values straight into a buffer without building intermediate collections.
+ *
+ * Unlike {@link BEncoder} this does not sort dictionary keys, callers are responsible for emitting them in canonical (raw byte) order.
+ */
+public class BEncodeWriter {
+
+	final ByteBuffer buf;
+
+	// scratch space for number formatting, fits Long.MIN_VALUE
+	final byte[] digits = new byte[20];
+
+	public BEncodeWriter(ByteBuffer target) {
+		this.buf = target;
+	}
+
+	/**
+	 * @return the length-prefixed encoding of a string, to be used with {@link #putPrefixed(byte[])}
+	 */
+	public static byte[] prefixed(String str) {
+		return str2ary(str.length() + ":" + str);
+	}
+
+	public ByteBuffer buffer() {
+		return buf;
+	}
+
+	public BEncodeWriter beginDict() {
+		buf.put((byte) 'd');
+		return this;
+	}
+
+	public BEncodeWriter beginList() {
+		buf.put((byte) 'l');
+		return this;
+	}
+
+	public BEncodeWriter end() {
+		buf.put((byte) 'e');
+		return this;
+	}
+
+	/**
+	 * @param prefixedString a dictionary key or string value encoded by {@link #prefixed(String)}
+	 */
+	public BEncodeWriter putPrefixed(byte[] prefixedString) {
+		buf.put(prefixedString);
+		return this;
+	}
+
+	/**
+	 * writes only the length prefix, the caller must put exactly that many bytes into {@link #buffer()} afterwards
+	 */
+	public BEncodeWriter stringPrefix(int length) {
+		number(length, (byte) ':');
+		return this;
+	}
+
+	public BEncodeWriter string(byte[] str) {
+		number(str.length, (byte) ':');
+		buf.put(str);
+		return this;
+	}
+
+	/**
+	 * writes the remaining bytes of the buffer, its position is not modified
+	 */
+	public BEncodeWriter string(ByteBuffer str) {
+		ByteBuffer dup = str.duplicate();
+		number(dup.remaining(), (byte) ':');
+		buf.put(dup);
+		return this;
+	}
+
+	public BEncodeWriter string(StringWriter str) {
+		number(str.length(), (byte) ':');
+		str.writeTo(buf);
+		return this;
+	}
+
+	/**
+	 * @param str only ISO-8859-1 strings are supported
+	 */
+	public BEncodeWriter string(String str) {
+		number(str.length(), (byte) ':');
+		for(int i=0;i<str.length();i++)
+			buf.put((byte) str.charAt(i));
+		return this;
+	}
+
+	public BEncodeWriter number(long val) {
+		buf.put((byte) 'i');
+		number(val, (byte) 'e');
+		return this;
+	}
+
+	private void number(long val, byte terminator) {
+		if(val == 0) {
+			buf.put((byte) '0');
+			buf.put(terminator);
+			return;
+		}
+
+		boolean negative = val < 0;
+		int pos = digits.length;
+
+		// work on the negative range to handle Long.MIN_VALUE
+		if(!negative)
+			val = -val;
+
+		while(val != 0) {
+			long reduced = val / 10;
+			digits[--pos] = (byte) ('0' + (reduced * 10 - val));
+			val = reduced;
+		}
+
+		if(negative)
+			buf.put((byte) '-');
+		buf.put(digits, pos, digits.length - pos);
+		buf.put(terminator);
+	}
+
+}
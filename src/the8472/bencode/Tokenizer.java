@@ -59,7 +59,10 @@ public class Tokenizer {
 		});
 	}
 	
-	void reset() {
+	/**
+	 * clears all state and releases the input buffer. must be called before reuse if tokenizing was aborted by an exception
+	 */
+	public void reset() {
 		for(int i=0;i<stack.length;i++)
 			stack[i].reset();
 		stackIdx = 0;
@@ -95,6 +98,20 @@ public class Tokenizer {
 			return tokenEnums[state];
 		}
 		
+		/**
+		 * absolute buffer offset at which the token begins. for strings this points past the length prefix
+		 */
+		public int start() {
+			return start;
+		}
+		
+		/**
+		 * absolute buffer offset past the end of the token. only valid when the token gets popped
+		 */
+		public int end() {
+			return end;
+		}
+		
 		void type(TokenType t) {
 			state = (byte) t.ordinal();
 		}
@@ -7,14 +7,21 @@ package the8472.bt;
 
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.List;
-import java.util.Objects;
 
-import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
+import the8472.utils.AnonAllocator;
 
+/**
+ * Assembles the info dictionary of a torrent from 16KiB chunks received by one or more connections.
+ *
+ * Chunks are copied straight into a single region of the full metadata length, obtained from {@link AnonAllocator}
+ * when the first chunk arrives. The SHA-1 is updated incrementally as soon as the chunks form a contiguous prefix,
+ * so completion only has to compare the digest.
+ */
 public class MetadataPool {
 	
+	static final int CHUNK_SIZE = 16 * 1024;
 
 	public static enum Completion {
 		PROGRESS,
@@ -25,15 +32,18 @@ public class MetadataPool {
 	Completion state = Completion.PROGRESS;
 	
 	int length;
-	ByteBuffer[] buffers;
+	ByteBuffer region;
+	boolean[] received;
+	int hashedChunks;
+	MessageDigest hasher;
 	PullMetaDataConnection[]	requestees;
 	Completion status = Completion.PROGRESS;
 	
 	public MetadataPool(int length ) {
 		this.length = length;
-		int numChunks = (int) Math.ceil(length * 1.0 / (16*1024));
+		int numChunks = (int) Math.ceil(length * 1.0 / CHUNK_SIZE);
 		requestees = new PullMetaDataConnection[numChunks];
-		buffers = new ByteBuffer[numChunks];
+		received = new boolean[numChunks];
 	}
 	
 	int reservePiece(PullMetaDataConnection req) {
@@ -51,33 +61,61 @@ public class MetadataPool {
 		requestees[idx] = null;
 	}
 	
-	void addBuffer(int idx, ByteBuffer buf) {
-		buffers[idx] = buf;
+	int chunkLength(int idx) {
+		return Math.min(CHUNK_SIZE, length - idx * CHUNK_SIZE);
+	}
+	
+	/**
+	 * copies the remaining bytes of the buffer into the chunk
+	 * 
+	 * @return false if the index is out of range or the length does not match the chunk
+	 */
+	synchronized boolean addChunk(int idx, ByteBuffer data) {
+		if(idx < 0 || idx >= received.length || data.remaining() != chunkLength(idx))
+			return false;
+		if(received[idx] || status != Completion.PROGRESS)
+			return true;
+		
+		if(region == null) {
+			region = AnonAllocator.allocate(length);
+			hasher = newSHA1();
+		}
+		
+		ByteBuffer target = region.duplicate();
+		target.position(idx * CHUNK_SIZE);
+		target.put(data);
+		received[idx] = true;
+		
+		while(hashedChunks < received.length && received[hashedChunks]) {
+			ByteBuffer chunk = region.duplicate();
+			chunk.position(hashedChunks * CHUNK_SIZE);
+			chunk.limit(hashedChunks * CHUNK_SIZE + chunkLength(hashedChunks));
+			hasher.update(chunk);
+			hashedChunks++;
+		}
+		return true;
+	}
+	
+	private static MessageDigest newSHA1() {
+		try {
+			return MessageDigest.getInstance("SHA");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error("expected SHA1 digest to be available", e);
+		}
 	}
 	
 	void deRegister(PullMetaDataConnection req) {
 		for(int i=0;i<requestees.length;i++) {
-			if(requestees[i] == req && buffers[i] == null)
+			if(requestees[i] == req && !received[i])
 				requestees[i] = null;
 		}
 	}
 	
-	void checkComletion(byte[] hash) {
+	synchronized void checkComletion(byte[] hash) {
 		if(status != Completion.PROGRESS)
 			return;
-		List<ByteBuffer> bufs = Arrays.asList(buffers);
-		if(bufs.stream().anyMatch(Objects::isNull)) {
+		if(hashedChunks < received.length)
 			return;
-		}
-			
-		
-		MessageDigest hasher = ThreadLocalUtils.getThreadLocalSHA1();
-		
-		hasher.reset();
-		bufs.forEach(b -> {
-			b.rewind();
-			hasher.update(b);
-		});
 		
 		if(Arrays.equals(hasher.digest(), hash)) {
 			status = Completion.SUCCESS;
@@ -85,6 +123,8 @@ public class MetadataPool {
 		}
 			
 		status = Completion.FAILED;
+		// the mapping is unmapped once collected
+		region = null;
 	}
 	
 	public Completion status() {
@@ -95,20 +135,14 @@ public class MetadataPool {
 		return length;
 	}
 	
-	public ByteBuffer merge() {
+	/**
+	 * @return a read-only view of the verified metadata
+	 */
+	public synchronized ByteBuffer merge() {
 		if(status != Completion.SUCCESS)
 			throw new IllegalStateException("there is nothing to merge");
 		
-		ByteBuffer buf = ByteBuffer.allocate(length);
-		
-		Arrays.asList(buffers).forEach(b -> {
-			b.rewind();
-			buf.put(b);
-		});
-		
-		buf.rewind();
-		
-		return buf;
+		return region.asReadOnlyBuffer();
 	}
 
 }
@@ -5,11 +5,10 @@
  ******************************************************************************/
 package the8472.bt;
 
-import the8472.bencode.BDecoder;
 import the8472.bencode.BEncoder;
 import the8472.bencode.Tokenizer.BDecodingException;
 import the8472.bt.MetadataPool.Completion;
-import the8472.utils.AnonAllocator;
+import the8472.utils.io.ByteBufferPool;
 
 import lbms.plugins.mldht.kad.DHT;
 import lbms.plugins.mldht.kad.DHT.LogLevel;
@@ -40,6 +39,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.function.IntFunction;
 import java.util.function.Predicate;
@@ -94,6 +94,18 @@ public class PullMetaDataConnection implements Selectable {
 	
 	private static final int RCV_TIMEOUT = 25*1000;
 	
+	static final int RECEIVE_BUFFER_SIZE = 32 * 1024;
+	static final int RECEIVE_BUFFER_POOL_SIZE = 1024;
+	
+	// only the metadata fetcher needs the slab, don't allocate it when this class is merely loaded
+	private static final class ReceivePool {
+		static final ByteBufferPool pool = new ByteBufferPool(RECEIVE_BUFFER_SIZE, RECEIVE_BUFFER_POOL_SIZE);
+	}
+	
+	static final LongAdder registeredConnections = new LongAdder();
+	static final LongAdder pooledReceiveBuffers = new LongAdder();
+	static final LongAdder heapReceiveBuffers = new LongAdder();
+	
 	private static final int LTEP_HEADER_ID = 20;
 	private static final int LTEP_HANDSHAKE_ID = 0;
 	private static final int LTEP_LOCAL_META_ID = 7;
@@ -113,6 +125,8 @@ public class PullMetaDataConnection implements Selectable {
 	
 	Deque<ByteBuffer>			outputBuffers			= new ArrayDeque<>();
 	ByteBuffer					inputBuffer;
+	boolean						inputBufferPooled;
+	boolean						registered;
 
 	boolean						remoteSupportsFastExtension;
 	boolean						remoteSupportsPort;
@@ -260,6 +274,8 @@ public class PullMetaDataConnection implements Selectable {
 	public void registrationEvent(NIOConnectionManager manager, SelectionKey key) throws IOException {
 		connManager = manager;
 		lastReceivedTime = System.currentTimeMillis();
+		registered = true;
+		registeredConnections.increment();
 
 		if(isState(STATE_CONNECTING))
 		{
@@ -393,16 +409,7 @@ public class PullMetaDataConnection implements Selectable {
 			messages.put("ut_pex", LTEP_LOCAL_PEX_ID);
 			
 			// send handshake
-			BEncoder encoder = new BEncoder();
-			ByteBuffer handshakeBody = encoder.encode(ltepHandshake, 1024);
-
-			ByteBuffer handshakeHeader = ByteBuffer.allocate(BT_HEADER_LENGTH + 2);
-			handshakeHeader.putInt(handshakeBody.limit() + 2);
-			handshakeHeader.put((byte) LTEP_HEADER_ID);
-			handshakeHeader.put((byte) LTEP_HANDSHAKE_ID);
-			handshakeHeader.flip();
-			outputBuffers.addLast(handshakeHeader);
-			outputBuffers.addLast(handshakeBody);
+			outputBuffers.addLast(ltepMessage(LTEP_HANDSHAKE_ID, ltepHandshake, 1024));
 			
 			if(remoteSupportsFastExtension) {
 				ByteBuffer haveNone = ByteBuffer.allocate(5);
@@ -549,8 +556,7 @@ public class PullMetaDataConnection implements Selectable {
 			}
 			
 			if(!isState(STATE_LTEP_HANDSHAKING) && ltepMsgID == LTEP_LOCAL_PEX_ID) {
-				BDecoder decoder = new BDecoder();
-				Map<String, Object> params = decoder.decode(inputBuffer);
+				Map<String, Object> params = ThreadLocalUtils.getDecoder().decode(inputBuffer);
 				
 				pexConsumer.accept(AddressUtils.unpackCompact((byte[])params.get("added"), Inet4Address.class));
 				pexConsumer.accept(AddressUtils.unpackCompact((byte[])params.get("added6"), Inet6Address.class));
@@ -561,8 +567,7 @@ public class PullMetaDataConnection implements Selectable {
 			if(isState(STATE_GETTING_METADATA) && ltepMsgID == LTEP_LOCAL_META_ID)
 			{
 				// consumes bytes as necessary for the bencoding
-				BDecoder decoder = new BDecoder();
-				Map<String, Object> params = decoder.decode(inputBuffer);
+				Map<String, Object> params = ThreadLocalUtils.getDecoder().decode(inputBuffer);
 				Long type = (Long) params.get("msg_type");
 				Long idx = (Long) params.get("piece");
 				
@@ -571,9 +576,10 @@ public class PullMetaDataConnection implements Selectable {
 					outstandingRequests--;
 					chunksReceived++;
 					
-					ByteBuffer chunk = AnonAllocator.allocate(inputBuffer.remaining());
-					chunk.put(inputBuffer);
-					pool.addBuffer(idx.intValue(), chunk);
+					if(!pool.addChunk(idx.intValue(), inputBuffer)) {
+						terminate("invalid metadata piece");
+						return;
+					}
 					
 					lastUsefulMessage = System.currentTimeMillis();
 					
@@ -615,9 +621,19 @@ public class PullMetaDataConnection implements Selectable {
 	public void canReadEvent() throws IOException {
 		int bytesRead = 0;
 		
+		if(isState(STATE_CLOSED))
+			return;
+		
 		if(inputBuffer == null)
 		{
-			inputBuffer = ByteBuffer.allocate(32 * 1024);
+			inputBuffer = ReceivePool.pool.acquire();
+			inputBufferPooled = inputBuffer != null;
+			if(inputBufferPooled) {
+				pooledReceiveBuffers.increment();
+			} else {
+				inputBuffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+				heapReceiveBuffers.increment();
+			}
 			// await BT handshake on first allocation since this has to be the first read
 			inputBuffer.limit(20+8+20+20);
 		}
@@ -659,23 +675,65 @@ public class PullMetaDataConnection implements Selectable {
 			req.put("msg_type", 0);
 			req.put("piece", idx);
 			
-			BEncoder encoder = new BEncoder();
-			ByteBuffer body = encoder.encode(req, 512);
-			ByteBuffer header = ByteBuffer.allocate(BT_HEADER_LENGTH + 1 + 1);
-			header.putInt(2 + body.remaining());
-			header.put((byte) LTEP_HEADER_ID);
-			header.put((byte) ltepRemoteMetadataExchangeMessageId);
-			header.flip();
-			
 			outstandingRequests++;
 			
-			outputBuffers.addLast(header);
-			outputBuffers.addLast(body);
+			outputBuffers.addLast(ltepMessage(ltepRemoteMetadataExchangeMessageId, req, 64));
 		}
 		
 		canWriteEvent();
 	}
 	
+	/**
+	 * encodes header and body of an LTEP message into a single buffer
+	 */
+	static ByteBuffer ltepMessage(int ltepId, Map<String, Object> body, int maxBodySize) {
+		ByteBuffer msg = ByteBuffer.allocate(BT_HEADER_LENGTH + 2 + maxBodySize);
+		msg.position(BT_HEADER_LENGTH + 2);
+		ByteBuffer bodyView = msg.slice();
+		new BEncoder().encodeInto(body, bodyView);
+		msg.putInt(0, 2 + bodyView.limit());
+		msg.put(BT_MSG_ID_OFFSET, (byte) LTEP_HEADER_ID);
+		msg.put(BT_LTEP_HEADER_OFFSET, (byte) ltepId);
+		msg.limit(BT_HEADER_LENGTH + 2 + bodyView.limit());
+		msg.position(0);
+		return msg;
+	}
+	
+	void releaseBuffers() {
+		if(inputBuffer != null) {
+			if(inputBufferPooled) {
+				ReceivePool.pool.release(inputBuffer);
+				pooledReceiveBuffers.decrement();
+			} else {
+				heapReceiveBuffers.decrement();
+			}
+			inputBuffer = null;
+		}
+		outputBuffers.clear();
+		if(registered) {
+			registered = false;
+			registeredConnections.decrement();
+		}
+	}
+	
+	/**
+	 * @return connections of all fetchers that are registered with a selector and have not been cleaned up yet
+	 */
+	public static long getRegisteredConnections() {
+		return registeredConnections.sum();
+	}
+	
+	public static long getPooledReceiveBufferBytes() {
+		return pooledReceiveBuffers.sum() * RECEIVE_BUFFER_SIZE;
+	}
+	
+	/**
+	 * @return receive buffers allocated on the heap because the pool was exhausted
+	 */
+	public static long getHeapReceiveBufferBytes() {
+		return heapReceiveBuffers.sum() * RECEIVE_BUFFER_SIZE;
+	}
+	
 	void checkMetaRequests() throws IOException {
 		if(pool == null)
 			return;
@@ -735,6 +793,10 @@ public class PullMetaDataConnection implements Selectable {
 			
 		else if(!channel.isOpen())
 			terminate("async close detected");
+		
+		// state checks run on the selector thread, so no read can be using the buffers anymore
+		if(isState(STATE_CLOSED))
+			releaseBuffers();
 	}
 	
 	public void terminate(String reasonStr, CloseReason reason)  throws IOException  {
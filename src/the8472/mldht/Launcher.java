@@ -33,6 +33,9 @@ import lbms.plugins.mldht.DHTConfiguration;
 import lbms.plugins.mldht.kad.DHT;
 import lbms.plugins.mldht.kad.DHT.LogLevel;
 import lbms.plugins.mldht.kad.DHTLogger;
+import lbms.plugins.mldht.kad.ExecutionMode;
+import lbms.plugins.mldht.kad.GenericStorage;
+import lbms.plugins.mldht.kad.SpamThrottle;
 import the8472.utils.ConfigReader;
 import the8472.utils.FilesystemNotifications;
 import the8472.utils.XMLUtils;
@@ -53,10 +56,22 @@ public class Launcher {
 		
 		int port;
 		boolean multihoming;
+		int ioBatchSize;
+		SpamThrottle.Type spamThrottle;
+		boolean warmRestart;
+		int storageCapacity;
+		int signatureVerificationThreads;
+		ExecutionMode executionMode;
 		
 		void update() {
 			port = configReader.getLong("//core/port").orElse(49001L).intValue();
 			multihoming = configReader.getBoolean("//core/multihoming").orElse(true);
+			ioBatchSize = configReader.getLong("//core/ioBatchSize").orElse(16L).intValue();
+			spamThrottle = configReader.get(XMLUtils.buildXPath("//core/spamThrottle")).map(SpamThrottle.Type::valueOf).orElse(SpamThrottle.Type.HASHED);
+			warmRestart = configReader.getBoolean("//core/warmRestart").orElse(true);
+			signatureVerificationThreads = configReader.getLong("//core/signatureVerificationThreads").orElse(0L).intValue();
+			executionMode = configReader.get(XMLUtils.buildXPath("//core/executionMode")).map(ExecutionMode::valueOf).orElse(ExecutionMode.SCHEDULER);
+			storageCapacity = configReader.getLong("//core/storageCapacityMiB").map(mib -> mib.intValue() * 1024 * 1024).orElse(GenericStorage.DEFAULT_CAPACITY);
 		}
 
 		
@@ -84,6 +99,36 @@ public class Launcher {
 		public boolean allowMultiHoming() {
 			return multihoming;
 		}
+		
+		@Override
+		public int getIOBatchSize() {
+			return ioBatchSize;
+		}
+		
+		@Override
+		public SpamThrottle.Type getSpamThrottleType() {
+			return spamThrottle;
+		}
+		
+		@Override
+		public boolean warmRestart() {
+			return warmRestart;
+		}
+		
+		@Override
+		public int getStorageCapacity() {
+			return storageCapacity;
+		}
+		
+		@Override
+		public int getSignatureVerificationThreads() {
+			return signatureVerificationThreads;
+		}
+		
+		@Override
+		public ExecutionMode getExecutionMode() {
+			return executionMode;
+		}
 	}
 	
 	XmlConfig config = new XmlConfig();
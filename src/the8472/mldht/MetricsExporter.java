@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.mldht;
+
+import static the8472.utils.Functional.unchecked;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Formatter;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.GenericStorage;
+import lbms.plugins.mldht.kad.ResponseCache;
+import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.RPCStats;
+import lbms.plugins.mldht.kad.SignatureVerifier;
+import lbms.plugins.mldht.kad.messages.MessageBase.Method;
+import lbms.plugins.mldht.kad.messages.MessageBase.Type;
+import lbms.plugins.mldht.kad.utils.LatencyHistogram;
+import the8472.bt.PullMetaDataConnection;
+import the8472.utils.ConfigReader;
+import the8472.utils.XMLUtils;
+
+/**
+ * Serves RPC counters, round trip time distributions and queue depths of all DHT instances over HTTP at
+ * <code>/metrics</code>, in the prometheus text exposition format.
+ *
+ * Binds to localhost:{@value #DEFAULT_PORT} unless configured otherwise.
+ */
+public class MetricsExporter implements Component {
+
+	public static final int DEFAULT_PORT = 33349;
+
+	static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+	HttpServer server;
+	Collection<DHT> dhts;
+
+	@Override
+	public void start(Collection<DHT> dhts, ConfigReader config) {
+		this.dhts = dhts;
+
+		String base = "//components/component[className='" + MetricsExporter.class.getName() + "']";
+		int port = config.getLong(base + "/port").map(Long::intValue).orElse(DEFAULT_PORT);
+
+		try {
+			InetAddress addr = config.get(XMLUtils.buildXPath(base + "/address")).flatMap(unchecked(str -> Optional.of(InetAddress.getByName(str)))).orElse(InetAddress.getLoopbackAddress());
+			server = HttpServer.create(new InetSocketAddress(addr, port), 0);
+			server.createContext("/metrics", this::handle);
+			server.start();
+		} catch (IOException e) {
+			DHT.log(e, LogLevel.Error);
+		}
+	}
+
+	@Override
+	public void stop() {
+		if(server != null)
+			server.stop(0);
+	}
+
+	void handle(HttpExchange exchange) throws IOException {
+		byte[] body = render().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try(OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	String render() {
+		StringBuilder b = new StringBuilder();
+		Formatter f = new Formatter(b);
+
+		List<DHT> running = dhts.stream().filter(DHT::isRunning).collect(Collectors.toList());
+
+		header(f, "mldht_rpc_sent_messages_total", "counter", "messages sent, by method and message type");
+		for(DHT d : running)
+			messageCounts(f, "mldht_rpc_sent_messages_total", d, RPCStats::getSentMessageCount);
+
+		header(f, "mldht_rpc_received_messages_total", "counter", "messages received, by method and message type");
+		for(DHT d : running)
+			messageCounts(f, "mldht_rpc_received_messages_total", d, RPCStats::getReceivedMessageCount);
+
+		header(f, "mldht_rpc_timeouts_total", "counter", "outgoing requests that timed out");
+		for(DHT d : running)
+			for(Method m : Method.values())
+				f.format("mldht_rpc_timeouts_total{dht=\"%s\",method=\"%s\"} %d%n", d.getType().shortName, m, d.getStats().getRpcStats().getTimeoutMessageCount(m));
+
+		header(f, "mldht_rpc_sent_bytes_total", "counter", "bytes sent including IP and UDP headers");
+		for(DHT d : running)
+			f.format("mldht_rpc_sent_bytes_total{dht=\"%s\"} %d%n", d.getType().shortName, d.getStats().getRpcStats().getSentBytes());
+
+		header(f, "mldht_rpc_received_bytes_total", "counter", "bytes received including IP and UDP headers");
+		for(DHT d : running)
+			f.format("mldht_rpc_received_bytes_total{dht=\"%s\"} %d%n", d.getType().shortName, d.getStats().getRpcStats().getReceivedBytes());
+
+		header(f, "mldht_rpc_rtt_milliseconds", "summary", "round trip time of responses to outgoing requests");
+		for(DHT d : running) {
+			for(Method m : Method.values()) {
+				LatencyHistogram h = d.getStats().getRpcStats().getRTTHistogram(m);
+				String labels = String.format("dht=\"%s\",method=\"%s\"", d.getType().shortName, m);
+				for(double q : QUANTILES)
+					f.format("mldht_rpc_rtt_milliseconds{%s,quantile=\"%s\"} %d%n", labels, q, h.getQuantile(q));
+				f.format("mldht_rpc_rtt_milliseconds_sum{%s} %d%n", labels, h.getSum());
+				f.format("mldht_rpc_rtt_milliseconds_count{%s} %d%n", labels, h.getCount());
+			}
+		}
+
+		header(f, "mldht_rpc_active_calls", "gauge", "requests in flight");
+		for(DHT d : running)
+			serverGauge(f, "mldht_rpc_active_calls", d, RPCServer::getNumActiveRPCCalls);
+
+		header(f, "mldht_rpc_call_window", "gauge", "congestion window limiting the requests in flight, labeled with the reason of the last decrease");
+		for(DHT d : running)
+			for(RPCServer srv : d.getServerManager().getAllServers())
+				f.format("mldht_rpc_call_window{dht=\"%s\",server=\"%s\",limit=\"%s\"} %d%n", d.getType().shortName, escape(srv.getBindAddress().getHostAddress()), srv.getCallWindowLimit(), srv.getCallWindow());
+
+		header(f, "mldht_rpc_call_queue_depth", "gauge", "requests waiting for a free call slot");
+		for(DHT d : running)
+			serverGauge(f, "mldht_rpc_call_queue_depth", d, RPCServer::getCallQueueDepth);
+
+		header(f, "mldht_rpc_pipeline_depth", "gauge", "messages waiting to be written to the socket");
+		for(DHT d : running)
+			serverGauge(f, "mldht_rpc_pipeline_depth", d, RPCServer::getPipelineDepth);
+
+		header(f, "mldht_rpc_timer_lag_max_milliseconds", "gauge", "largest observed delay of a stall or timeout transition");
+		for(DHT d : running)
+			serverGauge(f, "mldht_rpc_timer_lag_max_milliseconds", d, RPCServer::getMaxTimerLag);
+
+		header(f, "mldht_tasks_active", "gauge", "running tasks");
+		for(DHT d : running)
+			f.format("mldht_tasks_active{dht=\"%s\"} %d%n", d.getType().shortName, d.getTaskManager().getNumTasks());
+
+		header(f, "mldht_tasks_queued", "gauge", "tasks waiting for an RPC server with spare capacity");
+		for(DHT d : running)
+			f.format("mldht_tasks_queued{dht=\"%s\"} %d%n", d.getType().shortName, d.getTaskManager().getNumQueuedTasks());
+
+		header(f, "mldht_response_cache_requests_total", "counter", "lookup response parts served from the response cache or computed");
+		for(DHT d : running) {
+			ResponseCache cache = d.getResponseCache();
+			String dht = d.getType().shortName;
+			f.format("mldht_response_cache_requests_total{dht=\"%s\",kind=\"nodes\",result=\"hit\"} %d%n", dht, cache.getNodeHits());
+			f.format("mldht_response_cache_requests_total{dht=\"%s\",kind=\"nodes\",result=\"miss\"} %d%n", dht, cache.getNodeMisses());
+			f.format("mldht_response_cache_requests_total{dht=\"%s\",kind=\"peers\",result=\"hit\"} %d%n", dht, cache.getPeerHits());
+			f.format("mldht_response_cache_requests_total{dht=\"%s\",kind=\"peers\",result=\"miss\"} %d%n", dht, cache.getPeerMisses());
+		}
+
+		header(f, "mldht_storage_bytes", "gauge", "off-heap memory of the BEP44 storage, by capacity, pages allocated to size classes and slots in use");
+		for(DHT d : running) {
+			GenericStorage storage = d.getStorage();
+			String dht = d.getType().shortName;
+			f.format("mldht_storage_bytes{dht=\"%s\",kind=\"capacity\"} %d%n", dht, storage.getCapacity());
+			f.format("mldht_storage_bytes{dht=\"%s\",kind=\"allocated\"} %d%n", dht, storage.getAllocatedBytes());
+			f.format("mldht_storage_bytes{dht=\"%s\",kind=\"used\"} %d%n", dht, storage.getUsedBytes());
+		}
+		
+		header(f, "mldht_storage_items", "gauge", "stored BEP44 items");
+		for(DHT d : running)
+			f.format("mldht_storage_items{dht=\"%s\"} %d%n", d.getType().shortName, d.getStorage().getItemCount());
+		
+		header(f, "mldht_storage_evictions_total", "counter", "BEP44 items evicted to make room for new ones");
+		for(DHT d : running)
+			f.format("mldht_storage_evictions_total{dht=\"%s\"} %d%n", d.getType().shortName, d.getStorage().getEvictionCount());
+		
+		header(f, "mldht_storage_quota_rejections_total", "counter", "PUT requests rejected because the source address exceeded its storage quota");
+		for(DHT d : running)
+			f.format("mldht_storage_quota_rejections_total{dht=\"%s\"} %d%n", d.getType().shortName, d.getStorage().getQuotaRejectionCount());
+
+		header(f, "mldht_signature_checks_total", "counter", "BEP44 signature checks of all DHT instances, by cache hits, successful and failed verifications");
+		f.format("mldht_signature_checks_total{result=\"cached\"} %d%n", SignatureVerifier.getCacheHits());
+		f.format("mldht_signature_checks_total{result=\"verified\"} %d%n", SignatureVerifier.getVerifications() - SignatureVerifier.getFailures());
+		f.format("mldht_signature_checks_total{result=\"failed\"} %d%n", SignatureVerifier.getFailures());
+
+		header(f, "mldht_fetcher_connections", "gauge", "metadata fetch connections registered with a selector");
+		f.format("mldht_fetcher_connections %d%n", PullMetaDataConnection.getRegisteredConnections());
+		
+		header(f, "mldht_fetcher_receive_buffer_bytes", "gauge", "receive buffers held by metadata fetch connections, by pooled and heap fallback buffers");
+		f.format("mldht_fetcher_receive_buffer_bytes{source=\"pool\"} %d%n", PullMetaDataConnection.getPooledReceiveBufferBytes());
+		f.format("mldht_fetcher_receive_buffer_bytes{source=\"heap\"} %d%n", PullMetaDataConnection.getHeapReceiveBufferBytes());
+
+		header(f, "mldht_routing_table_entries", "gauge", "entries in the main routing table buckets");
+		for(DHT d : running)
+			f.format("mldht_routing_table_entries{dht=\"%s\"} %d%n", d.getType().shortName, d.getNode().getNumEntriesInRoutingTable());
+
+		return b.toString();
+	}
+
+	static void header(Formatter f, String name, String type, String help) {
+		f.format("# HELP %s %s%n", name, help);
+		f.format("# TYPE %s %s%n", name, type);
+	}
+
+	interface MessageCount {
+		long get(RPCStats stats, Method m, Type t);
+	}
+
+	static void messageCounts(Formatter f, String name, DHT d, MessageCount count) {
+		RPCStats stats = d.getStats().getRpcStats();
+		for(Method m : Method.values())
+			for(Type t : Type.values())
+				f.format("%s{dht=\"%s\",method=\"%s\",type=\"%s\"} %d%n", name, d.getType().shortName, m, t, count.get(stats, m, t));
+	}
+
+	static void serverGauge(Formatter f, String name, DHT d, ToLongFunction<RPCServer> value) {
+		for(RPCServer srv : d.getServerManager().getAllServers())
+			f.format("%s{dht=\"%s\",server=\"%s\"} %d%n", name, d.getType().shortName, escape(srv.getBindAddress().getHostAddress()), value.applyAsLong(srv));
+	}
+
+	static String escape(String labelValue) {
+		return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+}
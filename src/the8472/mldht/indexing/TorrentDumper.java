@@ -14,6 +14,7 @@ import static the8472.utils.Functional.unchecked;
 
 import the8472.bencode.BDecoder;
 import the8472.bencode.BEncoder;
+import the8472.bt.PullMetaDataConnection;
 import the8472.bt.TorrentUtils;
 import the8472.bt.UselessPeerFilter;
 import the8472.mldht.Component;
@@ -802,6 +803,7 @@ public class TorrentDumper implements Component {
 		try {
 			FileIO.writeAndAtomicMove(storageDir.resolve("dumper.log"), (p) -> {
 				p.format("Fetcher:%n established: %d%n sockets: %d%n%n adaptive timeout:%n%s %n%n", fetcher.openConnections(), fetcher.socketcount(), fetcher.adaptiveConnectTimeoutHistogram());
+				p.format("Receive buffers:%n connections: %d%n pooled: %d bytes%n heap: %d bytes%n%n", PullMetaDataConnection.getRegisteredConnections(), PullMetaDataConnection.getPooledReceiveBufferBytes(), PullMetaDataConnection.getHeapReceiveBufferBytes());
 				
 				p.format("FetchTasks: %d %n", activeCount.get());
 				activeTasks.values().forEach(ft -> {
@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Fixed-capacity off-heap arena for small variable-sized records.
+ *
+ * The memory is divided into pages of {@value #PAGE_SIZE} bytes which are assigned to a size class on demand and
+ * carved into equally sized slots. Freed slots are reused by their class, pages that become empty return to the shared
+ * pool. Each slot has an owner so that callers can reclaim a whole page by evicting its owners.
+ *
+ * The backing buffer is obtained from {@link AnonAllocator} on first use. Not thread-safe.
+ */
+public class SlabArena<T> {
+
+	public static final int PAGE_SIZE = 64 * 1024;
+	// ~1.25 growth factor, covers the largest BEP44 record
+	static final int[] SLOT_SIZES = {128, 160, 200, 256, 320, 400, 512, 640, 800, 1024, 1280};
+	public static final int MAX_RECORD_LENGTH = SLOT_SIZES[SLOT_SIZES.length - 1];
+	public static final int SIZE_CLASSES = SLOT_SIZES.length;
+
+	private final int pageCount;
+	private ByteBuffer memory;
+
+	private final int[] pageClass;
+	private final int[] pageUsed;
+	private final int[][] pageFreeSlots;
+	private final int[] pageFreeCount;
+	private final Object[][] owners;
+	private final BitSet assignedPages;
+	// pages of each class with at least one free slot
+	private final BitSet[] partialPages = new BitSet[SIZE_CLASSES];
+	private final int[] classPages = new int[SIZE_CLASSES];
+
+	private long usedBytes;
+	private int usedSlots;
+
+	public SlabArena(int capacity) {
+		if(capacity < PAGE_SIZE)
+			throw new IllegalArgumentException("capacity must be at least one page");
+		pageCount = capacity / PAGE_SIZE;
+		pageClass = new int[pageCount];
+		pageUsed = new int[pageCount];
+		pageFreeSlots = new int[pageCount][];
+		pageFreeCount = new int[pageCount];
+		owners = new Object[pageCount][];
+		assignedPages = new BitSet(pageCount);
+		for(int i=0;i<SIZE_CLASSES;i++)
+			partialPages[i] = new BitSet(pageCount);
+	}
+
+	public static int sizeClass(int length) {
+		for(int i=0;i<SIZE_CLASSES;i++)
+			if(length <= SLOT_SIZES[i])
+				return i;
+		throw new IllegalArgumentException("record length " + length + " exceeds " + MAX_RECORD_LENGTH);
+	}
+
+	public static int slotSize(int sizeClass) {
+		return SLOT_SIZES[sizeClass];
+	}
+
+	public static int page(int handle) {
+		return handle >>> 16;
+	}
+
+	private static int slot(int handle) {
+		return handle & 0xFFFF;
+	}
+
+	public int sizeClassOf(int handle) {
+		return pageClass[page(handle)];
+	}
+
+	/**
+	 * @return a handle to a slot of at least the requested length, or -1 if the size class has no free slot and no
+	 *         unassigned page is left
+	 */
+	public int allocate(int length, T owner) {
+		int cls = sizeClass(length);
+		int page = partialPages[cls].nextSetBit(0);
+		if(page < 0) {
+			page = assignedPages.nextClearBit(0);
+			if(page >= pageCount)
+				return -1;
+			assignPage(page, cls);
+		}
+
+		int slot = pageFreeSlots[page][--pageFreeCount[page]];
+		if(pageFreeCount[page] == 0)
+			partialPages[cls].clear(page);
+		pageUsed[page]++;
+		owners[page][slot] = owner;
+		usedBytes += SLOT_SIZES[cls];
+		usedSlots++;
+		return page << 16 | slot;
+	}
+
+	private void assignPage(int page, int cls) {
+		if(memory == null)
+			memory = AnonAllocator.allocate(pageCount * PAGE_SIZE);
+		int slots = PAGE_SIZE / SLOT_SIZES[cls];
+		int[] free = new int[slots];
+		// hand out low slots first
+		for(int i=0;i<slots;i++)
+			free[i] = slots - 1 - i;
+		assignedPages.set(page);
+		pageClass[page] = cls;
+		classPages[cls]++;
+		pageFreeSlots[page] = free;
+		pageFreeCount[page] = slots;
+		owners[page] = new Object[slots];
+		partialPages[cls].set(page);
+	}
+
+	public void free(int handle) {
+		int page = page(handle);
+		int slot = slot(handle);
+		int cls = pageClass[page];
+		if(owners[page][slot] == null)
+			throw new IllegalStateException("double free of slot " + slot + " in page " + page);
+		owners[page][slot] = null;
+		pageFreeSlots[page][pageFreeCount[page]++] = slot;
+		pageUsed[page]--;
+		usedBytes -= SLOT_SIZES[cls];
+		usedSlots--;
+
+		if(pageUsed[page] == 0) {
+			partialPages[cls].clear(page);
+			assignedPages.clear(page);
+			classPages[cls]--;
+			pageFreeSlots[page] = null;
+			owners[page] = null;
+		} else {
+			partialPages[cls].set(page);
+		}
+	}
+
+	/**
+	 * @return the page of the size class with the fewest slots in use, i.e. the cheapest one to reclaim, or -1 if the
+	 *         class has no page
+	 */
+	public int leastUsedPage(int sizeClass) {
+		int best = -1;
+		for(int page = assignedPages.nextSetBit(0);page >= 0;page = assignedPages.nextSetBit(page + 1))
+			if(pageClass[page] == sizeClass && (best < 0 || pageUsed[page] < pageUsed[best]))
+				best = page;
+		return best;
+	}
+
+	@SuppressWarnings("unchecked")
+	public List<T> ownersOfPage(int page) {
+		List<T> result = new ArrayList<>();
+		if(owners[page] == null)
+			return result;
+		for(Object o : owners[page])
+			if(o != null)
+				result.add((T) o);
+		return result;
+	}
+
+	/**
+	 * @return a view of the slot, positioned at its start and limited to its size
+	 */
+	public ByteBuffer slotBuffer(int handle) {
+		int offset = page(handle) * PAGE_SIZE + slot(handle) * SLOT_SIZES[sizeClassOf(handle)];
+		ByteBuffer buf = memory.duplicate();
+		buf.limit(offset + SLOT_SIZES[sizeClassOf(handle)]);
+		buf.position(offset);
+		return buf;
+	}
+
+	public long capacity() {
+		return (long) pageCount * PAGE_SIZE;
+	}
+
+	/**
+	 * @return bytes of all pages currently assigned to a size class
+	 */
+	public long allocatedBytes() {
+		return (long) assignedPages.cardinality() * PAGE_SIZE;
+	}
+
+	/**
+	 * @return bytes of all pages currently assigned to the size class
+	 */
+	public long allocatedBytes(int sizeClass) {
+		return (long) classPages[sizeClass] * PAGE_SIZE;
+	}
+
+	/**
+	 * @return bytes of all slots in use, including the slack between record length and slot size
+	 */
+	public long usedBytes() {
+		return usedBytes;
+	}
+
+	public int usedSlots() {
+		return usedSlots;
+	}
+
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.utils.concurrent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * Reusable instances of non-thread-safe helpers such as decoders and scratch buffers.
+ *
+ * Platform threads keep one instance each in a {@link ThreadLocal}. Virtual threads are started per unit of work, a
+ * thread local would be initialized anew for every packet, so they borrow from a small shared pool instead.
+ *
+ * - {@link #acquire()}/{@link #release(Object)} must be paired, on platform threads release is a no-op
+ * - the pool does not block, a miss creates a new instance and a full pool drops released ones
+ */
+public class ThreadCache<T> {
+
+	private static final MethodHandle IS_VIRTUAL = lookupIsVirtual();
+
+	private final Supplier<T> factory;
+	private final ThreadLocal<T> local;
+	private final AtomicReferenceArray<T> pool;
+
+	public ThreadCache(Supplier<T> factory) {
+		this.factory = factory;
+		local = ThreadLocal.withInitial(factory);
+		// roughly one per carrier thread that can run concurrently
+		pool = new AtomicReferenceArray<>(Math.max(Runtime.getRuntime().availableProcessors(), 2) * 2);
+	}
+
+	/**
+	 * compiled against java 8, look up the java 21 API reflectively
+	 */
+	private static MethodHandle lookupIsVirtual() {
+		try {
+			return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	static boolean isVirtual(Thread t) {
+		if(IS_VIRTUAL == null)
+			return false;
+		try {
+			return (boolean) IS_VIRTUAL.invokeExact(t);
+		} catch (Throwable e) {
+			return false;
+		}
+	}
+
+	/**
+	 * for callers that don't release the instance. virtual threads always get a fresh one
+	 */
+	public T get() {
+		if(isVirtual(Thread.currentThread()))
+			return factory.get();
+		return local.get();
+	}
+
+	public T acquire() {
+		if(!isVirtual(Thread.currentThread()))
+			return local.get();
+		for(int i=0;i<pool.length();i++) {
+			T t = pool.get(i);
+			if(t != null && pool.compareAndSet(i, t, null))
+				return t;
+		}
+		return factory.get();
+	}
+
+	public void release(T t) {
+		if(!isVirtual(Thread.currentThread()))
+			return;
+		for(int i=0;i<pool.length();i++) {
+			if(pool.get(i) == null && pool.compareAndSet(i, null, t))
+				return;
+		}
+	}
+
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.utils.io;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of equally sized direct buffers carved out of a single slab.
+ *
+ * - acquire/release are lock-free and do not allocate (treiber stack over slot indices, ABA-protected by a stamp in the upper 32 bits of the head)
+ * - an exhausted pool returns null instead of blocking, callers are expected to fall back to regular allocation
+ * - releasing a buffer that was not handed out by this pool is a no-op, so fallback buffers can share the same code paths
+ */
+public class ByteBufferPool {
+
+	private static final int EMPTY = -1;
+
+	final int bufferSize;
+	final ByteBuffer[] slots;
+	final int[] next;
+	final Map<ByteBuffer, Integer> indices;
+
+	// upper 32 bits: stamp, lower 32 bits: index of the first free slot
+	final AtomicLong head = new AtomicLong();
+
+	final LongAdder exhausted = new LongAdder();
+	final LongAdder acquired = new LongAdder();
+
+	public ByteBufferPool(int bufferSize, int count) {
+		if(bufferSize < 1 || count < 1)
+			throw new IllegalArgumentException("buffer size and count must be positive");
+		if((long)bufferSize * count > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("pool exceeds maximum slab size");
+
+		this.bufferSize = bufferSize;
+		slots = new ByteBuffer[count];
+		next = new int[count];
+		// identity semantics: ByteBuffer.equals compares contents
+		indices = new IdentityHashMap<>(count);
+
+		ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * count);
+
+		for(int i=0;i<count;i++) {
+			slab.limit((i + 1) * bufferSize);
+			slab.position(i * bufferSize);
+			slots[i] = slab.slice();
+			indices.put(slots[i], i);
+			next[i] = i + 1 < count ? i + 1 : EMPTY;
+		}
+
+		head.set(0);
+	}
+
+	/**
+	 * @return a cleared buffer or null if the pool is exhausted
+	 */
+	public ByteBuffer acquire() {
+		while(true) {
+			long current = head.get();
+			int idx = (int) current;
+			if(idx == EMPTY) {
+				exhausted.increment();
+				return null;
+			}
+			long updated = ((current >>> 32) + 1) << 32 | (next[idx] & 0xFFFFFFFFL);
+			if(head.compareAndSet(current, updated)) {
+				acquired.increment();
+				ByteBuffer buf = slots[idx];
+				buf.clear();
+				return buf;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the buffer belonged to the pool and was returned to it
+	 */
+	public boolean release(ByteBuffer buf) {
+		Integer boxed = indices.get(buf);
+		if(boxed == null)
+			return false;
+		int idx = boxed;
+		while(true) {
+			long current = head.get();
+			next[idx] = (int) current;
+			long updated = ((current >>> 32) + 1) << 32 | (idx & 0xFFFFFFFFL);
+			if(head.compareAndSet(current, updated))
+				return true;
+		}
+	}
+
+	public int bufferSize() {
+		return bufferSize;
+	}
+
+	public int capacity() {
+		return slots.length;
+	}
+
+	/**
+	 * approximation, only exact when there are no concurrent acquire/release operations
+	 */
+	public int available() {
+		int count = 0;
+		int idx = (int) head.get();
+		while(idx != EMPTY && count < slots.length) {
+			count++;
+			idx = next[idx];
+		}
+		return count;
+	}
+
+	/**
+	 * @return number of acquire attempts that failed because no buffer was available
+	 */
+	public long exhaustedCount() {
+		return exhausted.sum();
+	}
+
+	public long acquiredCount() {
+		return acquired.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "buffers free: " + available() + "/" + capacity() + " size: " + bufferSize + " acquired: " + acquiredCount() + " exhausted: " + exhaustedCount();
+	}
+
+}
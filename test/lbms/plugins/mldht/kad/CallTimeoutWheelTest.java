@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import lbms.plugins.mldht.kad.messages.PingRequest;
+
+public class CallTimeoutWheelTest {
+
+	RPCCall sentCall(CallTimeoutWheel wheel, long sentTime) {
+		RPCCall c = new RPCCall(new PingRequest());
+		c.state = RPCState.SENT;
+		c.sentTime = sentTime;
+		c.timer = wheel;
+		return c;
+	}
+
+	@Test
+	public void testStallThenTimeout() throws InterruptedException {
+		CallTimeoutWheel wheel = new CallTimeoutWheel();
+		RPCCall c = sentCall(wheel, System.currentTimeMillis());
+		wheel.schedule(c, 30);
+
+		wheel.tick();
+		assertEquals(RPCState.SENT, c.state());
+
+		Thread.sleep(30 + 2 * CallTimeoutWheel.TICK_MILLIS);
+		wheel.tick();
+		assertEquals(RPCState.STALLED, c.state());
+		// re-armed for the final timeout
+		assertEquals(1, wheel.size());
+
+		c.sentTime -= DHTConstants.RPC_CALL_TIMEOUT_MAX;
+		wheel.schedule(c, 0);
+		Thread.sleep(2 * CallTimeoutWheel.TICK_MILLIS);
+		wheel.tick();
+		assertEquals(RPCState.TIMEOUT, c.state());
+		assertEquals(0, wheel.size());
+		assertTrue(wheel.getMaxLag() >= 0);
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException {
+		CallTimeoutWheel wheel = new CallTimeoutWheel();
+		RPCCall[] calls = new RPCCall[100];
+		for(int i=0;i<calls.length;i++) {
+			calls[i] = sentCall(wheel, System.currentTimeMillis());
+			// multiple calls per slot and multiple rounds
+			wheel.schedule(calls[i], i % 3 == 0 ? CallTimeoutWheel.SLOTS * CallTimeoutWheel.TICK_MILLIS : 10);
+		}
+		assertEquals(calls.length, wheel.size());
+
+		for(int i=0;i<calls.length;i+=2)
+			wheel.cancel(calls[i]);
+		assertEquals(calls.length / 2, wheel.size());
+
+		Thread.sleep(10 + 2 * CallTimeoutWheel.TICK_MILLIS);
+		wheel.tick();
+
+		for(int i=0;i<calls.length;i++) {
+			RPCState expected = i % 2 == 0 || i % 3 == 0 ? RPCState.SENT : RPCState.STALLED;
+			assertEquals(expected, calls[i].state());
+		}
+	}
+
+}
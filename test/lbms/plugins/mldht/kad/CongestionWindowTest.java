@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import lbms.plugins.mldht.kad.CongestionWindow.Limit;
+
+public class CongestionWindowTest {
+
+	@Test
+	public void testLoss() {
+		CongestionWindow w = new CongestionWindow();
+		long now = 1000;
+
+		// background loss of a healthy node
+		w.onTimeout(0.5, 0.3, 500, now);
+		assertEquals(CongestionWindow.MAX_WINDOW, w.getWindow());
+		assertEquals(Limit.NONE, w.getLimit());
+
+		w.onTimeout(0.8, 0.3, 500, now += 1000);
+		assertEquals(CongestionWindow.MAX_WINDOW / 2, w.getWindow());
+		assertEquals(Limit.LOSS, w.getLimit());
+
+		// at most one decrease per round trip
+		w.onTimeout(0.8, 0.3, 500, now += 100);
+		assertEquals(CongestionWindow.MAX_WINDOW / 2, w.getWindow());
+
+		for(int i=0;i<10;i++)
+			w.onTimeout(0.5, 0.9, 500, now += 1000);
+		assertEquals(CongestionWindow.MIN_WINDOW, w.getWindow());
+
+		// additive increase, about one per window of responses
+		for(int i=0;i<CongestionWindow.MIN_WINDOW + 1;i++)
+			w.onResponse(-1, 500, now);
+		assertEquals(CongestionWindow.MIN_WINDOW + 1, w.getWindow());
+
+		while(w.getWindow() < CongestionWindow.MAX_WINDOW)
+			w.onResponse(-1, 500, now);
+		assertEquals(Limit.NONE, w.getLimit());
+	}
+
+	@Test
+	public void testLatency() {
+		CongestionWindow w = new CongestionWindow();
+		long now = 1000;
+
+		w.onResponse(100, 500, now);
+		w.onResponse(150, 500, now += 1000);
+		assertEquals(CongestionWindow.MAX_WINDOW, w.getWindow());
+
+		w.onResponse(400, 500, now += 1000);
+		assertTrue(w.getWindow() < CongestionWindow.MAX_WINDOW);
+		assertEquals(Limit.LATENCY, w.getLimit());
+
+		// stale minimum is replaced eventually
+		int window = w.getWindow();
+		w.onResponse(400, 500, now += CongestionWindow.MIN_RTT_LIFETIME + 1);
+		assertTrue(w.getWindow() >= window);
+	}
+
+}
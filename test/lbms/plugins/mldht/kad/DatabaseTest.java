@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static lbms.plugins.mldht.kad.NodeFactory.generateIp;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.utils.ByteWrapper;
+
+public class DatabaseTest {
+
+	@Test
+	public void testInsertReplace() {
+		for(DHTtype t : DHTtype.values()) {
+			Database db = new Database();
+			Key k = Key.createRandomKey();
+			InetAddress addr = generateIp(t, (byte) 0);
+
+			db.store(k, PeerAddressDBItem.createFromAddress(addr, 1000, false));
+			db.store(k, PeerAddressDBItem.createFromAddress(addr, 1001, false));
+
+			List<DBItem> sample = db.sample(k, 50, t, false);
+			assertEquals(1, sample.size());
+			PeerAddressDBItem item = (PeerAddressDBItem) sample.get(0);
+			assertEquals(addr, item.getInetAddress());
+			assertEquals(1001, item.getPort());
+
+			// announcing as seed moves the entry to the other set
+			db.store(k, PeerAddressDBItem.createFromAddress(addr, 1001, true));
+			Database.PeersSeeds entry = db.getData().get(k);
+			assertEquals(1, entry.seeds().size());
+			assertEquals(0, entry.peers().size());
+			assertTrue(entry.seeds().snapshot()[0].isSeed());
+		}
+	}
+
+	@Test
+	public void testGrowAndSample() {
+		Database db = new Database();
+		Key k = Key.createRandomKey();
+		Set<PeerAddressDBItem> stored = new HashSet<>();
+
+		while(stored.size() < 1000) {
+			PeerAddressDBItem item = PeerAddressDBItem.createFromAddress(generateIp(DHTtype.IPV4_DHT, (byte) 0), 6881, stored.size() % 4 == 0);
+			if(stored.add(item))
+				db.store(k, item);
+		}
+
+		Database.PeersSeeds entry = db.getData().get(k);
+		assertEquals(250, entry.seeds().size());
+		assertEquals(750, entry.peers().size());
+		assertEquals(stored, Stream.concat(entry.seeds().stream(), entry.peers().stream()).collect(Collectors.toSet()));
+
+		List<DBItem> sample = db.sample(k, 50, DHTtype.IPV4_DHT, true);
+		assertEquals(50, sample.size());
+		assertEquals(50, new HashSet<>(sample).size());
+		assertTrue(sample.stream().noneMatch(i -> ((PeerAddressDBItem)i).isSeed()));
+		assertTrue(stored.containsAll(sample));
+
+		for(DBItem i : db.sample(k, 2000, DHTtype.IPV4_DHT, false)) {
+			PeerAddressDBItem original = stored.stream().filter(i::equals).findAny().get();
+			assertArrayEquals(original.getData(), i.getData());
+			assertEquals(original.getCreatedAt(), i.getCreatedAt());
+		}
+	}
+
+	@Test
+	public void testExpiry() {
+		Database db = new Database();
+		Key k = Key.createRandomKey();
+		long expired = System.currentTimeMillis() - DHTConstants.MAX_ITEM_AGE - 1;
+
+		for(int i=0;i<100;i++) {
+			byte[] raw = PeerAddressDBItem.createFromAddress(generateIp(DHTtype.IPV6_DHT, (byte) 0), 6881, false).getData();
+			db.store(k, new PeerAddressDBItem(raw, i % 2 == 0, i < 60 ? expired : System.currentTimeMillis()));
+		}
+
+		db.expire(System.currentTimeMillis());
+
+		Database.PeersSeeds entry = db.getData().get(k);
+		assertEquals(40, entry.size());
+		assertTrue(entry.peers().stream().allMatch(i -> !i.expired(System.currentTimeMillis())));
+		assertEquals(40, db.sample(k, 50, DHTtype.IPV6_DHT, false).size());
+
+		Key other = Key.createRandomKey();
+		db.store(other, new PeerAddressDBItem(PeerAddressDBItem.createFromAddress(generateIp(DHTtype.IPV4_DHT, (byte) 0), 6881, false).getData(), false, expired));
+		db.expire(System.currentTimeMillis());
+		assertNull(db.sample(other, 50, DHTtype.IPV4_DHT, false));
+	}
+
+	static byte[] rebuilt(Database.ItemSet set) {
+		BloomFilterBEP33 f = new BloomFilterBEP33();
+		set.stream().forEach(i -> f.insert(i.getInetAddress()));
+		return f.serialize();
+	}
+
+	// only 16 random bits per IPv4 address, avoid birthday collisions
+	static InetAddress uniqueIp(Set<InetAddress> used) {
+		InetAddress addr;
+		do {
+			addr = generateIp(DHTtype.IPV4_DHT, (byte) 0);
+		} while(!used.add(addr));
+		return addr;
+	}
+
+	@Test
+	public void testIncrementalScrapeFilter() {
+		Database db = new Database();
+		Key k = Key.createRandomKey();
+		long expired = System.currentTimeMillis() - DHTConstants.MAX_ITEM_AGE - 1;
+		List<InetAddress> addrs = new ArrayList<>();
+		Set<InetAddress> used = new HashSet<>();
+
+		for(int i=0;i<200;i++) {
+			InetAddress addr = uniqueIp(used);
+			addrs.add(addr);
+			byte[] raw = PeerAddressDBItem.createFromAddress(addr, 6881, false).getData();
+			db.store(k, new PeerAddressDBItem(raw, false, i < 50 ? expired : System.currentTimeMillis()));
+		}
+
+		Database.PeersSeeds entry = db.getData().get(k);
+		entry.peers().getFilter();
+		entry.seeds().getFilter();
+		assertEquals(2, db.getStats().getScrapeFilterBuilds());
+
+		// additions, peer -> seed transitions and expiry are all applied in place
+		for(int i=0;i<20;i++)
+			db.store(k, PeerAddressDBItem.createFromAddress(uniqueIp(used), 6881, false));
+		for(int i=100;i<130;i++)
+			db.store(k, PeerAddressDBItem.createFromAddress(addrs.get(i), 6881, true));
+		db.expire(System.currentTimeMillis());
+
+		assertEquals(140, entry.peers().size());
+		assertEquals(30, entry.seeds().size());
+		assertArrayEquals(rebuilt(entry.peers()), entry.peers().getFilter().serialize());
+		assertArrayEquals(rebuilt(entry.seeds()), entry.seeds().getFilter().serialize());
+		assertEquals(2, db.getStats().getScrapeFilterBuilds());
+		assertTrue(db.getStats().getScrapeFilterUpdates() >= 20 + 30 * 2 + 50);
+	}
+
+	@Test
+	public void testTokens() {
+		for(TokenGenerator gen : new TokenGenerator[] {TokenGenerator.sipHash(), TokenGenerator.sha1()}) {
+			for(DHTtype t : DHTtype.values()) {
+				Database db = new Database();
+				db.setTokenGenerator(gen);
+				Key id = Key.createRandomKey();
+				Key target = Key.createRandomKey();
+				InetAddress addr = generateIp(t, (byte) 0);
+				
+				ByteWrapper token = db.genToken(id, addr, 1000, target);
+				assertEquals(4, token.arr.length);
+				assertEquals(token, db.genToken(id, addr, 1000, target));
+				assertTrue(db.checkToken(token, id, addr, 1000, target));
+				assertFalse(db.checkToken(token, id, addr, 1001, target));
+				assertFalse(db.checkToken(token, Key.createRandomKey(), addr, 1000, target));
+				assertFalse(db.checkToken(token, id, addr, 1000, Key.createRandomKey()));
+				assertFalse(db.checkToken(new ByteWrapper(new byte[3]), id, addr, 1000, target));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ExecutionModeTest {
+
+	@Test
+	public void testSchedulerMode() {
+		assertNull(ExecutionMode.SCHEDULER.createExecutor("test"));
+	}
+
+	@Test
+	public void testLightweightThreads() throws InterruptedException {
+		ExecutorService workers = ExecutionMode.LIGHTWEIGHT_THREADS.createExecutor("test");
+		try {
+			AtomicInteger count = new AtomicInteger();
+			CountDownLatch done = new CountDownLatch(100);
+			for(int i=0;i<100;i++) {
+				workers.execute(() -> {
+					// nested submissions like a response handler starting the next call
+					workers.execute(() -> {
+						count.incrementAndGet();
+						done.countDown();
+					});
+				});
+			}
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertEquals(100, count.get());
+		} finally {
+			workers.shutdown();
+		}
+	}
+
+}
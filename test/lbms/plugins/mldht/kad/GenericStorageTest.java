@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import lbms.plugins.mldht.kad.GenericStorage.StorageItem;
+import lbms.plugins.mldht.kad.GenericStorage.UpdateResult;
+import the8472.utils.SlabArena;
+
+public class GenericStorageTest {
+
+	static StorageItem item(int counter, int valueLength, InetAddress source) {
+		byte[] data = new byte[valueLength];
+		ByteBuffer.wrap(data).putInt(counter);
+		StorageItem it = GenericStorage.buildImmutable(data);
+		it.expirationDate = System.currentTimeMillis() + 60_000;
+		it.source = source;
+		return it;
+	}
+
+	static Key put(GenericStorage storage, StorageItem it) {
+		Key k = it.fingerprint();
+		assertEquals(UpdateResult.SUCCESS, storage.putOrUpdate(k, it, -1));
+		return k;
+	}
+
+	@Test
+	public void testRoundTrip() {
+		GenericStorage storage = new GenericStorage(SlabArena.PAGE_SIZE);
+		StorageItem immutable = item(1, 100, null);
+		StorageItem mutable = new StorageItem(new byte[] {'1', ':', 'x'}, new byte[32], new byte[64], new byte[] {1, 2, 3}, 7);
+		storage.restore(immutable.fingerprint(), immutable);
+		storage.restore(mutable.fingerprint(), mutable);
+
+		StorageItem loadedImmutable = storage.get(immutable.fingerprint()).get();
+		assertFalse(loadedImmutable.mutable());
+		assertEquals(immutable.getRawValue(), loadedImmutable.getRawValue());
+		assertEquals(immutable.expirationDate, loadedImmutable.expirationDate);
+
+		StorageItem loadedMutable = storage.get(mutable.fingerprint()).get();
+		assertTrue(loadedMutable.mutable());
+		assertEquals(7, loadedMutable.seq());
+		assertEquals(mutable.getRawValue(), loadedMutable.getRawValue());
+		assertEquals(ByteBuffer.wrap(new byte[] {1, 2, 3}), loadedMutable.salt().get());
+		assertEquals(ByteBuffer.wrap(new byte[64]), loadedMutable.sig().get());
+	}
+
+	@Test
+	public void testLRUEviction() {
+		GenericStorage storage = new GenericStorage(2 * SlabArena.PAGE_SIZE);
+		int slots = 2 * SlabArena.PAGE_SIZE / 128;
+
+		List<Key> keys = new ArrayList<>();
+		for(int i=0;i<slots;i++)
+			keys.add(put(storage, item(i, 64, null)));
+		assertEquals(slots, storage.getItemCount());
+		assertEquals(storage.getCapacity(), storage.getUsedBytes());
+
+		// touch the oldest one, the second oldest should go instead
+		assertTrue(storage.get(keys.get(0)).isPresent());
+		put(storage, item(slots, 64, null));
+
+		assertEquals(slots, storage.getItemCount());
+		assertEquals(1, storage.getEvictionCount());
+		assertTrue(storage.get(keys.get(0)).isPresent());
+		assertFalse(storage.get(keys.get(1)).isPresent());
+	}
+
+	@Test
+	public void testPageReclaim() {
+		GenericStorage storage = new GenericStorage(SlabArena.PAGE_SIZE);
+		int slots = SlabArena.PAGE_SIZE / 128;
+
+		for(int i=0;i<slots;i++)
+			put(storage, item(i, 64, null));
+
+		// no page left for the larger size class, the page of the small items has to be reclaimed
+		Key large = put(storage, item(slots, 900, null));
+		assertEquals(1, storage.getItemCount());
+		assertEquals(slots, storage.getEvictionCount());
+		assertEquals(900 + 4, storage.get(large).get().getRawValue().remaining());
+		assertEquals(SlabArena.PAGE_SIZE, storage.getAllocatedBytes());
+	}
+
+	@Test
+	public void testEvictWithinSizeClass() {
+		GenericStorage storage = new GenericStorage(2 * SlabArena.PAGE_SIZE);
+		int small = SlabArena.PAGE_SIZE / 128;
+		int large = SlabArena.PAGE_SIZE / 1024;
+
+		List<Key> smallKeys = new ArrayList<>();
+		for(int i=0;i<small;i++)
+			smallKeys.add(put(storage, item(i, 64, null)));
+		for(int i=0;i<large;i++)
+			put(storage, item(small + i, 900, null));
+		smallKeys.forEach(storage::get);
+
+		// the large class holds its share and the older items, a single one of them makes room
+		put(storage, item(small + large, 900, null));
+		assertEquals(1, storage.getEvictionCount());
+		assertEquals(small + large, storage.getItemCount());
+	}
+
+	@Test
+	public void testWorkloadShift() {
+		int pages = 4;
+		GenericStorage storage = new GenericStorage(pages * SlabArena.PAGE_SIZE);
+		int small = SlabArena.PAGE_SIZE / 128;
+		int large = SlabArena.PAGE_SIZE / 1024;
+
+		for(int i=0;i<pages * small;i++)
+			put(storage, item(i, 64, null));
+		assertEquals(pages * small, storage.getItemCount());
+
+		// the small items are stale, every page moves over to the large class once the previous one is full
+		for(int i=0;i<pages * large;i++)
+			put(storage, item(pages * small + i, 900, null));
+		assertEquals(pages * large, storage.getItemCount());
+		assertEquals(pages * small, storage.getEvictionCount());
+
+		// no other class left, evicts within the class
+		put(storage, item((pages + 1) * small, 900, null));
+		assertEquals(pages * small + 1, storage.getEvictionCount());
+	}
+
+	@Test
+	public void testQuota() throws UnknownHostException {
+		GenericStorage storage = new GenericStorage(64 * SlabArena.PAGE_SIZE);
+		InetAddress flooder = InetAddress.getByName("2001:db8::1");
+		// same /64
+		InetAddress sibling = InetAddress.getByName("2001:db8::2");
+		InetAddress other = InetAddress.getByName("2001:db8:1::1");
+
+		int allowed = (int) (storage.getCapacity() / GenericStorage.SOURCE_QUOTA_DIVISOR / 1024);
+		for(int i=0;i<allowed;i++)
+			put(storage, item(i, 990, flooder));
+
+		StorageItem rejected = item(allowed, 990, sibling);
+		assertEquals(UpdateResult.QUOTA_FAIL, storage.putOrUpdate(rejected.fingerprint(), rejected, -1));
+		assertEquals(1, storage.getQuotaRejectionCount());
+		put(storage, item(allowed, 990, other));
+		assertEquals(allowed + 1, storage.getItemCount());
+	}
+
+	@Test
+	public void testCleanup() {
+		GenericStorage storage = new GenericStorage(SlabArena.PAGE_SIZE);
+		StorageItem expired = item(0, 64, null);
+		expired.expirationDate = System.currentTimeMillis() - 1;
+		put(storage, expired);
+		Key live = put(storage, item(1, 64, null));
+
+		storage.cleanup();
+
+		assertEquals(1, storage.getItemCount());
+		assertTrue(storage.get(live).isPresent());
+		assertEquals(128, storage.getUsedBytes());
+	}
+
+}
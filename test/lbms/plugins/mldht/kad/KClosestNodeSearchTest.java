@@ -7,6 +7,7 @@ package lbms.plugins.mldht.kad;
 
 import static lbms.plugins.mldht.kad.NodeFactory.fillTable;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.Comparator;
@@ -98,8 +99,51 @@ public class KClosestNodeSearchTest {
 
 		
 		assertEquals(reference, sortedResult);
+		assertEquals(reference.get(targetSize - 1), result.get(targetSize - 1));
 		
 		
 	}
+	
+	@Test
+	public void testPacked() {
+		fillTable(node);
+		node.table().stream().forEach(b -> {
+			b.getBucket().entriesStream().forEach(e -> {
+				e.signalResponse(1);
+			});
+		});
+		
+		for(int i=0;i<100;i++) {
+			Key k = Key.createRandomKey();
+			
+			KClosestNodesSearch search = new KClosestNodesSearch(k, DHTConstants.MAX_ENTRIES_PER_BUCKET, node.getDHT());
+			search.fill();
+			NodeList packed = new KClosestNodesSearch(k, DHTConstants.MAX_ENTRIES_PER_BUCKET, node.getDHT()).fillPacked(false);
+			
+			assertEquals(DHTConstants.MAX_ENTRIES_PER_BUCKET * node.getDHT().getType().NODES_ENTRY_LENGTH, packed.packedSize());
+			assertEquals(search.getEntries().stream().map(KBucketEntry::getID).collect(Collectors.toSet()), packed.entries().map(KBucketEntry::getID).collect(Collectors.toSet()));
+			assertEquals(search.getEntries().stream().map(KBucketEntry::getAddress).collect(Collectors.toSet()), packed.entries().map(KBucketEntry::getAddress).collect(Collectors.toSet()));
+		}
+	}
+	
+	@Test
+	public void testNextBucketTarget() {
+		Key cursor = Key.createRandomKey();
+		for(int depth = 0;depth < Key.KEY_BITS;depth++) {
+			Key target = Key.createRandomKey();
+			Prefix p = new Prefix(Key.createRandomKey(), depth);
+			
+			Prefix targetToBucketDistance = new Prefix(target.distance(p), depth);
+			Key expected = target.distance(targetToBucketDistance.add(Key.setBit(depth)));
+			
+			assertTrue(KClosestNodesSearch.nextBucketTarget(target, p, cursor));
+			assertEquals(expected, cursor);
+			
+			// wrap-around at the end of the keyspace
+			Prefix furthest = new Prefix(target.distance(Key.MAX_KEY), depth);
+			assertTrue(KClosestNodesSearch.nextBucketTarget(target, furthest, cursor));
+			assertEquals(new Prefix(target, depth), new Prefix(cursor, depth));
+		}
+	}
 
 }
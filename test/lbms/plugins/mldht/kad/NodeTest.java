@@ -16,7 +16,6 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.stream.IntStream;
@@ -95,7 +94,7 @@ public class NodeTest {
 		Diagnostics diag = new Diagnostics();
 		diag.formatRoutingTable(System.out, node);
 		
-		RoutingTableEntry homeBucket = Arrays.stream(table.entries).filter(e -> e.homeBucket).findAny().get();
+		RoutingTableEntry homeBucket = table.stream().filter(e -> e.homeBucket).findAny().get();
 		
 		KBucketEntry replacement = new KBucketEntry(new InetSocketAddress(NodeFactory.generateIp(DHTtype.IPV4_DHT, (byte) 0),  13), homeBucket.prefix.createRandomKeyFromPrefix());
 		homeBucket.bucket.insertInReplacementBucket(replacement);
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static lbms.plugins.mldht.kad.NodeFactory.fillTable;
+import static lbms.plugins.mldht.kad.NodeFactory.generateIp;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.Executors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResponseCacheTest {
+	
+	DHT dht;
+	Node node;
+	ResponseCache cache;
+	
+	@Before
+	public void setup() {
+		dht = NodeFactory.buildDHT();
+		dht.setScheduler(Executors.newScheduledThreadPool(0));
+		node = dht.getNode();
+		node.initKey(dht.config);
+		node.registerId();
+		cache = dht.getResponseCache();
+	}
+	
+	@Test
+	public void testNodes() {
+		fillTable(node);
+		node.table().stream().forEach(b -> {
+			b.getBucket().entriesStream().forEach(e -> {
+				e.signalResponse(1);
+			});
+		});
+		
+		Key target = Key.createRandomKey();
+		
+		NodeList first = cache.getNodes(target, DHTConstants.MAX_ENTRIES_PER_BUCKET, false);
+		assertEquals(DHTConstants.MAX_ENTRIES_PER_BUCKET * dht.getType().NODES_ENTRY_LENGTH, first.packedSize());
+		assertSame(first, cache.getNodes(target, DHTConstants.MAX_ENTRIES_PER_BUCKET, false));
+		assertEquals(1, cache.getNodeHits());
+		assertEquals(1, cache.getNodeMisses());
+		
+		// different want flags
+		assertNotSame(first, cache.getNodes(target, 4, false));
+		
+		// modifying the bucket that covers the target invalidates
+		KBucket bucket = node.table().entryForId(target).getBucket();
+		bucket.removeEntryIfBad(bucket.getEntries().get(0), true);
+		
+		assertNotSame(first, cache.getNodes(target, DHTConstants.MAX_ENTRIES_PER_BUCKET, false));
+		assertEquals(3, cache.getNodeMisses());
+	}
+	
+	@Test
+	public void testPeers() {
+		Key k = Key.createRandomKey();
+		assertNull(cache.getPeers(k, 50, false, true));
+		
+		dht.getDatabase().store(k, PeerAddressDBItem.createFromAddress(generateIp(dht.getType(), (byte) 0), 1000, false));
+		
+		ResponseCache.PeersEntry first = cache.getPeers(k, 50, false, true);
+		assertNotNull(first.scrapePeers);
+		assertNotNull(first.scrapeSeeds);
+		assertEquals(1, first.values.size());
+		assertSame(first, cache.getPeers(k, 50, false, true));
+		assertEquals(1, cache.getPeerHits());
+		
+		// refreshing an existing item does not change the payload
+		dht.getDatabase().store(k, PeerAddressDBItem.createFromAddress(((PeerAddressDBItem)first.values.get(0)).getInetAddress(), 1000, false));
+		assertSame(first, cache.getPeers(k, 50, false, true));
+		
+		dht.getDatabase().store(k, PeerAddressDBItem.createFromAddress(generateIp(dht.getType(), (byte) 1), 1000, true));
+		ResponseCache.PeersEntry second = cache.getPeers(k, 50, false, true);
+		assertNotSame(first, second);
+		assertEquals(2, second.values.size());
+	}
+
+}
@@ -6,9 +6,11 @@
 package lbms.plugins.mldht.kad;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -29,8 +31,8 @@ public class RoutingTableTest {
 			Set<RoutingTableEntry> toRemove = new HashSet<>(10);
 			List<RoutingTableEntry> toAdd = new ArrayList<>(20);
 			
-			assertEquals(table.entries[0], f.apply(Key.MIN_KEY));
-			assertEquals(table.entries[table.entries.length-1], f.apply(Key.MAX_KEY));
+			assertEquals(table.get(0), f.apply(Key.MIN_KEY));
+			assertEquals(table.get(table.size()-1), f.apply(Key.MAX_KEY));
 			
 			for(int j=0;j<7;j++) {
 				Key k = Key.createRandomKey();
@@ -61,4 +63,59 @@ public class RoutingTableTest {
 		test((k) -> table.entryForId(k));
 	}
 
+	@Test
+	public void testPathCopying() {
+		table = new RoutingTable();
+		List<RoutingTable> versions = new ArrayList<>();
+		
+		for(int i=0;i<500;i++) {
+			versions.add(table);
+			RoutingTableEntry e = table.entryForId(Key.createRandomKey());
+			RoutingTableEntry low = new RoutingTableEntry(e.prefix.splitPrefixBranch(false), new KBucket(), (x) -> false);
+			RoutingTableEntry high = new RoutingTableEntry(e.prefix.splitPrefixBranch(true), new KBucket(), (x) -> false);
+			table = table.split(e, low, high);
+		}
+		
+		assertEquals(501, table.size());
+		// earlier versions are unaffected
+		for(int i=0;i<versions.size();i++)
+			assertEquals(i + 1, versions.get(i).size());
+		
+		List<RoutingTableEntry> flat = table.list();
+		for(int i=0;i<flat.size();i++) {
+			RoutingTableEntry e = flat.get(i);
+			if(i > 0)
+				assertTrue(flat.get(i - 1).compareTo(e) < 0);
+			assertEquals(i, table.indexForId(e.prefix.first()));
+			assertEquals(i, table.indexForId(e.prefix.last()));
+		}
+		
+		// index lookups without the flattened array
+		RoutingTable copy = table.replace(table.get(0));
+		for(int i=0;i<flat.size();i++)
+			assertSame(flat.get(i), copy.get(i));
+		
+		// merge all siblings back into the root
+		while(table.size() > 1) {
+			for(int i=1;i<table.size();i++) {
+				RoutingTableEntry e1 = table.get(i - 1);
+				RoutingTableEntry e2 = table.get(i);
+				if(e1.prefix.isSiblingOf(e2.prefix)) {
+					table = table.merge(new RoutingTableEntry(e1.prefix.getParentPrefix(), new KBucket(), (x) -> false));
+					break;
+				}
+			}
+		}
+		
+		assertEquals(-1, table.get(0).prefix.getDepth());
+		assertEquals(0, table.indexForId(Key.MAX_KEY));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testModifyRejectsGaps() {
+		table = new RoutingTable();
+		RoutingTableEntry e = table.get(0);
+		table.modify(Arrays.asList(e), Arrays.asList(new RoutingTableEntry(e.prefix.splitPrefixBranch(false), new KBucket(), (x) -> false)));
+	}
+
 }
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.GeneralSecurityException;
+
+import org.junit.Test;
+
+import net.i2p.crypto.eddsa.EdDSAPrivateKey;
+import net.i2p.crypto.eddsa.spec.EdDSAPrivateKeySpec;
+
+import lbms.plugins.mldht.kad.GenericStorage.StorageItem;
+
+public class SignatureVerifierTest {
+
+	static StorageItem build(byte[] salt, long seq) throws GeneralSecurityException {
+		byte[] seed = new byte[32];
+		seed[0] = 42;
+		EdDSAPrivateKey key = new EdDSAPrivateKey(new EdDSAPrivateKeySpec(seed, StorageItem.spec));
+		return GenericStorage.buildMutable("value " + seq, key, salt, seq);
+	}
+
+	@Test
+	public void testCache() throws GeneralSecurityException {
+		StorageItem item = build(new byte[] {'s', 'a', 'l', 't'}, 3);
+
+		long hits = SignatureVerifier.getCacheHits();
+		assertTrue(SignatureVerifier.verify(item));
+		assertTrue(SignatureVerifier.isCached(item));
+		assertTrue(SignatureVerifier.verify(item));
+		assertEquals(hits + 1, SignatureVerifier.getCacheHits());
+	}
+
+	@Test
+	public void testTampered() throws GeneralSecurityException {
+		StorageItem item = build(null, 5);
+		assertTrue(SignatureVerifier.verify(item));
+
+		// same signature, different seq or salt must neither match the cache nor verify
+		StorageItem seq = new StorageItem(item.value, item.pubkey, item.signature, null, 6);
+		StorageItem salt = new StorageItem(item.value, item.pubkey, item.signature, new byte[] {1}, 5);
+		byte[] value = item.value.clone();
+		value[value.length - 1] ^= 1;
+		StorageItem val = new StorageItem(value, item.pubkey, item.signature, null, 5);
+
+		for(StorageItem it : new StorageItem[] {seq, salt, val}) {
+			assertFalse(SignatureVerifier.isCached(it));
+			assertFalse(SignatureVerifier.verify(it));
+		}
+
+		// malformed public key
+		assertFalse(SignatureVerifier.verify(new StorageItem(item.value, new byte[5], item.signature, null, 5)));
+	}
+
+}
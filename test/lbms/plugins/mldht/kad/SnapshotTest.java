@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static lbms.plugins.mldht.kad.NodeFactory.generateIp;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.GenericStorage.StorageItem;
+
+public class SnapshotTest {
+
+	Path dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = Files.createTempDirectory("mldht-snapshot");
+	}
+
+	@After
+	public void deleteDir() throws IOException {
+		Files.walk(dir).sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+	}
+
+	Set<KBucketEntry> entries(Node node) {
+		return node.table().stream().flatMap(e -> e.getBucket().entriesStream()).collect(Collectors.toSet());
+	}
+
+	@Test
+	public void testRoutingTable() throws IOException {
+		for(DHTtype type : DHTtype.values()) {
+			Node node = NodeFactory.buildDHT(type).getNode();
+			node.initKey(null);
+			NodeFactory.fillTable(node);
+
+			Path file = dir.resolve(type.shortName + "-table.snapshot");
+			node.saveSnapshot(file);
+
+			Node restored = NodeFactory.buildDHT(type).getNode();
+			restored.initKey(null);
+			assertTrue(restored.loadSnapshot(file));
+
+			Set<KBucketEntry> original = entries(node);
+			Set<KBucketEntry> loaded = entries(restored);
+			assertFalse(loaded.isEmpty());
+			assertTrue(original.containsAll(loaded));
+
+			KBucketEntry sample = loaded.iterator().next();
+			KBucketEntry expected = original.stream().filter(sample::equals).findAny().get();
+			assertEquals(expected.getAddress(), sample.getAddress());
+			assertEquals(expected.getCreationTime(), sample.getCreationTime());
+			assertEquals(expected.getLastSeen(), sample.getLastSeen());
+			assertEquals(expected.verifiedReachable(), sample.verifiedReachable());
+		}
+	}
+
+	@Test
+	public void testDatabase() throws IOException {
+		Database db = new Database();
+		Key k = Key.createRandomKey();
+		for(int i=0;i<100;i++)
+			db.store(k, PeerAddressDBItem.createFromAddress(generateIp(DHTtype.IPV4_DHT, (byte) 0), 1000 + i, i % 3 == 0));
+		// other address family is skipped
+		db.store(Key.createRandomKey(), PeerAddressDBItem.createFromAddress(generateIp(DHTtype.IPV6_DHT, (byte) 0), 1000, false));
+
+		Path file = dir.resolve("peers.snapshot");
+		db.saveSnapshot(file, DHTtype.IPV4_DHT);
+
+		Database restored = new Database();
+		restored.loadSnapshot(file, DHTtype.IPV4_DHT);
+
+		assertEquals(1, restored.getData().size());
+		Database.PeersSeeds original = db.getData().get(k);
+		Database.PeersSeeds loaded = restored.getData().get(k);
+		assertEquals(original.seeds().stream().collect(Collectors.toSet()), loaded.seeds().stream().collect(Collectors.toSet()));
+		assertEquals(original.peers().stream().collect(Collectors.toSet()), loaded.peers().stream().collect(Collectors.toSet()));
+		PeerAddressDBItem item = loaded.peers().snapshot()[0];
+		PeerAddressDBItem expected = original.peers().stream().filter(item::equals).findAny().get();
+		assertEquals(expected.getPort(), item.getPort());
+		assertEquals(expected.getCreatedAt(), item.getCreatedAt());
+	}
+
+	@Test
+	public void testStorage() throws IOException {
+		GenericStorage storage = new GenericStorage();
+		long expiration = System.currentTimeMillis() + 60_000;
+
+		StorageItem immutable = GenericStorage.buildImmutable("immutable value");
+		immutable.expirationDate = expiration;
+		storage.restore(immutable.fingerprint(), immutable);
+
+		StorageItem mutable = new StorageItem(new byte[] {'1', ':', 'x'}, new byte[32], new byte[64], new byte[] {1, 2, 3}, 7);
+		mutable.expirationDate = expiration;
+		storage.restore(mutable.fingerprint(), mutable);
+
+		Path file = dir.resolve("storage.snapshot");
+		storage.saveSnapshot(file);
+
+		GenericStorage restored = new GenericStorage();
+		restored.loadSnapshot(file);
+
+		assertEquals(2, restored.getItems().size());
+		StorageItem loadedImmutable = restored.get(immutable.fingerprint()).get();
+		assertFalse(loadedImmutable.mutable());
+		assertEquals(immutable.getRawValue(), loadedImmutable.getRawValue());
+		StorageItem loadedMutable = restored.get(mutable.fingerprint()).get();
+		assertTrue(loadedMutable.mutable());
+		assertEquals(7, loadedMutable.seq());
+		assertEquals(ByteBuffer.wrap(new byte[] {1, 2, 3}), loadedMutable.salt().get());
+		assertEquals(expiration, loadedMutable.expirationDate);
+	}
+
+	@Test
+	public void testRejectsCorruption() throws IOException {
+		Database db = new Database();
+		db.store(Key.createRandomKey(), PeerAddressDBItem.createFromAddress(generateIp(DHTtype.IPV4_DHT, (byte) 0), 1000, false));
+
+		Path file = dir.resolve("peers.snapshot");
+		db.saveSnapshot(file, DHTtype.IPV4_DHT);
+
+		// wrong address family
+		Database restored = new Database();
+		restored.loadSnapshot(file, DHTtype.IPV6_DHT);
+		assertTrue(restored.getData().isEmpty());
+
+		try(FileChannel chan = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+			ByteBuffer b = ByteBuffer.allocate(1);
+			chan.read(b, SnapshotFile.HEADER_LENGTH + 3);
+			b.put(0, (byte) ~b.get(0));
+			b.rewind();
+			chan.write(b, SnapshotFile.HEADER_LENGTH + 3);
+		}
+
+		restored.loadSnapshot(file, DHTtype.IPV4_DHT);
+		assertTrue(restored.getData().isEmpty());
+	}
+
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static lbms.plugins.mldht.kad.NodeFactory.generateIp;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+
+public class SpamThrottleTest {
+	
+	static class ManualClockThrottle extends HashedSpamThrottle {
+		int now;
+		
+		@Override
+		int now() {
+			return now;
+		}
+	}
+	
+	void checkBurst(SpamThrottle throttle, InetAddress addr) {
+		for(int i=1;i<SpamThrottle.BURST;i++)
+			assertFalse(throttle.addAndTest(addr));
+		assertTrue(throttle.addAndTest(addr));
+		assertTrue(throttle.test(addr));
+		assertEquals(SpamThrottle.BURST, throttle.saturatingAdd(addr));
+		
+		throttle.remove(addr);
+		assertFalse(throttle.test(addr));
+		
+		for(int i=0;i<SpamThrottle.BURST;i++)
+			assertEquals(0, throttle.calculateDelayAndAdd(addr));
+		assertEquals(1000 / SpamThrottle.PER_SECOND, throttle.calculateDelayAndAdd(addr));
+		throttle.saturatingDec(addr);
+		throttle.saturatingDec(addr);
+		assertFalse(throttle.test(addr));
+	}
+	
+	@Test
+	public void testSameSemantics() {
+		for(DHTtype t : DHTtype.values()) {
+			checkBurst(new MapSpamThrottle(), generateIp(t, (byte) 0));
+			checkBurst(new HashedSpamThrottle(), generateIp(t, (byte) 0));
+		}
+	}
+	
+	@Test
+	public void testLazyDecay() {
+		ManualClockThrottle throttle = new ManualClockThrottle();
+		InetAddress addr = generateIp(DHTtype.IPV4_DHT, (byte) 0);
+		
+		for(int i=0;i<SpamThrottle.BURST;i++)
+			throttle.saturatingAdd(addr);
+		assertTrue(throttle.test(addr));
+		
+		throttle.now += 1;
+		assertFalse(throttle.test(addr));
+		assertEquals(SpamThrottle.BURST - SpamThrottle.PER_SECOND + 1, throttle.saturatingAdd(addr));
+		
+		throttle.now += 100;
+		assertEquals(1, throttle.saturatingAdd(addr));
+		
+		// clock going backwards must not inflate counters
+		throttle.now -= 50;
+		assertEquals(2, throttle.saturatingAdd(addr));
+	}
+	
+	@Test
+	public void testSpoofedFlood() {
+		HashedSpamThrottle throttle = new HashedSpamThrottle();
+		long footprint = throttle.footprint();
+		
+		for(int i=0;i<20_000;i++)
+			throttle.addAndTest(generateIp(DHTtype.IPV4_DHT, (byte) (i & 0xff)));
+		
+		assertEquals(footprint, throttle.footprint());
+		
+		// single-hit spoofed senders must not spill over onto unrelated addresses
+		int throttled = 0;
+		for(int i=0;i<1000;i++)
+			if(throttle.test(generateIp(DHTtype.IPV6_DHT, (byte) 0)))
+				throttled++;
+		assertEquals(0, throttled);
+	}
+	
+	@Test
+	public void testRemoveKeepsCollidingCounts() {
+		// 2 cells per row, collisions are easy to find
+		HashedSpamThrottle throttle = new HashedSpamThrottle(2);
+		InetAddress flooder = generateIp(DHTtype.IPV4_DHT, (byte) 0);
+		InetAddress other;
+		// shares the first row cell with the flooder, but not the second
+		do {
+			other = generateIp(DHTtype.IPV4_DHT, (byte) 0);
+		} while(throttle.index(throttle.key(other), 0) != throttle.index(throttle.key(flooder), 0) || throttle.index(throttle.key(other), 1) == throttle.index(throttle.key(flooder), 1));
+		
+		for(int i=0;i<SpamThrottle.BURST;i++)
+			throttle.saturatingAdd(flooder);
+		throttle.saturatingAdd(other);
+		assertTrue(throttle.test(flooder));
+		
+		throttle.remove(other);
+		throttle.saturatingDec(other);
+		assertFalse(throttle.test(other));
+		assertTrue(throttle.test(flooder));
+	}
+	
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.messages;
+
+import static org.junit.Assert.assertEquals;
+import static the8472.bencode.Utils.str2ary;
+
+import the8472.bencode.BEncoder;
+
+import lbms.plugins.mldht.kad.DBItem;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.NodeList;
+import lbms.plugins.mldht.kad.NodeList.AddressType;
+import lbms.plugins.mldht.kad.PeerAddressDBItem;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * checks the per-type direct writers against the generic map encoding
+ */
+public class DirectEncodingTest {
+
+	byte[] mtid = new byte[] {1, 2, 3, 4, 5, 6};
+
+	void assertSameEncoding(MessageBase msg) throws Exception {
+		msg.setMTID(mtid);
+		msg.setID(Key.createRandomKey());
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(1500);
+		msg.encode(direct);
+
+		ByteBuffer viaMap = ByteBuffer.allocate(1500);
+		new BEncoder().encodeInto(msg.getBase(), viaMap);
+
+		assertEquals(viaMap, direct);
+	}
+
+	NodeList nodes(int count, DHTtype type) {
+		ByteBuffer buf = ByteBuffer.allocate(count * type.NODES_ENTRY_LENGTH);
+		for(int i=0;i<count;i++) {
+			buf.put(Key.createRandomKey().getHash());
+			buf.put(new byte[type.ADDRESS_ENTRY_LENGTH - 2]);
+			buf.putShort((short) (1000 + i));
+		}
+		buf.flip();
+		return NodeList.fromBuffer(buf, type == DHTtype.IPV4_DHT ? AddressType.V4 : AddressType.V6);
+	}
+
+	@Test
+	public void testRequests() throws Exception {
+		assertSameEncoding(new PingRequest());
+
+		assertSameEncoding(new FindNodeRequest(Key.createRandomKey()));
+
+		FindNodeRequest fn = new FindNodeRequest(Key.createRandomKey());
+		fn.setWant4(true);
+		fn.setWant6(true);
+		assertSameEncoding(fn);
+
+		GetPeersRequest gp = new GetPeersRequest(Key.createRandomKey());
+		gp.setWant6(true);
+		assertSameEncoding(gp);
+		gp.setNoSeeds(true);
+		gp.setScrape(true);
+		assertSameEncoding(gp);
+
+		AnnounceRequest ann = new AnnounceRequest(Key.createRandomKey(), 65535, new byte[] {7, 7, 7, 7});
+		assertSameEncoding(ann);
+		ann.setSeed(true);
+		ann.setName(ByteBuffer.wrap(str2ary("some name")));
+		assertSameEncoding(ann);
+	}
+
+	@Test
+	public void testResponses() throws Exception {
+		assertSameEncoding(new PingResponse(mtid));
+
+		PingResponse ping = new PingResponse(mtid);
+		ping.setPublicIP(new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 1234));
+		assertSameEncoding(ping);
+
+		assertSameEncoding(new AnnounceResponse(mtid));
+
+		FindNodeResponse fn = new FindNodeResponse(mtid);
+		fn.setNodes(nodes(8, DHTtype.IPV4_DHT));
+		fn.setNodes(nodes(8, DHTtype.IPV6_DHT));
+		assertSameEncoding(fn);
+
+		GetPeersResponse gp = new GetPeersResponse(mtid);
+		gp.setNodes(nodes(3, DHTtype.IPV4_DHT));
+		gp.setToken(new byte[] {9, 9, 9});
+		gp.setPeerItems(Collections.emptyList());
+		assertSameEncoding(gp);
+
+		List<DBItem> items = new ArrayList<>();
+		items.add(new PeerAddressDBItem(new byte[] {1, 2, 3, 4, 0, 80}, false));
+		items.add(new PeerAddressDBItem(new byte[] {5, 6, 7, 8, 0, 81}, false));
+		gp.setPeerItems(items);
+		gp.setScrapePeers(new byte[256]);
+		gp.setScrapeSeeds(new byte[256]);
+		assertSameEncoding(gp);
+	}
+
+}
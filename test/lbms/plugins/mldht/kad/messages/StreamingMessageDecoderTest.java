@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static the8472.bencode.Utils.buf2ary;
+import static the8472.bencode.Utils.str2ary;
+
+import the8472.bencode.BDecoder;
+
+import lbms.plugins.mldht.kad.DBItem;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.NodeList;
+import lbms.plugins.mldht.kad.NodeList.AddressType;
+import lbms.plugins.mldht.kad.PeerAddressDBItem;
+import lbms.plugins.mldht.kad.messages.MessageBase.Method;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+public class StreamingMessageDecoderTest {
+
+	StreamingMessageDecoder streaming = new StreamingMessageDecoder();
+
+	byte[] mtid = new byte[] {1, 2, 3, 4, 5, 6};
+
+	ByteBuffer encode(MessageBase msg) throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(1500);
+		msg.encode(buf);
+		return buf;
+	}
+
+	MessageBase viaMap(ByteBuffer raw, Function<byte[], Optional<Method>> mapper) throws Exception {
+		MessageDecoder dec = new MessageDecoder(mapper, DHTtype.IPV4_DHT);
+		dec.toDecode(raw, new BDecoder().decode(raw.duplicate()));
+		return dec.parseMessage();
+	}
+
+	void assertEquivalent(MessageBase msg, Method responseTo) throws Exception {
+		Function<byte[], Optional<Method>> mapper = (tid) -> Optional.ofNullable(responseTo);
+		ByteBuffer raw = encode(msg);
+
+		MessageBase expected = viaMap(raw.duplicate(), mapper);
+		MessageBase actual = streaming.decode(raw.duplicate(), mapper, DHTtype.IPV4_DHT);
+
+		assertNotNull(actual);
+		assertEquals(expected.getClass(), actual.getClass());
+		assertEquals(expected.getID(), actual.getID());
+		assertArrayEquals(expected.getMTID(), actual.getMTID());
+		assertArrayEquals(expected.getVersion().get(), actual.getVersion().get());
+		assertArrayEquals(buf2ary(encode(expected)), buf2ary(encode(actual)));
+	}
+
+	NodeList nodes(int count) {
+		ByteBuffer buf = ByteBuffer.allocate(count * DHTtype.IPV4_DHT.NODES_ENTRY_LENGTH);
+		for(int i=0;i<count;i++) {
+			buf.put(Key.createRandomKey().getHash());
+			buf.put(new byte[] {10, 0, 0, (byte) (i + 1)});
+			buf.putShort((short) (1000 + i));
+		}
+		buf.flip();
+		return NodeList.fromBuffer(buf, AddressType.V4);
+	}
+
+	<T extends MessageBase> T prepare(T msg) {
+		msg.setMTID(mtid);
+		msg.setID(Key.createRandomKey());
+		return msg;
+	}
+
+	@Test
+	public void testRequests() throws Exception {
+		assertEquivalent(prepare(new PingRequest()), null);
+
+		FindNodeRequest fn = prepare(new FindNodeRequest(Key.createRandomKey()));
+		fn.setWant4(true);
+		fn.setWant6(true);
+		assertEquivalent(fn, null);
+
+		GetPeersRequest gp = prepare(new GetPeersRequest(Key.createRandomKey()));
+		gp.setNoSeeds(true);
+		gp.setScrape(true);
+		assertEquivalent(gp, null);
+
+		AnnounceRequest ann = prepare(new AnnounceRequest(Key.createRandomKey(), 6881, new byte[] {7, 7, 7, 7}));
+		ann.setSeed(true);
+		ann.setName(ByteBuffer.wrap(str2ary("some name")));
+		assertEquivalent(ann, null);
+	}
+
+	@Test
+	public void testResponses() throws Exception {
+		PingResponse ping = prepare(new PingResponse(mtid));
+		ping.setPublicIP(new InetSocketAddress(InetAddress.getByAddress(new byte[] {1, 2, 3, 4}), 1234));
+		assertEquivalent(ping, Method.PING);
+
+		assertEquivalent(prepare(new AnnounceResponse(mtid)), Method.ANNOUNCE_PEER);
+
+		FindNodeResponse fn = prepare(new FindNodeResponse(mtid));
+		fn.setNodes(nodes(8));
+		assertEquivalent(fn, Method.FIND_NODE);
+
+		GetPeersResponse gp = prepare(new GetPeersResponse(mtid));
+		List<DBItem> items = new ArrayList<>();
+		items.add(new PeerAddressDBItem(new byte[] {1, 2, 3, 4, 0, 80}, false));
+		items.add(new PeerAddressDBItem(new byte[] {5, 6, 7, 8, 0, 81}, false));
+		gp.setPeerItems(items);
+		gp.setNodes(nodes(3));
+		gp.setToken(new byte[] {9, 9, 9});
+		assertEquivalent(gp, Method.GET_PEERS);
+	}
+
+	@Test
+	public void testFallback() throws Exception {
+		Function<byte[], Optional<Method>> mapper = (tid) -> Optional.of(Method.PING);
+		String id = "abcdefghij0123456789";
+
+		// error message
+		assertNull(streaming.decode(ByteBuffer.wrap(str2ary("d1:eli201e5:errore1:t2:aa1:y1:ee")), mapper, DHTtype.IPV4_DHT));
+		// unsorted root keys
+		assertNull(streaming.decode(ByteBuffer.wrap(str2ary("d1:y1:q1:t2:aa1:q4:ping1:ad2:id20:" + id + "ee")), mapper, DHTtype.IPV4_DHT));
+		// wrong id length
+		assertNull(streaming.decode(ByteBuffer.wrap(str2ary("d1:ad2:id3:abce1:q4:ping1:t2:aa1:y1:qe")), mapper, DHTtype.IPV4_DHT));
+		// unhandled method
+		assertNull(streaming.decode(ByteBuffer.wrap(str2ary("d1:ad2:id20:" + id + "6:target20:" + id + "e1:q3:get1:t2:aa1:y1:qe")), mapper, DHTtype.IPV4_DHT));
+		// invalid bencoding
+		assertNull(streaming.decode(ByteBuffer.wrap(str2ary("d1:ad2:id20:" + id)), mapper, DHTtype.IPV4_DHT));
+
+		// the instance must remain usable after bailing out
+		MessageBase ping = streaming.decode(ByteBuffer.wrap(str2ary("d1:ad2:id20:" + id + "e1:q4:ping1:t2:aa1:y1:qe")), mapper, DHTtype.IPV4_DHT);
+		assertEquals(PingRequest.class, ping.getClass());
+		assertArrayEquals(str2ary(id), ping.getID().getHash());
+	}
+
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.tasks;
+
+import static lbms.plugins.mldht.kad.tasks.IterativeLookupCandidatesTest.entry;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+
+public class BatchLookupTest {
+
+	// not started, submitting only queues the targets
+	static BatchLookup batch() {
+		return new BatchLookup(null, new PacketBudget(1000));
+	}
+
+	static Key key(int n) {
+		byte[] raw = new byte[20];
+		ByteBuffer.wrap(raw).putInt(n);
+		return new Key(raw);
+	}
+
+	static List<KBucketEntry> closest(int n) {
+		return Collections.singletonList(entry(key(n), n));
+	}
+
+	@Test
+	public void testSweepWrapsAround() {
+		BatchLookup batch = batch();
+		batch.submit(Stream.of(key(30), key(10), key(20)));
+
+		assertEquals(key(10), batch.nextTarget());
+		assertEquals(key(20), batch.nextTarget());
+
+		// targets behind the cursor wait for the next pass
+		batch.submit(Stream.of(key(5), key(25)));
+		assertEquals(key(25), batch.nextTarget());
+		assertEquals(key(30), batch.nextTarget());
+		assertEquals(key(5), batch.nextTarget());
+		assertEquals(key(5), batch.cursor);
+		assertNull(batch.nextTarget());
+		assertEquals(0, batch.getPendingCount());
+	}
+
+	@Test
+	public void testNeighbourSeeding() {
+		BatchLookup batch = batch();
+		assertTrue(batch.neighbourResults(key(15)).isEmpty());
+
+		batch.shareResults(key(10), closest(10));
+		batch.shareResults(key(20), closest(20));
+		batch.shareResults(key(30), closest(30));
+		batch.shareResults(key(40), Collections.emptyList());
+
+		assertEquals(Arrays.asList(closest(10).get(0), closest(20).get(0)), batch.neighbourResults(key(15)));
+		// the target's own result is not a neighbour
+		assertEquals(Arrays.asList(closest(10).get(0), closest(30).get(0)), batch.neighbourResults(key(20)));
+		assertEquals(closest(10), batch.neighbourResults(key(5)));
+		// empty closest sets are not kept
+		assertEquals(closest(30), batch.neighbourResults(key(45)));
+	}
+
+	@Test
+	public void testEvictionBehindCursor() {
+		int max = BatchLookup.MAX_SHARED_RESULTS;
+		BatchLookup batch = batch();
+
+		// first pass, all results lie below the cursor and the oldest one is the lowest
+		batch.cursor = key(2 * max);
+		for(int i=1;i<=max + 1;i++)
+			batch.shareResults(key(i), closest(i));
+		assertEquals(max, batch.recentResults.size());
+		assertFalse(batch.recentResults.containsKey(key(1)));
+
+		// next pass restarted at the beginning, the results of the previous pass right after the cursor go first
+		batch.cursor = key(100);
+		batch.shareResults(key(1), closest(1));
+		batch.shareResults(key(0), closest(0));
+		assertEquals(max, batch.recentResults.size());
+		assertFalse(batch.recentResults.containsKey(key(101)));
+		assertFalse(batch.recentResults.containsKey(key(102)));
+		assertTrue(batch.recentResults.containsKey(key(100)));
+		assertTrue(batch.recentResults.containsKey(key(2)));
+
+		// nothing left above the cursor, wraps around to the lowest key
+		batch.cursor = key(2 * max);
+		batch.shareResults(key(max + 2), closest(max + 2));
+		assertFalse(batch.recentResults.containsKey(key(0)));
+	}
+
+}
@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+
+public class ClosestSetTest {
+
+	@Test
+	public void testInsertOrder() {
+		Key target = Key.createRandomKey();
+		ClosestSet set = new ClosestSet(target, 8);
+
+		List<KBucketEntry> entries = new ArrayList<>();
+		for(int i=0;i<32;i++)
+			entries.add(IterativeLookupCandidatesTest.entry(Key.createRandomKey(), i));
+		entries.forEach(set::insert);
+
+		List<KBucketEntry> expected = new ArrayList<>(entries);
+		Collections.sort(expected, new KBucketEntry.DistanceOrder(target));
+		expected = expected.subList(0, 8);
+
+		assertTrue(set.reachedTargetCapacity());
+		assertEquals(expected, set.entries().collect(Collectors.toList()));
+		assertEquals(expected.get(0).getID(), set.head());
+		assertEquals(expected.get(7).getID(), set.tail());
+	}
+
+	@Test
+	public void testStabilityCounters() {
+		Key target = Key.createRandomKey();
+		ClosestSet set = new ClosestSet(target, 2);
+
+		List<KBucketEntry> entries = new ArrayList<>();
+		for(int i=0;i<4;i++)
+			entries.add(IterativeLookupCandidatesTest.entry(Key.createRandomKey(), i));
+		Collections.sort(entries, new KBucketEntry.DistanceOrder(target));
+
+		set.insert(entries.get(1));
+		assertFalse(set.reachedTargetCapacity());
+		assertEquals(0, set.insertAttemptsSinceHeadModification);
+
+		set.insert(entries.get(2));
+		assertEquals(1, set.insertAttemptsSinceHeadModification);
+
+		// falls off the tail right away
+		set.insert(entries.get(3));
+		assertEquals(1, set.insertAttemptsSinceTailModification);
+		assertEquals(2, set.insertAttemptsSinceHeadModification);
+
+		// duplicate ID
+		set.insert(IterativeLookupCandidatesTest.entry(entries.get(1).getID(), 42));
+		assertEquals(3, set.insertAttemptsSinceHeadModification);
+
+		set.insert(entries.get(0));
+		assertEquals(0, set.insertAttemptsSinceTailModification);
+		assertEquals(0, set.insertAttemptsSinceHeadModification);
+		assertEquals(entries.get(1).getID(), set.tail());
+	}
+
+}
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static the8472.utils.Functional.unchecked;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import lbms.plugins.mldht.kad.IDMismatchDetector;
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+
+public class IterativeLookupCandidatesTest {
+
+	static KBucketEntry entry(Key id, int addr) {
+		InetAddress ip = unchecked(() -> InetAddress.getByAddress(new byte[] {10, 0, (byte) (addr >> 8), (byte) addr}));
+		return new KBucketEntry(new InetSocketAddress(ip, 1234), id);
+	}
+
+	static void accept(IterativeLookupCandidates cand, KBucketEntry e) {
+		cand.accepted.add(e.getAddress().getAddress());
+		cand.accepted.add(e.getID());
+	}
+
+	@Test
+	public void testDistanceOrder() {
+		Key target = Key.createRandomKey();
+		IterativeLookupCandidates cand = new IterativeLookupCandidates(target, new IDMismatchDetector(null));
+		AtomicInteger evaluated = new AtomicInteger();
+		cand.setEvaluationListener(evaluated::addAndGet);
+
+		List<KBucketEntry> entries = new ArrayList<>();
+		for(int i=0;i<64;i++)
+			entries.add(entry(Key.createRandomKey(), i));
+		cand.addCandidates(null, entries);
+
+		List<KBucketEntry> sorted = new ArrayList<>(entries);
+		Collections.sort(sorted, new KBucketEntry.DistanceOrder(target));
+
+		for(KBucketEntry expected : sorted) {
+			assertEquals(expected, cand.next().get());
+			accept(cand, expected);
+		}
+		assertFalse(cand.next().isPresent());
+
+		// each accepted node is examined once more when it gets dropped from the index
+		assertEquals(2 * sorted.size(), evaluated.get());
+		assertEquals(0, cand.unqueried.size());
+	}
+
+	@Test
+	public void testSourcesReorder() {
+		Key target = Key.createRandomKey();
+		IterativeLookupCandidates cand = new IterativeLookupCandidates(target, new IDMismatchDetector(null));
+
+		Key id = Key.createRandomKey();
+		KBucketEntry a = entry(id, 1);
+		KBucketEntry b = entry(id, 2);
+		KBucketEntry source = entry(Key.createRandomKey(), 3);
+
+		cand.addCandidates(null, Arrays.asList(a, source));
+		cand.addCandidates(null, Arrays.asList(b));
+		accept(cand, source);
+		KBucketEntry first = cand.next().get();
+		KBucketEntry other = first.equals(a) ? b : a;
+
+		// corroborated by a source, the other duplicate now takes precedence
+		cand.addCandidates(source, Arrays.asList(other));
+		assertEquals(other, cand.next().get());
+	}
+
+}
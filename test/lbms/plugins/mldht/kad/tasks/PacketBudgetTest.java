@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class PacketBudgetTest {
+
+	@Test
+	public void testRefillAndBurst() {
+		PacketBudget budget = new PacketBudget(1000);
+		// 2 refill intervals worth
+		assertEquals(100, budget.available());
+		for(int i=0;i<100;i++)
+			assertTrue(budget.tryAcquire());
+		assertFalse(budget.tryAcquire());
+
+		budget.refill(10);
+		assertEquals(10, budget.available());
+
+		// capped at burst size
+		budget.refill(10_000);
+		assertEquals(100, budget.available());
+	}
+
+	@Test
+	public void testFractionalRate() {
+		PacketBudget budget = new PacketBudget(10);
+		assertEquals(1, budget.available());
+		assertTrue(budget.tryAcquire());
+
+		budget.refill(50);
+		assertEquals(0, budget.available());
+		budget.refill(50);
+		assertEquals(1, budget.available());
+	}
+
+	@Test
+	public void testWakeup() {
+		PacketBudget budget = new PacketBudget(1000);
+		while(budget.tryAcquire())
+			;
+
+		AtomicInteger woken = new AtomicInteger();
+		budget.onRefill(woken::incrementAndGet);
+		budget.refill(0);
+		assertEquals(0, woken.get());
+
+		budget.refill(PacketBudget.REFILL_INTERVAL);
+		assertEquals(1, woken.get());
+		budget.refill(PacketBudget.REFILL_INTERVAL);
+		assertEquals(1, woken.get());
+	}
+
+}
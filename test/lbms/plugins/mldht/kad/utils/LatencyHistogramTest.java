@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBucketBoundaries() {
+		for(long v = 0; v <= LatencyHistogram.MAX_VALUE; v++) {
+			int idx = LatencyHistogram.index(v);
+			long lower = LatencyHistogram.lowerBound(idx);
+			assertTrue(lower <= v);
+			assertTrue(LatencyHistogram.lowerBound(idx + 1) > v);
+			// relative error bounded by the sub-bucket resolution
+			assertTrue(v - lower <= v / LatencyHistogram.SUB_BUCKETS);
+		}
+	}
+
+	@Test
+	public void testQuantiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.getQuantile(0.5));
+
+		IntStream.range(0, 900).parallel().forEach(i -> h.record(100));
+		IntStream.range(0, 100).parallel().forEach(i -> h.record(2000));
+		h.record(-1);
+		h.record(Long.MAX_VALUE);
+
+		assertEquals(1001, h.getCount());
+		assertEquals(900 * 100 + 100 * 2000 + LatencyHistogram.MAX_VALUE, h.getSum());
+		assertEquals(100, h.getQuantile(0.5));
+		assertEquals(1984, h.getQuantile(0.95));
+		assertTrue(h.getQuantile(1.0) <= LatencyHistogram.MAX_VALUE);
+
+		h.reset();
+		assertEquals(0, h.getCount());
+	}
+
+}
@@ -0,0 +1,27 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SipHash24Test {
+	
+	// key and messages 00 01 02 ... from the reference implementation's test vectors, read as little-endian words
+	static final long K0 = 0x0706050403020100L;
+	static final long K1 = 0x0f0e0d0c0b0a0908L;
+	static final long M0 = 0x0706050403020100L;
+	static final long M1 = 0x0f0e0d0c0b0a0908L;
+	
+	@Test
+	public void testReferenceVectors() {
+		assertEquals(0x726fdb47dd0e0e31L, new SipHash24(K0, K1).finish());
+		assertEquals(0x93f5f5799a932462L, new SipHash24(K0, K1).add(M0).finish());
+		assertEquals(0x3f2acc7f57c29bdbL, new SipHash24(K0, K1).add(M0).add(M1).finish());
+	}
+
+}
@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.bt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.Test;
+
+import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
+import the8472.bt.MetadataPool.Completion;
+
+public class MetadataPoolTest {
+
+	static final int LENGTH = 3 * MetadataPool.CHUNK_SIZE + 100;
+
+	static ByteBuffer chunk(byte[] data, int idx) {
+		int offset = idx * MetadataPool.CHUNK_SIZE;
+		return ByteBuffer.wrap(data, offset, Math.min(MetadataPool.CHUNK_SIZE, data.length - offset));
+	}
+
+	static byte[] sha1(byte[] data) {
+		MessageDigest sha1 = ThreadLocalUtils.getThreadLocalSHA1();
+		sha1.reset();
+		return sha1.digest(data);
+	}
+
+	@Test
+	public void testOutOfOrderAssembly() {
+		byte[] data = new byte[LENGTH];
+		ThreadLocalRandom.current().nextBytes(data);
+		MetadataPool pool = new MetadataPool(LENGTH);
+
+		for(int idx : new int[] {2, 0, 3}) {
+			assertTrue(pool.addChunk(idx, chunk(data, idx)));
+			pool.checkComletion(sha1(data));
+			assertEquals(Completion.PROGRESS, pool.status());
+		}
+
+		assertTrue(pool.addChunk(1, chunk(data, 1)));
+		pool.checkComletion(sha1(data));
+		assertEquals(Completion.SUCCESS, pool.status());
+		assertEquals(ByteBuffer.wrap(data), pool.merge());
+	}
+
+	@Test
+	public void testInvalidChunks() {
+		byte[] data = new byte[LENGTH];
+		MetadataPool pool = new MetadataPool(LENGTH);
+
+		assertFalse(pool.addChunk(4, ByteBuffer.allocate(10)));
+		assertFalse(pool.addChunk(-1, ByteBuffer.allocate(10)));
+		// only the last chunk may be short
+		assertFalse(pool.addChunk(0, ByteBuffer.allocate(100)));
+		assertFalse(pool.addChunk(3, ByteBuffer.allocate(MetadataPool.CHUNK_SIZE)));
+
+		for(int i=0;i<4;i++)
+			assertTrue(pool.addChunk(i, chunk(data, i)));
+		pool.checkComletion(new byte[20]);
+		assertEquals(Completion.FAILED, pool.status());
+	}
+
+}
@@ -19,6 +19,7 @@ import java.util.Map;
 
 import org.junit.Test;
 
+import the8472.bencode.BEncodeWriter;
 import the8472.bencode.BEncoder;
 
 public class EncoderTest {
@@ -77,5 +78,30 @@ public class EncoderTest {
 		
 		assertEquals(str2buf(reference.toString()), out);
 	}
+	
+	@Test
+	public void testWriterNumbers() {
+		List<Object> l = new ArrayList<>();
+		l.add(0L);
+		l.add(-1L);
+		l.add(9L);
+		l.add(10L);
+		l.add(Long.MAX_VALUE);
+		l.add(Long.MIN_VALUE);
+		l.add((long) Integer.MIN_VALUE);
+		l.add(new byte[1234]);
+		
+		ByteBuffer reference = new BEncoder().encode(l, 2048);
+		
+		BEncodeWriter w = new BEncodeWriter(ByteBuffer.allocate(2048));
+		w.beginList();
+		for(int i=0;i<7;i++)
+			w.number((Long) l.get(i));
+		w.string(new byte[1234]);
+		w.end();
+		w.buffer().flip();
+		
+		assertEquals(reference, w.buffer());
+	}
 
 }
@@ -9,11 +9,16 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static the8472.utils.Functional.tap;
 
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.stream.IntStream;
 
 import org.junit.Test;
 
 import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.Prefix;
 
 public class KeyTest {
 
@@ -60,4 +65,63 @@ public class KeyTest {
 		
 	}
 
+	@Test
+	public void testWordOpsMatchBytes() {
+		BigInteger modulus = BigInteger.ONE.shiftLeft(Key.KEY_BITS);
+		for(int i=0;i<1000;i++) {
+			Key target = Key.createRandomKey();
+			// shared prefixes exercise the comparisons of the lower words
+			Key a = new Prefix(target, i % Key.KEY_BITS).createRandomKeyFromPrefix();
+			Key b = new Prefix(a, (i * 7) % Key.KEY_BITS).createRandomKeyFromPrefix();
+
+			BigInteger bt = new BigInteger(1, target.getHash());
+			BigInteger ba = new BigInteger(1, a.getHash());
+			BigInteger bb = new BigInteger(1, b.getHash());
+
+			assertEquals(Integer.signum(ba.compareTo(bb)), Integer.signum(a.compareTo(b)));
+			assertEquals(Integer.signum(ba.xor(bt).compareTo(bb.xor(bt))), target.threeWayDistance(a, b));
+			assertEquals(ba.xor(bb), new BigInteger(1, a.distance(b).getHash()));
+			assertEquals(ba.add(bb).mod(modulus), new BigInteger(1, a.add(b).getHash()));
+			assertEquals(ba.equals(bb) ? -1 : Key.KEY_BITS - ba.xor(bb).bitLength(), a.findApproxKeyDistance(b));
+			assertEquals(a, new Key(a.getHash()));
+			assertEquals(a, new Key(a.toString(false)));
+			assertEquals(a.hashCode(), new Key(a.getHash()).hashCode());
+			for(int j=0;j<Key.SHA1_HASH_LENGTH;j++)
+				assertEquals(Byte.toUnsignedInt(a.getHash()[j]), a.getRadix(j));
+		}
+	}
+
+	@Test
+	public void testCarry() {
+		Key one = new Key("0000000000000000000000000000000000000001");
+		assertEquals(Key.MIN_KEY, Key.MAX_KEY.add(one));
+		assertEquals(new Key("0000000000000000000000000000000100000000"), new Key("00000000000000000000000000000000FFFFFFFF").add(one));
+		assertEquals(new Key("0000000000000001000000000000000000000000"), new Key("0000000000000000FFFFFFFFFFFFFFFFFFFFFFFF").add(one));
+	}
+
+	@Test
+	public void testBufferRoundTrip() {
+		Key k = Key.createRandomKey();
+		ByteBuffer buf = ByteBuffer.allocate(Key.SHA1_HASH_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		k.toBuffer(buf);
+		assertTrue(Arrays.equals(k.getHash(), buf.array()));
+		assertEquals(ByteOrder.LITTLE_ENDIAN, buf.order());
+		buf.flip();
+		assertEquals(k, new Key(buf));
+		assertEquals(k, new Key(k.asBuffer()));
+	}
+
+	@Test
+	public void testPrefix() {
+		Key k = Key.createRandomKey();
+		Prefix p = new Prefix(k, 70);
+		assertTrue(p.isPrefixOf(k));
+		assertTrue(p.isPrefixOf(p.createRandomKeyFromPrefix()));
+		assertTrue(!p.isPrefixOf(k.distance(Key.setBit(70))));
+		assertTrue(p.isPrefixOf(k.distance(Key.setBit(71))));
+		assertTrue(p.getParentPrefix().isPrefixOf(k.distance(Key.setBit(70))));
+		assertEquals(p, Prefix.getCommonPrefix(Arrays.asList(p.first(), p.last())));
+		assertEquals(70, Prefix.getCommonPrefix(Arrays.asList(p.first(), p.last())).getDepth());
+	}
+
 }
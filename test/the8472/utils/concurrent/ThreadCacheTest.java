@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.utils.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import lbms.plugins.mldht.kad.ExecutionMode;
+
+public class ThreadCacheTest {
+
+	@Test
+	public void testPlatformThreadReuse() {
+		AtomicInteger created = new AtomicInteger();
+		ThreadCache<Object> cache = new ThreadCache<>(() -> {
+			created.incrementAndGet();
+			return new Object();
+		});
+
+		Object first = cache.acquire();
+		cache.release(first);
+		assertSame(first, cache.acquire());
+		assertSame(first, cache.get());
+		assertEquals(1, created.get());
+	}
+
+	@Test
+	public void testLightweightThreadReuse() throws Exception {
+		AtomicInteger created = new AtomicInteger();
+		ThreadCache<Object> cache = new ThreadCache<>(() -> {
+			created.incrementAndGet();
+			return new Object();
+		});
+
+		ExecutorService workers = ExecutionMode.LIGHTWEIGHT_THREADS.createExecutor("test");
+		try {
+			// sequential, so the pool only ever needs a single instance
+			for(int i=0;i<100;i++)
+				workers.submit(() -> cache.release(cache.acquire())).get(10, TimeUnit.SECONDS);
+		} finally {
+			workers.shutdown();
+		}
+
+		// one per thread of the work-stealing fallback or a single instance shared by all virtual threads
+		int threads = Math.max(Runtime.getRuntime().availableProcessors(), 2);
+		assertTrue(created.get() <= threads);
+	}
+
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.utils.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ByteBufferPoolTest {
+
+	@Test
+	public void testExhaustion() {
+		ByteBufferPool pool = new ByteBufferPool(64, 4);
+
+		List<ByteBuffer> taken = new ArrayList<>();
+		for(int i=0;i<4;i++) {
+			ByteBuffer b = pool.acquire();
+			assertNotNull(b);
+			assertTrue(b.isDirect());
+			assertEquals(64, b.capacity());
+			taken.add(b);
+		}
+
+		assertNotSame(taken.get(0), taken.get(1));
+		assertNull(pool.acquire());
+		assertEquals(1, pool.exhaustedCount());
+		assertEquals(0, pool.available());
+
+		assertFalse(pool.release(ByteBuffer.allocateDirect(64)));
+		assertTrue(pool.release(taken.get(2)));
+		assertEquals(1, pool.available());
+
+		ByteBuffer b = pool.acquire();
+		assertTrue(b == taken.get(2));
+		assertEquals(0, b.position());
+		assertEquals(64, b.limit());
+	}
+
+	@Test
+	public void testSlotsDontOverlap() {
+		ByteBufferPool pool = new ByteBufferPool(16, 3);
+		ByteBuffer a = pool.acquire();
+		ByteBuffer b = pool.acquire();
+
+		while(a.hasRemaining())
+			a.put((byte) 1);
+
+		while(b.hasRemaining())
+			assertEquals(0, b.get());
+	}
+
+	@Test
+	public void testConcurrentChurn() throws InterruptedException {
+		ByteBufferPool pool = new ByteBufferPool(8, 16);
+		ExecutorService exec = Executors.newFixedThreadPool(4);
+
+		for(int t=0;t<4;t++) {
+			exec.execute(() -> {
+				for(int i=0;i<100_000;i++) {
+					ByteBuffer b = pool.acquire();
+					if(b != null)
+						pool.release(b);
+				}
+			});
+		}
+
+		exec.shutdown();
+		assertTrue(exec.awaitTermination(30, TimeUnit.SECONDS));
+		assertEquals(16, pool.available());
+	}
+
+}